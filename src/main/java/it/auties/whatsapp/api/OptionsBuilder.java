@@ -7,8 +7,13 @@ import it.auties.whatsapp.controller.StoreBuilder;
 import it.auties.whatsapp.listener.RegisterListener;
 import it.auties.whatsapp.model.signal.auth.UserAgent.ReleaseChannel;
 import it.auties.whatsapp.model.signal.auth.Version;
+import it.auties.whatsapp.util.MediaCache;
+import it.auties.whatsapp.util.MessageRateLimit;
+import it.auties.whatsapp.util.MessageRetention;
+import it.auties.whatsapp.util.MessageSearchIndex;
 
 import java.net.URI;
+import java.time.Duration;
 import java.util.concurrent.Executor;
 
 @SuppressWarnings("unused")
@@ -97,6 +102,110 @@ public sealed class OptionsBuilder<T extends OptionsBuilder<T>> permits MobileOp
         return (T) this;
     }
 
+    /**
+     * Sets the cache where downloaded medias and link preview thumbnails should be stored
+     * The same cache can be used by multiple sessions: a media that was already downloaded by any of them will be read from disk
+     * By default, no cache is used
+     *
+     * @param mediaCache the cache, null to disable caching
+     * @return the same instance for chaining
+     */
+    @SuppressWarnings("unchecked")
+    public T mediaCache(MediaCache mediaCache) {
+        if (store != null) {
+            store.setMediaCache(mediaCache);
+        } else {
+            storeBuilder.mediaCache(mediaCache);
+        }
+        return (T) this;
+    }
+
+    /**
+     * Sets how long an uploaded media can be reused when the same media is sent again, for example to a different chat
+     * Reused medias are not encrypted and uploaded again: if they are no longer available on Whatsapp's servers, they are uploaded again automatically
+     * By default, uploads are reused for one day
+     *
+     * @return the same instance for chaining
+     */
+    @SuppressWarnings("unchecked")
+    public T mediaUploadValidity(Duration mediaUploadValidity) {
+        if (store != null) {
+            store.setMediaUploadValidity(mediaUploadValidity);
+        } else {
+            storeBuilder.mediaUploadValidity(mediaUploadValidity);
+        }
+        return (T) this;
+    }
+
+    /**
+     * Sets the interval at which presence updates, like typing indicators, are delivered to listeners
+     * Updates received in the same interval are coalesced: only the latest state of each participant in each chat is delivered
+     * Presence updates are also dropped as soon as they are received if no listener handles them
+     * By default, presence updates are delivered immediately
+     *
+     * @return the same instance for chaining
+     */
+    @SuppressWarnings("unchecked")
+    public T presenceUpdatesInterval(Duration presenceUpdatesInterval) {
+        if (store != null) {
+            store.setPresenceUpdatesInterval(presenceUpdatesInterval);
+        } else {
+            storeBuilder.presenceUpdatesInterval(presenceUpdatesInterval);
+        }
+        return (T) this;
+    }
+
+    /**
+     * Sets the limits applied to outgoing messages
+     * Messages in the same chat are always sent in order, one at a time, while different chats are sent concurrently
+     * By default, messages are sent as fast as possible
+     *
+     * @return the same instance for chaining
+     */
+    @SuppressWarnings("unchecked")
+    public T messageRateLimit(MessageRateLimit messageRateLimit) {
+        if (store != null) {
+            store.setMessageRateLimit(messageRateLimit);
+        } else {
+            storeBuilder.messageRateLimit(messageRateLimit);
+        }
+        return (T) this;
+    }
+
+    /**
+     * Sets the policy that bounds the messages kept in memory by this session
+     * Evicted messages are moved to the archive of the policy, if one is configured, and can still be found by id
+     * By default, messages are never evicted
+     *
+     * @return the same instance for chaining
+     */
+    @SuppressWarnings("unchecked")
+    public T messageRetention(MessageRetention messageRetention) {
+        if (store != null) {
+            store.setMessageRetention(messageRetention);
+        } else {
+            storeBuilder.messageRetention(messageRetention);
+        }
+        return (T) this;
+    }
+
+    /**
+     * Sets the full-text index used by {@link Store#searchMessages(String, int)}
+     * Messages are indexed as they are received, sent or synced from history: if the index is backed by a file, it's saved together with the session
+     * By default, messages are not indexed
+     *
+     * @return the same instance for chaining
+     */
+    @SuppressWarnings("unchecked")
+    public T messageSearchIndex(MessageSearchIndex messageSearchIndex) {
+        if (store != null) {
+            store.setMessageSearchIndex(messageSearchIndex);
+        } else {
+            storeBuilder.messageSearchIndex(messageSearchIndex);
+        }
+        return (T) this;
+    }
+
     /**
      * Sets the error handler for this session
      *
@@ -65,9 +65,13 @@ import it.auties.whatsapp.util.*;
 import javax.imageio.ImageIO;
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.net.URI;
 import java.net.URLDecoder;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
 import java.time.Instant;
 import java.time.ZonedDateTime;
 import java.time.chrono.ChronoZonedDateTime;
@@ -77,6 +81,7 @@ import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Executor;
 import java.util.concurrent.TimeUnit;
 import java.util.function.Function;
+import java.util.function.Supplier;
 import java.util.regex.Pattern;
 import java.util.stream.Collectors;
 import java.util.stream.IntStream;
@@ -218,8 +223,10 @@ public class Whatsapp {
 
     /**
      * Disconnects from Whatsapp Web's WebSocket if a previous connection exists
+     * New messages are rejected, while queued messages and pending receipts are sent until {@link Store#shutdownTimeout()} expires.
+     * Then the session is closed and serialized, and it's kept in memory so that connecting again doesn't need to deserialize it.
      *
-     * @return a future
+     * @return a future that completes when the session was serialized
      */
     public CompletableFuture<Void> disconnect() {
         return socketHandler.disconnect(DisconnectReason.DISCONNECTED);
@@ -227,6 +234,7 @@ public class Whatsapp {
 
     /**
      * Disconnects and reconnects to Whatsapp Web's WebSocket if a previous connection exists
+     * The session is shut down like in {@link #disconnect()}, and the new connection reuses the same store and keys.
      *
      * @return a future
      */
@@ -496,6 +504,35 @@ public class Whatsapp {
                 .thenApply(ignored -> info);
     }
 
+    /**
+     * Returns the number of messages that are waiting to be sent
+     * Messages wait when a message before them in the same chat is still being sent, or when a rate limit is set and was reached
+     *
+     * @return a non-negative int
+     */
+    public int pendingMessages() {
+        return socketHandler.pendingMessages();
+    }
+
+    /**
+     * Returns the number of messages that are waiting to be sent in a chat
+     *
+     * @param chat the non-null chat
+     * @return a non-negative int
+     */
+    public int pendingMessages(JidProvider chat) {
+        return socketHandler.pendingMessages(chat.toJid());
+    }
+
+    /**
+     * Returns whether the messages that were received while the session was offline are still being delivered
+     *
+     * @return a boolean
+     */
+    public boolean isDrainingOfflineMessages() {
+        return socketHandler.isDrainingOfflineMessages();
+    }
+
     /**
      * Marks a chat as read.
      *
@@ -547,7 +584,7 @@ public class Whatsapp {
     public CompletableFuture<ChatMessageInfo> markRead(ChatMessageInfo info) {
         var type = store().findPrivacySetting(PrivacySettingType.READ_RECEIPTS)
                 .value() == PrivacySettingValue.EVERYONE ? "read" : "read-self";
-        socketHandler.sendReceipt(info.chatJid(), info.senderJid(), List.of(info.id()), type);
+        socketHandler.queueReceipt(info.chatJid(), info.senderJid(), info.id(), type);
         info.chat().ifPresent(chat -> {
             var count = chat.unreadMessagesCount();
             if (count > 0) {
@@ -661,6 +698,39 @@ public class Whatsapp {
                 .flatMap(ContactStatusResponse::status);
     }
 
+    /**
+     * Queries the display names of many contacts
+     * Contacts without a chosen name are queried in batches
+     *
+     * @param contacts the non-null contacts
+     * @return a CompletableFuture that wraps a non-null map
+     */
+    public CompletableFuture<Map<Jid, Optional<String>>> queryNames(Collection<? extends JidProvider> contacts) {
+        return socketHandler.queryNames(contacts);
+    }
+
+    /**
+     * Queries the written whatsapp status of many contacts
+     * Contacts are queried in batches, the results are saved in the store and reused for an hour
+     *
+     * @param contacts the non-null contacts
+     * @return a CompletableFuture that wraps a non-null map
+     */
+    public CompletableFuture<Map<Jid, Optional<ContactStatusResponse>>> queryAbouts(Collection<? extends JidProvider> contacts) {
+        return socketHandler.queryAbouts(contacts);
+    }
+
+    /**
+     * Queries the profile pictures of many chats
+     * Pictures are queried concurrently, the results are saved in the store and reused for an hour
+     *
+     * @param chats the non-null chats
+     * @return a CompletableFuture that wraps a non-null map of nullable jpg urls hosted on Whatsapp's servers
+     */
+    public CompletableFuture<Map<Jid, Optional<URI>>> queryPictures(Collection<? extends JidProvider> chats) {
+        return socketHandler.queryPictures(chats);
+    }
+
     /**
      * Queries the written whatsapp status of a Contact
      *
@@ -1310,7 +1380,7 @@ public class Whatsapp {
         if (store().findPrivacySetting(PrivacySettingType.READ_RECEIPTS).value() != PrivacySettingValue.EVERYONE) {
             return CompletableFuture.completedFuture(info);
         }
-        socketHandler.sendReceipt(info.chatJid(), info.senderJid(), List.of(info.id()), "played");
+        socketHandler.queueReceipt(info.chatJid(), info.senderJid(), info.id(), "played");
         info.setStatus(MessageStatus.PLAYED);
         return CompletableFuture.completedFuture(info);
     }
@@ -1481,6 +1551,7 @@ public class Whatsapp {
         if (store().clientType() == ClientType.MOBILE) {
             // TODO: Send notification to companions
             info.chat().ifPresent(chat -> chat.removeMessage(info));
+            store().unindexMessage(info.chatJid(), info.id());
             return CompletableFuture.completedFuture(info);
         }
 
@@ -1753,7 +1824,8 @@ public class Whatsapp {
     /**
      * Downloads a media from Whatsapp's servers. If the media is available, it will be returned
      * asynchronously. Otherwise, a retry request will be issued. If that also fails, an exception
-     * will be thrown
+     * will be thrown.
+     * If a media cache is configured, the media is read from it when available and stored in it after it's downloaded
      *
      * @param info the non-null message info wrapping the media
      * @return a CompletableFuture
@@ -1767,11 +1839,79 @@ public class Whatsapp {
             throw new IllegalArgumentException("This message wasn't uploaded yet");
         }
 
-        return uploadedMediaMessage.decodedMedia()
-                .map(CompletableFuture::completedFuture)
-                .orElseGet(() -> requireMediaReupload(info)
-                        .thenApplyAsync(ignored -> uploadedMediaMessage.decodedMedia()
-                                .orElseThrow(() -> new RuntimeException("Media reupload failed"))));
+        var decodedMedia = uploadedMediaMessage.decodedMedia();
+        if (decodedMedia.isPresent()) {
+            return CompletableFuture.completedFuture(decodedMedia.get());
+        }
+
+        var cache = store().mediaCache().orElse(null);
+        return Medias.download(mediaMessage, cache)
+                .thenComposeAsync(result -> result.isPresent() ? CompletableFuture.completedFuture(result) : requireMediaReupload(info)
+                        .thenComposeAsync(ignored -> Medias.download(mediaMessage, cache)))
+                .thenApplyAsync(result -> {
+                    var media = result.orElseThrow(() -> new RuntimeException("Media reupload failed"));
+                    uploadedMediaMessage.setDecodedMedia(media);
+                    return media;
+                });
+    }
+
+    /**
+     * Downloads a media from Whatsapp's servers and writes it to a file, without keeping it in memory.
+     * If the file already contains part of the media, the download is resumed.
+     * If the media isn't available, a retry request will be issued. If that also fails, an exception will be thrown
+     *
+     * @param info   the non-null message info wrapping the media
+     * @param target the non-null file where the media should be written
+     * @return a CompletableFuture
+     */
+    public CompletableFuture<Void> downloadMedia(ChatMessageInfo info, Path target) {
+        var mediaMessage = getMediaMessage(info);
+        return downloadMedia(info, () -> Medias.download(mediaMessage, target, store().mediaCache().orElse(null)));
+    }
+
+    /**
+     * Downloads a media from Whatsapp's servers and writes it to a stream, without keeping it in memory.
+     * If the media isn't available, a retry request will be issued. If that also fails, an exception will be thrown
+     *
+     * @param info   the non-null message info wrapping the media
+     * @param output the non-null stream where the media should be written
+     * @return a CompletableFuture
+     */
+    public CompletableFuture<Void> downloadMedia(ChatMessageInfo info, OutputStream output) {
+        return downloadMedia(info, Channels.newChannel(output));
+    }
+
+    /**
+     * Downloads a media from Whatsapp's servers and writes it to a channel, without keeping it in memory.
+     * If the media isn't available, a retry request will be issued. If that also fails, an exception will be thrown
+     *
+     * @param info    the non-null message info wrapping the media
+     * @param channel the non-null channel where the media should be written
+     * @return a CompletableFuture
+     */
+    public CompletableFuture<Void> downloadMedia(ChatMessageInfo info, WritableByteChannel channel) {
+        var mediaMessage = getMediaMessage(info);
+        return downloadMedia(info, () -> Medias.download(mediaMessage, channel, store().mediaCache().orElse(null)));
+    }
+
+    private CompletableFuture<Void> downloadMedia(ChatMessageInfo info, Supplier<CompletableFuture<Boolean>> downloader) {
+        return downloader.get().thenComposeAsync(found -> {
+            if (found) {
+                return CompletableFuture.completedFuture(null);
+            }
+
+            return requireMediaReupload(info)
+                    .thenComposeAsync(ignored -> downloader.get())
+                    .thenAcceptAsync(result -> Validate.isTrue(result, "Media reupload failed", RuntimeException.class));
+        });
+    }
+
+    private MediaMessage<?> getMediaMessage(ChatMessageInfo info) {
+        if (!(info.message().content() instanceof MediaMessage<?> mediaMessage)) {
+            throw new IllegalArgumentException("Expected media message, got: " + info.message().category());
+        }
+
+        return mediaMessage;
     }
 
     /**
@@ -2749,6 +2889,16 @@ public class Whatsapp {
         return addListener(onNewMessage);
     }
 
+    /**
+     * Registers a listener for the batches of messages received while the session was offline
+     *
+     * @param onNewMessages the listener to register
+     * @return the same instance
+     */
+    public Whatsapp addNewChatMessagesListener(OnNewMessages onNewMessages) {
+        return addListener(onNewMessages);
+    }
+
     /**
      * Registers a new status listener
      *
@@ -2829,6 +2979,16 @@ public class Whatsapp {
         return addListener(onSyncProgress);
     }
 
+    /**
+     * Registers an offline messages progress listener
+     *
+     * @param onOfflineMessagesProgress the listener to register
+     * @return the same instance
+     */
+    public Whatsapp addOfflineMessagesProgressListener(OnOfflineMessagesProgress onOfflineMessagesProgress) {
+        return addListener(onOfflineMessagesProgress);
+    }
+
     /**
      * Registers a chat recent messages listener
      *
@@ -2939,6 +3099,16 @@ public class Whatsapp {
         return addListener(onNewMessage);
     }
 
+    /**
+     * Registers a listener for the batches of messages received while the session was offline
+     *
+     * @param onNewMessages the listener to register
+     * @return the same instance
+     */
+    public Whatsapp addNewChatMessagesListener(OnWhatsappNewMessages onNewMessages) {
+        return addListener(onNewMessages);
+    }
+
     /**
      * Registers a new status listener
      *
@@ -3009,6 +3179,16 @@ public class Whatsapp {
         return addListener(onSyncProgress);
     }
 
+    /**
+     * Registers an offline messages progress listener
+     *
+     * @param onOfflineMessagesProgress the listener to register
+     * @return the same instance
+     */
+    public Whatsapp addOfflineMessagesProgressListener(OnWhatsappOfflineMessagesProgress onOfflineMessagesProgress) {
+        return addListener(onOfflineMessagesProgress);
+    }
+
     /**
      * Registers a message reply listener
      *
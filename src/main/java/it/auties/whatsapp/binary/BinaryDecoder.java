@@ -11,13 +11,28 @@ import java.nio.charset.StandardCharsets;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.stream.IntStream;
 
 import static it.auties.whatsapp.binary.BinaryTag.*;
 
 public final class BinaryDecoder {
+    // The token dictionaries and the alphabets are resolved once, so decoding a value is an array lookup
+    private static final String[] SINGLE_BYTE_TOKENS = BinaryTokens.SINGLE_BYTE.toArray(String[]::new);
+    private static final String[] DOUBLE_BYTE_TOKENS = BinaryTokens.DOUBLE_BYTE.toArray(String[]::new);
+    private static final int DICTIONARY_SIZE = DOUBLE_BYTE_TOKENS.length / 4;
+    private static final char[] NUMBERS_ALPHABET = toAlphabet(BinaryTokens.NUMBERS);
+    private static final char[] HEX_ALPHABET = toAlphabet(BinaryTokens.HEX);
+
     private ByteBuf buffer;
 
+    private static char[] toAlphabet(List<Character> characters) {
+        var result = new char[characters.size()];
+        for (var index = 0; index < result.length; index++) {
+            result[index] = characters.get(index);
+        }
+
+        return result;
+    }
+
     public Node decode(byte[] input) {
         var buffer = BytesHelper.newBuffer(input);
         var token = buffer.readByte() & 2;
@@ -57,26 +72,27 @@ public final class BinaryDecoder {
     }
 
     private List<Node> readList(int size) {
-        return IntStream.range(0, size)
-                .mapToObj(index -> readNode())
-                .toList();
+        var nodes = new Node[size];
+        for (var index = 0; index < size; index++) {
+            nodes[index] = readNode();
+        }
+
+        return List.of(nodes);
     }
 
-    private String readString(List<Character> permitted, int start, int end) {
+    private String readString(char[] alphabet, int start, int end) {
         var string = new char[2 * end - start];
-        IntStream.iterate(0, index -> index < string.length - 1, n -> n + 2)
-                .forEach(index -> readChar(permitted, string, index));
+        for (var index = 0; index < string.length - 1; index += 2) {
+            var token = buffer.readUnsignedByte();
+            string[index] = alphabet[token >>> 4];
+            string[index + 1] = alphabet[15 & token];
+        }
+
         if (start != 0) {
-            string[string.length - 1] = permitted.get(buffer.readUnsignedByte() >>> 4);
+            string[string.length - 1] = alphabet[buffer.readUnsignedByte() >>> 4];
         }
 
-        return String.valueOf(string);
-    }
-
-    private void readChar(List<Character> permitted, char[] string, int index) {
-        var token = buffer.readUnsignedByte();
-        string[index] = permitted.get(token >>> 4);
-        string[index + 1] = permitted.get(15 & token);
+        return new String(string);
     }
 
     private Object read(boolean parseBytes) {
@@ -104,26 +120,32 @@ public final class BinaryDecoder {
 
     private String readStringFromToken(int token) {
         if (token < DICTIONARY_0.data() || token > DICTIONARY_3.data()) {
-            return BinaryTokens.SINGLE_BYTE.get(token - 1);
+            return SINGLE_BYTE_TOKENS[token - 1];
         }
 
-        var delta = (BinaryTokens.DOUBLE_BYTE.size() / 4) * (token - DICTIONARY_0.data());
-        return BinaryTokens.DOUBLE_BYTE.get(buffer.readUnsignedByte() + delta);
+        var delta = DICTIONARY_SIZE * (token - DICTIONARY_0.data());
+        return DOUBLE_BYTE_TOKENS[buffer.readUnsignedByte() + delta];
     }
 
     private String readNibble() {
         var number = buffer.readUnsignedByte();
-        return readString(BinaryTokens.NUMBERS, number >>> 7, 127 & number);
+        return readString(NUMBERS_ALPHABET, number >>> 7, 127 & number);
     }
 
     private Object readString(int size, boolean parseBytes) {
-        var data = BytesHelper.readBuffer(buffer, size);
-        return parseBytes ? new String(data, StandardCharsets.UTF_8) : data;
+        if (!parseBytes) {
+            return BytesHelper.readBuffer(buffer, size);
+        }
+
+        // Decoded straight from the buffer, without an intermediate copy
+        var result = buffer.toString(buffer.readerIndex(), size, StandardCharsets.UTF_8);
+        buffer.skipBytes(size);
+        return result;
     }
 
     private String readHexString() {
         var number = buffer.readUnsignedByte();
-        return readString(BinaryTokens.HEX, number >>> 7, 127 & number);
+        return readString(HEX_ALPHABET, number >>> 7, 127 & number);
     }
 
     private Jid readJidPair() {
@@ -149,7 +171,7 @@ public final class BinaryDecoder {
     }
 
     private Map<String, Object> readAttributes(int size) {
-        var map = new HashMap<String, Object>();
+        var map = HashMap.<String, Object>newHashMap((size - 1) / 2);
         for (var pair = size - 1; pair > 1; pair -= 2) {
             var key = readString();
             var value = read(true);
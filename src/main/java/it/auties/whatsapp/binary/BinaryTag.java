@@ -22,6 +22,20 @@ public enum BinaryTag {
     SINGLE_BYTE_MAX(256),
     PACKED_MAX(254);
 
+    // Every byte maps to its tag, or to UNKNOWN if it's a token: if two tags share the same value, the first one wins
+    private static final BinaryTag[] BY_DATA = new BinaryTag[256];
+
+    static {
+        Arrays.fill(BY_DATA, UNKNOWN);
+        var values = values();
+        for (var index = values.length - 1; index >= 0; index--) {
+            var entry = values[index];
+            if (entry.data() >= 0 && entry.data() < BY_DATA.length) {
+                BY_DATA[entry.data()] = entry;
+            }
+        }
+    }
+
     private final int data;
 
     BinaryTag(int data) {
@@ -29,7 +43,7 @@ public enum BinaryTag {
     }
 
     public static BinaryTag of(int data) {
-        return Arrays.stream(values()).filter(entry -> entry.data() == data).findAny().orElse(UNKNOWN);
+        return data >= 0 && data < BY_DATA.length ? BY_DATA[data] : UNKNOWN;
     }
 
     public boolean contentEquals(int number) {
@@ -4,8 +4,11 @@ import com.fasterxml.jackson.annotation.JsonIgnore;
 import it.auties.whatsapp.api.ClientType;
 import it.auties.whatsapp.model.mobile.PhoneNumber;
 import it.auties.whatsapp.util.Json;
+import it.auties.whatsapp.util.Metrics;
 
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * This interface represents is implemented by all WhatsappWeb4J's controllers. It provides an easy
@@ -29,6 +32,18 @@ public abstract sealed class Controller<T extends Controller<T>> permits Store,
     @JsonIgnore
     protected ControllerSerializer serializer;
 
+    /**
+     * The sink for the metrics of this session
+     */
+    @JsonIgnore
+    protected Metrics metrics;
+
+    /**
+     * The client that uses this controller, null if it isn't used by any client
+     */
+    @JsonIgnore
+    private final AtomicReference<Object> owner;
+
     /**
      * The client type
      */
@@ -43,6 +58,8 @@ public abstract sealed class Controller<T extends Controller<T>> permits Store,
         this.uuid = uuid;
         this.phoneNumber = phoneNumber;
         this.serializer = serializer;
+        this.metrics = Metrics.noop();
+        this.owner = new AtomicReference<>();
         this.clientType = clientType;
         this.alias = Objects.requireNonNullElseGet(alias, ArrayList::new);
     }
@@ -51,13 +68,53 @@ public abstract sealed class Controller<T extends Controller<T>> permits Store,
      * Serializes this object
      *
      * @param async whether the operation should be executed asynchronously
+     * @return a future that completes when this object was serialized
+     */
+    public abstract CompletableFuture<Void> serialize(boolean async);
+
+    /**
+     * Disposes this object
      */
-    public abstract void serialize(boolean async);
+    public void dispose() {
+        dispose(false);
+    }
 
     /**
      * Disposes this object
+     *
+     * @param async whether the final serialization should be executed asynchronously
+     * @return a future that completes when this object was serialized
+     */
+    public abstract CompletableFuture<Void> dispose(boolean async);
+
+    /**
+     * Keeps this controller in memory after its session was closed, so that the next builder that looks up the same session with the same serializer reuses it instead of deserializing it again
+     * The controller is referenced softly, so it's released when memory is needed
+     */
+    public void retain() {
+        ControllerCache.put(this);
+    }
+
+    /**
+     * Attaches this controller to a client, which detaches it from the client that used it before, if any
+     * The controller is also removed from the controllers kept in memory by {@link #retain()}, so that it isn't reused by another client while this one uses it
+     *
+     * @param owner the non-null client
+     */
+    public void attach(Object owner) {
+        this.owner.set(Objects.requireNonNull(owner, "Owner cannot be null"));
+        ControllerCache.remove(this);
+    }
+
+    /**
+     * Returns whether this controller is attached to a client
+     *
+     * @param owner the client
+     * @return a boolean
      */
-    public abstract void dispose();
+    public boolean isAttachedTo(Object owner) {
+        return this.owner.get() == owner;
+    }
 
     public UUID uuid() {
         return this.uuid;
@@ -109,6 +166,52 @@ public abstract sealed class Controller<T extends Controller<T>> permits Store,
         return (T) this;
     }
 
+    /**
+     * Returns the sink for the metrics of this session
+     *
+     * @return a non-null sink
+     */
+    public Metrics metrics() {
+        return metrics;
+    }
+
+    /**
+     * Sets the sink for the metrics of this session
+     *
+     * @param metrics the sink, null to discard metrics
+     * @return the same instance
+     */
+    @SuppressWarnings("unchecked")
+    public T setMetrics(Metrics metrics) {
+        this.metrics = Objects.requireNonNullElseGet(metrics, Metrics::noop);
+        return (T) this;
+    }
+
+    /**
+     * Returns the start of a serialization, if metrics are enabled
+     *
+     * @return the current value of {@link System#nanoTime()}, or zero if metrics are disabled
+     */
+    protected long flushStart() {
+        return metrics.enabled() ? System.nanoTime() : 0L;
+    }
+
+    /**
+     * Reports how long it took to serialize this controller when the serialization completes
+     *
+     * @param type   the non-null type of this controller
+     * @param start  the value returned by {@link #flushStart()} before the serialization started
+     * @param result the non-null serialization
+     */
+    protected void recordFlush(String type, long start, CompletableFuture<Void> result) {
+        if (start == 0L || result == null) {
+            return;
+        }
+
+        var metrics = this.metrics;
+        result.whenComplete((ignored, error) -> metrics.onFlush(type, System.nanoTime() - start));
+    }
+
     /**
      * Returns an immutable collection of alias
      *
@@ -156,6 +259,7 @@ public abstract sealed class Controller<T extends Controller<T>> permits Store,
      * Deletes the current session
      */
     public void deleteSession() {
+        ControllerCache.remove(this);
         serializer.deleteSession(this);
     }
 }
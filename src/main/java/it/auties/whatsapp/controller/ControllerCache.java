@@ -0,0 +1,69 @@
+package it.auties.whatsapp.controller;
+
+import it.auties.whatsapp.api.ClientType;
+import it.auties.whatsapp.model.mobile.PhoneNumber;
+
+import java.lang.ref.SoftReference;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.UUID;
+
+// Controllers whose session was shut down gracefully are kept here, so that a builder that looks up the same session reuses the instances that are already in memory instead of deserializing them again
+// A controller is only reused by a builder with the same serializer, as the serializer is what its last snapshot was written with, and it's removed from the cache when it's reused or its session is deleted
+// At most MAX_SIZE controllers are kept and they are referenced softly, so they are released when memory is needed
+final class ControllerCache {
+    private static final int MAX_SIZE = 16;
+    private static final Map<Key, SoftReference<Controller<?>>> entries = new LinkedHashMap<>(MAX_SIZE, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Key, SoftReference<Controller<?>>> eldest) {
+            return size() > MAX_SIZE;
+        }
+    };
+
+    private ControllerCache() {
+        throw new UnsupportedOperationException("This is a utility class and cannot be instantiated");
+    }
+
+    static synchronized void put(Controller<?> controller) {
+        entries.put(new Key(controller.getClass(), controller.uuid()), new SoftReference<>(controller));
+    }
+
+    static synchronized void remove(Controller<?> controller) {
+        entries.remove(new Key(controller.getClass(), controller.uuid()));
+    }
+
+    static synchronized <T extends Controller<T>> Optional<T> take(Class<T> type, ControllerSerializer serializer, ClientType clientType, UUID uuid, PhoneNumber phoneNumber, String alias) {
+        var iterator = entries.entrySet().iterator();
+        while (iterator.hasNext()) {
+            var entry = iterator.next();
+            var controller = entry.getValue().get();
+            if (controller == null) {
+                iterator.remove();
+                continue;
+            }
+
+            if (entry.getKey().type() != type || controller.serializer() != serializer || controller.clientType() != clientType) {
+                continue;
+            }
+
+            if (matches(controller, uuid, phoneNumber, alias)) {
+                iterator.remove();
+                return Optional.of(type.cast(controller));
+            }
+        }
+
+        return Optional.empty();
+    }
+
+    private static boolean matches(Controller<?> controller, UUID uuid, PhoneNumber phoneNumber, String alias) {
+        return Objects.equals(controller.uuid(), uuid)
+                || (phoneNumber != null && controller.phoneNumber().filter(phoneNumber::equals).isPresent())
+                || (alias != null && controller.alias().contains(alias));
+    }
+
+    private record Key(Class<?> type, UUID uuid) {
+
+    }
+}
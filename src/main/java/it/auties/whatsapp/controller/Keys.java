@@ -20,7 +20,11 @@ import it.auties.whatsapp.model.sync.PatchType;
 import it.auties.whatsapp.util.BytesHelper;
 import it.auties.whatsapp.util.Clock;
 
+import java.time.Duration;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.atomic.AtomicLong;
 
 import static java.util.Objects.requireNonNullElseGet;
@@ -72,10 +76,26 @@ public final class Keys extends Controller<Keys> {
     private Long signedKeyIndexTimestamp;
 
     /**
-     * Whether these keys have generated pre keys assigned to them
+     * The pre keys that were uploaded to the server and weren't pruned yet
      */
     private final List<SignalPreKeyPair> preKeys;
 
+    /**
+     * The pre keys indexed by id
+     */
+    @JsonIgnore
+    private final Map<Integer, SignalPreKeyPair> preKeysById;
+
+    /**
+     * The time, in seconds, at which each consumed pre key was used to create a session
+     */
+    private final Map<Integer, Long> consumedPreKeys;
+
+    /**
+     * The id of the last generated pre key
+     */
+    private int lastPreKeyId;
+
     /**
      * The phone id for the mobile api
      */
@@ -152,7 +172,7 @@ public final class Keys extends Controller<Keys> {
     private byte[] writeKey, readKey;
 
     @JsonCreator(mode = JsonCreator.Mode.PROPERTIES)
-    Keys(UUID uuid, PhoneNumber phoneNumber, ControllerSerializer serializer, ClientType clientType, List<String> alias, int registrationId, SignalKeyPair noiseKeyPair, SignalKeyPair ephemeralKeyPair, SignalKeyPair identityKeyPair, SignalKeyPair companionKeyPair, SignalSignedKeyPair signedKeyPair, byte[] signedKeyIndex, Long signedKeyIndexTimestamp, List<SignalPreKeyPair> preKeys, String phoneId, String deviceId, String recoveryToken, SignedDeviceIdentity companionIdentity, Map<SenderKeyName, SenderKeyRecord> senderKeys, Map<Jid, LinkedList<AppStateSyncKey>> appStateKeys, Map<SessionAddress, Session> sessions, Map<Jid, Map<PatchType, CompanionHashState>> hashStates, Map<Jid, Collection<Jid>> groupsPreKeys, boolean registered, boolean businessCertificate, boolean initialAppSync) {
+    Keys(UUID uuid, PhoneNumber phoneNumber, ControllerSerializer serializer, ClientType clientType, List<String> alias, int registrationId, SignalKeyPair noiseKeyPair, SignalKeyPair ephemeralKeyPair, SignalKeyPair identityKeyPair, SignalKeyPair companionKeyPair, SignalSignedKeyPair signedKeyPair, byte[] signedKeyIndex, Long signedKeyIndexTimestamp, List<SignalPreKeyPair> preKeys, Map<Integer, Long> consumedPreKeys, int lastPreKeyId, String phoneId, String deviceId, String recoveryToken, SignedDeviceIdentity companionIdentity, Map<SenderKeyName, SenderKeyRecord> senderKeys, Map<Jid, LinkedList<AppStateSyncKey>> appStateKeys, Map<SessionAddress, Session> sessions, Map<Jid, Map<PatchType, CompanionHashState>> hashStates, Map<Jid, Collection<Jid>> groupsPreKeys, boolean registered, boolean businessCertificate, boolean initialAppSync) {
         super(uuid, phoneNumber, serializer, clientType, alias);
         this.registrationId = registrationId;
         this.noiseKeyPair = noiseKeyPair;
@@ -162,7 +182,14 @@ public final class Keys extends Controller<Keys> {
         this.signedKeyPair = signedKeyPair;
         this.signedKeyIndex = signedKeyIndex;
         this.signedKeyIndexTimestamp = signedKeyIndexTimestamp;
-        this.preKeys = preKeys;
+        this.preKeys = new CopyOnWriteArrayList<>(preKeys);
+        this.preKeysById = new ConcurrentHashMap<>();
+        for (var preKey : preKeys) {
+            preKeysById.put(preKey.id(), preKey);
+            lastPreKeyId = Math.max(lastPreKeyId, preKey.id());
+        }
+        this.consumedPreKeys = consumedPreKeys == null ? new ConcurrentHashMap<>() : new ConcurrentHashMap<>(consumedPreKeys);
+        this.lastPreKeyId = lastPreKeyId;
         this.phoneId = phoneId;
         this.deviceId = deviceId;
         this.recoveryToken = recoveryToken;
@@ -257,7 +284,7 @@ public final class Keys extends Controller<Keys> {
      * @return a non-null pre key
      */
     public Optional<SignalPreKeyPair> findPreKeyById(Integer id) {
-        return id == null ? Optional.empty() : preKeys.stream().filter(preKey -> preKey.id() == id).findFirst();
+        return id == null ? Optional.empty() : Optional.ofNullable(preKeysById.get(id));
     }
 
     /**
@@ -370,8 +397,45 @@ public final class Keys extends Controller<Keys> {
      * @param preKey the key to add
      * @return this
      */
-    public Keys addPreKey(SignalPreKeyPair preKey) {
-        preKeys.add(preKey);
+    public synchronized Keys addPreKey(SignalPreKeyPair preKey) {
+        if (preKeysById.putIfAbsent(preKey.id(), preKey) == null) {
+            preKeys.add(preKey);
+        }
+
+        lastPreKeyId = Math.max(lastPreKeyId, preKey.id());
+        return this;
+    }
+
+    /**
+     * Marks a pre key as consumed, that is used to create a session
+     * Consumed pre keys are kept for {@code gracePeriod}, so that messages that were encrypted with them and are delivered late, for example because they are retried, can still be decrypted, and then removed
+     *
+     * @param id          the id of the pre key
+     * @param gracePeriod the non-null time after which consumed pre keys are removed
+     * @return this
+     */
+    public synchronized Keys markPreKeyConsumed(int id, Duration gracePeriod) {
+        var now = Clock.nowSeconds();
+        if (preKeysById.containsKey(id)) {
+            consumedPreKeys.putIfAbsent(id, now);
+        }
+
+        var cutoff = now - gracePeriod.toSeconds();
+        var expired = consumedPreKeys.entrySet()
+                .stream()
+                .filter(entry -> entry.getValue() < cutoff)
+                .map(Map.Entry::getKey)
+                .toList();
+        if (expired.isEmpty()) {
+            return this;
+        }
+
+        for (var expiredId : expired) {
+            consumedPreKeys.remove(expiredId);
+            preKeysById.remove(expiredId);
+        }
+
+        preKeys.removeIf(preKey -> !preKeysById.containsKey(preKey.id()));
         return this;
     }
 
@@ -396,12 +460,12 @@ public final class Keys extends Controller<Keys> {
     }
 
     /**
-     * Returns the id of the last available pre key
+     * Returns the id of the last generated pre key
      *
      * @return an integer
      */
     public int lastPreKeyId() {
-        return preKeys.isEmpty() ? 0 : preKeys.get(preKeys.size() - 1).id();
+        return lastPreKeyId;
     }
 
     /**
@@ -464,13 +528,16 @@ public final class Keys extends Controller<Keys> {
     }
 
     @Override
-    public void dispose() {
-        serialize(false);
+    public CompletableFuture<Void> dispose(boolean async) {
+        return serialize(async);
     }
 
     @Override
-    public void serialize(boolean async) {
-        serializer.serializeKeys(this, async);
+    public CompletableFuture<Void> serialize(boolean async) {
+        var start = flushStart();
+        var result = serializer.serializeKeys(this, async);
+        recordFlush("keys", start, result);
+        return result;
     }
 
     public int registrationId() {
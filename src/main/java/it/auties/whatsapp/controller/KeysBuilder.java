@@ -48,6 +48,11 @@ public class KeysBuilder {
     public Optional<Keys> deserialize() {
         var safeSerializer = Objects.requireNonNullElseGet(serializer, DefaultControllerSerializer::instance);
         var clientType = Objects.requireNonNull(this.clientType, "Client type is required");
+        var cached = ControllerCache.take(Keys.class, safeSerializer, clientType, uuid, phoneNumber, alias);
+        if (cached.isPresent()) {
+            return cached;
+        }
+
         if (uuid != null) {
             var keys = safeSerializer.deserializeKeys(clientType, uuid);
             if (keys.isPresent()) {
@@ -95,6 +100,8 @@ public class KeysBuilder {
                     null,
                     null,
                     new ArrayList<>(),
+                    new ConcurrentHashMap<>(),
+                    0,
                     KeyHelper.phoneId(),
                     KeyHelper.deviceId(),
                     KeyHelper.identityId(),
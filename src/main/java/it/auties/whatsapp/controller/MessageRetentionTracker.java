@@ -0,0 +1,205 @@
+package it.auties.whatsapp.controller;
+
+import it.auties.whatsapp.model.chat.Chat;
+import it.auties.whatsapp.model.info.ChatMessageInfo;
+import it.auties.whatsapp.model.info.ChatMessageInfoSpec;
+import it.auties.whatsapp.model.jid.Jid;
+import it.auties.whatsapp.util.Clock;
+import it.auties.whatsapp.util.MessageRetention;
+
+import java.util.*;
+import java.util.function.Function;
+
+// Enforces a MessageRetention policy on the chats of a store
+// The size of a message is estimated from its protobuf encoding, which is computed once per message and only if the policy has a limit on the total size
+// Tracked messages are also kept in a set ordered by timestamp across all chats, so that the oldest message is found in logarithmic time when the limit is exceeded
+// When the limit is exceeded, messages are evicted until the total size is below LOW_WATERMARK of the limit, so that eviction doesn't run for every new message
+final class MessageRetentionTracker {
+    private static final double LOW_WATERMARK = 0.9;
+    private static final Comparator<TrackedMessage> AGE_ORDER = Comparator.comparingLong(TrackedMessage::timestampSeconds)
+            .thenComparing(entry -> entry.chatJid().toString())
+            .thenComparing(TrackedMessage::id);
+
+    private final MessageRetention policy;
+    private final Map<Jid, Map<String, TrackedMessage>> tracked;
+    private final NavigableSet<TrackedMessage> byAge;
+    private long totalBytes;
+
+    MessageRetentionTracker(MessageRetention policy) {
+        this.policy = policy;
+        this.tracked = new HashMap<>();
+        this.byAge = new TreeSet<>(AGE_ORDER);
+    }
+
+    MessageRetention policy() {
+        return policy;
+    }
+
+    synchronized void onChat(Chat chat, Function<Jid, Optional<Chat>> chats) {
+        if (policy.maxBytes() != 0) {
+            forget(chat.jid());
+            var chatEntries = new HashMap<String, TrackedMessage>();
+            tracked.put(chat.jid(), chatEntries);
+            for (var message : chat.messages()) {
+                track(chat.jid(), chatEntries, message.messageInfo());
+            }
+        }
+
+        trim(chat);
+        trimBytes(chats);
+    }
+
+    synchronized void onMessage(Chat chat, ChatMessageInfo info, Function<Jid, Optional<Chat>> chats) {
+        if (policy.maxBytes() != 0) {
+            var chatEntries = tracked.get(chat.jid());
+            if (chatEntries == null) {
+                onChat(chat, chats);
+                return;
+            }
+
+            track(chat.jid(), chatEntries, info);
+        }
+
+        trim(chat);
+        trimBytes(chats);
+    }
+
+    synchronized void onChatRemoved(Jid chatJid) {
+        forget(chatJid);
+    }
+
+    List<ChatMessageInfo> trimStatus(Collection<ChatMessageInfo> status) {
+        var cutoff = getCutoff();
+        var sorted = status.stream()
+                .sorted(Comparator.comparingLong(ChatMessageInfo::timestampSeconds))
+                .toList();
+        var excess = policy.maxMessagesPerChat() == 0 ? 0 : Math.max(0, sorted.size() - policy.maxMessagesPerChat());
+        var evicted = new ArrayList<ChatMessageInfo>();
+        for (var index = 0; index < sorted.size(); index++) {
+            var info = sorted.get(index);
+            if (index >= excess && info.timestampSeconds() >= cutoff) {
+                break;
+            }
+
+            evicted.add(info);
+        }
+
+        policy.findArchive().ifPresent(archive -> evicted.forEach(info -> archive.append(info.chatJid(), info)));
+        return evicted;
+    }
+
+    private void track(Jid chatJid, Map<String, TrackedMessage> chatEntries, ChatMessageInfo info) {
+        if (chatEntries.containsKey(info.id())) {
+            return;
+        }
+
+        var entry = new TrackedMessage(info.timestampSeconds(), chatJid, info.id(), estimateSize(info));
+        chatEntries.put(info.id(), entry);
+        byAge.add(entry);
+        totalBytes += entry.size();
+    }
+
+    private void trim(Chat chat) {
+        var cutoff = getCutoff();
+        var max = policy.maxMessagesPerChat();
+        var evicted = chat.removeOldestMessages(info -> (max != 0 && chat.messages().size() > max) || info.timestampSeconds() < cutoff);
+        onEvicted(chat, evicted);
+    }
+
+    // Messages are evicted from the head of the chat that contains the oldest tracked message, as that's where a chat keeps its oldest messages
+    // A tracked message that is older than the head of its chat was removed from the chat by something else, so it's only forgotten
+    // Every iteration either evicts a message or forgets a tracked one, so this always terminates
+    private void trimBytes(Function<Jid, Optional<Chat>> chats) {
+        if (policy.maxBytes() == 0 || totalBytes <= policy.maxBytes()) {
+            return;
+        }
+
+        var target = (long) (policy.maxBytes() * LOW_WATERMARK);
+        while (totalBytes > target && !byAge.isEmpty()) {
+            var oldest = byAge.first();
+            var chat = chats.apply(oldest.chatJid());
+            var head = chat.flatMap(Chat::oldestMessage);
+            if (head.isEmpty()) {
+                forget(oldest.chatJid());
+                continue;
+            }
+
+            if (!Objects.equals(head.get().id(), oldest.id()) && head.get().timestampSeconds() > oldest.timestampSeconds()) {
+                untrack(oldest);
+                continue;
+            }
+
+            var remaining = new int[]{1};
+            var evicted = chat.get().removeOldestMessages(ignored -> remaining[0]-- > 0);
+            if (evicted.isEmpty()) {
+                forget(oldest.chatJid());
+                continue;
+            }
+
+            onEvicted(chat.get(), evicted);
+        }
+    }
+
+    private void onEvicted(Chat chat, List<ChatMessageInfo> evicted) {
+        if (evicted.isEmpty()) {
+            return;
+        }
+
+        archive(chat.jid(), evicted);
+        var chatEntries = tracked.get(chat.jid());
+        if (chatEntries == null) {
+            return;
+        }
+
+        for (var info : evicted) {
+            var entry = chatEntries.get(info.id());
+            if (entry != null) {
+                untrack(entry);
+            }
+        }
+    }
+
+    private void archive(Jid chatJid, List<ChatMessageInfo> evicted) {
+        policy.findArchive().ifPresent(archive -> evicted.forEach(info -> archive.append(chatJid, info)));
+    }
+
+    private void untrack(TrackedMessage entry) {
+        var chatEntries = tracked.get(entry.chatJid());
+        if (chatEntries != null) {
+            chatEntries.remove(entry.id());
+        }
+
+        if (byAge.remove(entry)) {
+            totalBytes -= entry.size();
+        }
+    }
+
+    private void forget(Jid chatJid) {
+        var chatEntries = tracked.remove(chatJid);
+        if (chatEntries == null) {
+            return;
+        }
+
+        for (var entry : chatEntries.values()) {
+            if (byAge.remove(entry)) {
+                totalBytes -= entry.size();
+            }
+        }
+    }
+
+    private long getCutoff() {
+        if (policy.maxAge() == null) {
+            return Long.MIN_VALUE;
+        }
+
+        return Clock.nowSeconds() - policy.maxAge().toSeconds();
+    }
+
+    private int estimateSize(ChatMessageInfo info) {
+        return ChatMessageInfoSpec.encode(info).length;
+    }
+
+    private record TrackedMessage(long timestampSeconds, Jid chatJid, String id, int size) {
+
+    }
+}
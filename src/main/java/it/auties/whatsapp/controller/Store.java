@@ -36,8 +36,14 @@ import it.auties.whatsapp.model.sync.HistorySyncMessage;
 import it.auties.whatsapp.socket.SocketRequest;
 import it.auties.whatsapp.util.BytesHelper;
 import it.auties.whatsapp.util.FutureReference;
+import it.auties.whatsapp.util.MediaCache;
+import it.auties.whatsapp.util.MediaUploadRegistry;
+import it.auties.whatsapp.util.MessageRateLimit;
+import it.auties.whatsapp.util.MessageRetention;
+import it.auties.whatsapp.util.MessageSearchIndex;
 import it.auties.whatsapp.util.MetadataHelper;
 import it.auties.whatsapp.util.ProxyAuthenticator;
+import it.auties.whatsapp.util.Validate;
 
 import java.net.URI;
 import java.time.Duration;
@@ -56,6 +62,8 @@ import java.util.stream.Stream;
  */
 @SuppressWarnings({"unused", "UnusedReturnValue"})
 public final class Store extends Controller<Store> {
+    private static final Duration SEARCH_INDEX_SAVE_INTERVAL = Duration.ofMinutes(1);
+
     /**
      * The version used by this session
      */
@@ -247,6 +255,48 @@ public final class Store extends Controller<Store> {
     @JsonIgnore
     private final CountDownLatch mediaConnectionLatch;
 
+    /**
+     * The cache used to store downloaded medias on disk, can be shared by multiple sessions
+     */
+    @JsonIgnore
+    private MediaCache mediaCache;
+
+    /**
+     * The medias uploaded by this session that can be reused when they are sent again
+     */
+    @JsonIgnore
+    private MediaUploadRegistry mediaUploadRegistry;
+
+    /**
+     * The interval at which presence updates are coalesced and delivered to listeners, null to deliver them immediately
+     */
+    @JsonIgnore
+    private Duration presenceUpdatesInterval;
+
+    /**
+     * The limits applied to outgoing messages, null if messages are sent as fast as possible
+     */
+    @JsonIgnore
+    private MessageRateLimit messageRateLimit;
+
+    /**
+     * The policy that bounds the messages kept in memory, null if messages are never evicted
+     */
+    @JsonIgnore
+    private MessageRetentionTracker messageRetention;
+
+    /**
+     * The full-text index over the text of messages, null if messages are not indexed
+     */
+    @JsonIgnore
+    private MessageSearchIndex messageSearchIndex;
+
+    /**
+     * How long a graceful shutdown waits for outgoing messages and receipts to be sent, null to use the default
+     */
+    @JsonIgnore
+    private Duration shutdownTimeout;
+
     /**
      * The request tag, used to create messages
      */
@@ -339,6 +389,7 @@ public final class Store extends Controller<Store> {
         this.tag = HexFormat.of().formatHex(BytesHelper.random(1));
         this.initializationTimeStamp = initializationTimeStamp;
         this.mediaConnectionLatch = new CountDownLatch(1);
+        this.mediaUploadRegistry = MediaUploadRegistry.of();
         this.newChatsEphemeralTimer = newChatsEphemeralTimer;
         this.textPreviewSetting = textPreviewSetting;
         this.historyLength = historyLength;
@@ -447,11 +498,9 @@ public final class Store extends Controller<Store> {
                         .flatMap(newsletter -> findMessageById(newsletter, id));
                 case STATUS -> {
                     var messages = status.get(contactJid);
-                    if (messages == null) {
-                        yield Optional.empty();
-                    }
-
-                    yield Optional.ofNullable(messages.get(id));
+                    var result = messages == null ? null : messages.get(id);
+                    yield Optional.ofNullable(result)
+                            .or(() -> findArchivedMessage(contactJid, id));
                 }
                 default -> findChatByJid(contactJid)
                         .flatMap(chat -> findMessageById(chat, id));
@@ -486,7 +535,14 @@ public final class Store extends Controller<Store> {
                 .parallelStream()
                 .map(HistorySyncMessage::messageInfo)
                 .filter(message -> Objects.equals(message.key().id(), id))
-                .findAny();
+                .findAny()
+                .or(() -> findArchivedMessage(chat.jid(), id).map(message -> message.setChat(chat)));
+    }
+
+    private Optional<ChatMessageInfo> findArchivedMessage(Jid chatJid, String id) {
+        return messageRetention()
+                .flatMap(MessageRetention::findArchive)
+                .flatMap(archive -> archive.find(chatJid, id));
     }
 
     /**
@@ -780,7 +836,10 @@ public final class Store extends Controller<Store> {
      * @return the old chat, if present
      */
     public Optional<Chat> addChatDirect(Chat chat) {
-        return Optional.ofNullable(chats.put(chat.jid(), chat));
+        var result = Optional.ofNullable(chats.put(chat.jid(), chat));
+        indexMessages(chat);
+        applyMessageRetention(chat);
+        return result;
     }
 
     /**
@@ -821,6 +880,12 @@ public final class Store extends Controller<Store> {
      * @return the chat that was deleted wrapped by an optional
      */
     public Optional<Chat> removeChat(JidProvider chatJid) {
+        var tracker = messageRetention;
+        if (tracker != null) {
+            tracker.onChatRemoved(chatJid.toJid());
+        }
+
+        unindexChat(chatJid);
         return Optional.ofNullable(chats.remove(chatJid.toJid()));
     }
 
@@ -866,6 +931,47 @@ public final class Store extends Controller<Store> {
         return chats().parallelStream().map(Chat::starredMessages).flatMap(Collection::stream).toList();
     }
 
+    /**
+     * Searches the messages whose text, caption or document name contains all the terms of a query
+     * If a search index is set, results are ranked by relevance and include archived messages: otherwise, every message in memory is scanned and the newest matches are returned, from the newest to the oldest
+     *
+     * @param query the non-null query
+     * @param limit the maximum number of results
+     * @return a non-null list of messages
+     */
+    public List<ChatMessageInfo> searchMessages(String query, int limit) {
+        var index = messageSearchIndex;
+        if (index == null) {
+            return scanMessages(query, limit);
+        }
+
+        return index.search(query, limit)
+                .stream()
+                .map(this::findSearchResult)
+                .flatMap(Optional::stream)
+                .toList();
+    }
+
+    private Optional<ChatMessageInfo> findSearchResult(MessageSearchIndex.Result result) {
+        return findChatByJid(result.chatJid())
+                .flatMap(chat -> findMessageById(chat, result.id()))
+                .or(() -> findArchivedMessage(result.chatJid(), result.id()));
+    }
+
+    private List<ChatMessageInfo> scanMessages(String query, int limit) {
+        Validate.isTrue(limit > 0, "Invalid limit: %s", limit);
+        var matcher = MessageSearchIndex.matcher(query);
+        return chats.values()
+                .stream()
+                .map(Chat::messages)
+                .flatMap(Collection::stream)
+                .map(HistorySyncMessage::messageInfo)
+                .filter(matcher)
+                .sorted(Comparator.comparingLong(ChatMessageInfo::timestampSeconds).reversed())
+                .limit(limit)
+                .toList();
+    }
+
     /**
      * Returns all the chats sorted from newest to oldest
      *
@@ -930,6 +1036,237 @@ public final class Store extends Controller<Store> {
         return this;
     }
 
+    /**
+     * Returns the cache used to store downloaded medias
+     *
+     * @return an optional
+     */
+    public Optional<MediaCache> mediaCache() {
+        return Optional.ofNullable(mediaCache);
+    }
+
+    /**
+     * Sets the cache used to store downloaded medias
+     *
+     * @param mediaCache the media cache, null to disable caching
+     * @return the same instance
+     */
+    public Store setMediaCache(MediaCache mediaCache) {
+        this.mediaCache = mediaCache;
+        return this;
+    }
+
+    // Runtime options belong to the client that set them, so they are cleared when a store kept in memory is reused by another client
+    void resetRuntimeOptions() {
+        this.mediaCache = null;
+        this.presenceUpdatesInterval = null;
+        this.messageRateLimit = null;
+        this.messageRetention = null;
+        this.messageSearchIndex = null;
+        this.shutdownTimeout = null;
+        this.mediaUploadRegistry = MediaUploadRegistry.of();
+        setMetrics(null);
+    }
+
+    /**
+     * Returns the registry of the medias uploaded by this session
+     *
+     * @return a non-null registry
+     */
+    public MediaUploadRegistry mediaUploadRegistry() {
+        return mediaUploadRegistry;
+    }
+
+    /**
+     * Sets how long an uploaded media can be reused when it's sent again
+     *
+     * @param mediaUploadValidity the non-null validity window, zero to always upload medias again
+     * @return the same instance
+     */
+    public Store setMediaUploadValidity(Duration mediaUploadValidity) {
+        this.mediaUploadRegistry = MediaUploadRegistry.of(mediaUploadValidity);
+        return this;
+    }
+
+    /**
+     * Returns the policy that bounds the messages kept in memory
+     *
+     * @return an optional, empty if messages are never evicted
+     */
+    public Optional<MessageRetention> messageRetention() {
+        return Optional.ofNullable(messageRetention)
+                .map(MessageRetentionTracker::policy);
+    }
+
+    /**
+     * Sets the policy that bounds the messages kept in memory and applies it to the chats that are already in memory
+     *
+     * @param messageRetention the policy, null to never evict messages
+     * @return the same instance
+     */
+    public Store setMessageRetention(MessageRetention messageRetention) {
+        this.messageRetention = messageRetention == null ? null : new MessageRetentionTracker(messageRetention);
+        chats.values().forEach(this::applyMessageRetention);
+        return this;
+    }
+
+    /**
+     * Evicts the messages of a chat that exceed the retention policy, if one is set
+     *
+     * @param chat the non-null chat
+     */
+    public void applyMessageRetention(Chat chat) {
+        var tracker = messageRetention;
+        if (tracker != null) {
+            tracker.onChat(chat, this::findChatByJid);
+        }
+    }
+
+    /**
+     * Evicts the messages of a chat that exceed the retention policy after a new message was added, if one is set
+     *
+     * @param chat the non-null chat
+     * @param info the non-null message that was added
+     */
+    public void applyMessageRetention(Chat chat, ChatMessageInfo info) {
+        var tracker = messageRetention;
+        if (tracker != null) {
+            tracker.onMessage(chat, info, this::findChatByJid);
+        }
+    }
+
+    /**
+     * Returns the full-text index over the text of messages
+     *
+     * @return an optional, empty if messages are not indexed
+     */
+    public Optional<MessageSearchIndex> messageSearchIndex() {
+        return Optional.ofNullable(messageSearchIndex);
+    }
+
+    /**
+     * Sets the full-text index over the text of messages and indexes the messages that are already in memory
+     *
+     * @param messageSearchIndex the index, null to stop indexing messages
+     * @return the same instance
+     */
+    public Store setMessageSearchIndex(MessageSearchIndex messageSearchIndex) {
+        this.messageSearchIndex = messageSearchIndex;
+        chats.values().forEach(this::indexMessages);
+        return this;
+    }
+
+    /**
+     * Returns how long a graceful shutdown waits for outgoing messages and receipts to be sent
+     *
+     * @return an optional, empty if the default timeout is used
+     */
+    public Optional<Duration> shutdownTimeout() {
+        return Optional.ofNullable(shutdownTimeout);
+    }
+
+    /**
+     * Sets how long a graceful shutdown waits for outgoing messages and receipts to be sent
+     * Messages that weren't sent before the timeout fail, and receipts that weren't sent are delivered again by the server on the next connection
+     *
+     * @param shutdownTimeout the timeout, null to use the default
+     * @return the same instance
+     */
+    public Store setShutdownTimeout(Duration shutdownTimeout) {
+        Validate.isTrue(shutdownTimeout == null || !shutdownTimeout.isNegative(), "Invalid shutdown timeout: %s", shutdownTimeout);
+        this.shutdownTimeout = shutdownTimeout;
+        return this;
+    }
+
+    private void indexMessages(Chat chat) {
+        var index = messageSearchIndex;
+        if (index == null) {
+            return;
+        }
+
+        for (var message : chat.messages()) {
+            index.add(message.messageInfo());
+        }
+    }
+
+    /**
+     * Adds a message to the full-text index, if one is set
+     *
+     * @param info the non-null message
+     */
+    public void indexMessage(ChatMessageInfo info) {
+        var index = messageSearchIndex;
+        if (index != null) {
+            index.add(info);
+        }
+    }
+
+    /**
+     * Removes a message from the full-text index, if one is set
+     *
+     * @param chatJid the non-null jid of the chat that contains the message
+     * @param id      the non-null id of the message
+     */
+    public void unindexMessage(JidProvider chatJid, String id) {
+        var index = messageSearchIndex;
+        if (index != null) {
+            index.remove(chatJid.toJid(), id);
+        }
+    }
+
+    /**
+     * Removes all the messages of a chat from the full-text index, if one is set
+     *
+     * @param chatJid the non-null jid of the chat
+     */
+    public void unindexChat(JidProvider chatJid) {
+        var index = messageSearchIndex;
+        if (index != null) {
+            index.removeChat(chatJid.toJid());
+        }
+    }
+
+    /**
+     * Returns the interval at which presence updates are coalesced and delivered to listeners
+     *
+     * @return an optional, empty if presence updates are delivered immediately
+     */
+    public Optional<Duration> presenceUpdatesInterval() {
+        return Optional.ofNullable(presenceUpdatesInterval);
+    }
+
+    /**
+     * Sets the interval at which presence updates are coalesced and delivered to listeners
+     *
+     * @param presenceUpdatesInterval the positive interval, null to deliver presence updates immediately
+     * @return the same instance
+     */
+    public Store setPresenceUpdatesInterval(Duration presenceUpdatesInterval) {
+        Validate.isTrue(presenceUpdatesInterval == null || presenceUpdatesInterval.isPositive(), "Invalid presence updates interval: %s", presenceUpdatesInterval);
+        this.presenceUpdatesInterval = presenceUpdatesInterval;
+        return this;
+    }
+
+    /**
+     * Returns the limits applied to outgoing messages
+     *
+     * @return an optional, empty if messages are sent as fast as possible
+     */
+    public Optional<MessageRateLimit> messageRateLimit() {
+        return Optional.ofNullable(messageRateLimit);
+    }
+
+    /**
+     * Sets the limits applied to outgoing messages
+     *
+     * @param messageRateLimit the limits, null to send messages as fast as possible
+     * @return the same instance
+     */
+    public Store setMessageRateLimit(MessageRateLimit messageRateLimit) {
+        this.messageRateLimit = messageRateLimit;
+        return this;
+    }
+
     /**
      * Returns all the blocked contacts
      *
@@ -949,6 +1286,11 @@ public final class Store extends Controller<Store> {
         var wrapper = Objects.requireNonNullElseGet(status.get(info.senderJid()), ConcurrentHashMap<String, ChatMessageInfo>::new);
         wrapper.put(info.id(), info);
         status.put(info.senderJid(), wrapper);
+        var tracker = messageRetention;
+        if (tracker != null) {
+            tracker.trimStatus(wrapper.values()).forEach(evicted -> wrapper.remove(evicted.id()));
+        }
+
         return this;
     }
 
@@ -1218,14 +1560,34 @@ public final class Store extends Controller<Store> {
         return Optional.ofNullable(businessCategory);
     }
 
-    public void dispose() {
-        serialize(false);
+    @Override
+    public CompletableFuture<Void> dispose(boolean async) {
+        var result = serialize(async, Duration.ZERO);
         mediaConnectionLatch.countDown();
+        return result;
     }
 
     @Override
-    public void serialize(boolean async) {
-        serializer.serializeStore(this, async);
+    public CompletableFuture<Void> serialize(boolean async) {
+        return serialize(async, SEARCH_INDEX_SAVE_INTERVAL);
+    }
+
+    // The search index is rewritten as a whole, so while the session is running it's saved at most once every SEARCH_INDEX_SAVE_INTERVAL
+    private CompletableFuture<Void> serialize(boolean async, Duration searchIndexInterval) {
+        var start = flushStart();
+        var result = serializer.serializeStore(this, async);
+        recordFlush("store", start, result);
+        var index = messageSearchIndex;
+        if (index == null) {
+            return result;
+        }
+
+        if (async) {
+            return CompletableFuture.allOf(result, CompletableFuture.runAsync(() -> index.save(searchIndexInterval)));
+        }
+
+        index.save(searchIndexInterval);
+        return result;
     }
 
     /**
@@ -13,10 +13,16 @@ import it.auties.whatsapp.model.signal.auth.UserAgent.ReleaseChannel;
 import it.auties.whatsapp.model.signal.auth.Version;
 import it.auties.whatsapp.util.Clock;
 import it.auties.whatsapp.util.FutureReference;
+import it.auties.whatsapp.util.MediaCache;
+import it.auties.whatsapp.util.MessageRateLimit;
+import it.auties.whatsapp.util.MessageRetention;
+import it.auties.whatsapp.util.MessageSearchIndex;
 import it.auties.whatsapp.util.MetadataHelper;
+import it.auties.whatsapp.util.Metrics;
 import it.auties.whatsapp.util.Specification;
 
 import java.net.URI;
+import java.time.Duration;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
 
@@ -44,6 +50,14 @@ public class StoreBuilder {
     private String businessWebsite;
     private String businessEmail;
     private Version version;
+    private MediaCache mediaCache;
+    private Duration mediaUploadValidity;
+    private Duration presenceUpdatesInterval;
+    private MessageRateLimit messageRateLimit;
+    private MessageRetention messageRetention;
+    private MessageSearchIndex messageSearchIndex;
+    private Metrics metrics;
+    private Duration shutdownTimeout;
 
     StoreBuilder() {
 
@@ -164,9 +178,57 @@ public class StoreBuilder {
         return this;
     }
 
+    public StoreBuilder mediaCache(MediaCache mediaCache) {
+        this.mediaCache = mediaCache;
+        return this;
+    }
+
+    public StoreBuilder mediaUploadValidity(Duration mediaUploadValidity) {
+        this.mediaUploadValidity = mediaUploadValidity;
+        return this;
+    }
+
+    public StoreBuilder presenceUpdatesInterval(Duration presenceUpdatesInterval) {
+        this.presenceUpdatesInterval = presenceUpdatesInterval;
+        return this;
+    }
+
+    public StoreBuilder messageRateLimit(MessageRateLimit messageRateLimit) {
+        this.messageRateLimit = messageRateLimit;
+        return this;
+    }
+
+    public StoreBuilder messageRetention(MessageRetention messageRetention) {
+        this.messageRetention = messageRetention;
+        return this;
+    }
+
+    public StoreBuilder messageSearchIndex(MessageSearchIndex messageSearchIndex) {
+        this.messageSearchIndex = messageSearchIndex;
+        return this;
+    }
+
+    public StoreBuilder metrics(Metrics metrics) {
+        this.metrics = metrics;
+        return this;
+    }
+
+    public StoreBuilder shutdownTimeout(Duration shutdownTimeout) {
+        this.shutdownTimeout = shutdownTimeout;
+        return this;
+    }
+
     public Optional<Store> deserialize() {
         var serializer = Objects.requireNonNullElseGet(this.serializer, DefaultControllerSerializer::instance);
         var clientType = Objects.requireNonNull(this.clientType, "Client type is required");
+        var cached = ControllerCache.take(Store.class, serializer, clientType, uuid, phoneNumber, alias);
+        if (cached.isPresent()) {
+            // The chats of a cached store are already in memory, while its listeners and runtime options belonged to the previous client
+            cached.get().removeListener();
+            cached.get().resetRuntimeOptions();
+            return cached;
+        }
+
         if (uuid != null) {
             var store = serializer.deserializeStore(clientType, uuid);
             if (store.isPresent()) {
@@ -199,59 +261,95 @@ public class StoreBuilder {
     }
 
     public Store build() {
-        return deserialize().orElseGet(() -> {
-            if (device == null) {
-                device = Specification.Whatsapp.DEFAULT_MOBILE_DEVICE;
-            }
+        // Media settings aren't serialized, so they are also applied to deserialized stores
+        var result = deserialize().orElseGet(this::create);
+        if (mediaCache != null) {
+            result.setMediaCache(mediaCache);
+        }
+
+        if (mediaUploadValidity != null) {
+            result.setMediaUploadValidity(mediaUploadValidity);
+        }
+
+        if (presenceUpdatesInterval != null) {
+            result.setPresenceUpdatesInterval(presenceUpdatesInterval);
+        }
+
+        if (messageRateLimit != null) {
+            result.setMessageRateLimit(messageRateLimit);
+        }
+
+        if (messageRetention != null) {
+            result.setMessageRetention(messageRetention);
+        }
 
-            var serializer = Objects.requireNonNullElseGet(this.serializer, DefaultControllerSerializer::instance);
-            var result = new Store(
-                    Objects.requireNonNull(uuid, "Uuid is required if the StoreBuilder can't find a serialized session"),
-                    phoneNumber,
-                    serializer,
-                    clientType,
-                    alias != null ? List.of(alias) : null,
-                    proxy,
-                    new FutureReference<>(version, () -> MetadataHelper.getVersion(getPlatform(clientType))),
-                    false,
-                    null,
-                    Objects.requireNonNullElse(name, Specification.Whatsapp.DEFAULT_NAME),
-                    business,
-                    businessAddress,
-                    businessLongitude,
-                    businessLatitude,
-                    businessDescription,
-                    businessWebsite,
-                    businessEmail,
-                    businessCategory,
-                    null,
-                    new LinkedHashMap<>(),
-                    null,
-                    null,
-                    phoneNumber != null ? phoneNumber.toJid() : null,
-                    null,
-                    new ConcurrentHashMap<>(),
-                    new ConcurrentHashMap<>(),
-                    new ConcurrentHashMap<>(),
-                    new ConcurrentHashMap<>(),
-                    new ConcurrentHashMap<>(),
-                    new ConcurrentHashMap<>(),
-                    false,
-                    false,
-                    Clock.nowSeconds(),
-                    ChatEphemeralTimer.OFF,
-                    Objects.requireNonNullElse(textPreviewSetting, TextPreviewSetting.ENABLED_WITH_INFERENCE),
-                    Objects.requireNonNullElse(historyLength, WebHistoryLength.standard()),
-                    autodetectListeners,
-                    automaticPresenceUpdates,
-                    Objects.requireNonNullElse(releaseChannel, ReleaseChannel.RELEASE),
-                    device,
-                    null,
-                    checkPatchMacs
-            );
-            serializer.linkMetadata(result);
-            return result;
-        });
+        if (messageSearchIndex != null) {
+            result.setMessageSearchIndex(messageSearchIndex);
+        }
+
+        if (metrics != null) {
+            result.setMetrics(metrics);
+        }
+
+        if (shutdownTimeout != null) {
+            result.setShutdownTimeout(shutdownTimeout);
+        }
+
+        return result;
+    }
+
+    private Store create() {
+        if (device == null) {
+            device = Specification.Whatsapp.DEFAULT_MOBILE_DEVICE;
+        }
+
+        var serializer = Objects.requireNonNullElseGet(this.serializer, DefaultControllerSerializer::instance);
+        var result = new Store(
+                Objects.requireNonNull(uuid, "Uuid is required if the StoreBuilder can't find a serialized session"),
+                phoneNumber,
+                serializer,
+                clientType,
+                alias != null ? List.of(alias) : null,
+                proxy,
+                new FutureReference<>(version, () -> MetadataHelper.getVersion(getPlatform(clientType))),
+                false,
+                null,
+                Objects.requireNonNullElse(name, Specification.Whatsapp.DEFAULT_NAME),
+                business,
+                businessAddress,
+                businessLongitude,
+                businessLatitude,
+                businessDescription,
+                businessWebsite,
+                businessEmail,
+                businessCategory,
+                null,
+                new LinkedHashMap<>(),
+                null,
+                null,
+                phoneNumber != null ? phoneNumber.toJid() : null,
+                null,
+                new ConcurrentHashMap<>(),
+                new ConcurrentHashMap<>(),
+                new ConcurrentHashMap<>(),
+                new ConcurrentHashMap<>(),
+                new ConcurrentHashMap<>(),
+                new ConcurrentHashMap<>(),
+                false,
+                false,
+                Clock.nowSeconds(),
+                ChatEphemeralTimer.OFF,
+                Objects.requireNonNullElse(textPreviewSetting, TextPreviewSetting.ENABLED_WITH_INFERENCE),
+                Objects.requireNonNullElse(historyLength, WebHistoryLength.standard()),
+                autodetectListeners,
+                automaticPresenceUpdates,
+                Objects.requireNonNullElse(releaseChannel, ReleaseChannel.RELEASE),
+                device,
+                null,
+                checkPatchMacs
+        );
+        serializer.linkMetadata(result);
+        return result;
     }
 
     private UserAgent.PlatformType getPlatform(ClientType clientType) {
@@ -5,8 +5,14 @@ import it.auties.whatsapp.model.signal.keypair.SignalKeyPair;
 import it.auties.whatsapp.model.signal.message.SignalDistributionMessage;
 import it.auties.whatsapp.model.signal.sender.SenderKeyName;
 import it.auties.whatsapp.util.KeyHelper;
+import it.auties.whatsapp.util.Metrics;
+import it.auties.whatsapp.util.Specification.Signal;
+
+public record GroupBuilder(Keys keys, Metrics metrics) {
+    public GroupBuilder(Keys keys) {
+        this(keys, Metrics.noop());
+    }
 
-public record GroupBuilder(Keys keys) {
     public byte[] createOutgoing(SenderKeyName name) {
         var record = keys.findSenderKeyByName(name);
         if (record.isEmpty()) {
@@ -20,5 +26,9 @@ public record GroupBuilder(Keys keys) {
     public void createIncoming(SenderKeyName name, SignalDistributionMessage message) {
         var record = keys.findSenderKeyByName(name);
         record.addState(message.id(), message.iteration(), message.chainKey(), message.signingKey());
+        var evicted = record.trimStates(Signal.MAX_SENDER_KEY_STATES);
+        if (evicted > 0 && metrics.enabled()) {
+            metrics.onSenderKeyEviction(0, evicted);
+        }
     }
 }
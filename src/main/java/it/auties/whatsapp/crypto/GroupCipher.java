@@ -5,11 +5,17 @@ import it.auties.whatsapp.model.signal.message.SenderKeyMessage;
 import it.auties.whatsapp.model.signal.sender.SenderKeyName;
 import it.auties.whatsapp.model.signal.sender.SenderKeyState;
 import it.auties.whatsapp.model.signal.sender.SenderMessageKey;
+import it.auties.whatsapp.util.Metrics;
 import it.auties.whatsapp.util.Specification.Signal;
+import it.auties.whatsapp.util.Validate;
 
 import java.util.NoSuchElementException;
 
-public record GroupCipher(SenderKeyName name, Keys keys) {
+public record GroupCipher(SenderKeyName name, Keys keys, Metrics metrics) {
+    public GroupCipher(SenderKeyName name, Keys keys) {
+        this(name, keys, Metrics.noop());
+    }
+
     public CipheredMessageResult encrypt(byte[] data) {
         if (data == null) {
             return new CipheredMessageResult(null, Signal.UNAVAILABLE);
@@ -31,25 +37,34 @@ public record GroupCipher(SenderKeyName name, Keys keys) {
         for (var senderKeyState : senderKeyStates) {
             try {
                 var senderKey = getSenderKey(senderKeyState, senderKeyMessage.iteration());
-                return AesCbc.decrypt(senderKey.iv(), senderKeyMessage.cipherText(), senderKey.cipherKey());
+                var result = AesCbc.decrypt(senderKey.iv(), senderKeyMessage.cipherText(), senderKey.cipherKey());
+                senderKeyState.removeSenderMessageKey(senderKeyMessage.iteration());
+                return result;
             } catch (Throwable ignored) {
             }
         }
         throw new RuntimeException("Cannot decode message with any session");
     }
 
+    // Message keys are removed once a message is decrypted, and only the most recent MAX_SENDER_MESSAGE_KEYS skipped keys are kept for each state
     private SenderMessageKey getSenderKey(SenderKeyState senderKeyState, int iteration) {
         if (senderKeyState.chainKey().iteration() > iteration) {
             return senderKeyState.findSenderMessageKey(iteration)
                     .orElseThrow(() -> new NoSuchElementException("Received message with old counter: got %s, expected more than %s".formatted(iteration, senderKeyState.chainKey()
                             .iteration())));
         }
+        Validate.isTrue(iteration - senderKeyState.chainKey().iteration() <= Signal.MAX_MESSAGES, "Message overflow: expected <= %s, got %s", Signal.MAX_MESSAGES, iteration - senderKeyState.chainKey().iteration());
         var lastChainKey = senderKeyState.chainKey();
         while (lastChainKey.iteration() < iteration) {
             senderKeyState.addSenderMessageKey(lastChainKey.toMessageKey());
             lastChainKey = lastChainKey.next();
         }
         senderKeyState.setChainKey(lastChainKey.next());
+        var evicted = senderKeyState.trimSenderMessageKeys(Signal.MAX_SENDER_MESSAGE_KEYS);
+        if (evicted > 0 && metrics.enabled()) {
+            metrics.onSenderKeyEviction(evicted, 0);
+        }
+
         return lastChainKey.toMessageKey();
     }
 }
@@ -13,6 +13,22 @@ public final class Hmac {
         return calculate(HMAC_SHA_256, plain, key);
     }
 
+    public static Mac newSha256() {
+        try {
+            return Mac.getInstance(HMAC_SHA_256);
+        } catch (GeneralSecurityException exception) {
+            throw new IllegalArgumentException("Cannot create hmac", exception);
+        }
+    }
+
+    public static void init(Mac mac, byte[] key) {
+        try {
+            mac.init(new SecretKeySpec(key, mac.getAlgorithm()));
+        } catch (GeneralSecurityException exception) {
+            throw new IllegalArgumentException("Cannot initialize hmac", exception);
+        }
+    }
+
     private static byte[] calculate(String algorithm, byte[] plain, byte[] key) {
         try {
             var localMac = Mac.getInstance(algorithm);
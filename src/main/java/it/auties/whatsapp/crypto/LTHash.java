@@ -3,29 +3,45 @@ package it.auties.whatsapp.crypto;
 import it.auties.whatsapp.model.companion.CompanionHashState;
 import it.auties.whatsapp.model.sync.RecordSync;
 
-import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
+import javax.crypto.Mac;
+import javax.crypto.ShortBufferException;
+import javax.crypto.spec.SecretKeySpec;
 import java.nio.charset.StandardCharsets;
-import java.util.*;
+import java.security.GeneralSecurityException;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.Map;
 
+/**
+ * An additive lattice hash used to verify app state patches.
+ * The hash is kept as a single array of unsigned 16-bit lanes: every mixed value mac is expanded using HKDF and added to, or subtracted from, the lanes in place.
+ * As the sum is commutative, the order in which values are mixed doesn't matter, so they are accumulated as soon as they are received.
+ */
 public class LTHash {
     private static final int EXPAND_SIZE = 128;
+    private static final int HASH_OUTPUT_SIZE = 32;
+    private static final String HMAC_SHA_256 = "HmacSHA256";
+    private static final byte[] DEFAULT_SALT = new byte[HASH_OUTPUT_SIZE];
     public static final String SALT = "WhatsApp Patch Integrity";
 
-    private final byte[] salt;
+    private static final byte[] INFO = SALT.getBytes(StandardCharsets.UTF_8);
 
-    private final byte[] hash;
+    private final short[] lanes;
 
     private final Map<String, byte[]> indexValueMap;
 
-    private final List<byte[]> add, subtract;
+    private final Mac extractMac;
+
+    private final Mac expandMac;
+
+    private final byte[] expanded;
 
     public LTHash(CompanionHashState hash) {
-        this.salt = SALT.getBytes(StandardCharsets.UTF_8);
-        this.hash = hash.hash();
+        this.lanes = toLanes(hash.hash());
         this.indexValueMap = new HashMap<>(hash.indexValueMap());
-        this.add = new ArrayList<>();
-        this.subtract = new ArrayList<>();
+        this.extractMac = createMac(DEFAULT_SALT);
+        this.expandMac = createMac(null);
+        this.expanded = new byte[EXPAND_SIZE];
     }
 
     public void mix(byte[] indexMac, byte[] valueMac, RecordSync.Operation operation) {
@@ -37,39 +53,76 @@ public class LTHash {
             }
             indexValueMap.remove(indexMacBase64, prevOp);
         } else {
-            add.add(valueMac);
+            accumulate(valueMac, true);
             indexValueMap.put(indexMacBase64, valueMac);
         }
         if (prevOp != null) {
-            subtract.add(prevOp);
+            accumulate(prevOp, false);
         }
     }
 
     public Result finish() {
-        var subtracted = perform(hash, false);
-        var added = perform(subtracted, true);
-        return new Result(added, indexValueMap);
+        return new Result(toBytes(lanes), indexValueMap);
+    }
+
+    private void accumulate(byte[] valueMac, boolean sum) {
+        expand(valueMac);
+        var length = Math.min(lanes.length, EXPAND_SIZE / 2);
+        for (var index = 0; index < length; index++) {
+            var offset = index << 1;
+            var value = (expanded[offset] & 0xFF) | (expanded[offset + 1] & 0xFF) << 8;
+            lanes[index] = (short) (sum ? lanes[index] + value : lanes[index] - value);
+        }
+    }
+
+    // Same as Hkdf.extractAndExpand(valueMac, INFO, EXPAND_SIZE), but reuses the same mac instances and output buffer for every value
+    private void expand(byte[] valueMac) {
+        try {
+            var prk = extractMac.doFinal(valueMac);
+            expandMac.init(new SecretKeySpec(prk, HMAC_SHA_256));
+            for (var offset = 0; offset < EXPAND_SIZE; offset += HASH_OUTPUT_SIZE) {
+                if (offset != 0) {
+                    expandMac.update(expanded, offset - HASH_OUTPUT_SIZE, HASH_OUTPUT_SIZE);
+                }
+                expandMac.update(INFO);
+                expandMac.update((byte) (offset / HASH_OUTPUT_SIZE + 1));
+                expandMac.doFinal(expanded, offset);
+            }
+        } catch (ShortBufferException exception) {
+            throw new IllegalStateException("Invalid expand buffer", exception);
+        } catch (GeneralSecurityException exception) {
+            throw new IllegalArgumentException("Cannot expand data", exception);
+        }
     }
 
-    private byte[] perform(byte[] input, boolean sum) {
-        for (var item : sum ? add : subtract) {
-            input = perform(input, item, sum);
+    private static Mac createMac(byte[] key) {
+        try {
+            var mac = Mac.getInstance(HMAC_SHA_256);
+            if (key != null) {
+                mac.init(new SecretKeySpec(key, HMAC_SHA_256));
+            }
+            return mac;
+        } catch (GeneralSecurityException exception) {
+            throw new UnsupportedOperationException("Missing hmac implementation", exception);
         }
-        return input;
     }
 
-    private byte[] perform(byte[] input, byte[] buffer, boolean sum) {
-        var expanded = Hkdf.extractAndExpand(buffer, salt, EXPAND_SIZE);
-        var eRead = ByteBuffer.wrap(input).order(ByteOrder.LITTLE_ENDIAN);
-        var tRead = ByteBuffer.wrap(expanded).order(ByteOrder.LITTLE_ENDIAN);
-        var write = ByteBuffer.allocate(input.length).order(ByteOrder.LITTLE_ENDIAN);
-        for (var index = 0; index < input.length; index += 2) {
-            var first = Short.toUnsignedInt(eRead.getShort(index));
-            var second = Short.toUnsignedInt(tRead.getShort(index));
-            write.putShort(index, (short) (sum ? first + second : first - second));
+    private static short[] toLanes(byte[] hash) {
+        var result = new short[hash.length / 2];
+        for (var index = 0; index < result.length; index++) {
+            var offset = index << 1;
+            result[index] = (short) ((hash[offset] & 0xFF) | (hash[offset + 1] & 0xFF) << 8);
+        }
+        return result;
+    }
+
+    private static byte[] toBytes(short[] lanes) {
+        var result = new byte[lanes.length * 2];
+        for (var index = 0; index < lanes.length; index++) {
+            var offset = index << 1;
+            result[offset] = (byte) lanes[index];
+            result[offset + 1] = (byte) (lanes[index] >> 8);
         }
-        var result = new byte[input.length];
-        write.get(result);
         return result;
     }
 
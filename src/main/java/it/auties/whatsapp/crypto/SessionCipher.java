@@ -16,15 +16,17 @@ import it.auties.whatsapp.util.Specification.Signal;
 import it.auties.whatsapp.util.Validate;
 
 import java.nio.charset.StandardCharsets;
-import java.util.Arrays;
-import java.util.NoSuchElementException;
-import java.util.Optional;
+import java.util.*;
 import java.util.function.Supplier;
+import java.util.stream.Stream;
 
 import static it.auties.curve25519.Curve25519.sharedKey;
 import static it.auties.whatsapp.util.Specification.Signal.*;
 
 public record SessionCipher(SessionAddress address, Keys keys) {
+    private static final byte[] MESSAGE_KEY_SEED = {1};
+    private static final byte[] CHAIN_KEY_SEED = {2};
+
     public CipheredMessageResult encrypt(byte[] data) {
         if (data == null) {
             return new CipheredMessageResult(null, Signal.UNAVAILABLE);
@@ -34,7 +36,7 @@ public record SessionCipher(SessionAddress address, Keys keys) {
         Validate.isTrue(keys.hasTrust(address, currentState.remoteIdentityKey()), "Untrusted key", SecurityException.class);
         var chain = currentState.findChain(currentState.ephemeralKeyPair().encodedPublicKey())
                 .orElseThrow(() -> new NoSuchElementException("Missing chain for %s".formatted(address)));
-        fillMessageKeys(chain, chain.counter().get() + 1);
+        fillMessageKeys(chain, chain.counter().get() + 1, chain.messageKeys());
         var currentKey = chain.messageKeys().get(chain.counter().get());
         var secrets = Hkdf.deriveSecrets(currentKey, "WhisperMessageKeys".getBytes(StandardCharsets.UTF_8));
         chain.messageKeys().remove(chain.counter().get());
@@ -81,20 +83,56 @@ public record SessionCipher(SessionAddress address, Keys keys) {
         return Arrays.copyOfRange(sha256, 0, MAC_LENGTH);
     }
 
-    private void fillMessageKeys(SessionChain chain, int counter) {
-        if (chain.counter().get() >= counter) {
+    // Advances the chain up to counter, storing the message key of each step in messageKeys so that messages delivered out of order can still be decrypted
+    // The same hmac instance is rekeyed at every step instead of being created twice per step
+    private void fillMessageKeys(SessionChain chain, int counter, Map<Integer, byte[]> messageKeys) {
+        var current = chain.counter().get();
+        if (current >= counter) {
             return;
         }
-        Validate.isTrue(counter - chain.counter()
-                .get() <= MAX_MESSAGES, "Message overflow: expected <= %s, got %s", MAX_MESSAGES, counter - chain.counter()
-                .get());
-        Validate.isTrue(chain.key().get() != null, "Closed chain");
-        var messagesHmac = Hmac.calculateSha256(new byte[]{1}, chain.key().get());
-        chain.messageKeys().put(chain.counter().get() + 1, messagesHmac);
-        var keyHmac = Hmac.calculateSha256(new byte[]{2}, chain.key().get());
-        chain.key().set(keyHmac);
-        chain.counter().getAndIncrement();
-        fillMessageKeys(chain, counter);
+
+        Validate.isTrue(counter - current <= MAX_MESSAGES, "Message overflow: expected <= %s, got %s", MAX_MESSAGES, counter - current);
+        var chainKey = chain.key().get();
+        Validate.isTrue(chainKey != null, "Closed chain");
+        var mac = Hmac.newSha256();
+        for (var index = current + 1; index <= counter; index++) {
+            Hmac.init(mac, chainKey);
+            messageKeys.put(index, mac.doFinal(MESSAGE_KEY_SEED));
+            chainKey = mac.doFinal(CHAIN_KEY_SEED);
+        }
+
+        chain.key().set(chainKey);
+        chain.counter().set(counter);
+    }
+
+    // Bounds the message keys kept for skipped messages across the receiving chains of a session
+    // The sending chain is excluded: its key is derived and consumed in the same encryption, so it never holds skipped keys and must not be evicted
+    // The oldest keys are evicted first: those of closed states, then those of chains that were already ratcheted past, then those with the lowest counter
+    private void trimMessageKeys(Session session) {
+        var total = session.states()
+                .stream()
+                .flatMap(this::receivingChains)
+                .mapToInt(chain -> chain.messageKeys().size())
+                .sum();
+        var excess = total - MAX_SKIPPED_MESSAGE_KEYS;
+        if (excess <= 0) {
+            return;
+        }
+
+        session.states()
+                .stream()
+                .flatMap(state -> receivingChains(state).flatMap(chain -> chain.messageKeys().keySet().stream().map(counter -> new MessageKeyEntry(state, chain, counter))))
+                .sorted(Comparator.comparingInt(MessageKeyEntry::age).thenComparingInt(MessageKeyEntry::counter))
+                .limit(excess)
+                .toList()
+                .forEach(entry -> entry.chain().messageKeys().remove(entry.counter()));
+    }
+
+    private Stream<SessionChain> receivingChains(SessionState state) {
+        var sendingChain = state.ephemeralKeyPair() == null ? null : state.findChain(state.ephemeralKeyPair().encodedPublicKey()).orElse(null);
+        return state.chains()
+                .stream()
+                .filter(chain -> chain != sendingChain);
     }
 
     public byte[] decrypt(SignalPreKeyMessage message) {
@@ -103,7 +141,12 @@ public record SessionCipher(SessionAddress address, Keys keys) {
         builder.createIncoming(session, message);
         var state = session.findState(message.version(), message.baseKey())
                 .orElseThrow(() -> new NoSuchElementException("Missing state"));
-        return decrypt(message.signalMessage(), state);
+        var result = decrypt(session, message.signalMessage(), state);
+        if (message.preKeyId() != null) {
+            keys.markPreKeyConsumed(message.preKeyId(), CONSUMED_PRE_KEY_GRACE_PERIOD);
+        }
+
+        return result;
     }
 
     private Optional<Session> createSession() {
@@ -113,30 +156,47 @@ public record SessionCipher(SessionAddress address, Keys keys) {
     }
 
     public byte[] decrypt(SignalMessage message) {
-        return loadSession().states()
-                .stream()
-                .map(state -> tryDecrypt(message, state))
-                .flatMap(Optional::stream)
-                .findFirst()
-                .orElseThrow(() -> new NoSuchElementException("Cannot decrypt message: no suitable session found"));
+        var session = loadSession();
+        for (var state : session.statesByUsage()) {
+            var result = tryDecrypt(session, message, state);
+            if (result.isPresent()) {
+                return result.get();
+            }
+        }
+
+        throw new NoSuchElementException("Cannot decrypt message: no suitable session found");
     }
 
-    private Optional<byte[]> tryDecrypt(SignalMessage message, SessionState state) {
+    private Optional<byte[]> tryDecrypt(Session session, SignalMessage message, SessionState state) {
         try {
             Validate.isTrue(keys.hasTrust(address, state.remoteIdentityKey()), "Untrusted key");
-            return Optional.of(decrypt(message, state));
+            return Optional.of(decrypt(session, message, state));
         } catch (Throwable throwable) {
             return Optional.empty();
         }
     }
 
-    private byte[] decrypt(SignalMessage message, SessionState state) {
-        maybeStepRatchet(message, state);
+    // The message is decrypted using a copy of the state, which replaces the original one only if the message was authenticated and decrypted
+    // This way a failed attempt, for example because the message was meant for another state, leaves the session untouched
+    // The chains of the copy share their message keys with the original ones, so the keys derived or consumed by the attempt are staged and applied only on success
+    private byte[] decrypt(Session session, SignalMessage message, SessionState state) {
+        var stagedState = state.copy();
+        var stagedKeys = new StagedMessageKeys();
+        var plaintext = decrypt(message, stagedState, stagedKeys);
+        stagedKeys.apply();
+        stagedState.commit();
+        session.replaceState(stagedState);
+        trimMessageKeys(session);
+        return plaintext;
+    }
+
+    private byte[] decrypt(SignalMessage message, SessionState state, StagedMessageKeys stagedKeys) {
+        maybeStepRatchet(message, state, stagedKeys);
         var chain = state.findChain(message.ephemeralPublicKey())
                 .orElseThrow(() -> new NoSuchElementException("Invalid chain"));
-        fillMessageKeys(chain, message.counter());
-        Validate.isTrue(chain.hasMessageKey(message.counter()), "Key used already or never filled");
-        var messageKey = chain.messageKeys().get(message.counter());
+        fillMessageKeys(chain, message.counter(), stagedKeys.derived(chain));
+        var messageKey = stagedKeys.find(chain, message.counter());
+        Validate.isTrue(messageKey != null, "Key used already or never filled");
         var secrets = Hkdf.deriveSecrets(messageKey, "WhisperMessageKeys".getBytes(StandardCharsets.UTF_8));
         var hmacValue = BytesHelper.concat(
                 state.remoteIdentityKey(),
@@ -147,19 +207,20 @@ public record SessionCipher(SessionAddress address, Keys keys) {
         var hmacSha256 = Hmac.calculateSha256(hmacInput, secrets[1]);
         var hmac = Arrays.copyOf(hmacSha256, MAC_LENGTH);
         Validate.isTrue(Arrays.equals(message.signature(), hmac), "message_decryption", HmacValidationException.class);
+        stagedKeys.consume(chain, message.counter());
         var iv = Arrays.copyOf(secrets[2], IV_LENGTH);
         var plaintext = AesCbc.decrypt(iv, message.ciphertext(), secrets[0]);
         state.pendingPreKey(null);
         return plaintext;
     }
 
-    private void maybeStepRatchet(SignalMessage message, SessionState state) {
+    private void maybeStepRatchet(SignalMessage message, SessionState state, StagedMessageKeys stagedKeys) {
         if (state.hasChain(message.ephemeralPublicKey())) {
             return;
         }
         var previousRatchet = state.findChain(state.lastRemoteEphemeralKey());
         previousRatchet.ifPresent(chain -> {
-            fillMessageKeys(chain, state.previousCounter());
+            fillMessageKeys(chain, state.previousCounter(), stagedKeys.derived(chain));
             chain.key().set(null);
         });
         calculateRatchet(message, state, false);
@@ -191,4 +252,43 @@ public record SessionCipher(SessionAddress address, Keys keys) {
                 .or(defaultSupplier)
                 .orElseThrow(() -> new NoSuchElementException("Missing session for: %s".formatted(address)));
     }
-}
\ No newline at end of file
+
+    // The message keys derived and consumed while decrypting a message, by chain
+    private static final class StagedMessageKeys {
+        private final Map<SessionChain, Map<Integer, byte[]>> derived;
+        private final Map<SessionChain, Integer> consumed;
+
+        private StagedMessageKeys() {
+            this.derived = new IdentityHashMap<>();
+            this.consumed = new IdentityHashMap<>();
+        }
+
+        private Map<Integer, byte[]> derived(SessionChain chain) {
+            return derived.computeIfAbsent(chain, ignored -> new HashMap<>());
+        }
+
+        private byte[] find(SessionChain chain, int counter) {
+            var result = derived(chain).get(counter);
+            return result != null ? result : chain.messageKeys().get(counter);
+        }
+
+        private void consume(SessionChain chain, int counter) {
+            consumed.put(chain, counter);
+        }
+
+        private void apply() {
+            derived.forEach((chain, keys) -> chain.messageKeys().putAll(keys));
+            consumed.forEach((chain, counter) -> chain.messageKeys().remove(counter));
+        }
+    }
+
+    private record MessageKeyEntry(SessionState state, SessionChain chain, int counter) {
+        private int age() {
+            if (state.closed()) {
+                return 0;
+            }
+
+            return chain.key().get() == null ? 1 : 2;
+        }
+    }
+}
@@ -0,0 +1,17 @@
+package it.auties.whatsapp.exception;
+
+/**
+ * An unchecked exception that is thrown when a media host cannot serve a transfer because of a server error
+ */
+public class MediaHostException extends RuntimeException {
+    private final int statusCode;
+
+    public MediaHostException(String host, int statusCode) {
+        super("Media host %s replied with status code %s".formatted(host, statusCode));
+        this.statusCode = statusCode;
+    }
+
+    public int statusCode() {
+        return statusCode;
+    }
+}
@@ -324,6 +324,50 @@ public interface Listener {
     default void onNewMessage(MessageInfo info) {
     }
 
+    /**
+     * Called with a batch of the messages that were received while the session was offline.
+     * By default, each message is passed to {@link Listener#onNewMessage(Whatsapp, MessageInfo)}.
+     *
+     * @param whatsapp an instance to the calling api
+     * @param infos    the messages that were received, in order
+     */
+    default void onNewMessages(Whatsapp whatsapp, Collection<ChatMessageInfo> infos) {
+        infos.forEach(info -> onNewMessage(whatsapp, info));
+    }
+
+    /**
+     * Called with a batch of the messages that were received while the session was offline.
+     * By default, each message is passed to {@link Listener#onNewMessage(MessageInfo)}.
+     *
+     * @param infos the messages that were received, in order
+     */
+    default void onNewMessages(Collection<ChatMessageInfo> infos) {
+        infos.forEach(this::onNewMessage);
+    }
+
+    /**
+     * Called while the messages that were received when the session was offline are delivered after a connection.
+     * Messages received until this method is called with finished set to true are part of the offline backlog and not live traffic.
+     *
+     * @param whatsapp  an instance to the calling api
+     * @param processed the number of offline messages processed up to now
+     * @param total     the number of offline messages announced by Whatsapp
+     * @param finished  whether all the offline messages were processed
+     */
+    default void onOfflineMessagesProgress(Whatsapp whatsapp, int processed, int total, boolean finished) {
+    }
+
+    /**
+     * Called while the messages that were received when the session was offline are delivered after a connection.
+     * Messages received until this method is called with finished set to true are part of the offline backlog and not live traffic.
+     *
+     * @param processed the number of offline messages processed up to now
+     * @param total     the number of offline messages announced by Whatsapp
+     * @param finished  whether all the offline messages were processed
+     */
+    default void onOfflineMessagesProgress(int processed, int total, boolean finished) {
+    }
+
     /**
      * Called when a message is deleted
      *
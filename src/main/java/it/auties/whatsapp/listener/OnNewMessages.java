@@ -0,0 +1,15 @@
+package it.auties.whatsapp.listener;
+
+import it.auties.whatsapp.model.info.ChatMessageInfo;
+
+import java.util.Collection;
+
+public interface OnNewMessages extends Listener {
+    /**
+     * Called with a batch of the messages that were received while the session was offline.
+     *
+     * @param infos the messages that were received, in order
+     */
+    @Override
+    void onNewMessages(Collection<ChatMessageInfo> infos);
+}
\ No newline at end of file
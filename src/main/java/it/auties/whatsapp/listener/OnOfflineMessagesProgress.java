@@ -0,0 +1,13 @@
+package it.auties.whatsapp.listener;
+
+public interface OnOfflineMessagesProgress extends Listener {
+    /**
+     * Called while the messages that were received when the session was offline are delivered after a connection.
+     *
+     * @param processed the number of offline messages processed up to now
+     * @param total     the number of offline messages announced by Whatsapp
+     * @param finished  whether all the offline messages were processed
+     */
+    @Override
+    void onOfflineMessagesProgress(int processed, int total, boolean finished);
+}
\ No newline at end of file
@@ -0,0 +1,17 @@
+package it.auties.whatsapp.listener;
+
+import it.auties.whatsapp.api.Whatsapp;
+import it.auties.whatsapp.model.info.ChatMessageInfo;
+
+import java.util.Collection;
+
+public interface OnWhatsappNewMessages extends Listener {
+    /**
+     * Called with a batch of the messages that were received while the session was offline.
+     *
+     * @param whatsapp an instance to the calling api
+     * @param infos    the messages that were received, in order
+     */
+    @Override
+    void onNewMessages(Whatsapp whatsapp, Collection<ChatMessageInfo> infos);
+}
\ No newline at end of file
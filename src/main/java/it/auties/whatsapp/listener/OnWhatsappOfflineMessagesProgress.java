@@ -0,0 +1,16 @@
+package it.auties.whatsapp.listener;
+
+import it.auties.whatsapp.api.Whatsapp;
+
+public interface OnWhatsappOfflineMessagesProgress extends Listener {
+    /**
+     * Called while the messages that were received when the session was offline are delivered after a connection.
+     *
+     * @param whatsapp  an instance to the calling api
+     * @param processed the number of offline messages processed up to now
+     * @param total     the number of offline messages announced by Whatsapp
+     * @param finished  whether all the offline messages were processed
+     */
+    @Override
+    void onOfflineMessagesProgress(Whatsapp whatsapp, int processed, int total, boolean finished);
+}
\ No newline at end of file
@@ -535,6 +535,24 @@ public final class Chat implements ProtobufMessage, JidProvider {
         return true;
     }
 
+    /**
+     * Removes the oldest messages of this chat as long as they match a predicate
+     *
+     * @param predicate the predicate that determines if the oldest message should be removed
+     * @return a non-null list containing the removed messages, from the oldest to the newest
+     */
+    public List<ChatMessageInfo> removeOldestMessages(Predicate<? super ChatMessageInfo> predicate) {
+        var result = historySyncMessages.removeFirstWhile(entry -> predicate.test(entry.messageInfo()))
+                .stream()
+                .map(HistorySyncMessage::messageInfo)
+                .toList();
+        if (!result.isEmpty()) {
+            this.update = true;
+        }
+
+        return result;
+    }
+
     /**
      * Remove a message from the chat
      *
@@ -8,6 +8,7 @@ import it.auties.whatsapp.model.jid.Jid;
 import it.auties.whatsapp.model.jid.JidProvider;
 import it.auties.whatsapp.util.Clock;
 
+import java.net.URI;
 import java.time.ZonedDateTime;
 import java.util.Objects;
 import java.util.Optional;
@@ -61,6 +62,31 @@ public final class Contact implements JidProvider {
      */
     private boolean blocked;
 
+    /**
+     * The nullable about of this contact, as last queried from Whatsapp
+     */
+    private String about;
+
+    /**
+     * The nullable seconds since the epoch at which the about of this contact was set
+     */
+    private Long aboutTimestampSeconds;
+
+    /**
+     * The nullable url of the profile picture of this contact, as last queried from Whatsapp
+     */
+    private URI profilePicture;
+
+    /**
+     * The seconds since the epoch at which the about of this contact was last queried from Whatsapp, zero if it never was
+     */
+    private long aboutQueriedSeconds;
+
+    /**
+     * The seconds since the epoch at which the profile picture of this contact was last queried from Whatsapp, zero if it never was
+     */
+    private long profilePictureQueriedSeconds;
+
     public Contact(Jid jid) {
         this.jid = jid;
         this.lastKnownPresence = ContactStatus.UNAVAILABLE;
@@ -121,6 +147,26 @@ public final class Contact implements JidProvider {
         return this.blocked;
     }
 
+    public Optional<String> about() {
+        return Optional.ofNullable(about);
+    }
+
+    public Optional<ZonedDateTime> aboutTimestamp() {
+        return Clock.parseSeconds(aboutTimestampSeconds);
+    }
+
+    public Optional<URI> profilePicture() {
+        return Optional.ofNullable(profilePicture);
+    }
+
+    public long aboutQueriedSeconds() {
+        return aboutQueriedSeconds;
+    }
+
+    public long profilePictureQueriedSeconds() {
+        return profilePictureQueriedSeconds;
+    }
+
     public Contact setChosenName(String chosenName) {
         this.chosenName = chosenName;
         return this;
@@ -151,6 +197,19 @@ public final class Contact implements JidProvider {
         return this;
     }
 
+    public Contact setAbout(String about, ZonedDateTime timestamp) {
+        this.about = about;
+        this.aboutTimestampSeconds = timestamp != null ? timestamp.toEpochSecond() : null;
+        this.aboutQueriedSeconds = Clock.nowSeconds();
+        return this;
+    }
+
+    public Contact setProfilePicture(URI profilePicture) {
+        this.profilePicture = profilePicture;
+        this.profilePictureQueriedSeconds = Clock.nowSeconds();
+        return this;
+    }
+
     @JsonGetter("lastSeen")
     Long lastSeenValue() {
         return lastSeen != null ? lastSeen.toEpochSecond() : null;
@@ -10,6 +10,7 @@ import java.util.Objects;
 /**
  * A model class that represents a jid. This class is only a model, this means that changing its
  * values will have no real effect on WhatsappWeb's servers.
+ * Jids are parsed in a single pass, and the most recently parsed ones are interned.
  */
 public record Jid(String user, JidServer server, int device, int agent) implements JidProvider {
     /**
@@ -49,23 +50,19 @@ public record Jid(String user, JidServer server, int device, int agent) implemen
         if (complexUser == null) {
             return new Jid(null, server, 0, 0);
         }
-        if (complexUser.contains(":")) {
-            var simpleUser = complexUser.split(":", 2);
-            var user = simpleUser[0];
-            var device = Integer.parseUnsignedInt(simpleUser[1]);
-            if (user.contains("_")) {
-                var simpleUserAgent = user.split("_", 2);
-                var agent = tryParseAgent(simpleUserAgent[1]);
-                return new Jid(simpleUserAgent[0], server, device, agent);
-            }
-            return new Jid(user, server, device, 0);
-        }
-        if (!complexUser.contains("_")) {
-            return new Jid(complexUser, server, 0, 0);
+
+        // user[_agent][:device], the agent can only be part of the user
+        var length = complexUser.length();
+        var deviceSeparator = complexUser.indexOf(':');
+        var userEnd = deviceSeparator == -1 ? length : deviceSeparator;
+        var agentSeparator = complexUser.indexOf('_');
+        if (agentSeparator >= userEnd) {
+            agentSeparator = -1;
         }
-        var simpleUserAgent = complexUser.split("_", 2);
-        var agent = tryParseAgent(simpleUserAgent[1]);
-        return new Jid(simpleUserAgent[0], server, 0, agent);
+        var user = complexUser.substring(0, agentSeparator == -1 ? userEnd : agentSeparator);
+        var agent = agentSeparator == -1 ? 0 : tryParseAgent(complexUser, agentSeparator + 1, userEnd);
+        var device = deviceSeparator == -1 ? 0 : Integer.parseUnsignedInt(complexUser, deviceSeparator + 1, length, 10);
+        return new Jid(user, server, device, agent);
     }
 
     /**
@@ -78,15 +75,26 @@ public record Jid(String user, JidServer server, int device, int agent) implemen
         if (jid == null) {
             return null;
         }
+
+        var separator = jid.indexOf('@');
+        if (separator == -1) {
+            return jid;
+        }
+
+        if (separator == jid.lastIndexOf('@') && JidServer.ofAddress(jid, separator + 1).isPresent()) {
+            return jid.substring(0, separator);
+        }
+
+        // Malformed jids, for example with multiple servers, are handled like before
         for (var server : JidServer.values()) {
-            jid = jid.replace("@%s".formatted(server), "");
+            jid = jid.replace(server.suffix(), "");
         }
         return jid;
     }
 
-    private static int tryParseAgent(String string) {
+    private static int tryParseAgent(String string, int start, int end) {
         try {
-            return Integer.parseUnsignedInt(string);
+            return Integer.parseUnsignedInt(string, start, end, 10);
         } catch (NumberFormatException exception) {
             return 0;
         }
@@ -128,6 +136,10 @@ public record Jid(String user, JidServer server, int device, int agent) implemen
      */
     @JsonCreator
     public static Jid of(String jid) {
+        return JidCache.get(jid);
+    }
+
+    static Jid parse(String jid) {
         return of(jid, JidServer.of(jid));
     }
 
@@ -229,11 +241,23 @@ public record Jid(String user, JidServer server, int device, int agent) implemen
     @JsonValue
     @Override
     public String toString() {
-        var user = Objects.requireNonNullElse(user(), "");
-        var agent = agent() != 0 ? "_%s".formatted(agent()) : "";
-        var device = device() != 0 ? ":%s".formatted(device()) : "";
-        var leading = "%s%s%s".formatted(user, agent, device);
-        return leading.isEmpty() ? server().toString() : "%s@%s".formatted(leading, server());
+        if ((user == null || user.isEmpty()) && agent == 0 && device == 0) {
+            return server.address();
+        }
+
+        var builder = new StringBuilder();
+        if (user != null) {
+            builder.append(user);
+        }
+        if (agent != 0) {
+            builder.append('_').append(agent);
+        }
+        if (device != 0) {
+            builder.append(':').append(device);
+        }
+        return builder.append('@')
+                .append(server.address())
+                .toString();
     }
 
     /**
@@ -275,6 +299,6 @@ public record Jid(String user, JidServer server, int device, int agent) implemen
 
     @Override
     public int hashCode() {
-        return Objects.hashCode(toString());
+        return Objects.hash(user, server, device, agent);
     }
 }
\ No newline at end of file
@@ -0,0 +1,44 @@
+package it.auties.whatsapp.model.jid;
+
+// A bounded, lock-free intern cache for the jids parsed by Jid.of(String)
+// The same jids appear in almost every stanza, so the most recent ones are kept in a direct-mapped table indexed by the hash of their encoded form
+// A collision simply replaces the previous entry, and entries are immutable, so no synchronization is needed
+// The size can be set using the cobalt.jid.cache system property: 0 disables the cache
+final class JidCache {
+    private static final int DEFAULT_SIZE = 1024;
+    private static final Entry[] ENTRIES = createEntries(Integer.getInteger("cobalt.jid.cache", DEFAULT_SIZE));
+    private static final int MASK = ENTRIES.length - 1;
+
+    private JidCache() {
+        throw new UnsupportedOperationException("This is a utility class and cannot be instantiated");
+    }
+
+    private static Entry[] createEntries(int size) {
+        if (size <= 0) {
+            return new Entry[0];
+        }
+
+        return new Entry[size == 1 ? 1 : Integer.highestOneBit(size - 1) << 1];
+    }
+
+    static Jid get(String encoded) {
+        if (encoded == null || ENTRIES.length == 0) {
+            return Jid.parse(encoded);
+        }
+
+        var hash = encoded.hashCode();
+        var index = (hash ^ (hash >>> 16)) & MASK;
+        var entry = ENTRIES[index];
+        if (entry != null && entry.encoded().equals(encoded)) {
+            return entry.jid();
+        }
+
+        var jid = Jid.parse(encoded);
+        ENTRIES[index] = new Entry(encoded, jid);
+        return jid;
+    }
+
+    private record Entry(String encoded, Jid jid) {
+
+    }
+}
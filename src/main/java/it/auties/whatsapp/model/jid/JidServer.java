@@ -3,7 +3,7 @@ package it.auties.whatsapp.model.jid;
 import com.fasterxml.jackson.annotation.JsonCreator;
 import com.fasterxml.jackson.annotation.JsonValue;
 
-import java.util.Arrays;
+import java.util.Optional;
 
 /**
  * The constants of this enumerated type describe the various servers that a jid might be linked
@@ -39,24 +39,66 @@ public enum JidServer {
      */
     NEWSLETTER("newsletter");
 
+    private static final JidServer[] VALUES = values();
+
     private final String address;
+    private final String suffix;
 
     JidServer(String address) {
         this.address = address;
+        this.suffix = "@" + address;
     }
 
     @JsonCreator
     public static JidServer of(String address) {
-        return Arrays.stream(values())
-                .filter(entry -> address != null && address.endsWith(entry.address()))
-                .findFirst()
-                .orElse(WHATSAPP);
+        if (address == null) {
+            return WHATSAPP;
+        }
+
+        // No address is a suffix of another, so an exact match is the same server that the suffix scan would find
+        var exact = ofAddress(address, address.lastIndexOf('@') + 1);
+        if (exact.isPresent()) {
+            return exact.get();
+        }
+
+        for (var entry : VALUES) {
+            if (address.endsWith(entry.address())) {
+                return entry;
+            }
+        }
+
+        return WHATSAPP;
+    }
+
+    static Optional<JidServer> ofAddress(String input, int offset) {
+        var length = input.length() - offset;
+        var candidate = switch (length) {
+            case 3 -> LID;
+            case 4 -> switch (input.charAt(offset)) {
+                case 'g' -> GROUP;
+                case 'c' -> input.charAt(offset + 1) == '.' ? USER : GROUP_CALL;
+                default -> null;
+            };
+            case 9 -> BROADCAST;
+            case 10 -> NEWSLETTER;
+            case 14 -> WHATSAPP;
+            default -> null;
+        };
+        if (candidate == null || !input.regionMatches(offset, candidate.address(), 0, length)) {
+            return Optional.empty();
+        }
+
+        return Optional.of(candidate);
     }
 
     public String address() {
         return address;
     }
 
+    String suffix() {
+        return suffix;
+    }
+
     public Jid toJid() {
         return Jid.ofServer(this);
     }
@@ -6,6 +6,7 @@ import it.auties.whatsapp.util.Clock;
 import it.auties.whatsapp.util.Json;
 
 import java.time.ZonedDateTime;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
@@ -33,4 +34,57 @@ public record ContactStatusResponse(Optional<String> status, Optional<ZonedDateT
             return Optional.empty();
         }
     }
+
+    // The response to a query with multiple users has one entry per user, identified by the jid field
+    // If no entry has a jid, entries are matched to users by position, but only if there's one entry per user, as otherwise results would be attributed to the wrong user
+    @SuppressWarnings("unchecked")
+    public static Map<String, Optional<ContactStatusResponse>> ofJsonMap(String json, List<String> users) {
+        try {
+            var parsedJson = Json.readValue(json, new TypeReference<Map<String, Object>>() {
+            });
+            var data = (Map<String, ?>) parsedJson.get("data");
+            var updates = (List<Map<String, ?>>) data.get("xwa2_users_updates_since");
+            var results = new HashMap<String, Optional<ContactStatusResponse>>();
+            var identified = false;
+            for (var update : updates) {
+                var user = parseJsonUser(update);
+                if (user.isPresent()) {
+                    results.put(user.get(), parseJsonUpdate(update));
+                    identified = true;
+                }
+            }
+
+            if (identified || updates.size() != users.size()) {
+                return results;
+            }
+
+            for (var index = 0; index < updates.size(); index++) {
+                results.put(users.get(index), parseJsonUpdate(updates.get(index)));
+            }
+
+            return results;
+        } catch (Throwable throwable) {
+            return Map.of();
+        }
+    }
+
+    private static Optional<String> parseJsonUser(Map<String, ?> update) {
+        if (!(update.get("jid") instanceof String jid) || jid.isEmpty()) {
+            return Optional.empty();
+        }
+
+        var separator = jid.indexOf('@');
+        return Optional.of(separator == -1 ? jid : jid.substring(0, separator));
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Optional<ContactStatusResponse> parseJsonUpdate(Map<String, ?> update) {
+        var updatesData = (List<?>) update.get("updates");
+        if (updatesData == null || updatesData.isEmpty()) {
+            return Optional.empty();
+        }
+
+        var latestUpdateData = (Map<String, ?>) updatesData.getFirst();
+        return Optional.of(new ContactStatusResponse(Optional.ofNullable((String) latestUpdateData.get("text")), Optional.empty()));
+    }
 }
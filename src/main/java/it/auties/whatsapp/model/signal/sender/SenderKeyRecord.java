@@ -40,6 +40,26 @@ public final class SenderKeyRecord {
         states.put(id, oldList);
     }
 
+    public int trimStates(int max) {
+        var excess = states.values().stream().mapToInt(List::size).sum() - max;
+        var evicted = 0;
+        var iterator = states.values().iterator();
+        while (evicted < excess && iterator.hasNext()) {
+            var generation = iterator.next();
+            while (evicted < excess && generation.size() > 1) {
+                generation.removeFirst();
+                evicted++;
+            }
+
+            if (evicted < excess) {
+                iterator.remove();
+                evicted++;
+            }
+        }
+
+        return evicted;
+    }
+
     public boolean isEmpty() {
         return states.isEmpty();
     }
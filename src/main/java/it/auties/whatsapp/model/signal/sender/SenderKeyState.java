@@ -29,6 +29,25 @@ public final class SenderKeyState {
         return Optional.ofNullable(messageKeys.get(iteration));
     }
 
+    public Optional<SenderMessageKey> removeSenderMessageKey(int iteration) {
+        return Optional.ofNullable(messageKeys.remove(iteration));
+    }
+
+    public int trimSenderMessageKeys(int max) {
+        var excess = messageKeys.size() - max;
+        if (excess <= 0) {
+            return 0;
+        }
+
+        var evicted = messageKeys.keySet()
+                .stream()
+                .sorted()
+                .limit(excess)
+                .toList();
+        evicted.forEach(messageKeys::remove);
+        return evicted.size();
+    }
+
     public int id() {
         return id;
     }
@@ -1,6 +1,8 @@
 package it.auties.whatsapp.model.signal.session;
 
 
+import java.util.Comparator;
+import java.util.List;
 import java.util.Objects;
 import java.util.Optional;
 import java.util.Set;
@@ -38,4 +40,15 @@ public record Session(Set<SessionState> states) {
     public void addState(SessionState state) {
         states.add(state);
     }
+
+    public void replaceState(SessionState state) {
+        states.remove(state);
+        states.add(state);
+    }
+
+    public List<SessionState> statesByUsage() {
+        return states.stream()
+                .sorted(Comparator.comparingLong(SessionState::lastUsed).reversed().thenComparing(SessionState::closed))
+                .toList();
+    }
 }
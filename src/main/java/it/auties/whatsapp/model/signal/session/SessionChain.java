@@ -11,6 +11,11 @@ public record SessionChain(AtomicInteger counter, AtomicReference<byte[]> key,
         this(new AtomicInteger(counter), new AtomicReference<>(key), new ConcurrentHashMap<>());
     }
 
+    // Only the counter and the key are copied: the message keys are shared with this chain, so callers must not modify them until the copy replaces this chain
+    public SessionChain copy() {
+        return new SessionChain(new AtomicInteger(counter.get()), new AtomicReference<>(key.get()), messageKeys);
+    }
+
     public boolean hasMessageKey(int counter) {
         return messageKeys.containsKey(counter);
     }
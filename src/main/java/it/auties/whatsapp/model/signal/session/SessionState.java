@@ -1,15 +1,16 @@
 package it.auties.whatsapp.model.signal.session;
 
 import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonIgnore;
 import it.auties.whatsapp.model.signal.keypair.SignalKeyPair;
 
-import java.util.Arrays;
-import java.util.HexFormat;
-import java.util.Objects;
-import java.util.Optional;
+import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 public final class SessionState {
+    private static final AtomicLong USAGES = new AtomicLong();
+
     private final int version;
 
     private final int registrationId;
@@ -32,6 +33,12 @@ public final class SessionState {
 
     private boolean closed;
 
+    @JsonIgnore
+    private long lastUsed;
+
+    @JsonIgnore
+    private Set<SessionChain> sharedChains;
+
     @JsonCreator(mode = JsonCreator.Mode.PROPERTIES)
     public SessionState(int version, int registrationId, byte[] baseKey, byte[] remoteIdentityKey, ConcurrentHashMap<String, SessionChain> chains, byte[] rootKey, SessionPreKey pendingPreKey, SignalKeyPair ephemeralKeyPair, byte[] lastRemoteEphemeralKey, int previousCounter, boolean closed) {
         this.version = version;
@@ -51,8 +58,35 @@ public final class SessionState {
         return chains.containsKey(HexFormat.of().formatHex(senderEphemeral));
     }
 
+    // Chains that are still shared with the state this one was copied from are copied the first time they are accessed, as the caller may modify them
     public Optional<SessionChain> findChain(byte[] senderEphemeral) {
-        return Optional.ofNullable(chains.get(HexFormat.of().formatHex(senderEphemeral)));
+        var key = HexFormat.of().formatHex(senderEphemeral);
+        var chain = chains.get(key);
+        if (chain == null || sharedChains == null || !sharedChains.remove(chain)) {
+            return Optional.ofNullable(chain);
+        }
+
+        var copy = chain.copy();
+        chains.put(key, copy);
+        return Optional.of(copy);
+    }
+
+    public SessionState copy() {
+        var result = new SessionState(version, registrationId, baseKey, remoteIdentityKey, new ConcurrentHashMap<>(chains), rootKey, pendingPreKey, ephemeralKeyPair, lastRemoteEphemeralKey, previousCounter, closed);
+        result.lastUsed = lastUsed;
+        result.sharedChains = Collections.newSetFromMap(new IdentityHashMap<>());
+        result.sharedChains.addAll(chains.values());
+        return result;
+    }
+
+    public long lastUsed() {
+        return lastUsed;
+    }
+
+    // Called when a copy replaces the state it was copied from, which isn't used anymore, so its chains don't need to be copied on access
+    public void commit() {
+        this.lastUsed = USAGES.incrementAndGet();
+        this.sharedChains = null;
     }
 
     public SessionState addChain(byte[] senderEphemeral, SessionChain chain) {
@@ -64,6 +98,10 @@ public final class SessionState {
         Objects.requireNonNull(chains.remove(HexFormat.of().formatHex(senderEphemeral)), "Cannot remove chain");
     }
 
+    public Collection<SessionChain> chains() {
+        return Collections.unmodifiableCollection(chains.values());
+    }
+
     public boolean hasPreKey() {
         return pendingPreKey != null;
     }
@@ -462,6 +462,7 @@ class AppStateHandler {
 
         if (clearChatAction.messageRange().isEmpty()) {
             targetChat.removeMessages();
+            socketHandler.store().unindexChat(targetChat.jid());
             return;
         }
 
@@ -471,7 +472,10 @@ class AppStateHandler {
                 .flatMap(Collection::stream)
                 .map(SyncActionMessage::key)
                 .filter(Objects::nonNull)
-                .forEach(key -> targetChat.removeMessage(entry -> Objects.equals(entry.id(), key.id())));
+                .forEach(key -> {
+                    targetChat.removeMessage(entry -> Objects.equals(entry.id(), key.id()));
+                    socketHandler.store().unindexMessage(targetChat.jid(), key.id());
+                });
     }
 
     private void updateName(Contact contact, Chat chat, ContactAction contactAction) {
@@ -482,6 +486,7 @@ class AppStateHandler {
 
     private void deleteMessage(ChatMessageInfo message, Chat chat) {
         chat.removeMessage(message);
+        socketHandler.store().unindexMessage(chat.jid(), message.id());
         socketHandler.onMessageDeleted(message, false);
     }
 
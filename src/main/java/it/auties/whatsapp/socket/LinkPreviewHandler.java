@@ -0,0 +1,196 @@
+package it.auties.whatsapp.socket;
+
+import it.auties.linkpreview.LinkPreview;
+import it.auties.linkpreview.LinkPreviewMedia;
+import it.auties.linkpreview.LinkPreviewResult;
+import it.auties.whatsapp.api.TextPreviewSetting;
+import it.auties.whatsapp.util.Clock;
+import it.auties.whatsapp.util.Medias;
+
+import java.net.URI;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.regex.Pattern;
+
+// Link previews are generated outside the send path: a message waits for its preview at most DEADLINE, then it's sent without it
+// Previews are cached by url, and concurrent requests for the same url share the same fetch
+// Fetches run on a small pool with a bounded queue: when it's full, the preview is skipped instead of spawning more threads
+// Only urls with a scheme or starting with www. are previewed, so that tokens like file.txt aren't mistaken for a domain, unless inference is enabled
+// In that case bare domains, like example.com/foo, are previewed too, as the matched text is rewritten to the url it was inferred as
+class LinkPreviewHandler {
+    private static final Duration DEADLINE = Duration.ofSeconds(3);
+    private static final Duration TTL = Duration.ofMinutes(30);
+    private static final Duration NEGATIVE_TTL = Duration.ofMinutes(1);
+    private static final int MAX_ENTRIES = 256;
+    private static final int MAX_CANDIDATES = 3;
+    private static final int MAX_FETCHES = 4;
+    private static final int MAX_QUEUED_FETCHES = 64;
+    private static final Pattern LINK_PATTERN = Pattern.compile("(?<![@\\w.-])(?:https?://|www\\.)(?:[a-z0-9](?:[a-z0-9-]{0,61}[a-z0-9])?\\.)+[a-z]{2,63}(?::\\d{1,5})?(?:[/?#]\\S*)?", Pattern.CASE_INSENSITIVE);
+    private static final Pattern INFERRED_LINK_PATTERN = Pattern.compile("(?<![@\\w.-])(?:https?://)?(?:[a-z0-9](?:[a-z0-9-]{0,61}[a-z0-9])?\\.)+[a-z]{2,63}(?::\\d{1,5})?(?:[/?#]\\S*)?", Pattern.CASE_INSENSITIVE);
+    private static final String TRAILING_PUNCTUATION = ".,;:!?)]}'\"";
+
+    private final SocketHandler socketHandler;
+    private final Map<URI, CacheEntry> cache;
+    private ExecutorService executor;
+
+    protected LinkPreviewHandler(SocketHandler socketHandler) {
+        this.socketHandler = socketHandler;
+        this.cache = new ConcurrentHashMap<>();
+    }
+
+    protected CompletableFuture<Optional<Preview>> findPreview(String text) {
+        var candidates = findCandidates(text);
+        if (candidates.isEmpty()) {
+            return CompletableFuture.completedFuture(Optional.empty());
+        }
+
+        return withDeadline(findPreview(candidates, 0));
+    }
+
+    protected CompletableFuture<Optional<Preview>> findPreview(URI uri) {
+        return withDeadline(findPreview(List.of(new Candidate(uri.toString(), uri)), 0));
+    }
+
+    // The shared future isn't completed by the timeout, so the fetch can still populate the cache for the next messages
+    private CompletableFuture<Optional<Preview>> withDeadline(CompletableFuture<Optional<Preview>> future) {
+        return future.copy()
+                .completeOnTimeout(Optional.empty(), DEADLINE.toMillis(), TimeUnit.MILLISECONDS);
+    }
+
+    private CompletableFuture<Optional<Preview>> findPreview(List<Candidate> candidates, int index) {
+        if (index >= candidates.size()) {
+            return CompletableFuture.completedFuture(Optional.empty());
+        }
+
+        var candidate = candidates.get(index);
+        return getOrFetch(candidate.uri()).thenComposeAsync(result -> {
+            if (result.isEmpty()) {
+                return findPreview(candidates, index + 1);
+            }
+
+            var data = result.get();
+            return CompletableFuture.completedFuture(Optional.of(new Preview(candidate.text(), data.result(), data.thumbnail())));
+        });
+    }
+
+    private List<Candidate> findCandidates(String text) {
+        var results = new ArrayList<Candidate>();
+        var pattern = socketHandler.store().textPreviewSetting() == TextPreviewSetting.ENABLED_WITH_INFERENCE ? INFERRED_LINK_PATTERN : LINK_PATTERN;
+        var matcher = pattern.matcher(text);
+        while (matcher.find() && results.size() < MAX_CANDIDATES) {
+            var match = stripTrailingPunctuation(matcher.group());
+            var lowerCase = match.toLowerCase(Locale.ROOT);
+            var url = lowerCase.startsWith("http://") || lowerCase.startsWith("https://") ? match : "https://" + match;
+            try {
+                results.add(new Candidate(match, URI.create(url)));
+            } catch (IllegalArgumentException ignored) {
+
+            }
+        }
+
+        return results;
+    }
+
+    private String stripTrailingPunctuation(String match) {
+        var end = match.length();
+        while (end > 0 && TRAILING_PUNCTUATION.indexOf(match.charAt(end - 1)) != -1) {
+            end--;
+        }
+
+        return match.substring(0, end);
+    }
+
+    private CompletableFuture<Optional<PreviewData>> getOrFetch(URI uri) {
+        var now = Clock.nowMilliseconds();
+        CacheEntry entry;
+        try {
+            entry = cache.compute(uri, (key, existing) -> existing != null && !existing.isExpired(now) ? existing : new CacheEntry(fetch(key), now));
+        } catch (RejectedExecutionException exception) {
+            // The pool is saturated: the preview is skipped, but nothing is cached, so the next message tries again
+            return CompletableFuture.completedFuture(Optional.empty());
+        }
+
+        if (cache.size() > MAX_ENTRIES) {
+            evict(now);
+        }
+
+        return entry.future();
+    }
+
+    private CompletableFuture<Optional<PreviewData>> fetch(URI uri) {
+        return CompletableFuture.supplyAsync(() -> LinkPreview.createPreview(uri).map(this::createPreviewData), getOrCreateExecutor())
+                .exceptionally(ignored -> Optional.empty());
+    }
+
+    private PreviewData createPreviewData(LinkPreviewResult result) {
+        var thumbnail = result.images()
+                .stream()
+                .reduce(LinkPreviewHandler::compareDimensions)
+                .map(LinkPreviewMedia::uri)
+                .flatMap(imageUri -> Medias.download(imageUri, socketHandler.store().mediaCache().orElse(null)))
+                .orElse(null);
+        return new PreviewData(result, thumbnail);
+    }
+
+    protected static LinkPreviewMedia compareDimensions(LinkPreviewMedia first, LinkPreviewMedia second) {
+        return first.width() * first.height() > second.width() * second.height() ? first : second;
+    }
+
+    private void evict(long now) {
+        cache.entrySet().removeIf(entry -> entry.getValue().isExpired(now));
+        var excess = cache.size() - MAX_ENTRIES;
+        if (excess <= 0) {
+            return;
+        }
+
+        cache.entrySet()
+                .stream()
+                .sorted(Comparator.comparingLong(entry -> entry.getValue().createdAt()))
+                .limit(excess)
+                .toList()
+                .forEach(entry -> cache.remove(entry.getKey(), entry.getValue()));
+    }
+
+    private synchronized ExecutorService getOrCreateExecutor() {
+        if (executor == null || executor.isShutdown()) {
+            var result = new ThreadPoolExecutor(MAX_FETCHES, MAX_FETCHES, 60, TimeUnit.SECONDS,
+                    new ArrayBlockingQueue<>(MAX_QUEUED_FETCHES), Thread.ofPlatform().name("whatsapp-link-preview-", 0).daemon().factory());
+            result.allowCoreThreadTimeOut(true);
+            executor = result;
+        }
+
+        return executor;
+    }
+
+    protected void dispose() {
+        cache.clear();
+        if (executor != null && !executor.isShutdown()) {
+            executor.shutdownNow();
+        }
+    }
+
+    protected record Preview(String matchedText, LinkPreviewResult result, byte[] thumbnail) {
+
+    }
+
+    private record Candidate(String text, URI uri) {
+
+    }
+
+    private record PreviewData(LinkPreviewResult result, byte[] thumbnail) {
+
+    }
+
+    private record CacheEntry(CompletableFuture<Optional<PreviewData>> future, long createdAt) {
+        // Failed previews are retried sooner, as the website may have been temporarily unreachable
+        private boolean isExpired(long now) {
+            var age = now - createdAt;
+            if (future.isDone() && future.join().isEmpty()) {
+                return age >= NEGATIVE_TTL.toMillis();
+            }
+
+            return age >= TTL.toMillis();
+        }
+    }
+}
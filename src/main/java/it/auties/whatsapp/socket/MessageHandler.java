@@ -1,8 +1,6 @@
 package it.auties.whatsapp.socket;
 
-import it.auties.linkpreview.LinkPreview;
 import it.auties.linkpreview.LinkPreviewMedia;
-import it.auties.linkpreview.LinkPreviewResult;
 import it.auties.whatsapp.api.TextPreviewSetting;
 import it.auties.whatsapp.crypto.*;
 import it.auties.whatsapp.model.action.ContactAction;
@@ -39,24 +37,32 @@ import it.auties.whatsapp.model.signal.message.SignalDistributionMessage;
 import it.auties.whatsapp.model.signal.message.SignalMessage;
 import it.auties.whatsapp.model.signal.message.SignalPreKeyMessage;
 import it.auties.whatsapp.model.signal.sender.SenderKeyName;
-import it.auties.whatsapp.model.sync.HistorySync;
 import it.auties.whatsapp.model.sync.HistorySync.Type;
 import it.auties.whatsapp.model.sync.HistorySyncNotification;
-import it.auties.whatsapp.model.sync.HistorySyncSpec;
 import it.auties.whatsapp.model.sync.PushName;
+import it.auties.whatsapp.model.sync.PushNameSpec;
 import it.auties.whatsapp.util.*;
 
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
 import java.lang.System.Logger;
 import java.lang.System.Logger.Level;
 import java.net.URI;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.util.*;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.InflaterInputStream;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
@@ -65,23 +71,37 @@ import static it.auties.whatsapp.util.Specification.Signal.*;
 
 class MessageHandler {
     private static final int HISTORY_SYNC_TIMEOUT = 25;
+    private static final int HISTORY_SYNC_MAX_RECORD_SIZE = 64 * 1024 * 1024;
+    private static final String HISTORY_SYNC_SPOOL_SUFFIX = ".history";
+    private static final int HISTORY_SYNC_TYPE_INDEX = 1;
+    private static final int HISTORY_SYNC_CONVERSATION_INDEX = 2;
+    private static final int HISTORY_SYNC_STATUS_INDEX = 3;
+    private static final int HISTORY_SYNC_PROGRESS_INDEX = 6;
+    private static final int HISTORY_SYNC_PUSH_NAME_INDEX = 7;
+    private static final int HISTORY_SYNC_PAST_PARTICIPANTS_INDEX = 12;
 
     private final SocketHandler socketHandler;
+    private final LinkPreviewHandler linkPreviewHandler;
     private final Map<Jid, List<GroupPastParticipant>> pastParticipantsQueue;
     private final Set<Jid> historyCache;
     private final Logger logger;
     private final EnumSet<Type> historySyncTypes;
     private final ReentrantLock lock;
+    private final Set<String> retriedMessages;
+    private long lockAcquired;
+    private long lockWaitTime;
     private ExecutorService executor;
     private CompletableFuture<?> historySyncTask;
 
     protected MessageHandler(SocketHandler socketHandler) {
         this.socketHandler = socketHandler;
+        this.linkPreviewHandler = new LinkPreviewHandler(socketHandler);
         this.pastParticipantsQueue = new ConcurrentHashMap<>();
         this.historyCache = ConcurrentHashMap.newKeySet();
         this.logger = System.getLogger("MessageHandler");
         this.historySyncTypes = EnumSet.noneOf(Type.class);
         this.lock = new ReentrantLock(true);
+        this.retriedMessages = ConcurrentHashMap.newKeySet();
     }
 
     protected CompletableFuture<Void> encode(MessageSendRequest request) {
@@ -95,10 +115,10 @@ class MessageHandler {
         return prepareOutgoingChatMessage(request.info())
                 .thenComposeAsync(ignored -> {
                     try {
-                        lock.lock();
+                        acquireLock();
                         return request.peer() || isConversation(request.info()) ? encodeConversation(request) : encodeGroup(request);
                     } finally {
-                        lock.unlock();
+                        releaseLock("encode");
                     }
                 })
                 .thenRunAsync(() -> {
@@ -106,11 +126,12 @@ class MessageHandler {
                         return;
                     }
 
-                    saveMessage(request.info(), false);
+                    saveMessage(request.info(), false, false);
                     attributeMessageReceipt(request.info());
                 })
                 .exceptionallyAsync(throwable -> {
                     request.info().setStatus(MessageStatus.ERROR);
+                    invalidateMediaUpload(request.info().chatJid(), request.info().message());
                     return socketHandler.handleFailure(MESSAGE, throwable);
                 });
     }
@@ -136,29 +157,21 @@ class MessageHandler {
     // TODO: Fix this
     private CompletableFuture<Void> attributeGroupInviteMessage(ChatMessageInfo info, GroupInviteMessage groupInviteMessage) {
         var url = "https://chat.whatsapp.com/%s".formatted(groupInviteMessage.code());
-        var preview = LinkPreview.createPreview(URI.create(url))
-                .stream()
-                .map(LinkPreviewResult::images)
-                .map(Collection::stream)
-                .map(Stream::findFirst)
-                .flatMap(Optional::stream)
-                .findFirst()
-                .map(LinkPreviewMedia::uri)
-                .orElse(null);
-        var parsedCaption = groupInviteMessage.caption()
-                .map(caption -> "%s: %s".formatted(caption, url))
-                .orElse(url);
-        var replacement = new TextMessageBuilder()
-                .text(parsedCaption)
-                .description("WhatsApp Group Invite")
-                .title(groupInviteMessage.groupName())
-                .previewType(TextMessage.PreviewType.NONE)
-                .thumbnail(Medias.download(preview).orElse(null))
-                .matchedText(url)
-                .canonicalUrl(url)
-                .build();
-        info.setMessage(MessageContainer.of(replacement));
-        return CompletableFuture.completedFuture(null);
+        return linkPreviewHandler.findPreview(URI.create(url)).thenAcceptAsync(preview -> {
+            var parsedCaption = groupInviteMessage.caption()
+                    .map(caption -> "%s: %s".formatted(caption, url))
+                    .orElse(url);
+            var replacement = new TextMessageBuilder()
+                    .text(parsedCaption)
+                    .description("WhatsApp Group Invite")
+                    .title(groupInviteMessage.groupName())
+                    .previewType(TextMessage.PreviewType.NONE)
+                    .thumbnail(preview.map(LinkPreviewHandler.Preview::thumbnail).orElse(null))
+                    .matchedText(url)
+                    .canonicalUrl(url)
+                    .build();
+            info.setMessage(MessageContainer.of(replacement));
+        });
     }
 
     private void fixMessageKey(ChatMessageInfo chatMessageInfo) {
@@ -196,58 +209,94 @@ class MessageHandler {
         contextInfo.setEphemeralExpiration((int) period);
     }
 
-    // TODO: Async
     private CompletableFuture<Void> attributeTextMessage(TextMessage textMessage) {
         if (socketHandler.store().textPreviewSetting() == TextPreviewSetting.DISABLED) {
             return CompletableFuture.completedFuture(null);
         }
 
-        var match = LinkPreview.createPreview(textMessage.text())
-                .orElse(null);
-        if (match == null) {
-            return CompletableFuture.completedFuture(null);
-        }
+        return linkPreviewHandler.findPreview(textMessage.text())
+                .thenAcceptAsync(preview -> preview.ifPresent(match -> attributeTextPreview(textMessage, match)));
+    }
 
+    private void attributeTextPreview(TextMessage textMessage, LinkPreviewHandler.Preview match) {
         var uri = match.result().uri().toString();
-        if (socketHandler.store().textPreviewSetting() == TextPreviewSetting.ENABLED_WITH_INFERENCE && !match.text()
+        if (socketHandler.store().textPreviewSetting() == TextPreviewSetting.ENABLED_WITH_INFERENCE && !match.matchedText()
                 .equals(uri)) {
-            textMessage.setText(textMessage.text().replace(match.text(), uri));
+            textMessage.setText(textMessage.text().replace(match.matchedText(), uri));
         }
 
-        var imageUri = match.result()
-                .images()
-                .stream()
-                .reduce(this::compareDimensions)
-                .map(LinkPreviewMedia::uri)
-                .orElse(null);
         var videoUri = match.result()
                 .videos()
                 .stream()
-                .reduce(this::compareDimensions)
+                .reduce(LinkPreviewHandler::compareDimensions)
                 .map(LinkPreviewMedia::uri)
                 .orElse(null);
         textMessage.setMatchedText(uri);
         textMessage.setCanonicalUrl(Objects.requireNonNullElse(videoUri, match.result().uri()).toString());
-        textMessage.setThumbnail(Medias.download(imageUri).orElse(null));
+        textMessage.setThumbnail(match.thumbnail());
         textMessage.setDescription(match.result().siteDescription());
         textMessage.setTitle(match.result().title());
         textMessage.setPreviewType(videoUri != null ? TextMessage.PreviewType.VIDEO : TextMessage.PreviewType.NONE);
-        return CompletableFuture.completedFuture(null);
-    }
-
-    private LinkPreviewMedia compareDimensions(LinkPreviewMedia first, LinkPreviewMedia second) {
-        return first.width() * first.height() > second.width() * second.height() ? first : second;
     }
 
+    // If a reused upload can't be attributed, for example because the upload it was coalesced with failed, it's forgotten and the media is uploaded once more
     private CompletableFuture<Void> attributeMediaMessage(Jid chatJid, LocalMediaMessage<?> mediaMessage) {
         var media = mediaMessage.decodedMedia()
                 .orElseThrow(() -> new IllegalArgumentException("Missing media to upload"));
+        var sha256 = Sha256.calculate(media);
         var attachmentType = getAttachmentType(chatJid, mediaMessage);
-        var mediaConnection = socketHandler.store().mediaConnection();
-        return Medias.upload(media, attachmentType, mediaConnection)
+        var registry = socketHandler.store().mediaUploadRegistry();
+        return uploadMedia(registry, media, sha256, attachmentType)
+                .exceptionallyComposeAsync(throwable -> {
+                    registry.invalidate(sha256, attachmentType);
+                    return uploadMedia(registry, media, sha256, attachmentType);
+                })
                 .thenAccept(upload -> attributeMediaMessage(mediaMessage, upload));
     }
 
+    private CompletableFuture<MediaFile> uploadMedia(MediaUploadRegistry registry, byte[] media, byte[] sha256, AttachmentType attachmentType) {
+        var mediaConnection = socketHandler.store().mediaConnection();
+        return registry.upload(sha256, attachmentType, () -> Medias.upload(media, attachmentType, mediaConnection), Medias::isAvailable);
+    }
+
+    // A media whose message couldn't be sent may no longer be available on Whatsapp's servers, so its upload isn't reused by the next message
+    // Uploads are registered by the sha256 of the plaintext, while the sha256 of the message could be computed on a compressed payload, so it's only used if the plaintext is gone
+    boolean invalidateMediaUpload(Jid chatJid, MessageContainer message) {
+        if (!(message.content() instanceof LocalMediaMessage<?> mediaMessage)) {
+            return false;
+        }
+
+        var registry = socketHandler.store().mediaUploadRegistry();
+        var media = mediaMessage.decodedMedia();
+        if (media.isPresent()) {
+            registry.invalidate(Sha256.calculate(media.get()), getAttachmentType(chatJid, mediaMessage));
+            return true;
+        }
+
+        mediaMessage.mediaSha256().ifPresent(registry::invalidateUpload);
+        return false;
+    }
+
+    // A message rejected by the server could have reused an upload that is no longer available: if so, it's sent once more with a fresh upload
+    void onMessageRejected(MessageStatusInfo<?> info) {
+        info.setStatus(MessageStatus.ERROR);
+        if (!invalidateMediaUpload(info.parentJid(), info.message())) {
+            return;
+        }
+
+        if (!retriedMessages.add(info.id())) {
+            retriedMessages.remove(info.id());
+            return;
+        }
+
+        var request = switch (info) {
+            case ChatMessageInfo chatMessageInfo -> new MessageSendRequest.Chat(chatMessageInfo);
+            case NewsletterMessageInfo newsletterMessageInfo -> new MessageSendRequest.Newsletter(newsletterMessageInfo);
+        };
+        info.setStatus(MessageStatus.PENDING);
+        socketHandler.sendMessage(request);
+    }
+
     private AttachmentType getAttachmentType(Jid chatJid, LocalMediaMessage<?> mediaMessage) {
         if (!chatJid.hasServer(JidServer.NEWSLETTER)) {
             return mediaMessage.attachmentType();
@@ -371,6 +420,7 @@ class MessageHandler {
                 })
                 .exceptionallyAsync(throwable -> {
                     request.info().setStatus(MessageStatus.ERROR);
+                    invalidateMediaUpload(request.info().parentJid(), request.info().message());
                     return socketHandler.handleFailure(MESSAGE, throwable);
                 });
     }
@@ -411,9 +461,9 @@ class MessageHandler {
         }
 
         var senderName = new SenderKeyName(request.info().chatJid().toString(), sender.toSignalAddress());
-        var groupBuilder = new GroupBuilder(socketHandler.keys());
+        var groupBuilder = new GroupBuilder(socketHandler.keys(), socketHandler.store().metrics());
         var signalMessage = groupBuilder.createOutgoing(senderName);
-        var groupCipher = new GroupCipher(senderName, socketHandler.keys());
+        var groupCipher = new GroupCipher(senderName, socketHandler.keys(), socketHandler.store().metrics());
         var groupMessage = groupCipher.encrypt(encodedMessage);
         var messageNode = createMessageNode(request, groupMessage);
         if (request.hasRecipientOverride()) {
@@ -793,7 +843,7 @@ class MessageHandler {
             socketHandler.sendMessageAck(newsletter.jid(), messageNode);
             var receiptType = getReceiptType("newsletter", false);
             var messageId = messageNode.attributes().getRequiredString("id");
-            socketHandler.sendReceipt(newsletter.jid(), null, List.of(messageId), receiptType);
+            socketHandler.queueReceipt(newsletter.jid(), null, messageId, receiptType);
             socketHandler.onNewsletterMessage(result.get());
         } catch (Throwable throwable) {
             socketHandler.handleFailure(MESSAGE, throwable);
@@ -802,7 +852,7 @@ class MessageHandler {
 
     private CompletableFuture<Void> decodeChatMessage(Node infoNode, Node messageNode, String businessName, boolean notify) {
         try {
-            lock.lock();
+            acquireLock();
             var pushName = infoNode.attributes().getNullableString("notify");
             var timestamp = infoNode.attributes().getLong("t");
             var id = infoNode.attributes().getRequiredString("id");
@@ -849,6 +899,11 @@ class MessageHandler {
             var encodedMessage = messageNode.contentAsBytes().orElse(null);
             var decodedMessage = decodeMessageBytes(type, encodedMessage, from, participant);
             if (decodedMessage.hasError()) {
+                var metrics = socketHandler.store().metrics();
+                if (metrics.enabled()) {
+                    metrics.onDecryptFailure(type, decodedMessage.error());
+                }
+
                 logger.log(Level.WARNING, "Cannot decode message(id: %s, from: %s): %s".formatted(id, from, decodedMessage.error().getMessage()));
                 return sendEncMessageReceipt(infoNode, id, key.chatJid(), key.senderJid().orElse(null), key.fromMe());
             }
@@ -864,14 +919,33 @@ class MessageHandler {
                     .build();
             attributeMessageReceipt(info);
             attributeMessage(info);
-            saveMessage(info, notify);
+            saveMessage(info, notify, infoNode.attributes().hasKey("offline"));
             socketHandler.onReply(info);
             return sendEncMessageReceipt(infoNode, id, key.chatJid(), key.senderJid().orElse(null), key.fromMe());
         } catch (Throwable throwable) {
             socketHandler.handleFailure(MESSAGE, throwable);
             return CompletableFuture.failedFuture(throwable);
         } finally {
-            lock.unlock();
+            releaseLock("decode");
+        }
+    }
+
+    // Wait and hold times are only measured for the outermost acquisition, so a reentrant acquisition isn't counted twice
+    private void acquireLock() {
+        var start = socketHandler.store().metrics().enabled() ? System.nanoTime() : 0L;
+        lock.lock();
+        if (lock.getHoldCount() == 1) {
+            this.lockAcquired = start != 0L ? System.nanoTime() : 0L;
+            this.lockWaitTime = lockAcquired - start;
+        }
+    }
+
+    private void releaseLock(String name) {
+        var acquired = lock.getHoldCount() == 1 ? lockAcquired : 0L;
+        var waitTime = lockWaitTime;
+        lock.unlock();
+        if (acquired != 0L) {
+            socketHandler.store().metrics().onLock(name, waitTime, System.nanoTime() - acquired);
         }
     }
 
@@ -880,7 +954,7 @@ class MessageHandler {
         var category = infoNode.attributes().getString("category");
         var receiptType = getReceiptType(category, fromMe);
         return socketHandler.sendMessageAck(chatJid, infoNode)
-                .thenComposeAsync(ignored -> socketHandler.sendReceipt(chatJid, participant, List.of(id), receiptType));
+                .thenComposeAsync(ignored -> socketHandler.queueReceipt(chatJid, participant, id, receiptType));
     }
 
     private String getReceiptType(String category, boolean fromMe) {
@@ -908,7 +982,7 @@ class MessageHandler {
                 case SKMSG -> {
                     Objects.requireNonNull(participant, "Cannot decipher skmsg without participant");
                     var senderName = new SenderKeyName(from.toString(), participant.toSignalAddress());
-                    var signalGroup = new GroupCipher(senderName, socketHandler.keys());
+                    var signalGroup = new GroupCipher(senderName, socketHandler.keys(), socketHandler.store().metrics());
                     yield signalGroup.decrypt(encodedMessage);
                 }
                 case PKMSG -> {
@@ -947,7 +1021,7 @@ class MessageHandler {
         info.setStatus(MessageStatus.READ);
     }
 
-    private void saveMessage(ChatMessageInfo info, boolean notify) {
+    private void saveMessage(ChatMessageInfo info, boolean notify, boolean offline) {
         if (info.message().content() instanceof SenderKeyDistributionMessage distributionMessage) {
             handleDistributionMessage(distributionMessage, info.senderJid());
         }
@@ -969,6 +1043,10 @@ class MessageHandler {
         }
 
         var result = chat.addNewMessage(info);
+        if (result) {
+            socketHandler.store().indexMessage(info);
+            socketHandler.store().applyMessageRetention(chat, info);
+        }
         if (!result || info.timestampSeconds() <= socketHandler.store().initializationTimeStamp()) {
             return;
         }
@@ -983,13 +1061,13 @@ class MessageHandler {
         }
 
         if (notify) {
-            socketHandler.onNewMessage(info);
+            socketHandler.onNewMessage(info, offline);
         }
     }
 
     private void handleDistributionMessage(SenderKeyDistributionMessage distributionMessage, Jid from) {
         var groupName = new SenderKeyName(distributionMessage.groupId(), from.toSignalAddress());
-        var builder = new GroupBuilder(socketHandler.keys());
+        var builder = new GroupBuilder(socketHandler.keys(), socketHandler.store().metrics());
         var message = SignalDistributionMessage.ofSerialized(distributionMessage.data());
         builder.createIncoming(groupName, message);
     }
@@ -1037,8 +1115,15 @@ class MessageHandler {
             return;
         }
 
-        downloadHistorySync(protocolMessage)
-                .thenAcceptAsync(history -> onHistoryNotification(info, history))
+        // The receipt is still sent, as otherwise the server would deliver the same notification again
+        var notification = protocolMessage.historySyncNotification();
+        if (notification.isEmpty()) {
+            socketHandler.sendReceipt(info.chatJid(), null, List.of(info.id()), "hist_sync");
+            return;
+        }
+
+        downloadHistorySyncNotification(notification.get())
+                .thenAcceptAsync(history -> onHistoryNotification(notification.get().syncType(), history))
                 .exceptionallyAsync(throwable -> socketHandler.handleFailure(HISTORY_SYNC, throwable))
                 .thenRunAsync(() -> socketHandler.sendReceipt(info.chatJid(), null, List.of(info.id()), "hist_sync"));
     }
@@ -1056,63 +1141,153 @@ class MessageHandler {
                 || sender.lastKnownPresence() == ContactStatus.RECORDING;
     }
 
-    private CompletableFuture<HistorySync> downloadHistorySync(ProtocolMessage protocolMessage) {
-        return protocolMessage.historySyncNotification()
-                .map(this::downloadHistorySyncNotification)
-                .orElseGet(() -> CompletableFuture.completedFuture(null));
-
+    private CompletableFuture<InputStream> downloadHistorySyncNotification(HistorySyncNotification notification) {
+        return notification.initialHistBootstrapInlinePayload()
+                .map(result -> CompletableFuture.<InputStream>completedFuture(new ByteArrayInputStream(result)))
+                .orElseGet(() -> Medias.downloadStream(notification)
+                        .thenApplyAsync(entry -> spoolHistorySync(entry.orElseThrow(() -> new NoSuchElementException("Cannot download history sync")))))
+                .thenApplyAsync(InflaterInputStream::new);
     }
 
-    private CompletableFuture<HistorySync> downloadHistorySyncNotification(HistorySyncNotification notification) {
-        return notification.initialHistBootstrapInlinePayload()
-                .map(result -> CompletableFuture.completedFuture(HistorySyncSpec.decode(BytesHelper.decompress(result))))
-                .orElseGet(() -> Medias.download(notification)
-                        .thenApplyAsync(entry -> entry.orElseThrow(() -> new NoSuchElementException("Cannot download history sync")))
-                        .thenApplyAsync(result -> HistorySyncSpec.decode(BytesHelper.decompress(result))));
+    // The hmac and sha256 of a downloaded history sync are only verified when the end of the stream is reached, so committing records while it's being downloaded could store forged chats
+    // The verified payload is spooled to a temporary file first, which is deleted when it's closed: records are still read one at a time, but only once the whole payload is known to be authentic
+    private InputStream spoolHistorySync(InputStream download) {
+        Path spooled;
+        try {
+            spooled = Files.createTempFile(null, HISTORY_SYNC_SPOOL_SUFFIX);
+        } catch (IOException exception) {
+            throw new UncheckedIOException("Cannot create history sync spool", exception);
+        }
+
+        var verified = false;
+        try (download) {
+            Files.copy(download, spooled, StandardCopyOption.REPLACE_EXISTING);
+            var result = Files.newInputStream(spooled, StandardOpenOption.DELETE_ON_CLOSE);
+            verified = true;
+            return result;
+        } catch (IOException exception) {
+            throw new UncheckedIOException("Cannot download history sync", exception);
+        } finally {
+            if (!verified) {
+                try {
+                    Files.deleteIfExists(spooled);
+                } catch (IOException ignored) {
+
+                }
+            }
+        }
     }
 
-    private void onHistoryNotification(ChatMessageInfo info, HistorySync history) {
-        handleHistorySync(history);
-        if (history.progress() == null) {
+    private void onHistoryNotification(Type syncType, InputStream history) {
+        var progress = handleHistorySync(syncType, history);
+        if (progress == null) {
             return;
         }
 
-        socketHandler.onHistorySyncProgress(history.progress(), history.syncType() == Type.RECENT);
+        socketHandler.onHistorySyncProgress(progress, syncType == Type.RECENT);
     }
 
     private void onMessageDeleted(ChatMessageInfo info, ChatMessageInfo message) {
         info.chat().ifPresent(chat -> chat.removeMessage(message));
+        socketHandler.store().unindexMessage(message.chatJid(), message.id());
         message.setRevokeTimestampSeconds(Clock.nowSeconds());
         socketHandler.onMessageDeleted(message, true);
     }
 
-    private void handleHistorySync(HistorySync history) {
-        try {
-            switch (history.syncType()) {
-                case INITIAL_STATUS_V3 -> handleInitialStatus(history);
-                case PUSH_NAME -> handlePushNames(history);
-                case INITIAL_BOOTSTRAP -> handleInitialBootstrap(history);
-                case RECENT, FULL -> handleChatsSync(history);
-                case NON_BLOCKING_DATA -> handleNonBlockingData(history);
+    // The history sync is read one record at a time: each record is committed to the store as soon as it's decoded, so only one conversation is kept in memory
+    // Downloaded payloads reach this method only after their integrity was verified, see spoolHistorySync
+    private Integer handleHistorySync(Type syncType, InputStream history) {
+        var chunk = new HistorySyncChunk(syncType);
+        try (var reader = new ProtobufStreamReader(history, HISTORY_SYNC_MAX_RECORD_SIZE)) {
+            while (reader.next()) {
+                handleHistorySyncField(chunk, reader);
             }
+
+            onHistorySyncChunkEnd(chunk);
+            return chunk.progress;
+        } catch (IOException exception) {
+            throw new UncheckedIOException("Cannot read history sync", exception);
         } finally {
-            historySyncTypes.add(history.syncType());
+            if (chunk.syncType != null) {
+                historySyncTypes.add(chunk.syncType);
+            }
+        }
+    }
+
+    private void handleHistorySyncField(HistorySyncChunk chunk, ProtobufStreamReader reader) throws IOException {
+        switch (reader.index()) {
+            case HISTORY_SYNC_TYPE_INDEX -> chunk.syncType = getHistorySyncType((int) reader.readVarInt())
+                    .orElse(chunk.syncType);
+            case HISTORY_SYNC_CONVERSATION_INDEX -> {
+                if (!isHistorySyncConversation(chunk.syncType)) {
+                    reader.skip();
+                    return;
+                }
+
+                handleConversation(chunk, ChatSpec.decode(reader.readBytes()));
+            }
+            case HISTORY_SYNC_STATUS_INDEX -> {
+                if (chunk.syncType != Type.INITIAL_STATUS_V3) {
+                    reader.skip();
+                    return;
+                }
+
+                socketHandler.store().addStatus(ChatMessageInfoSpec.decode(reader.readBytes()));
+            }
+            case HISTORY_SYNC_PROGRESS_INDEX -> chunk.progress = (int) reader.readVarInt();
+            case HISTORY_SYNC_PUSH_NAME_INDEX -> {
+                if (chunk.syncType != Type.PUSH_NAME) {
+                    reader.skip();
+                    return;
+                }
+
+                handNewPushName(PushNameSpec.decode(reader.readBytes()));
+            }
+            case HISTORY_SYNC_PAST_PARTICIPANTS_INDEX -> {
+                if (chunk.syncType != Type.NON_BLOCKING_DATA) {
+                    reader.skip();
+                    return;
+                }
+
+                handlePastParticipants(GroupPastParticipantsSpec.decode(reader.readBytes()));
+            }
+            default -> reader.skip();
         }
     }
 
-    private void handleInitialStatus(HistorySync history) {
-        var store = socketHandler.store();
-        for (var messageInfo : history.statusV3Messages()) {
-            socketHandler.store().addStatus(messageInfo);
+    private Optional<Type> getHistorySyncType(int index) {
+        for (var type : Type.values()) {
+            if (type.index() == index) {
+                return Optional.of(type);
+            }
         }
-        socketHandler.onStatus();
+
+        return Optional.empty();
+    }
+
+    private boolean isHistorySyncConversation(Type syncType) {
+        return syncType == Type.INITIAL_BOOTSTRAP
+                || ((syncType == Type.RECENT || syncType == Type.FULL) && !socketHandler.store().historyLength().isZero());
     }
 
-    private void handlePushNames(HistorySync history) {
-        for (var pushName : history.pushNames()) {
-            handNewPushName(pushName);
+    private void onHistorySyncChunkEnd(HistorySyncChunk chunk) {
+        if (chunk.syncType == null) {
+            return;
+        }
+
+        switch (chunk.syncType) {
+            case INITIAL_STATUS_V3 -> socketHandler.onStatus();
+            case PUSH_NAME -> socketHandler.onContacts();
+            case INITIAL_BOOTSTRAP -> socketHandler.onChats();
+            case RECENT, FULL -> {
+                if (socketHandler.store().historyLength().isZero()) {
+                    return;
+                }
+
+                handleConversationsNotifications(chunk);
+                scheduleHistorySyncTimeout();
+            }
         }
-        socketHandler.onContacts();
     }
 
     private void handNewPushName(PushName pushName) {
@@ -1131,32 +1306,14 @@ class MessageHandler {
         return contact;
     }
 
-    private void handleInitialBootstrap(HistorySync history) {
-        if (!socketHandler.store().historyLength().isZero()) {
-            var jids = history.conversations()
-                    .stream()
-                    .map(Chat::jid)
-                    .toList();
-            historyCache.addAll(jids);
-        }
-
-        handleConversations(history);
-        socketHandler.onChats();
-    }
-
-    private void handleChatsSync(HistorySync history) {
-        if (socketHandler.store().historyLength().isZero()) {
-            return;
-        }
-
-        handleConversations(history);
-        handleConversationsNotifications(history);
-        scheduleHistorySyncTimeout();
-    }
-
-    private void handleConversationsNotifications(HistorySync history) {
+    // Chats that are part of this chunk are announced as soon as they are committed, the ones that weren't sent are complete
+    private void handleConversationsNotifications(HistorySyncChunk chunk) {
         var toRemove = new HashSet<Jid>();
         for (var cachedJid : historyCache) {
+            if (chunk.conversations.contains(cachedJid)) {
+                continue;
+            }
+
             var chat = socketHandler.store()
                     .findChatByJid(cachedJid)
                     .orElse(null);
@@ -1164,14 +1321,10 @@ class MessageHandler {
                 continue;
             }
 
-            var done = !history.conversations().contains(chat);
-            if (done) {
-                chat.setEndOfHistoryTransfer(true);
-                chat.setEndOfHistoryTransferType(Chat.EndOfHistoryTransferType.COMPLETE_AND_NO_MORE_MESSAGE_REMAIN_ON_PRIMARY);
-                toRemove.add(cachedJid);
-            }
-
-            socketHandler.onChatRecentMessages(chat, done);
+            chat.setEndOfHistoryTransfer(true);
+            chat.setEndOfHistoryTransferType(Chat.EndOfHistoryTransferType.COMPLETE_AND_NO_MORE_MESSAGE_REMAIN_ON_PRIMARY);
+            toRemove.add(cachedJid);
+            socketHandler.onChatRecentMessages(chat, true);
         }
 
         historyCache.removeAll(toRemove);
@@ -1201,26 +1354,28 @@ class MessageHandler {
         historyCache.clear();
     }
 
+    private void handleConversation(HistorySyncChunk chunk, Chat chat) {
+        for (var message : chat.messages()) {
+            attributeMessage(message.messageInfo());
+        }
 
-    private void handleConversations(HistorySync history) {
-        var store = socketHandler.store();
-        for (var chat : history.conversations()) {
-            for (var message : chat.messages()) {
-                attributeMessage(message.messageInfo());
-            }
+        var pastParticipants = pastParticipantsQueue.remove(chat.jid());
+        if (pastParticipants != null) {
+            chat.addPastParticipants(pastParticipants);
+        }
 
-            var pastParticipants = pastParticipantsQueue.remove(chat.jid());
-            if (pastParticipants != null) {
-                chat.addPastParticipants(pastParticipants);
+        socketHandler.store().addChat(chat);
+        chunk.conversations.add(chat.jid());
+        if (chunk.syncType == Type.INITIAL_BOOTSTRAP) {
+            if (!socketHandler.store().historyLength().isZero()) {
+                historyCache.add(chat.jid());
             }
 
-            socketHandler.store().addChat(chat);
+            return;
         }
-    }
 
-    private void handleNonBlockingData(HistorySync history) {
-        for (var pastParticipants : history.pastParticipants()) {
-            handlePastParticipants(pastParticipants);
+        if (historyCache.contains(chat.jid())) {
+            socketHandler.onChatRecentMessages(chat, false);
         }
     }
 
@@ -1354,11 +1509,24 @@ class MessageHandler {
 
     protected void dispose() {
         historyCache.clear();
+        linkPreviewHandler.dispose();
         if (executor != null && !executor.isShutdown()) {
             executor.shutdownNow();
         }
         historySyncTask = null;
         historySyncTypes.clear();
+        retriedMessages.clear();
+    }
+
+    private static final class HistorySyncChunk {
+        private final Set<Jid> conversations;
+        private Type syncType;
+        private Integer progress;
+
+        private HistorySyncChunk(Type syncType) {
+            this.conversations = new HashSet<>();
+            this.syncType = syncType;
+        }
     }
 
     private record MessageDecodeResult(byte[] message, Throwable error) {
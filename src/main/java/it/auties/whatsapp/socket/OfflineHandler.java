@@ -0,0 +1,146 @@
+package it.auties.whatsapp.socket;
+
+import it.auties.whatsapp.model.info.ChatMessageInfo;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+// After a reconnection, the server delivers the messages that were received while the session was offline: the offline_preview ib announces how many are queued and the offline ib is sent after the last one
+// Between the two, offline messages are dispatched to the listeners through onNewMessages in batches of BATCH_SIZE, or every FLUSH_INTERVAL, instead of one onNewMessage event each, and the progress is reported after every flush
+// The store is serialized once when the drain is finished instead of on every ping, and if the offline ib never arrives the drain is finished after IDLE_TIMEOUT without offline messages
+class OfflineHandler {
+    private static final int BATCH_SIZE = 100;
+    private static final Duration FLUSH_INTERVAL = Duration.ofMillis(250);
+    private static final Duration IDLE_TIMEOUT = Duration.ofSeconds(30);
+
+    private final SocketHandler socketHandler;
+    private List<ChatMessageInfo> pending;
+    private volatile boolean draining;
+    private int total;
+    private int processed;
+    private int reported;
+    private long lastActivity;
+    private int generation;
+
+    protected OfflineHandler(SocketHandler socketHandler) {
+        this.socketHandler = socketHandler;
+        this.pending = new ArrayList<>();
+    }
+
+    protected synchronized void start(int total) {
+        if (draining) {
+            this.total = Math.max(this.total, total);
+            return;
+        }
+
+        this.draining = true;
+        this.total = total;
+        this.processed = 0;
+        this.reported = -1;
+        this.lastActivity = System.nanoTime();
+        var generation = ++this.generation;
+        reportProgress();
+        scheduleFlush(generation);
+    }
+
+    protected boolean isDraining() {
+        return draining;
+    }
+
+    protected synchronized void onMessage() {
+        if (!draining) {
+            return;
+        }
+
+        processed++;
+        lastActivity = System.nanoTime();
+    }
+
+    // Returns whether the message will be dispatched with the next batch
+    protected synchronized boolean buffer(ChatMessageInfo info) {
+        if (!draining) {
+            return false;
+        }
+
+        pending.add(info);
+        if (pending.size() >= BATCH_SIZE) {
+            flushPending();
+            reportProgress();
+        }
+
+        return true;
+    }
+
+    protected void finish() {
+        synchronized (this) {
+            if (!draining) {
+                return;
+            }
+
+            end();
+        }
+
+        socketHandler.store().serialize(true);
+    }
+
+    private void scheduleFlush(int generation) {
+        var executor = CompletableFuture.delayedExecutor(FLUSH_INTERVAL.toMillis(), TimeUnit.MILLISECONDS);
+        executor.execute(() -> onFlush(generation));
+    }
+
+    private void onFlush(int generation) {
+        synchronized (this) {
+            if (!draining || generation != this.generation) {
+                return;
+            }
+
+            if (System.nanoTime() - lastActivity < IDLE_TIMEOUT.toNanos()) {
+                flushPending();
+                reportProgress();
+                scheduleFlush(generation);
+                return;
+            }
+
+            end();
+        }
+
+        socketHandler.store().serialize(true);
+    }
+
+    private void end() {
+        this.draining = false;
+        this.generation++;
+        flushPending();
+        socketHandler.onOfflineMessagesProgress(processed, Math.max(total, processed), true);
+    }
+
+    private void flushPending() {
+        if (pending.isEmpty()) {
+            return;
+        }
+
+        socketHandler.onNewMessages(pending);
+        this.pending = new ArrayList<>();
+    }
+
+    private void reportProgress() {
+        if (processed == reported) {
+            return;
+        }
+
+        this.reported = processed;
+        socketHandler.onOfflineMessagesProgress(processed, Math.max(total, processed), false);
+    }
+
+    // Buffered messages are already in the store, so they are still dispatched, while the final serialization is left to the store
+    protected synchronized void dispose() {
+        if (!draining) {
+            return;
+        }
+
+        end();
+    }
+}
@@ -0,0 +1,72 @@
+package it.auties.whatsapp.socket;
+
+import it.auties.whatsapp.model.signal.keypair.SignalPreKeyPair;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Future;
+import java.util.stream.IntStream;
+
+// Pre keys are generated ahead of time on a background thread, so that replenishing them when the server reports a low count is just an upload
+// A prepared batch is only used if it's ready and its first id follows the last pre key of the session, otherwise it's discarded and a new one is generated inline
+class PreKeyHandler {
+    private static final int PRE_KEYS_UPLOAD_CHUNK = 30;
+
+    private final SocketHandler socketHandler;
+    private CompletableFuture<List<SignalPreKeyPair>> nextBatch;
+
+    protected PreKeyHandler(SocketHandler socketHandler) {
+        this.socketHandler = socketHandler;
+    }
+
+    protected synchronized List<SignalPreKeyPair> takeBatch() {
+        var keys = socketHandler.keys();
+        var startId = keys.lastPreKeyId() + 1;
+        var batch = takePrepared();
+        if (batch == null || batch.getFirst().id() != startId) {
+            batch = generate(startId);
+        }
+
+        batch.forEach(keys::addPreKey);
+        nextBatch = CompletableFuture.supplyAsync(() -> generate(startId + PRE_KEYS_UPLOAD_CHUNK));
+        return batch;
+    }
+
+    // The prepared batch is never waited for while holding the lock: if it's not ready yet, it's discarded and the caller generates one inline
+    private List<SignalPreKeyPair> takePrepared() {
+        var prepared = nextBatch;
+        nextBatch = null;
+        if (prepared == null) {
+            return null;
+        }
+
+        if (prepared.state() != Future.State.SUCCESS) {
+            prepared.cancel(true);
+            return null;
+        }
+
+        return prepared.resultNow();
+    }
+
+    protected synchronized void prepare() {
+        if (nextBatch != null) {
+            return;
+        }
+
+        var startId = socketHandler.keys().lastPreKeyId() + 1;
+        nextBatch = CompletableFuture.supplyAsync(() -> generate(startId));
+    }
+
+    private List<SignalPreKeyPair> generate(int startId) {
+        return IntStream.range(startId, startId + PRE_KEYS_UPLOAD_CHUNK)
+                .mapToObj(SignalPreKeyPair::random)
+                .toList();
+    }
+
+    protected synchronized void dispose() {
+        if (nextBatch != null) {
+            nextBatch.cancel(true);
+            nextBatch = null;
+        }
+    }
+}
@@ -0,0 +1,98 @@
+package it.auties.whatsapp.socket;
+
+import it.auties.whatsapp.api.Whatsapp;
+import it.auties.whatsapp.listener.Listener;
+import it.auties.whatsapp.model.chat.Chat;
+import it.auties.whatsapp.model.contact.ContactStatus;
+import it.auties.whatsapp.model.jid.Jid;
+
+import java.time.Duration;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+// Presence updates, like typing indicators, can arrive hundreds of times per second in busy groups
+// When an interval is configured, the store is still updated as soon as a presence arrives, but only the latest state of each participant in each chat is kept for listeners, and the pending states are delivered at most once per interval
+class PresenceHandler {
+    private static final ClassValue<Boolean> PRESENCE_LISTENERS = new ClassValue<>() {
+        @Override
+        protected Boolean computeValue(Class<?> type) {
+            return overrides(type, Whatsapp.class, Chat.class, Jid.class, ContactStatus.class)
+                    || overrides(type, Chat.class, Jid.class, ContactStatus.class);
+        }
+    };
+
+    private final SocketHandler socketHandler;
+    private Map<PresenceKey, ContactStatus> pending;
+    private boolean scheduled;
+
+    protected PresenceHandler(SocketHandler socketHandler) {
+        this.socketHandler = socketHandler;
+        this.pending = new LinkedHashMap<>();
+    }
+
+    private static boolean overrides(Class<?> type, Class<?>... parameters) {
+        try {
+            return type.getMethod("onContactPresence", parameters).getDeclaringClass() != Listener.class;
+        } catch (NoSuchMethodException exception) {
+            return false;
+        }
+    }
+
+    private boolean hasListeners() {
+        for (var listener : socketHandler.store().listeners()) {
+            if (PRESENCE_LISTENERS.get(listener.getClass())) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    protected void update(Jid chatJid, Jid participantJid, ContactStatus status) {
+        socketHandler.store()
+                .findChatByJid(chatJid)
+                .ifPresent(chat -> socketHandler.onUpdateChatPresence(status, participantJid, chat));
+    }
+
+    protected void offer(Jid chatJid, Jid participantJid, ContactStatus status, Duration interval) {
+        var chat = socketHandler.store().findChatByJid(chatJid);
+        if (chat.isEmpty() || !socketHandler.updateChatPresence(status, participantJid, chat.get()) || !hasListeners()) {
+            return;
+        }
+
+        synchronized (this) {
+            pending.put(new PresenceKey(chatJid, participantJid), status);
+            if (scheduled) {
+                return;
+            }
+
+            scheduled = true;
+        }
+
+        CompletableFuture.delayedExecutor(interval.toMillis(), TimeUnit.MILLISECONDS)
+                .execute(this::flush);
+    }
+
+    private void flush() {
+        Map<PresenceKey, ContactStatus> updates;
+        synchronized (this) {
+            updates = pending;
+            pending = new LinkedHashMap<>();
+            scheduled = false;
+        }
+
+        updates.forEach((key, status) -> socketHandler.store()
+                .findChatByJid(key.chatJid())
+                .ifPresent(chat -> socketHandler.onContactPresence(status, key.participantJid(), chat)));
+    }
+
+    protected synchronized void dispose() {
+        pending.clear();
+    }
+
+    private record PresenceKey(Jid chatJid, Jid participantJid) {
+
+    }
+}
@@ -0,0 +1,202 @@
+package it.auties.whatsapp.socket;
+
+import it.auties.whatsapp.model.contact.Contact;
+import it.auties.whatsapp.model.jid.Jid;
+import it.auties.whatsapp.model.jid.JidProvider;
+import it.auties.whatsapp.model.message.model.ChatMessageKey;
+import it.auties.whatsapp.model.node.Node;
+import it.auties.whatsapp.model.request.ContactStatusRequest;
+import it.auties.whatsapp.model.response.ContactStatusResponse;
+import it.auties.whatsapp.util.Clock;
+import it.auties.whatsapp.util.Json;
+
+import java.net.URI;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.ToLongFunction;
+import java.util.stream.Collectors;
+
+// Profile queries for many contacts are packed into as few requests as possible: abouts into usync queries and names into w:mex queries
+// Chunks are sent together, so their round trips overlap, except for pictures, which can only be queried one contact at a time and are sent PICTURES_CHUNK at a time
+// Abouts and pictures are saved in the contacts of the store, and a contact that was queried less than TTL ago is answered from the store
+// Names are answered from the store only if the contact has a chosen name: the STATUS field returned by w:mex is not a name, so it's never saved as one
+class ProfileHandler {
+    private static final Duration TTL = Duration.ofHours(1);
+    private static final int USYNC_CHUNK = 500;
+    private static final int MEX_CHUNK = 50;
+    private static final int PICTURES_CHUNK = 32;
+
+    private final SocketHandler socketHandler;
+
+    protected ProfileHandler(SocketHandler socketHandler) {
+        this.socketHandler = socketHandler;
+    }
+
+    protected CompletableFuture<Map<Jid, Optional<String>>> queryNames(Collection<? extends JidProvider> contacts) {
+        var results = new HashMap<Jid, Optional<String>>();
+        var missing = new ArrayList<Jid>();
+        for (var jid : toJids(contacts)) {
+            var contact = socketHandler.store().findContactByJid(jid);
+            if (contact.isPresent() && contact.get().chosenName().isPresent()) {
+                results.put(jid, contact.get().chosenName());
+            } else {
+                missing.add(jid);
+            }
+        }
+
+        var futures = chunk(missing, MEX_CHUNK)
+                .stream()
+                .map(this::queryNamesFromServer)
+                .toList();
+        return merge(results, futures);
+    }
+
+    private CompletableFuture<Map<Jid, Optional<String>>> queryNamesFromServer(List<Jid> jids) {
+        var variables = jids.stream()
+                .map(jid -> new ContactStatusRequest.Variable(jid.user(), List.of("STATUS")))
+                .toList();
+        var query = new ContactStatusRequest(ChatMessageKey.randomId(), variables);
+        return socketHandler.sendQuery("get", "w:mex", Node.of("query", Json.writeValueAsBytes(query)))
+                .thenApplyAsync(result -> parseNames(jids, result));
+    }
+
+    private Map<Jid, Optional<String>> parseNames(List<Jid> jids, Node result) {
+        var responses = result.findNode("result")
+                .flatMap(Node::contentAsString)
+                .map(json -> ContactStatusResponse.ofJsonMap(json, jids.stream().map(Jid::user).toList()))
+                .orElse(Map.of());
+        var names = new HashMap<Jid, Optional<String>>();
+        for (var jid : jids) {
+            var name = responses.getOrDefault(jid.user(), Optional.empty())
+                    .flatMap(ContactStatusResponse::status);
+            names.put(jid, name);
+        }
+
+        return names;
+    }
+
+    protected CompletableFuture<Map<Jid, Optional<ContactStatusResponse>>> queryAbouts(Collection<? extends JidProvider> contacts) {
+        var results = new HashMap<Jid, Optional<ContactStatusResponse>>();
+        var missing = new ArrayList<Jid>();
+        for (var jid : toJids(contacts)) {
+            var contact = socketHandler.store().findContactByJid(jid);
+            if (contact.isPresent() && isFresh(contact.get(), Contact::aboutQueriedSeconds)) {
+                var about = contact.get().about().map(value -> new ContactStatusResponse(Optional.of(value), contact.get().aboutTimestamp()));
+                results.put(jid, about);
+            } else {
+                missing.add(jid);
+            }
+        }
+
+        var futures = chunk(missing, USYNC_CHUNK)
+                .stream()
+                .map(this::queryAboutsFromServer)
+                .toList();
+        return merge(results, futures);
+    }
+
+    private CompletableFuture<Map<Jid, Optional<ContactStatusResponse>>> queryAboutsFromServer(List<Jid> jids) {
+        var body = jids.stream()
+                .map(jid -> Node.of("user", Map.of("jid", jid)))
+                .toArray(Node[]::new);
+        return socketHandler.sendInteractiveQuery(Node.of("status"), body)
+                .thenApplyAsync(result -> parseAbouts(jids, result));
+    }
+
+    private Map<Jid, Optional<ContactStatusResponse>> parseAbouts(List<Jid> jids, List<Node> users) {
+        var responses = new HashMap<Jid, ContactStatusResponse>();
+        for (var user : users) {
+            var jid = user.attributes().getJid("jid");
+            var status = user.findNode("status").map(ContactStatusResponse::ofNode);
+            if (jid.isPresent() && status.isPresent()) {
+                responses.put(jid.get(), status.get());
+            }
+        }
+
+        var abouts = new HashMap<Jid, Optional<ContactStatusResponse>>();
+        for (var jid : jids) {
+            var about = Optional.ofNullable(responses.get(jid));
+            findOrAddContact(jid).setAbout(about.flatMap(ContactStatusResponse::status).orElse(null), about.flatMap(ContactStatusResponse::timestamp).orElse(null));
+            abouts.put(jid, about);
+        }
+
+        return abouts;
+    }
+
+    protected CompletableFuture<Map<Jid, Optional<URI>>> queryPictures(Collection<? extends JidProvider> contacts) {
+        var results = new HashMap<Jid, Optional<URI>>();
+        var missing = new ArrayList<Jid>();
+        for (var jid : toJids(contacts)) {
+            var contact = socketHandler.store().findContactByJid(jid);
+            if (contact.isPresent() && isFresh(contact.get(), Contact::profilePictureQueriedSeconds)) {
+                results.put(jid, contact.get().profilePicture());
+            } else {
+                missing.add(jid);
+            }
+        }
+
+        var future = CompletableFuture.completedFuture(results);
+        for (var chunk : chunk(missing, PICTURES_CHUNK)) {
+            future = future.thenComposeAsync(ignored -> queryPicturesFromServer(chunk))
+                    .thenApply(pictures -> {
+                        results.putAll(pictures);
+                        return results;
+                    });
+        }
+
+        return future.thenApply(Collections::unmodifiableMap);
+    }
+
+    private CompletableFuture<Map<Jid, Optional<URI>>> queryPicturesFromServer(List<Jid> jids) {
+        var futures = jids.stream()
+                .map(jid -> socketHandler.queryPicture(jid)
+                        .exceptionally(ignored -> Optional.empty())
+                        .thenApply(picture -> {
+                            findOrAddContact(jid).setProfilePicture(picture.orElse(null));
+                            return Map.entry(jid, picture);
+                        }))
+                .toList();
+        return CompletableFuture.allOf(futures.toArray(CompletableFuture[]::new))
+                .thenApply(ignored -> futures.stream()
+                        .map(CompletableFuture::join)
+                        .collect(Collectors.toMap(Map.Entry::getKey, Map.Entry::getValue)));
+    }
+
+    private <T> CompletableFuture<Map<Jid, T>> merge(Map<Jid, T> results, List<CompletableFuture<Map<Jid, T>>> futures) {
+        return CompletableFuture.allOf(futures.toArray(CompletableFuture[]::new))
+                .thenApply(ignored -> {
+                    futures.forEach(future -> results.putAll(future.join()));
+                    return Collections.unmodifiableMap(results);
+                });
+    }
+
+    private Set<Jid> toJids(Collection<? extends JidProvider> contacts) {
+        var result = new LinkedHashSet<Jid>();
+        for (var contact : contacts) {
+            result.add(contact.toJid());
+        }
+
+        return result;
+    }
+
+    private <T> List<List<T>> chunk(List<T> values, int size) {
+        var result = new ArrayList<List<T>>();
+        for (var index = 0; index < values.size(); index += size) {
+            result.add(values.subList(index, Math.min(values.size(), index + size)));
+        }
+
+        return result;
+    }
+
+    private boolean isFresh(Contact contact, ToLongFunction<Contact> queriedSeconds) {
+        var seconds = queriedSeconds.applyAsLong(contact);
+        return seconds != 0 && Clock.nowSeconds() - seconds < TTL.toSeconds();
+    }
+
+    private Contact findOrAddContact(Jid jid) {
+        return socketHandler.store()
+                .findContactByJid(jid)
+                .orElseGet(() -> socketHandler.store().addContact(jid));
+    }
+}
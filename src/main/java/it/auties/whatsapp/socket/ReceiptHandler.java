@@ -0,0 +1,111 @@
+package it.auties.whatsapp.socket;
+
+import it.auties.whatsapp.model.jid.Jid;
+
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+// Receipts for the same chat, participant and type are collected for a short window and then sent as a single receipt with multiple items
+// This way a burst of incoming messages, like the ones received after being offline, or marking a chat as read produce a few frames instead of one per message
+// While the offline messages are drained the window is longer, as the receipts aren't waited by anyone
+class ReceiptHandler {
+    private static final Duration WINDOW = Duration.ofMillis(100);
+    private static final Duration OFFLINE_WINDOW = Duration.ofMillis(500);
+    private static final int MAX_BATCH_SIZE = 64;
+
+    private final SocketHandler socketHandler;
+    private final Map<ReceiptKey, Batch> batches;
+
+    protected ReceiptHandler(SocketHandler socketHandler) {
+        this.socketHandler = socketHandler;
+        this.batches = new HashMap<>();
+    }
+
+    protected CompletableFuture<Void> queue(Jid jid, Jid participant, String message, String type) {
+        var key = new ReceiptKey(jid, participant, type);
+        Batch full = null;
+        CompletableFuture<Void> result;
+        synchronized (this) {
+            var batch = batches.get(key);
+            if (batch == null) {
+                batch = new Batch(new LinkedHashSet<>(), new CompletableFuture<>());
+                batches.put(key, batch);
+                scheduleFlush(key, batch);
+            }
+
+            batch.messages().add(message);
+            result = batch.future();
+            if (batch.messages().size() >= MAX_BATCH_SIZE) {
+                batches.remove(key);
+                full = batch;
+            }
+        }
+
+        if (full != null) {
+            send(key, full);
+        }
+
+        return result;
+    }
+
+    private void scheduleFlush(ReceiptKey key, Batch batch) {
+        var window = socketHandler.isDrainingOfflineMessages() ? OFFLINE_WINDOW : WINDOW;
+        var executor = CompletableFuture.delayedExecutor(window.toMillis(), TimeUnit.MILLISECONDS);
+        executor.execute(() -> flush(key, batch));
+    }
+
+    private void flush(ReceiptKey key, Batch batch) {
+        synchronized (this) {
+            // The batch was already sent because it was full
+            if (!batches.remove(key, batch)) {
+                return;
+            }
+        }
+
+        send(key, batch);
+    }
+
+    private void send(ReceiptKey key, Batch batch) {
+        socketHandler.sendReceipt(key.jid(), key.participant(), List.copyOf(batch.messages()), key.type()).whenComplete((result, error) -> {
+            if (error != null) {
+                batch.future().completeExceptionally(error);
+            } else {
+                batch.future().complete(null);
+            }
+        });
+    }
+
+    // Sends the pending receipts without waiting for their window to end, used when the session shuts down gracefully
+    protected CompletableFuture<Void> flush() {
+        List<Map.Entry<ReceiptKey, Batch>> pending;
+        synchronized (this) {
+            pending = List.copyOf(batches.entrySet());
+            batches.clear();
+        }
+
+        var futures = new CompletableFuture<?>[pending.size()];
+        for (var index = 0; index < futures.length; index++) {
+            var entry = pending.get(index);
+            send(entry.getKey(), entry.getValue());
+            futures[index] = entry.getValue().future();
+        }
+
+        return CompletableFuture.allOf(futures);
+    }
+
+    // Pending receipts can't be sent anymore: the server will deliver the messages again on the next connection
+    protected synchronized void dispose() {
+        batches.values().forEach(batch -> batch.future().complete(null));
+        batches.clear();
+    }
+
+    private record ReceiptKey(Jid jid, Jid participant, String type) {
+
+    }
+
+    private record Batch(Set<String> messages, CompletableFuture<Void> future) {
+
+    }
+}
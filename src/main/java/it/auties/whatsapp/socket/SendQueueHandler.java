@@ -0,0 +1,289 @@
+package it.auties.whatsapp.socket;
+
+import it.auties.whatsapp.model.jid.Jid;
+import it.auties.whatsapp.model.request.MessageSendRequest;
+import it.auties.whatsapp.util.MessageRateLimit;
+
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Outgoing messages are queued per chat: messages in the same chat are sent one at a time and in order, while different chats proceed concurrently
+// If a MessageRateLimit is set, a message is sent only when both the bucket of its chat and the global bucket have a token
+// The global rate adapts to the server: it's halved when a message is rejected with one of RATE_LIMIT_ERRORS, down to MIN_RATE_FACTOR of the configured rate, and it grows back by RATE_FACTOR_STEP for each message that is sent
+// Other failures, like a message that couldn't be encrypted, don't mean that the server is throttling the session, so they don't change the rate
+// When the session shuts down gracefully, the queue is closed: new messages are rejected and the ones that were already queued are sent until the shutdown timeout expires
+class SendQueueHandler {
+    private static final double MIN_RATE_FACTOR = 0.1;
+    private static final double RATE_FACTOR_STEP = 0.05;
+    private static final Set<Integer> RATE_LIMIT_ERRORS = Set.of(429);
+
+    private final SocketHandler socketHandler;
+    private final Map<Jid, ChatQueue> queues;
+    private final AtomicInteger size;
+    private final AtomicInteger unsent;
+    private volatile boolean shuttingDown;
+    private volatile CompletableFuture<Void> drained;
+    private MessageRateLimit rateLimit;
+    private TokenBucket globalBucket;
+    private double rateFactor;
+
+    protected SendQueueHandler(SocketHandler socketHandler) {
+        this.socketHandler = socketHandler;
+        this.queues = new ConcurrentHashMap<>();
+        this.size = new AtomicInteger();
+        this.unsent = new AtomicInteger();
+        this.rateFactor = 1;
+    }
+
+    protected CompletableFuture<Void> enqueue(MessageSendRequest request) {
+        // The counter is incremented before checking whether the session is shutting down, so close never misses a message that was accepted
+        unsent.incrementAndGet();
+        if (shuttingDown) {
+            onCompleted();
+            return CompletableFuture.failedFuture(new IllegalStateException("Cannot send message: the session is shutting down"));
+        }
+
+        var chatJid = getChatJid(request);
+        var pending = new PendingMessage(request, new CompletableFuture<>());
+        while (true) {
+            var queue = queues.computeIfAbsent(chatJid, ignored -> new ChatQueue());
+            boolean start;
+            synchronized (queue) {
+                if (queue.closed) {
+                    continue;
+                }
+
+                queue.messages.add(pending);
+                start = !queue.running;
+                queue.running = true;
+            }
+
+            size.incrementAndGet();
+            if (start) {
+                drain(chatJid, queue);
+            }
+
+            return pending.future();
+        }
+    }
+
+    protected int size() {
+        return size.get();
+    }
+
+    protected int size(Jid chatJid) {
+        var queue = queues.get(chatJid);
+        if (queue == null) {
+            return 0;
+        }
+
+        synchronized (queue) {
+            return queue.messages.size();
+        }
+    }
+
+    // Rejects new messages and returns a future that completes when the messages that were already queued were sent, or when the timeout expires
+    protected CompletableFuture<Void> close(Duration timeout) {
+        var result = new CompletableFuture<Void>();
+        this.drained = result;
+        this.shuttingDown = true;
+        if (unsent.get() == 0) {
+            result.complete(null);
+        }
+
+        return result.completeOnTimeout(null, timeout.toNanos(), TimeUnit.NANOSECONDS);
+    }
+
+    protected void open() {
+        this.shuttingDown = false;
+        this.drained = null;
+    }
+
+    // The number of messages that were accepted and that weren't sent yet
+    protected int unsent() {
+        return unsent.get();
+    }
+
+    private void onCompleted() {
+        if (unsent.decrementAndGet() != 0 || !shuttingDown) {
+            return;
+        }
+
+        var result = drained;
+        if (result != null) {
+            result.complete(null);
+        }
+    }
+
+    private void drain(Jid chatJid, ChatQueue queue) {
+        PendingMessage next;
+        synchronized (queue) {
+            if (queue.closed) {
+                return;
+            }
+
+            next = queue.messages.peek();
+            if (next == null) {
+                queue.running = false;
+                queue.closed = true;
+                queues.remove(chatJid, queue);
+                return;
+            }
+        }
+
+        var delay = acquire(queue);
+        if (delay > 0) {
+            CompletableFuture.delayedExecutor(delay, TimeUnit.NANOSECONDS)
+                    .execute(() -> drain(chatJid, queue));
+            return;
+        }
+
+        synchronized (queue) {
+            if (queue.closed) {
+                return;
+            }
+
+            queue.messages.poll();
+        }
+
+        size.decrementAndGet();
+        CompletableFuture<Void> sent;
+        try {
+            sent = socketHandler.sendMessageNow(next.request());
+        } catch (Throwable throwable) {
+            sent = CompletableFuture.failedFuture(throwable);
+        }
+
+        sent.whenCompleteAsync((result, throwable) -> {
+            onSent(throwable);
+            if (throwable != null) {
+                next.future().completeExceptionally(throwable);
+            } else {
+                next.future().complete(null);
+            }
+
+            onCompleted();
+            drain(chatJid, queue);
+        });
+    }
+
+    // Returns zero if a token was taken from both buckets, otherwise the nanoseconds to wait before trying again
+    private synchronized long acquire(ChatQueue queue) {
+        var limit = socketHandler.store().messageRateLimit().orElse(null);
+        if (limit == null) {
+            return 0;
+        }
+
+        if (limit != rateLimit) {
+            this.rateLimit = limit;
+            this.globalBucket = new TokenBucket(limit.globalMessagesPerSecond(), limit.globalBurst());
+            this.rateFactor = 1;
+        }
+
+        if (queue.bucket == null || queue.limit != limit) {
+            queue.bucket = new TokenBucket(limit.chatMessagesPerSecond(), limit.chatBurst());
+            queue.limit = limit;
+        }
+
+        var now = System.nanoTime();
+        var delay = Math.max(queue.bucket.delay(now, 1), globalBucket.delay(now, rateFactor));
+        if (delay > 0) {
+            return delay;
+        }
+
+        queue.bucket.take();
+        globalBucket.take();
+        return 0;
+    }
+
+    private synchronized void onSent(Throwable throwable) {
+        if (throwable == null) {
+            rateFactor = Math.min(1, rateFactor + RATE_FACTOR_STEP);
+        }
+    }
+
+    // Called when the server acks a message with an error
+    protected synchronized void onRejected(int error) {
+        if (RATE_LIMIT_ERRORS.contains(error)) {
+            rateFactor = Math.max(MIN_RATE_FACTOR, rateFactor / 2);
+        }
+    }
+
+    private Jid getChatJid(MessageSendRequest request) {
+        return switch (request) {
+            case MessageSendRequest.Chat chat -> chat.info().chatJid();
+            case MessageSendRequest.Newsletter newsletter -> newsletter.info().parentJid();
+        };
+    }
+
+    protected void dispose() {
+        for (var entry : queues.entrySet()) {
+            var queue = entry.getValue();
+            synchronized (queue) {
+                queue.closed = true;
+                queues.remove(entry.getKey(), queue);
+                for (var pending : queue.messages) {
+                    pending.future().completeExceptionally(new IllegalStateException("Cannot send message: the session was closed"));
+                    onCompleted();
+                }
+
+                size.addAndGet(-queue.messages.size());
+                queue.messages.clear();
+            }
+        }
+    }
+
+    private static final class ChatQueue {
+        private final Queue<PendingMessage> messages;
+        private boolean running;
+        private boolean closed;
+        private MessageRateLimit limit;
+        private TokenBucket bucket;
+
+        private ChatQueue() {
+            this.messages = new ArrayDeque<>();
+        }
+    }
+
+    private record PendingMessage(MessageSendRequest request, CompletableFuture<Void> future) {
+
+    }
+
+    private static final class TokenBucket {
+        private final double tokensPerNanosecond;
+        private final int capacity;
+        private double tokens;
+        private long lastRefill;
+
+        private TokenBucket(double tokensPerSecond, int capacity) {
+            this.tokensPerNanosecond = tokensPerSecond / TimeUnit.SECONDS.toNanos(1);
+            this.capacity = capacity;
+            this.tokens = capacity;
+            this.lastRefill = System.nanoTime();
+        }
+
+        private long delay(long now, double rateFactor) {
+            if (tokensPerNanosecond == 0) {
+                return 0;
+            }
+
+            var rate = tokensPerNanosecond * rateFactor;
+            tokens = Math.min(capacity, tokens + (now - lastRefill) * rate);
+            lastRefill = now;
+            return tokens >= 1 ? 0 : (long) Math.ceil((1 - tokens) / rate);
+        }
+
+        private void take() {
+            if (tokensPerNanosecond != 0) {
+                tokens--;
+            }
+        }
+    }
+}
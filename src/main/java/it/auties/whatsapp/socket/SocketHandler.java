@@ -40,9 +40,11 @@ import it.auties.whatsapp.util.Clock;
 
 import java.net.SocketException;
 import java.net.URI;
+import java.time.Duration;
 import java.time.ZonedDateTime;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Consumer;
 import java.util.function.Function;
 
@@ -52,6 +54,7 @@ import static it.auties.whatsapp.model.chat.GroupSetting.*;
 @SuppressWarnings("unused")
 public class SocketHandler implements SocketListener {
     private static final Executor DEFAULT_EXECUTOR = ForkJoinPool.getCommonPoolParallelism() > 1 ? ForkJoinPool.commonPool() : runnable -> new Thread(runnable).start();
+    private static final Duration DEFAULT_SHUTDOWN_TIMEOUT = Duration.ofSeconds(5);
 
     private static final Set<UUID> connectedUuids = ConcurrentHashMap.newKeySet();
     private static final Set<Long> connectedPhoneNumbers = ConcurrentHashMap.newKeySet();
@@ -69,6 +72,11 @@ public class SocketHandler implements SocketListener {
 
     private final AppStateHandler appStateHandler;
 
+    private final ReceiptHandler receiptHandler;
+    private final ProfileHandler profileHandler;
+    private final SendQueueHandler sendQueueHandler;
+    private final OfflineHandler offlineHandler;
+
     private final ErrorHandler errorHandler;
 
     private final Executor socketExecutor;
@@ -83,6 +91,14 @@ public class SocketHandler implements SocketListener {
 
     private ExecutorService listenersService;
 
+    private final AtomicInteger pendingWrites;
+
+    private volatile CompletableFuture<Void> writesFlushed;
+
+    private volatile CompletableFuture<Void> shutdownTask;
+
+    private volatile boolean gracefulShutdown;
+
     public static boolean isConnected(UUID uuid) {
         return connectedUuids.contains(uuid);
     }
@@ -104,12 +120,21 @@ public class SocketHandler implements SocketListener {
         this.streamHandler = new StreamHandler(this, webVerificationSupport);
         this.messageHandler = new MessageHandler(this);
         this.appStateHandler = new AppStateHandler(this);
+        this.receiptHandler = new ReceiptHandler(this);
+        this.profileHandler = new ProfileHandler(this);
+        this.sendQueueHandler = new SendQueueHandler(this);
+        this.offlineHandler = new OfflineHandler(this);
         this.errorHandler = Objects.requireNonNullElse(errorHandler, ErrorHandler.toTerminal());
         this.socketExecutor = Objects.requireNonNullElse(socketExecutor, DEFAULT_EXECUTOR);
+        this.pendingWrites = new AtomicInteger();
+        store.attach(this);
+        keys.attach(this);
     }
 
-    private void onShutdown(boolean reconnect) {
-        if (state != SocketState.LOGGED_OUT && state != SocketState.RESTORE) {
+    // A graceful shutdown writes the final snapshot itself, unless the process is exiting
+    private void onShutdown(boolean reconnect, boolean exiting) {
+        offlineHandler.dispose();
+        if ((exiting || !gracefulShutdown) && state != SocketState.LOGGED_OUT && state != SocketState.RESTORE) {
             keys.dispose();
             store.dispose();
         }
@@ -127,18 +152,20 @@ public class SocketHandler implements SocketListener {
 
     private void callListenersAsync(Consumer<Listener> consumer) {
         var service = getOrCreateListenersService();
-        store.listeners().forEach(listener -> service.execute(() -> invokeListenerSafe(consumer, listener)));
+        var submitted = store.metrics().enabled() ? System.nanoTime() : 0L;
+        store.listeners().forEach(listener -> service.execute(() -> invokeListenerSafe(consumer, listener, submitted)));
     }
 
     @Override
     public void onOpen(SocketSession session) {
         this.session = session;
+        keys.setMetrics(store.metrics());
         if (state == SocketState.CONNECTED) {
             return;
         }
 
         if (shutdownHook == null) {
-            this.shutdownHook = new Thread(() -> onShutdown(false));
+            this.shutdownHook = new Thread(() -> onShutdown(false, true));
             Runtime.getRuntime().addShutdownHook(shutdownHook);
         }
 
@@ -179,9 +206,17 @@ public class SocketHandler implements SocketListener {
         }
 
         try {
+            var metrics = store.metrics();
+            var start = metrics.enabled() ? System.nanoTime() : 0L;
             var plainText = AesGcm.decrypt(keys.readCounter(true), message, readKey.get());
+            var decrypted = start != 0L ? System.nanoTime() : 0L;
             var decoder = new BinaryDecoder();
             var node = decoder.decode(plainText);
+            if (start != 0L) {
+                metrics.onFrame(message.length, decrypted - start, System.nanoTime() - decrypted);
+                metrics.onNode(node.description(), true);
+            }
+
             onNodeReceived(node);
             store.resolvePendingRequest(node, false);
             streamHandler.digest(node);
@@ -204,7 +239,7 @@ public class SocketHandler implements SocketListener {
             return;
         }
         onDisconnected(state.toReason());
-        onShutdown(state == SocketState.RECONNECTING);
+        onShutdown(state == SocketState.RECONNECTING, false);
     }
 
     @Override
@@ -227,6 +262,15 @@ public class SocketHandler implements SocketListener {
             return CompletableFuture.completedFuture(null);
         }
 
+        // A store and keys that were kept in memory after a graceful shutdown can be reused by another client, and then this one can't connect anymore
+        if (!store.isAttachedTo(this) || !keys.isAttachedTo(this)) {
+            return CompletableFuture.failedFuture(new IllegalStateException("This session is used by another client"));
+        }
+
+        store.attach(this);
+        keys.attach(this);
+        this.gracefulShutdown = false;
+        sendQueueHandler.open();
         this.session = SocketSession.of(store.proxy().orElse(null), socketExecutor, store.clientType() == ClientType.WEB);
         return session.connect(this);
     }
@@ -237,6 +281,17 @@ public class SocketHandler implements SocketListener {
             return CompletableFuture.completedFuture(null);
         }
 
+        // A disconnection requested while the session is shutting down, like the one caused by the server closing the socket, joins the shutdown
+        var pendingShutdown = shutdownTask;
+        if (pendingShutdown != null && !pendingShutdown.isDone()) {
+            return pendingShutdown;
+        }
+
+        // There's nothing to drain if the server already closed the session
+        if (state == SocketState.CONNECTED && session != null && session.isOpen() && (reason == DisconnectReason.DISCONNECTED || reason == DisconnectReason.RECONNECTING)) {
+            return shutdown(reason);
+        }
+
         setState(newState);
         keys.clearReadWriteKey();
         return switch (reason) {
@@ -281,11 +336,94 @@ public class SocketHandler implements SocketListener {
                         .device(store.device().orElse(null))
                         .build();
                 store.addListeners(oldListeners);
+                store.attach(this);
+                keys.attach(this);
                 yield connect();
             }
         };
     }
 
+    // New messages are rejected, while the ones that were already queued, the pending receipts and the acks are sent until the shutdown timeout expires
+    // Then the session is closed, so nothing changes the store and the keys while their final snapshot is written outside the calling thread
+    private synchronized CompletableFuture<Void> shutdown(DisconnectReason reason) {
+        if (shutdownTask != null && !shutdownTask.isDone()) {
+            return shutdownTask;
+        }
+
+        this.gracefulShutdown = true;
+        var start = System.nanoTime();
+        var timeout = store.shutdownTimeout().orElse(DEFAULT_SHUTDOWN_TIMEOUT);
+        var deadline = start + timeout.toNanos();
+        this.shutdownTask = sendQueueHandler.close(timeout)
+                .thenCompose(ignored -> flushWrites(deadline))
+                .exceptionally(ignored -> null)
+                .thenCompose(ignored -> closeGracefully(reason, start));
+        return shutdownTask;
+    }
+
+    private CompletableFuture<Void> flushWrites(long deadline) {
+        return receiptHandler.flush()
+                .exceptionally(ignored -> null)
+                .thenCompose(ignored -> awaitPendingWrites())
+                .completeOnTimeout(null, Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+    }
+
+    private CompletableFuture<Void> awaitPendingWrites() {
+        var result = new CompletableFuture<Void>();
+        this.writesFlushed = result;
+        if (pendingWrites.get() == 0) {
+            result.complete(null);
+        }
+
+        return result;
+    }
+
+    private void onWriteCompleted() {
+        if (pendingWrites.decrementAndGet() != 0) {
+            return;
+        }
+
+        var result = writesFlushed;
+        if (result != null) {
+            result.complete(null);
+        }
+    }
+
+    private CompletableFuture<Void> closeGracefully(DisconnectReason reason, long start) {
+        var dropped = sendQueueHandler.unsent();
+        var open = session != null && session.isOpen();
+        setState(SocketState.of(reason));
+        keys.clearReadWriteKey();
+        if (open) {
+            session.disconnect();
+        } else {
+            // The socket was closed while draining, and onClose left the disconnection to this shutdown
+            onDisconnected(reason);
+            onShutdown(reason == DisconnectReason.RECONNECTING, false);
+        }
+
+        return CompletableFuture.allOf(keys.dispose(true), store.dispose(true))
+                .exceptionally(throwable -> handleFailure(UNKNOWN, throwable))
+                .thenCompose(ignored -> {
+                    var metrics = store.metrics();
+                    if (metrics.enabled()) {
+                        metrics.onShutdown(reason.name(), System.nanoTime() - start, dropped);
+                    }
+
+                    if (reason == DisconnectReason.RECONNECTING) {
+                        return connect();
+                    }
+
+                    // The next client for this session can start from the objects that are already in memory
+                    if (keys.isAttachedTo(this) && store.isAttachedTo(this)) {
+                        keys.retain();
+                        store.retain();
+                    }
+
+                    return CompletableFuture.completedFuture(null);
+                });
+    }
+
     public CompletableFuture<Void> pushPatch(PatchRequest request) {
         var jid = store.jid().orElseThrow(() -> new IllegalStateException("The session isn't connected"));
         return appStateHandler.push(jid, List.of(request));
@@ -305,6 +443,21 @@ public class SocketHandler implements SocketListener {
 
     public void decodeMessage(Node node, JidProvider chatOverride, boolean notify) {
         messageHandler.decode(node, chatOverride, notify);
+        if (node.attributes().hasKey("offline")) {
+            offlineHandler.onMessage();
+        }
+    }
+
+    protected void startOfflineMessages(int total) {
+        offlineHandler.start(total);
+    }
+
+    protected void finishOfflineMessages() {
+        offlineHandler.finish();
+    }
+
+    public boolean isDrainingOfflineMessages() {
+        return offlineHandler.isDraining();
     }
 
     public CompletableFuture<Void> sendPeerMessage(Jid companion, ProtocolMessage message) {
@@ -332,9 +485,25 @@ public class SocketHandler implements SocketListener {
     }
 
     public CompletableFuture<Void> sendMessage(MessageSendRequest request) {
+        if (request instanceof MessageSendRequest.Chat chatRequest && chatRequest.peer()) {
+            return sendMessageNow(request);
+        }
+
+        return sendQueueHandler.enqueue(request);
+    }
+
+    protected CompletableFuture<Void> sendMessageNow(MessageSendRequest request) {
         return messageHandler.encode(request);
     }
 
+    public int pendingMessages() {
+        return sendQueueHandler.size();
+    }
+
+    public int pendingMessages(Jid chatJid) {
+        return sendQueueHandler.size(chatJid);
+    }
+
     @SuppressWarnings("UnusedReturnValue")
     public CompletableFuture<Void> sendQueryWithNoResponse(String method, String category, Node... body) {
         return sendQueryWithNoResponse(null, JidServer.WHATSAPP.toJid(), method, category, null, body);
@@ -355,13 +524,20 @@ public class SocketHandler implements SocketListener {
             return CompletableFuture.completedFuture(null);
         }
 
+        pendingWrites.incrementAndGet();
         return node.toRequest(null, false)
                 .sendWithNoResponse(session, keys, store)
+                .whenComplete((ignored, throwable) -> onWriteCompleted())
                 .exceptionallyAsync(throwable -> handleFailure(STREAM, throwable))
                 .thenRunAsync(() -> onNodeSent(node));
     }
 
     private void onNodeSent(Node node) {
+        var metrics = store.metrics();
+        if (metrics.enabled()) {
+            metrics.onNode(node.description(), false);
+        }
+
         callListenersAsync(listener -> {
             listener.onNodeSent(whatsapp, node);
             listener.onNodeSent(node);
@@ -374,6 +550,18 @@ public class SocketHandler implements SocketListener {
         return sendInteractiveQuery(query, body).thenApplyAsync(this::parseStatus);
     }
 
+    public CompletableFuture<Map<Jid, Optional<String>>> queryNames(Collection<? extends JidProvider> contacts) {
+        return profileHandler.queryNames(contacts);
+    }
+
+    public CompletableFuture<Map<Jid, Optional<ContactStatusResponse>>> queryAbouts(Collection<? extends JidProvider> contacts) {
+        return profileHandler.queryAbouts(contacts);
+    }
+
+    public CompletableFuture<Map<Jid, Optional<URI>>> queryPictures(Collection<? extends JidProvider> contacts) {
+        return profileHandler.queryPictures(contacts);
+    }
+
     public CompletableFuture<List<Node>> sendInteractiveQuery(Node queryNode, Node... queryBody) {
         var query = Node.of("query", queryNode);
         var list = Node.of("list", queryBody);
@@ -601,14 +789,21 @@ public class SocketHandler implements SocketListener {
         return sendWithNoResponse(receipt);
     }
 
-    private List<Node> toMessagesNode(List<String> messages) {
+    public CompletableFuture<Void> queueReceipt(Jid jid, Jid participant, String message, String type) {
+        return receiptHandler.queue(jid, participant, message, type);
+    }
+
+    // The first id is the id of the receipt, the other ones are listed as items
+    private Node toMessagesNode(List<String> messages) {
         if (messages.size() <= 1) {
             return null;
         }
-        return messages.subList(1, messages.size())
+
+        var items = messages.subList(1, messages.size())
                 .stream()
                 .map(id -> Node.of("item", Map.of("id", id)))
                 .toList();
+        return Node.of("list", items);
     }
 
     protected CompletableFuture<Void> sendMessageAck(Jid from, Node node) {
@@ -650,17 +845,28 @@ public class SocketHandler implements SocketListener {
     }
 
     protected void onUpdateChatPresence(ContactStatus status, Jid jid, Chat chat) {
+        if (updateChatPresence(status, jid, chat)) {
+            onContactPresence(status, jid, chat);
+        }
+    }
+
+    // Returns whether the presence changed, in which case listeners should be notified
+    protected boolean updateChatPresence(ContactStatus status, Jid jid, Chat chat) {
         var contact = store.findContactByJid(jid);
         if (contact.isPresent()) {
-            contact.get().setLastKnownPresence(status);
             if (status == contact.get().lastKnownPresence()) {
-                return;
+                return false;
             }
 
+            contact.get().setLastKnownPresence(status);
             contact.get().setLastSeen(ZonedDateTime.now());
         }
 
         chat.presences().put(jid, status);
+        return true;
+    }
+
+    protected void onContactPresence(ContactStatus status, Jid jid, Chat chat) {
         callListenersAsync(listener -> {
             listener.onContactPresence(whatsapp, chat, jid, status);
             listener.onContactPresence(chat, jid, status);
@@ -668,12 +874,36 @@ public class SocketHandler implements SocketListener {
     }
 
     protected void onNewMessage(ChatMessageInfo info) {
+        onNewMessage(info, false);
+    }
+
+    // Only messages that were queued while the session was offline are batched, live messages that arrive during the drain are dispatched immediately
+    protected void onNewMessage(ChatMessageInfo info, boolean offline) {
+        if (offline && offlineHandler.buffer(info)) {
+            return;
+        }
+
         callListenersAsync(listener -> {
             listener.onNewMessage(whatsapp, info);
             listener.onNewMessage(info);
         });
     }
 
+    protected void onNewMessages(List<ChatMessageInfo> infos) {
+        var messages = Collections.unmodifiableList(infos);
+        callListenersAsync(listener -> {
+            listener.onNewMessages(whatsapp, messages);
+            listener.onNewMessages(messages);
+        });
+    }
+
+    protected void onOfflineMessagesProgress(int processed, int total, boolean finished) {
+        callListenersAsync(listener -> {
+            listener.onOfflineMessagesProgress(whatsapp, processed, total, finished);
+            listener.onOfflineMessagesProgress(processed, total, finished);
+        });
+    }
+
     protected void onNewStatus(ChatMessageInfo info) {
         callListenersAsync(listener -> {
             listener.onNewStatus(whatsapp, info);
@@ -741,18 +971,25 @@ public class SocketHandler implements SocketListener {
 
     public void callListenersSync(Consumer<Listener> consumer) {
         var service = getOrCreateListenersService();
+        var submitted = store.metrics().enabled() ? System.nanoTime() : 0L;
         var futures = store.listeners()
                 .stream()
-                .map(listener -> CompletableFuture.runAsync(() -> invokeListenerSafe(consumer, listener), service))
+                .map(listener -> CompletableFuture.runAsync(() -> invokeListenerSafe(consumer, listener, submitted), service))
                 .toArray(CompletableFuture[]::new);
         CompletableFuture.allOf(futures).join();
     }
 
-    private void invokeListenerSafe(Consumer<Listener> consumer, Listener listener) {
+    // submitted is zero if metrics were disabled when the event was dispatched
+    private void invokeListenerSafe(Consumer<Listener> consumer, Listener listener, long submitted) {
+        var start = submitted != 0L ? System.nanoTime() : 0L;
         try {
             consumer.accept(listener);
         } catch (Throwable throwable) {
             handleFailure(UNKNOWN, throwable);
+        } finally {
+            if (start != 0L) {
+                store.metrics().onListener(listener.getClass(), start - submitted, System.nanoTime() - start);
+            }
         }
     }
 
@@ -916,11 +1153,20 @@ public class SocketHandler implements SocketListener {
         messageHandler.querySessions(List.of(jid), true);
     }
 
+    protected void onMessageRejected(MessageStatusInfo<?> info, int error) {
+        sendQueueHandler.onRejected(error);
+        if (info != null) {
+            messageHandler.onMessageRejected(info);
+        }
+    }
+
     private void dispose() {
         onSocketEvent(SocketEvent.CLOSE);
         streamHandler.dispose();
         messageHandler.dispose();
         appStateHandler.dispose();
+        receiptHandler.dispose();
+        sendQueueHandler.dispose();
         if (listenersService != null) {
             listenersService.shutdownNow();
         }
@@ -137,6 +137,21 @@ public record SocketRequest(String id, Object body, CompletableFuture<Node> futu
         }
 
         store.addRequest(this);
+        var metrics = store.metrics();
+        if (metrics.enabled()) {
+            var start = System.nanoTime();
+            future.whenComplete((result, error) -> metrics.onRequest(describe(), System.nanoTime() - start, error == caller));
+        }
+    }
+
+    // Requests are grouped by namespace as most of them are iqs
+    private String describe() {
+        if (!(body instanceof Node node)) {
+            return "binary";
+        }
+
+        var namespace = node.attributes().getNullableString("xmlns");
+        return namespace == null ? node.description() : node.description() + ":" + namespace;
     }
 
     private Void onSendError(Throwable throwable) {
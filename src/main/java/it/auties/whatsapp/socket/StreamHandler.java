@@ -56,13 +56,13 @@ import java.net.URI;
 import java.nio.charset.StandardCharsets;
 import java.security.GeneralSecurityException;
 import java.security.SecureRandom;
+import java.time.Duration;
 import java.time.ZonedDateTime;
 import java.util.*;
 import java.util.Map.Entry;
 import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicReference;
 import java.util.stream.Collectors;
-import java.util.stream.IntStream;
 import java.util.stream.Stream;
 
 import static it.auties.whatsapp.api.ErrorHandler.Location.*;
@@ -72,7 +72,6 @@ import static it.auties.whatsapp.util.Specification.Whatsapp.DEVICE_WEB_SIGNATUR
 
 class StreamHandler {
     private static final int REQUIRED_PRE_KEYS_SIZE = 5;
-    private static final int PRE_KEYS_UPLOAD_CHUNK = 30;
     private static final int PING_INTERVAL = 30;
     private static final int MEDIA_CONNECTION_DEFAULT_INTERVAL = 60;
     private static final int MAX_ATTEMPTS = 5;
@@ -82,13 +81,28 @@ class StreamHandler {
     private final WebVerificationSupport webVerificationSupport;
     private final Map<String, Integer> retries;
     private final AtomicReference<String> lastLinkCodeKey;
-    private ScheduledExecutorService service;
+    private final PresenceHandler presenceHandler;
+    private final PreKeyHandler preKeyHandler;
+    private final ScheduledThreadPoolExecutor pingService;
+    private ScheduledFuture<?> pingTask;
 
     protected StreamHandler(SocketHandler socketHandler, WebVerificationSupport webVerificationSupport) {
         this.socketHandler = socketHandler;
         this.webVerificationSupport = webVerificationSupport;
         this.retries = new HashMap<>();
         this.lastLinkCodeKey = new AtomicReference<>();
+        this.presenceHandler = new PresenceHandler(socketHandler);
+        this.preKeyHandler = new PreKeyHandler(socketHandler);
+        this.pingService = createPingService();
+    }
+
+    // The executor is shared by every session of this client: only the ping task is cancelled when a session ends, and the thread dies when no session is active
+    private static ScheduledThreadPoolExecutor createPingService() {
+        var result = new ScheduledThreadPoolExecutor(1, Thread.ofPlatform().name("whatsapp-ping").daemon().factory());
+        result.setRemoveOnCancelPolicy(true);
+        result.setKeepAliveTime(PING_INTERVAL * 2L, TimeUnit.SECONDS);
+        result.allowCoreThreadTimeOut(true);
+        return result;
     }
 
     protected void digest(Node node) {
@@ -117,15 +131,28 @@ class StreamHandler {
     }
 
     private void digestChatState(Node node) {
-        CompletableFuture.runAsync(() -> {
-            var chatJid = node.attributes()
-                    .getJid("from")
-                    .orElseThrow(() -> new NoSuchElementException("Missing from in chat state update"));
-            var participantJid = node.attributes()
-                    .getJid("participant")
-                    .orElse(chatJid);
-            updateContactPresence(chatJid, getUpdateType(node), participantJid);
-        });
+        var interval = socketHandler.store().presenceUpdatesInterval();
+        if (interval.isEmpty()) {
+            CompletableFuture.runAsync(() -> digestChatState(node, null));
+            return;
+        }
+
+        digestChatState(node, interval.get());
+    }
+
+    private void digestChatState(Node node, Duration interval) {
+        var chatJid = node.attributes()
+                .getJid("from")
+                .orElseThrow(() -> new NoSuchElementException("Missing from in chat state update"));
+        var participantJid = node.attributes()
+                .getJid("participant")
+                .orElse(chatJid);
+        var status = getUpdateType(node);
+        if (interval == null) {
+            presenceHandler.update(chatJid, participantJid, status);
+        } else {
+            presenceHandler.offer(chatJid, participantJid, status, interval);
+        }
     }
 
     private ContactStatus getUpdateType(Node node) {
@@ -144,12 +171,6 @@ class StreamHandler {
                 .orElse(ContactStatus.AVAILABLE);
     }
 
-    private void updateContactPresence(Jid chatJid, ContactStatus status, Jid contact) {
-        socketHandler.store()
-                .findChatByJid(chatJid)
-                .ifPresent(chat -> socketHandler.onUpdateChatPresence(status, contact, chat));
-    }
-
     private void digestReceipt(Node node) {
         var senderJid = node.attributes()
                 .getJid("from")
@@ -301,12 +322,13 @@ class StreamHandler {
         var match = socketHandler.store()
                 .findMessageById(from, messageId)
                 .orElse(null);
-        if (match == null) {
+        // The error is reported even if the message isn't in the store, as it could mean that the session is being throttled
+        if (error != 0) {
+            socketHandler.onMessageRejected(match, error);
             return;
         }
 
-        if (error != 0) {
-            match.setStatus(MessageStatus.ERROR);
+        if (match == null) {
             return;
         }
 
@@ -576,7 +598,9 @@ class StreamHandler {
                 .stubParameters(parameters)
                 .senderJid(participantJid)
                 .build();
-        chat.addNewMessage(message);
+        if (chat.addNewMessage(message)) {
+            socketHandler.store().applyMessageRetention(chat, message);
+        }
         socketHandler.onNewMessage(message);
         if (participantJid == null) {
             return;
@@ -768,6 +792,18 @@ class StreamHandler {
     }
 
     private void digestIb(Node node) {
+        var offlinePreview = node.findNode("offline_preview");
+        if (offlinePreview.isPresent()) {
+            var attributes = offlinePreview.get().attributes();
+            socketHandler.startOfflineMessages(attributes.getOptionalInt("message").orElse(attributes.getInt("count")));
+            return;
+        }
+
+        if (node.hasNode("offline")) {
+            socketHandler.finishOfflineMessages();
+            return;
+        }
+
         var dirty = node.findNode("dirty");
         if (dirty.isEmpty()) {
             Validate.isTrue(!node.hasNode("downgrade_webclient"), "Multi device beta is not enabled. Please enable it from Whatsapp");
@@ -815,6 +851,8 @@ class StreamHandler {
         socketHandler.sendQuery("set", "passive", Node.of("active"));
         if (!socketHandler.keys().hasPreKeys()) {
             sendPreKeys();
+        } else {
+            preKeyHandler.prepare();
         }
 
         createMediaConnection(0, null);
@@ -956,13 +994,19 @@ class StreamHandler {
                         .thenApplyAsync(entries -> Node.of("category", Map.of("id", entries.get(0).id()))));
     }
 
-    private void schedulePing() {
-        if (service != null && !service.isShutdown()) {
+    private synchronized void schedulePing() {
+        if (pingTask != null && !pingTask.isDone()) {
             return;
         }
 
-        service = Executors.newSingleThreadScheduledExecutor();
-        service.scheduleAtFixedRate(this::sendPing, 0, PING_INTERVAL, TimeUnit.SECONDS);
+        this.pingTask = pingService.scheduleAtFixedRate(this::sendPing, 0, PING_INTERVAL, TimeUnit.SECONDS);
+    }
+
+    private synchronized void cancelPing() {
+        if (pingTask != null) {
+            pingTask.cancel(false);
+            this.pingTask = null;
+        }
     }
 
     private void onInitialInfo() {
@@ -1141,7 +1185,11 @@ class StreamHandler {
         socketHandler.sendQuery("get", "w:p", Node.of("ping"))
                 .thenRun(() -> socketHandler.onSocketEvent(SocketEvent.PING))
                 .exceptionallyAsync(throwable -> socketHandler.handleFailure(STREAM, throwable));
-        socketHandler.store().serialize(true);
+        // The store is serialized once the offline messages are drained
+        if (!socketHandler.isDrainingOfflineMessages()) {
+            socketHandler.store().serialize(true);
+        }
+
         socketHandler.keys().serialize(true);
     }
 
@@ -1170,6 +1218,7 @@ class StreamHandler {
                     return new MediaConnection(auth, ttl, maxBuckets, timestamp, hosts);
                 })
                 .thenAcceptAsync(result -> {
+                    MediaHosts.instance().update(result.hosts(), result.maxBuckets());
                     socketHandler.store().setMediaConnection(result);
                     scheduleMediaConnection(result.ttl());
                 })
@@ -1197,10 +1246,8 @@ class StreamHandler {
     }
 
     private void sendPreKeys() {
-        var startId = socketHandler.keys().lastPreKeyId() + 1;
-        var preKeys = IntStream.range(startId, startId + PRE_KEYS_UPLOAD_CHUNK)
-                .mapToObj(SignalPreKeyPair::random)
-                .peek(socketHandler.keys()::addPreKey)
+        var preKeys = preKeyHandler.takeBatch()
+                .stream()
                 .map(SignalPreKeyPair::toNode)
                 .toList();
         socketHandler.sendQuery("set", "encrypt",
@@ -1367,10 +1414,10 @@ class StreamHandler {
 
     protected void dispose() {
         retries.clear();
-        if (service != null) {
-            service.shutdownNow();
-        }
+        cancelPing();
 
         lastLinkCodeKey.set(null);
+        presenceHandler.dispose();
+        preKeyHandler.dispose();
     }
 }
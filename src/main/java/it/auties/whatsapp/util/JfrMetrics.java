@@ -0,0 +1,288 @@
+package it.auties.whatsapp.util;
+
+import jdk.jfr.*;
+
+/**
+ * A sink that records metrics as JDK Flight Recorder events in the Whatsapp category.
+ * Events are only created when their type is enabled in the running recording, so this sink costs nothing when the application isn't being recorded.
+ */
+public final class JfrMetrics implements Metrics {
+    static final JfrMetrics INSTANCE = new JfrMetrics();
+
+    private static final EventType FRAME = EventType.getEventType(FrameEvent.class);
+    private static final EventType NODE = EventType.getEventType(NodeEvent.class);
+    private static final EventType REQUEST = EventType.getEventType(RequestEvent.class);
+    private static final EventType LOCK = EventType.getEventType(LockEvent.class);
+    private static final EventType DECRYPT_FAILURE = EventType.getEventType(DecryptFailureEvent.class);
+    private static final EventType SENDER_KEY_EVICTION = EventType.getEventType(SenderKeyEvictionEvent.class);
+    private static final EventType LISTENER = EventType.getEventType(ListenerEvent.class);
+    private static final EventType FLUSH = EventType.getEventType(FlushEvent.class);
+    private static final EventType SHUTDOWN = EventType.getEventType(ShutdownEvent.class);
+
+    private JfrMetrics() {
+
+    }
+
+    @Override
+    public boolean enabled() {
+        return FRAME.isEnabled()
+                || NODE.isEnabled()
+                || REQUEST.isEnabled()
+                || LOCK.isEnabled()
+                || DECRYPT_FAILURE.isEnabled()
+                || SENDER_KEY_EVICTION.isEnabled()
+                || LISTENER.isEnabled()
+                || FLUSH.isEnabled()
+                || SHUTDOWN.isEnabled();
+    }
+
+    @Override
+    public void onFrame(int size, long decryptTime, long decodeTime) {
+        if (!FRAME.isEnabled()) {
+            return;
+        }
+
+        var event = new FrameEvent();
+        event.size = size;
+        event.decryptTime = decryptTime;
+        event.decodeTime = decodeTime;
+        event.commit();
+    }
+
+    @Override
+    public void onNode(String description, boolean inbound) {
+        if (!NODE.isEnabled()) {
+            return;
+        }
+
+        var event = new NodeEvent();
+        event.description = description;
+        event.inbound = inbound;
+        event.commit();
+    }
+
+    @Override
+    public void onRequest(String description, long time, boolean timedOut) {
+        if (!REQUEST.isEnabled()) {
+            return;
+        }
+
+        var event = new RequestEvent();
+        event.description = description;
+        event.time = time;
+        event.timedOut = timedOut;
+        event.commit();
+    }
+
+    @Override
+    public void onLock(String name, long waitTime, long holdTime) {
+        if (!LOCK.isEnabled()) {
+            return;
+        }
+
+        var event = new LockEvent();
+        event.name = name;
+        event.waitTime = waitTime;
+        event.holdTime = holdTime;
+        event.commit();
+    }
+
+    @Override
+    public void onDecryptFailure(String type, Throwable throwable) {
+        if (!DECRYPT_FAILURE.isEnabled()) {
+            return;
+        }
+
+        var event = new DecryptFailureEvent();
+        event.type = type;
+        event.error = throwable.getClass();
+        event.message = throwable.getMessage();
+        event.commit();
+    }
+
+    @Override
+    public void onSenderKeyEviction(int messageKeys, int states) {
+        if (!SENDER_KEY_EVICTION.isEnabled()) {
+            return;
+        }
+
+        var event = new SenderKeyEvictionEvent();
+        event.messageKeys = messageKeys;
+        event.states = states;
+        event.commit();
+    }
+
+    @Override
+    public void onListener(Class<?> listener, long queueTime, long runTime) {
+        if (!LISTENER.isEnabled()) {
+            return;
+        }
+
+        var event = new ListenerEvent();
+        event.listener = listener;
+        event.queueTime = queueTime;
+        event.runTime = runTime;
+        event.commit();
+    }
+
+    @Override
+    public void onFlush(String type, long time) {
+        if (!FLUSH.isEnabled()) {
+            return;
+        }
+
+        var event = new FlushEvent();
+        event.type = type;
+        event.time = time;
+        event.commit();
+    }
+
+    @Override
+    public void onShutdown(String reason, long time, int dropped) {
+        if (!SHUTDOWN.isEnabled()) {
+            return;
+        }
+
+        var event = new ShutdownEvent();
+        event.reason = reason;
+        event.time = time;
+        event.dropped = dropped;
+        event.commit();
+    }
+
+    @Name("it.auties.whatsapp.Frame")
+    @Label("Frame")
+    @Description("A frame received from the socket")
+    @Category({"Whatsapp", "Socket"})
+    static final class FrameEvent extends Event {
+        @Label("Size")
+        @DataAmount
+        int size;
+
+        @Label("Decrypt Time")
+        @Timespan
+        long decryptTime;
+
+        @Label("Decode Time")
+        @Timespan
+        long decodeTime;
+    }
+
+    @Name("it.auties.whatsapp.Node")
+    @Label("Node")
+    @Description("A node received from or sent to the socket")
+    @Category({"Whatsapp", "Socket"})
+    static final class NodeEvent extends Event {
+        @Label("Description")
+        String description;
+
+        @Label("Inbound")
+        boolean inbound;
+    }
+
+    @Name("it.auties.whatsapp.Request")
+    @Label("Request")
+    @Description("A request that expected a response from the server")
+    @Category({"Whatsapp", "Socket"})
+    static final class RequestEvent extends Event {
+        @Label("Description")
+        String description;
+
+        @Label("Round Trip Time")
+        @Timespan
+        long time;
+
+        @Label("Timed Out")
+        boolean timedOut;
+    }
+
+    @Name("it.auties.whatsapp.Lock")
+    @Label("Lock")
+    @Description("A lock that guards the encryption or decryption of messages")
+    @Category({"Whatsapp", "Messages"})
+    static final class LockEvent extends Event {
+        @Label("Name")
+        String name;
+
+        @Label("Wait Time")
+        @Timespan
+        long waitTime;
+
+        @Label("Hold Time")
+        @Timespan
+        long holdTime;
+    }
+
+    @Name("it.auties.whatsapp.DecryptFailure")
+    @Label("Decrypt Failure")
+    @Description("A signal message that couldn't be decrypted")
+    @Category({"Whatsapp", "Messages"})
+    static final class DecryptFailureEvent extends Event {
+        @Label("Type")
+        String type;
+
+        @Label("Error")
+        Class<?> error;
+
+        @Label("Message")
+        String message;
+    }
+
+    @Name("it.auties.whatsapp.SenderKeyEviction")
+    @Label("Sender Key Eviction")
+    @Description("Sender keys evicted because a group exceeded its limits")
+    @Category({"Whatsapp", "Messages"})
+    static final class SenderKeyEvictionEvent extends Event {
+        @Label("Message Keys")
+        int messageKeys;
+
+        @Label("States")
+        int states;
+    }
+
+    @Name("it.auties.whatsapp.Listener")
+    @Label("Listener")
+    @Description("The invocation of a listener")
+    @Category({"Whatsapp", "Listeners"})
+    static final class ListenerEvent extends Event {
+        @Label("Listener")
+        Class<?> listener;
+
+        @Label("Queue Time")
+        @Timespan
+        long queueTime;
+
+        @Label("Run Time")
+        @Timespan
+        long runTime;
+    }
+
+    @Name("it.auties.whatsapp.Flush")
+    @Label("Flush")
+    @Description("The serialization of a store or of its keys")
+    @Category({"Whatsapp", "Serialization"})
+    static final class FlushEvent extends Event {
+        @Label("Type")
+        String type;
+
+        @Label("Time")
+        @Timespan
+        long time;
+    }
+
+    @Name("it.auties.whatsapp.Shutdown")
+    @Label("Shutdown")
+    @Description("The graceful shutdown of a session")
+    @Category({"Whatsapp", "Socket"})
+    static final class ShutdownEvent extends Event {
+        @Label("Reason")
+        String reason;
+
+        @Label("Time")
+        @Timespan
+        long time;
+
+        @Label("Dropped Messages")
+        int dropped;
+    }
+}
@@ -0,0 +1,413 @@
+package it.auties.whatsapp.util;
+
+import it.auties.whatsapp.crypto.Sha256;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.FileTime;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+
+/**
+ * A content-addressed cache for decrypted medias stored on disk.
+ * Medias are stored by the sha256 of their plaintext, and can also be looked up by the sha256 of their encrypted body, which is shared by every forward of the same media.
+ * Files are written atomically, so a cache directory can be shared safely by multiple Whatsapp instances, even across processes on the same host.
+ * When the total size of the cache, including the files that alias a media by its encrypted sha256 or uri, exceeds its limit, the least recently used files are evicted.
+ */
+public final class MediaCache {
+    private static final Map<Path, MediaCache> INSTANCES = new ConcurrentHashMap<>();
+    private static final String SHA_256 = "SHA-256";
+    private static final String ENCRYPTED_ALIAS_PREFIX = "enc-";
+    private static final String URI_ALIAS_PREFIX = "uri-";
+    private static final String TEMP_SUFFIX = ".tmp";
+    private static final int SHA_256_HEX_LENGTH = 64;
+
+    private final Path directory;
+    private volatile long maxSize;
+    private final AtomicLong size;
+
+    private MediaCache(Path directory, long maxSize) {
+        this.directory = directory;
+        this.maxSize = maxSize;
+        this.size = new AtomicLong(computeSize());
+    }
+
+    /**
+     * Returns the cache stored in a directory
+     * Caches are shared: calling this method multiple times with the same directory returns the same instance, whose maximum size is updated to the latest one
+     *
+     * @param directory the non-null directory where medias should be stored
+     * @param maxSize   the maximum size, in bytes, of the cache
+     * @return a non-null cache
+     */
+    public static MediaCache of(Path directory, long maxSize) {
+        Validate.isTrue(maxSize > 0, "Invalid max size: %s", maxSize);
+        try {
+            var normalized = Files.createDirectories(directory.toAbsolutePath().normalize());
+            var result = INSTANCES.computeIfAbsent(normalized, key -> new MediaCache(key, maxSize));
+            result.resize(maxSize);
+            return result;
+        } catch (IOException exception) {
+            throw new UncheckedIOException("Cannot create media cache", exception);
+        }
+    }
+
+    private void resize(long maxSize) {
+        if (this.maxSize == maxSize) {
+            return;
+        }
+
+        this.maxSize = maxSize;
+        if (size.get() > maxSize) {
+            evict(null);
+        }
+    }
+
+    /**
+     * Returns the directory of this cache
+     *
+     * @return a non-null path
+     */
+    public Path directory() {
+        return directory;
+    }
+
+    /**
+     * Returns the maximum size, in bytes, of this cache
+     *
+     * @return a long
+     */
+    public long maxSize() {
+        return maxSize;
+    }
+
+    /**
+     * Looks up a media by the sha256 of its plaintext or, if it's not available, of its encrypted body
+     *
+     * @param sha256          the sha256 of the plaintext, can be null
+     * @param encryptedSha256 the sha256 of the encrypted body, can be null
+     * @return a non-null optional
+     */
+    public Optional<Path> find(byte[] sha256, byte[] encryptedSha256) {
+        return Optional.ofNullable(sha256)
+                .flatMap(this::findByPlainHash)
+                .or(() -> Optional.ofNullable(encryptedSha256).flatMap(this::findByEncryptedHash));
+    }
+
+    /**
+     * Reads a media by the sha256 of its plaintext or, if it's not available, of its encrypted body
+     *
+     * @param sha256          the sha256 of the plaintext, can be null
+     * @param encryptedSha256 the sha256 of the encrypted body, can be null
+     * @return a non-null optional
+     */
+    public Optional<byte[]> read(byte[] sha256, byte[] encryptedSha256) {
+        return find(sha256, encryptedSha256).flatMap(path -> {
+            try {
+                return Optional.of(Files.readAllBytes(path));
+            } catch (IOException exception) {
+                // Evicted by another instance after it was found
+                return Optional.empty();
+            }
+        });
+    }
+
+    private Optional<Path> findByPlainHash(byte[] sha256) {
+        var path = directory.resolve(toHex(sha256));
+        if (!Files.isRegularFile(path)) {
+            return Optional.empty();
+        }
+
+        touch(path);
+        return Optional.of(path);
+    }
+
+    private Optional<Path> findByEncryptedHash(byte[] encryptedSha256) {
+        return findByAlias(ENCRYPTED_ALIAS_PREFIX + toHex(encryptedSha256));
+    }
+
+    /**
+     * Looks up a media that was downloaded from a uri, for example the thumbnail of a link preview
+     *
+     * @param uri the non-null uri
+     * @return a non-null optional
+     */
+    public Optional<byte[]> read(URI uri) {
+        return findByAlias(URI_ALIAS_PREFIX + toHex(Sha256.calculate(uri.toString()))).flatMap(path -> {
+            try {
+                return Optional.of(Files.readAllBytes(path));
+            } catch (IOException exception) {
+                return Optional.empty();
+            }
+        });
+    }
+
+    private Optional<Path> findByAlias(String aliasName) {
+        try {
+            var alias = directory.resolve(aliasName);
+            if (!Files.isRegularFile(alias)) {
+                return Optional.empty();
+            }
+
+            var target = Files.readString(alias, StandardCharsets.US_ASCII);
+            var path = directory.resolve(target);
+            if (target.length() != SHA_256_HEX_LENGTH || !Files.isRegularFile(path)) {
+                Files.deleteIfExists(alias);
+                return Optional.empty();
+            }
+
+            touch(alias);
+            touch(path);
+            return Optional.of(path);
+        } catch (IOException exception) {
+            return Optional.empty();
+        }
+    }
+
+    /**
+     * Stores a media that was downloaded from a uri
+     *
+     * @param uri  the non-null uri
+     * @param data the non-null media
+     * @return the path of the cached media
+     */
+    public Path store(URI uri, byte[] data) {
+        return storeWithAlias(new ByteArrayInputStream(data), URI_ALIAS_PREFIX + toHex(Sha256.calculate(uri.toString())));
+    }
+
+    /**
+     * Stores a media in this cache
+     *
+     * @param data            the non-null plaintext of the media
+     * @param encryptedSha256 the sha256 of the encrypted body, can be null
+     * @return the path of the cached media
+     */
+    public Path store(byte[] data, byte[] encryptedSha256) {
+        return store(new ByteArrayInputStream(data), encryptedSha256);
+    }
+
+    /**
+     * Stores a media in this cache, reading it from a stream
+     * The data is first written to a temporary file and then atomically moved in the cache, so partial medias are never visible
+     *
+     * @param data            the non-null stream of the plaintext of the media
+     * @param encryptedSha256 the sha256 of the encrypted body, can be null
+     * @return the path of the cached media
+     */
+    public Path store(InputStream data, byte[] encryptedSha256) {
+        return storeWithAlias(data, encryptedSha256 == null ? null : ENCRYPTED_ALIAS_PREFIX + toHex(encryptedSha256));
+    }
+
+    private Path storeWithAlias(InputStream data, String aliasName) {
+        Path temp = null;
+        try {
+            temp = Files.createTempFile(directory, null, TEMP_SUFFIX);
+            var digest = MessageDigest.getInstance(SHA_256);
+            try (var input = new DigestInputStream(data, digest)) {
+                Files.copy(input, temp, StandardCopyOption.REPLACE_EXISTING);
+            }
+
+            var name = toHex(digest.digest());
+            var path = directory.resolve(name);
+            var length = Files.size(temp);
+            if (Files.exists(path)) {
+                touch(path);
+            } else {
+                move(temp, path);
+                size.addAndGet(length);
+            }
+
+            if (aliasName != null) {
+                size.addAndGet(storeAlias(aliasName, name));
+            }
+
+            if (size.get() > maxSize) {
+                evict(path);
+            }
+
+            return path;
+        } catch (IOException exception) {
+            throw new UncheckedIOException("Cannot store media in cache", exception);
+        } catch (NoSuchAlgorithmException exception) {
+            throw new UnsupportedOperationException("Missing sha256 implementation", exception);
+        } finally {
+            deleteQuietly(temp);
+        }
+    }
+
+    // Returns how much the size of the cache grew: nothing if the alias was only updated
+    private long storeAlias(String aliasName, String name) throws IOException {
+        var alias = directory.resolve(aliasName);
+        var existing = Files.exists(alias);
+        var temp = Files.createTempFile(directory, null, TEMP_SUFFIX);
+        try {
+            Files.writeString(temp, name, StandardCharsets.US_ASCII);
+            var length = Files.size(temp);
+            move(temp, alias);
+            return existing ? 0 : length;
+        } finally {
+            deleteQuietly(temp);
+        }
+    }
+
+    private void move(Path source, Path target) throws IOException {
+        try {
+            Files.move(source, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException exception) {
+            Files.move(source, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    // Other instances sharing the directory may have added files since the last check, so the real size is computed again
+    // Aliases are touched together with their media, so they are usually evicted together: the ones left pointing to an evicted media are removed as well
+    private synchronized void evict(Path keep) {
+        var entries = listEntries();
+        var total = entries.stream()
+                .mapToLong(CacheEntry::size)
+                .sum();
+        if (total <= maxSize) {
+            size.set(total);
+            return;
+        }
+
+        entries.sort(Comparator.comparing(CacheEntry::lastAccess));
+        var iterator = entries.iterator();
+        var evictedMedias = false;
+        while (total > maxSize && iterator.hasNext()) {
+            var entry = iterator.next();
+            if (entry.path().equals(keep)) {
+                continue;
+            }
+
+            if (delete(entry)) {
+                total -= entry.size();
+                iterator.remove();
+                evictedMedias |= isMedia(entry.path());
+            }
+        }
+
+        if (evictedMedias) {
+            total -= removeDanglingAliases(entries);
+        }
+
+        size.set(total);
+    }
+
+    private long removeDanglingAliases(List<CacheEntry> entries) {
+        var removed = 0L;
+        for (var entry : entries) {
+            if (!isAlias(entry.path()) || !isDangling(entry.path())) {
+                continue;
+            }
+
+            if (delete(entry)) {
+                removed += entry.size();
+            }
+        }
+
+        return removed;
+    }
+
+    private boolean isDangling(Path alias) {
+        try {
+            var target = Files.readString(alias, StandardCharsets.US_ASCII);
+            return target.length() != SHA_256_HEX_LENGTH || !Files.isRegularFile(directory.resolve(target));
+        } catch (IOException exception) {
+            return false;
+        }
+    }
+
+    private boolean delete(CacheEntry entry) {
+        try {
+            return Files.deleteIfExists(entry.path());
+        } catch (IOException exception) {
+            return false;
+        }
+    }
+
+    private long computeSize() {
+        return listEntries().stream()
+                .mapToLong(CacheEntry::size)
+                .sum();
+    }
+
+    private List<CacheEntry> listEntries() {
+        try (var files = Files.list(directory)) {
+            return files.filter(path -> isMedia(path) || isAlias(path))
+                    .map(this::toEntry)
+                    .flatMap(Optional::stream)
+                    .collect(Collectors.toCollection(ArrayList::new));
+        } catch (IOException exception) {
+            return new ArrayList<>();
+        }
+    }
+
+    private boolean isMedia(Path path) {
+        var name = path.getFileName().toString();
+        return name.length() == SHA_256_HEX_LENGTH && !name.endsWith(TEMP_SUFFIX);
+    }
+
+    private boolean isAlias(Path path) {
+        var name = path.getFileName().toString();
+        return (name.startsWith(ENCRYPTED_ALIAS_PREFIX) && name.length() == ENCRYPTED_ALIAS_PREFIX.length() + SHA_256_HEX_LENGTH)
+                || (name.startsWith(URI_ALIAS_PREFIX) && name.length() == URI_ALIAS_PREFIX.length() + SHA_256_HEX_LENGTH);
+    }
+
+    private Optional<CacheEntry> toEntry(Path path) {
+        try {
+            return Optional.of(new CacheEntry(path, Files.size(path), Files.getLastModifiedTime(path)));
+        } catch (IOException exception) {
+            return Optional.empty();
+        }
+    }
+
+    private void touch(Path path) {
+        try {
+            Files.setLastModifiedTime(path, FileTime.fromMillis(Clock.nowMilliseconds()));
+        } catch (IOException ignored) {
+
+        }
+    }
+
+    /**
+     * Removes every media from this cache
+     */
+    public synchronized void clear() {
+        try (var files = Files.list(directory)) {
+            files.forEach(MediaCache::deleteQuietly);
+            size.set(0);
+        } catch (IOException exception) {
+            throw new UncheckedIOException("Cannot clear media cache", exception);
+        }
+    }
+
+    private static void deleteQuietly(Path path) {
+        if (path == null) {
+            return;
+        }
+
+        try {
+            Files.deleteIfExists(path);
+        } catch (IOException ignored) {
+
+        }
+    }
+
+    private static String toHex(byte[] hash) {
+        return HexFormat.of().formatHex(hash);
+    }
+
+    private record CacheEntry(Path path, long size, FileTime lastAccess) {
+
+    }
+}
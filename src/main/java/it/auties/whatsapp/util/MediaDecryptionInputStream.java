@@ -0,0 +1,230 @@
+package it.auties.whatsapp.util;
+
+import it.auties.whatsapp.exception.HmacValidationException;
+import it.auties.whatsapp.model.media.MediaKeys;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Objects;
+
+/**
+ * An input stream that decrypts an encrypted media while it's being read.
+ * The sha256 of the encrypted body and the hmac of the ciphertext are computed incrementally and verified when the end of the stream is reached.
+ * If no keys are provided, the data is returned as is and only the sha256 is checked.
+ */
+public final class MediaDecryptionInputStream extends InputStream {
+    private static final String AES_CBC = "AES/CBC/PKCS5Padding";
+    private static final String AES = "AES";
+    private static final String HMAC_SHA_256 = "HmacSHA256";
+    private static final String SHA_256 = "SHA-256";
+    private static final int MAC_LENGTH = 10;
+    private static final int AES_BLOCK_SIZE = 16;
+    private static final int BUFFER_SIZE = 8192;
+
+    private final InputStream source;
+    private final byte[] expectedSha256;
+    private final MessageDigest digest;
+    private final Mac mac;
+    private final Cipher cipher;
+    private final byte[] input;
+    private int inputLength;
+    private byte[] output;
+    private int outputPosition;
+    private int outputLimit;
+    private boolean finished;
+
+    public MediaDecryptionInputStream(InputStream source, byte[] expectedSha256, MediaKeys keys) {
+        try {
+            this.source = source;
+            this.expectedSha256 = expectedSha256;
+            this.digest = MessageDigest.getInstance(SHA_256);
+            if (keys != null) {
+                this.mac = Mac.getInstance(HMAC_SHA_256);
+                mac.init(new SecretKeySpec(keys.macKey(), HMAC_SHA_256));
+                mac.update(keys.iv());
+                this.cipher = Cipher.getInstance(AES_CBC);
+                cipher.init(Cipher.DECRYPT_MODE, new SecretKeySpec(keys.cipherKey(), AES), new IvParameterSpec(keys.iv()));
+            } else {
+                this.mac = null;
+                this.cipher = null;
+            }
+            this.input = new byte[BUFFER_SIZE + MAC_LENGTH];
+            this.output = new byte[BUFFER_SIZE + 32];
+        } catch (GeneralSecurityException exception) {
+            throw new IllegalArgumentException("Cannot initialize media decryption", exception);
+        }
+    }
+
+    /**
+     * Creates a stream that resumes the decryption of a media whose first bytes were already decrypted.
+     * CBC encryption is deterministic, so the already decrypted prefix is encrypted again to restore the state of the sha256 and hmac:
+     * the integrity of the whole media is still checked when the end of the stream is reached.
+     *
+     * @param source         the remaining part of the encrypted body, starting at prefixLength
+     * @param expectedSha256 the expected sha256 of the whole encrypted body, can be null
+     * @param keys           the keys of the media, can be null
+     * @param prefix         the already decrypted data
+     * @param prefixLength   the length of the already decrypted data, must be a multiple of the block size if the media is encrypted
+     * @return a non-null stream
+     * @throws IOException if the prefix cannot be read
+     */
+    public static MediaDecryptionInputStream resume(InputStream source, byte[] expectedSha256, MediaKeys keys, InputStream prefix, long prefixLength) throws IOException {
+        var result = new MediaDecryptionInputStream(source, expectedSha256, keys);
+        result.restore(keys, prefix, prefixLength);
+        return result;
+    }
+
+    private void restore(MediaKeys keys, InputStream prefix, long prefixLength) throws IOException {
+        if (prefixLength == 0) {
+            return;
+        }
+
+        if (cipher == null) {
+            var restored = 0L;
+            int read;
+            while (restored < prefixLength && (read = prefix.read(input, 0, (int) Math.min(input.length, prefixLength - restored))) != -1) {
+                digest.update(input, 0, read);
+                restored += read;
+            }
+
+            Validate.isTrue(restored == prefixLength, "Truncated prefix: expected %s bytes, got %s", prefixLength, restored);
+            return;
+        }
+
+        Validate.isTrue(prefixLength % AES_BLOCK_SIZE == 0, "Invalid prefix length: %s", prefixLength);
+        try {
+            var encryptor = Cipher.getInstance(AES_CBC);
+            encryptor.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(keys.cipherKey(), AES), new IvParameterSpec(keys.iv()));
+            var lastBlock = keys.iv();
+            var restored = 0L;
+            int read;
+            while (restored < prefixLength && (read = prefix.read(input, 0, (int) Math.min(input.length, prefixLength - restored))) != -1) {
+                ensureOutputCapacity(encryptor.getOutputSize(read));
+                var length = encryptor.update(input, 0, read, output, 0);
+                digest.update(output, 0, length);
+                mac.update(output, 0, length);
+                if (length >= AES_BLOCK_SIZE) {
+                    lastBlock = Arrays.copyOfRange(output, length - AES_BLOCK_SIZE, length);
+                }
+
+                restored += read;
+            }
+
+            Validate.isTrue(restored == prefixLength, "Truncated prefix: expected %s bytes, got %s", prefixLength, restored);
+            cipher.init(Cipher.DECRYPT_MODE, new SecretKeySpec(keys.cipherKey(), AES), new IvParameterSpec(lastBlock));
+        } catch (GeneralSecurityException exception) {
+            throw new IOException("Cannot restore media decryption", exception);
+        }
+    }
+
+    @Override
+    public int read() throws IOException {
+        var buffer = new byte[1];
+        var result = read(buffer, 0, 1);
+        return result == -1 ? -1 : Byte.toUnsignedInt(buffer[0]);
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) throws IOException {
+        Objects.checkFromIndexSize(offset, length, buffer.length);
+        if (length == 0) {
+            return 0;
+        }
+
+        while (outputPosition == outputLimit) {
+            if (finished) {
+                return -1;
+            }
+
+            fill();
+        }
+
+        var count = Math.min(length, outputLimit - outputPosition);
+        System.arraycopy(output, outputPosition, buffer, offset, count);
+        outputPosition += count;
+        return count;
+    }
+
+    private void fill() throws IOException {
+        var read = source.read(input, inputLength, input.length - inputLength);
+        if (read == -1) {
+            finish();
+            return;
+        }
+
+        digest.update(input, inputLength, read);
+        inputLength += read;
+        if (cipher == null) {
+            process(inputLength);
+            inputLength = 0;
+            return;
+        }
+
+        // The last bytes of the body are the mac, so they can only be processed once the next read confirms they aren't
+        var available = inputLength - MAC_LENGTH;
+        if (available <= 0) {
+            return;
+        }
+
+        process(available);
+        System.arraycopy(input, available, input, 0, MAC_LENGTH);
+        inputLength = MAC_LENGTH;
+    }
+
+    private void process(int length) throws IOException {
+        outputPosition = 0;
+        if (cipher == null) {
+            ensureOutputCapacity(length);
+            System.arraycopy(input, 0, output, 0, length);
+            outputLimit = length;
+            return;
+        }
+
+        try {
+            mac.update(input, 0, length);
+            ensureOutputCapacity(cipher.getOutputSize(length));
+            outputLimit = cipher.update(input, 0, length, output, 0);
+        } catch (GeneralSecurityException exception) {
+            throw new IOException("Cannot decrypt media", exception);
+        }
+    }
+
+    private void finish() throws IOException {
+        finished = true;
+        outputPosition = 0;
+        outputLimit = 0;
+        Validate.isTrue(expectedSha256 == null || Arrays.equals(digest.digest(), expectedSha256),
+                "Cannot decode media: Invalid sha256 signature", SecurityException.class);
+        if (cipher == null) {
+            return;
+        }
+
+        Validate.isTrue(inputLength == MAC_LENGTH, "media_decryption", HmacValidationException.class);
+        var expectedMac = Arrays.copyOf(mac.doFinal(), MAC_LENGTH);
+        Validate.isTrue(MessageDigest.isEqual(expectedMac, Arrays.copyOf(input, MAC_LENGTH)), "media_decryption", HmacValidationException.class);
+        try {
+            ensureOutputCapacity(cipher.getOutputSize(0));
+            outputLimit = cipher.doFinal(output, 0);
+        } catch (GeneralSecurityException exception) {
+            throw new IOException("Cannot decrypt media", exception);
+        }
+    }
+
+    private void ensureOutputCapacity(int length) {
+        if (output.length < length) {
+            output = new byte[length];
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        source.close();
+    }
+}
@@ -0,0 +1,201 @@
+package it.auties.whatsapp.util;
+
+import it.auties.whatsapp.model.media.MediaKeys;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Objects;
+
+/**
+ * An input stream that encrypts a media while it's being read.
+ * The sha256 of the plaintext, the hmac of the ciphertext and the sha256 of the encrypted body are computed in the same pass.
+ * The encrypted body is the ciphertext followed by the truncated hmac, as expected by Whatsapp's media hosts.
+ * If no keys are provided, the data is returned as is and only the sha256 of the plaintext is computed.
+ */
+public final class MediaEncryptionInputStream extends InputStream {
+    private static final String AES_CBC = "AES/CBC/PKCS5Padding";
+    private static final String AES = "AES";
+    private static final String HMAC_SHA_256 = "HmacSHA256";
+    private static final String SHA_256 = "SHA-256";
+    private static final int MAC_LENGTH = 10;
+    private static final int BUFFER_SIZE = 8192;
+
+    private final InputStream source;
+    private final MessageDigest plainDigest;
+    private final MessageDigest encryptedDigest;
+    private final Mac mac;
+    private final Cipher cipher;
+    private final byte[] input;
+    private byte[] output;
+    private int outputPosition;
+    private int outputLimit;
+    private long plainLength;
+    private long encryptedLength;
+    private byte[] fileSha256;
+    private byte[] fileEncSha256;
+    private boolean finished;
+
+    public MediaEncryptionInputStream(InputStream source, MediaKeys keys) {
+        try {
+            this.source = source;
+            this.plainDigest = MessageDigest.getInstance(SHA_256);
+            if (keys != null) {
+                this.encryptedDigest = MessageDigest.getInstance(SHA_256);
+                this.mac = Mac.getInstance(HMAC_SHA_256);
+                mac.init(new SecretKeySpec(keys.macKey(), HMAC_SHA_256));
+                mac.update(keys.iv());
+                this.cipher = Cipher.getInstance(AES_CBC);
+                cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(keys.cipherKey(), AES), new IvParameterSpec(keys.iv()));
+            } else {
+                this.encryptedDigest = null;
+                this.mac = null;
+                this.cipher = null;
+            }
+            this.input = new byte[BUFFER_SIZE];
+            this.output = new byte[BUFFER_SIZE + 32];
+        } catch (GeneralSecurityException exception) {
+            throw new IllegalArgumentException("Cannot initialize media encryption", exception);
+        }
+    }
+
+    @Override
+    public int read() throws IOException {
+        var buffer = new byte[1];
+        var result = read(buffer, 0, 1);
+        return result == -1 ? -1 : Byte.toUnsignedInt(buffer[0]);
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) throws IOException {
+        Objects.checkFromIndexSize(offset, length, buffer.length);
+        if (length == 0) {
+            return 0;
+        }
+
+        while (outputPosition == outputLimit) {
+            if (finished) {
+                return -1;
+            }
+
+            fill();
+        }
+
+        var count = Math.min(length, outputLimit - outputPosition);
+        System.arraycopy(output, outputPosition, buffer, offset, count);
+        outputPosition += count;
+        return count;
+    }
+
+    private void fill() throws IOException {
+        var read = source.read(input);
+        if (read == -1) {
+            finish();
+            return;
+        }
+
+        plainDigest.update(input, 0, read);
+        plainLength += read;
+        outputPosition = 0;
+        if (cipher == null) {
+            System.arraycopy(input, 0, output, 0, read);
+            outputLimit = read;
+            return;
+        }
+
+        try {
+            ensureOutputCapacity(cipher.getOutputSize(read));
+            outputLimit = cipher.update(input, 0, read, output, 0);
+            onEncrypted(outputLimit);
+        } catch (GeneralSecurityException exception) {
+            throw new IOException("Cannot encrypt media", exception);
+        }
+    }
+
+    private void finish() throws IOException {
+        finished = true;
+        outputPosition = 0;
+        outputLimit = 0;
+        this.fileSha256 = plainDigest.digest();
+        if (cipher == null) {
+            return;
+        }
+
+        try {
+            ensureOutputCapacity(cipher.getOutputSize(0) + MAC_LENGTH);
+            var length = cipher.doFinal(output, 0);
+            mac.update(output, 0, length);
+            var hmac = mac.doFinal();
+            System.arraycopy(hmac, 0, output, length, MAC_LENGTH);
+            outputLimit = length + MAC_LENGTH;
+            encryptedDigest.update(output, 0, outputLimit);
+            encryptedLength += outputLimit;
+            this.fileEncSha256 = encryptedDigest.digest();
+        } catch (GeneralSecurityException exception) {
+            throw new IOException("Cannot encrypt media", exception);
+        }
+    }
+
+    private void onEncrypted(int length) {
+        mac.update(output, 0, length);
+        encryptedDigest.update(output, 0, length);
+        encryptedLength += length;
+    }
+
+    private void ensureOutputCapacity(int length) {
+        if (output.length < length) {
+            output = Arrays.copyOf(output, length);
+        }
+    }
+
+    /**
+     * Returns the sha256 of the plaintext
+     * Can only be called after the stream was fully read
+     *
+     * @return a non-null array of bytes
+     */
+    public byte[] fileSha256() {
+        Validate.isTrue(finished, "The stream wasn't fully read", IllegalStateException.class);
+        return fileSha256;
+    }
+
+    /**
+     * Returns the sha256 of the encrypted body
+     * Can only be called after the stream was fully read
+     *
+     * @return a nullable array of bytes, null if the media isn't encrypted
+     */
+    public byte[] fileEncSha256() {
+        Validate.isTrue(finished, "The stream wasn't fully read", IllegalStateException.class);
+        return fileEncSha256;
+    }
+
+    /**
+     * Returns the length of the plaintext
+     *
+     * @return a long
+     */
+    public long plainLength() {
+        return plainLength;
+    }
+
+    /**
+     * Returns the length of the data returned by this stream
+     *
+     * @return a long
+     */
+    public long encryptedLength() {
+        return cipher == null ? plainLength : encryptedLength;
+    }
+
+    @Override
+    public void close() throws IOException {
+        source.close();
+    }
+}
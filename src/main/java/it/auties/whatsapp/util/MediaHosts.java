@@ -0,0 +1,339 @@
+package it.auties.whatsapp.util;
+
+import it.auties.whatsapp.exception.MediaHostException;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.net.URI;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+
+/**
+ * Keeps track of the media hosts advertised by Whatsapp and of how they are performing.
+ * Every transfer is sent to the host with the lowest expected latency, considering its recent errors and the transfers already in progress:
+ * if it fails because of a network error, a timeout or a server error, the same transfer is retried on the next host.
+ * Other failures, like client errors or medias that fail their integrity checks, are caused by the transfer itself: they aren't retried and don't count against the host.
+ * The number of concurrent transfers to the same host is bounded by the number of buckets advertised by Whatsapp, additional transfers are queued until a slot is available.
+ * Media hosts are the same for every session, so a single instance is shared.
+ */
+public final class MediaHosts {
+    private static final String DEFAULT_HOST = "mmg.whatsapp.net";
+    private static final int DEFAULT_MAX_CONCURRENCY = 4;
+    private static final double LATENCY_WEIGHT = 0.2;
+    private static final double ERROR_WEIGHT = 0.3;
+    private static final double ERROR_PENALTY = 4;
+    private static final long MIN_COOLDOWN = 1_000;
+    private static final long MAX_COOLDOWN = 60_000;
+    private static final MediaHosts INSTANCE = new MediaHosts(DEFAULT_MAX_CONCURRENCY);
+
+    private final Map<String, HostState> states;
+    private volatile int maxConcurrency;
+    private volatile List<String> hosts;
+
+    private MediaHosts(int maxConcurrency) {
+        this.maxConcurrency = maxConcurrency;
+        this.states = new ConcurrentHashMap<>();
+        this.hosts = List.of(DEFAULT_HOST);
+    }
+
+    /**
+     * Returns the shared instance
+     *
+     * @return a non-null instance
+     */
+    public static MediaHosts instance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Updates the hosts and the number of concurrent transfers per host advertised by Whatsapp
+     * If the list is empty, the default host is kept
+     *
+     * @param hosts      the non-null hosts
+     * @param maxBuckets the maximum number of concurrent transfers per host, zero or less to use the default
+     */
+    public void update(List<String> hosts, int maxBuckets) {
+        var valid = hosts.stream()
+                .filter(Objects::nonNull)
+                .filter(host -> !host.isBlank())
+                .distinct()
+                .toList();
+        if (!valid.isEmpty()) {
+            this.hosts = valid;
+        }
+
+        var concurrency = maxBuckets > 0 ? maxBuckets : DEFAULT_MAX_CONCURRENCY;
+        if (concurrency != maxConcurrency) {
+            this.maxConcurrency = concurrency;
+            states.values().forEach(state -> state.resize(concurrency));
+        }
+    }
+
+    /**
+     * Returns the known hosts, ordered from the best to the worst
+     *
+     * @return a non-null list
+     */
+    public List<String> hosts() {
+        return rank(hosts);
+    }
+
+    /**
+     * Returns the best known host
+     *
+     * @return a non-null host
+     */
+    public String bestHost() {
+        return hosts().getFirst();
+    }
+
+    /**
+     * Orders hosts from the best to the worst
+     * Hosts in their cooldown period, because of consecutive failures, are always ordered last
+     *
+     * @param hosts the non-null hosts
+     * @return a non-null list
+     */
+    public List<String> rank(Collection<String> hosts) {
+        // The states can change concurrently, so they are captured before sorting
+        var now = Clock.nowMilliseconds();
+        return hosts.stream()
+                .distinct()
+                .map(host -> new RankedHost(host, getState(host).isCoolingDown(now), getState(host).score()))
+                .sorted(Comparator.comparing(RankedHost::coolingDown).thenComparingDouble(RankedHost::score))
+                .map(RankedHost::host)
+                .toList();
+    }
+
+    /**
+     * Executes a transfer, trying the candidates from the best to the worst until one succeeds
+     * The transfer is considered successful if the future returned by the function completes normally
+     *
+     * @param candidates the non-null uris that can serve the transfer, one per host
+     * @param transfer   the non-null function that executes the transfer on a uri
+     * @param <T>        the type of the result
+     * @return a CompletableFuture
+     */
+    public <T> CompletableFuture<T> execute(Collection<URI> candidates, Function<URI, CompletableFuture<T>> transfer) {
+        return execute(candidates, transfer, null);
+    }
+
+    /**
+     * Executes a transfer whose body is streamed, trying the candidates from the best to the worst until one succeeds
+     * Only the request is retried on another host: once the body is returned, the slot of its host is held until the stream is closed
+     *
+     * @param candidates the non-null uris that can serve the transfer, one per host
+     * @param transfer   the non-null function that executes the transfer on a uri, returning an empty optional if the media isn't available
+     * @return a CompletableFuture
+     */
+    public CompletableFuture<Optional<InputStream>> executeStream(Collection<URI> candidates, Function<URI, CompletableFuture<Optional<InputStream>>> transfer) {
+        return execute(candidates, transfer, (result, release) -> {
+            if (result.isEmpty()) {
+                release.run();
+                return result;
+            }
+
+            return Optional.of(new ReleasingInputStream(result.get(), release));
+        });
+    }
+
+    private <T> CompletableFuture<T> execute(Collection<URI> candidates, Function<URI, CompletableFuture<T>> transfer, BiFunction<T, Runnable, T> holder) {
+        var byHost = new LinkedHashMap<String, URI>();
+        candidates.forEach(candidate -> byHost.putIfAbsent(candidate.getHost(), candidate));
+        Validate.isTrue(!byHost.isEmpty(), "No candidates for media transfer");
+        var ranked = rank(byHost.keySet())
+                .stream()
+                .map(byHost::get)
+                .toList();
+        return execute(ranked, 0, transfer, holder, null);
+    }
+
+    private <T> CompletableFuture<T> execute(List<URI> candidates, int index, Function<URI, CompletableFuture<T>> transfer, BiFunction<T, Runnable, T> holder, Throwable previous) {
+        if (index >= candidates.size()) {
+            return CompletableFuture.failedFuture(previous);
+        }
+
+        var candidate = candidates.get(index);
+        var state = getState(candidate.getHost());
+        return state.acquire()
+                .thenCompose(ignored -> run(state, candidate, transfer, holder))
+                .handle((result, error) -> {
+                    if (error == null) {
+                        return CompletableFuture.completedFuture(result);
+                    }
+
+                    var cause = unwrap(error);
+                    if (previous != null) {
+                        cause.addSuppressed(previous);
+                    }
+
+                    if (!isRetryable(cause)) {
+                        return CompletableFuture.<T>failedFuture(cause);
+                    }
+
+                    return execute(candidates, index + 1, transfer, holder, cause);
+                })
+                .thenCompose(Function.identity());
+    }
+
+    private <T> CompletableFuture<T> run(HostState state, URI candidate, Function<URI, CompletableFuture<T>> transfer, BiFunction<T, Runnable, T> holder) {
+        var start = System.nanoTime();
+        CompletableFuture<T> future;
+        try {
+            future = transfer.apply(candidate);
+        } catch (Throwable throwable) {
+            future = CompletableFuture.failedFuture(throwable);
+        }
+
+        return future.handle((result, error) -> {
+            if (error != null) {
+                state.release();
+                if (isRetryable(unwrap(error))) {
+                    state.onFailure();
+                }
+
+                throw error instanceof CompletionException completionException ? completionException : new CompletionException(error);
+            }
+
+            state.onSuccess(System.nanoTime() - start);
+            if (holder == null) {
+                state.release();
+                return result;
+            }
+
+            var released = new AtomicBoolean();
+            return holder.apply(result, () -> {
+                if (released.compareAndSet(false, true)) {
+                    state.release();
+                }
+            });
+        });
+    }
+
+    private static Throwable unwrap(Throwable error) {
+        var result = error;
+        while ((result instanceof CompletionException || result instanceof ExecutionException || result instanceof UncheckedIOException) && result.getCause() != null) {
+            result = result.getCause();
+        }
+
+        return result;
+    }
+
+    // Only failures of the host are worth retrying: a client error or a media that fails its integrity checks would fail in the same way on every host
+    private static boolean isRetryable(Throwable error) {
+        return error instanceof IOException
+                || error instanceof TimeoutException
+                || error instanceof MediaHostException;
+    }
+
+    private HostState getState(String host) {
+        return states.computeIfAbsent(host, ignored -> new HostState(maxConcurrency));
+    }
+
+    private record RankedHost(String host, boolean coolingDown, double score) {
+
+    }
+
+    private static final class ReleasingInputStream extends FilterInputStream {
+        private final Runnable release;
+
+        private ReleasingInputStream(InputStream delegate, Runnable release) {
+            super(delegate);
+            this.release = release;
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                super.close();
+            } finally {
+                release.run();
+            }
+        }
+    }
+
+    private static final class HostState {
+        private final Deque<CompletableFuture<Void>> waiters;
+        private int maxConcurrency;
+        private int active;
+        private double latency;
+        private double errorRate;
+        private int consecutiveFailures;
+        private long cooldownEnd;
+
+        private HostState(int maxConcurrency) {
+            this.maxConcurrency = maxConcurrency;
+            this.waiters = new ArrayDeque<>();
+        }
+
+        private synchronized CompletableFuture<Void> acquire() {
+            if (active < maxConcurrency) {
+                active++;
+                return CompletableFuture.completedFuture(null);
+            }
+
+            var waiter = new CompletableFuture<Void>();
+            waiters.add(waiter);
+            return waiter;
+        }
+
+        // If the limit was lowered, slots are released until the transfers in progress are within it
+        private void release() {
+            CompletableFuture<Void> next;
+            synchronized (this) {
+                next = active > maxConcurrency ? null : waiters.poll();
+                if (next == null) {
+                    active--;
+                }
+            }
+
+            // The slot is handed over to the next transfer without being released
+            if (next != null) {
+                next.complete(null);
+            }
+        }
+
+        // If the limit was raised, the queued transfers that fit in it are started immediately
+        private void resize(int maxConcurrency) {
+            var ready = new ArrayList<CompletableFuture<Void>>();
+            synchronized (this) {
+                this.maxConcurrency = maxConcurrency;
+                while (active < maxConcurrency && !waiters.isEmpty()) {
+                    active++;
+                    ready.add(waiters.poll());
+                }
+            }
+
+            ready.forEach(waiter -> waiter.complete(null));
+        }
+
+        private synchronized void onSuccess(long elapsed) {
+            latency = latency == 0 ? elapsed : latency + LATENCY_WEIGHT * (elapsed - latency);
+            errorRate -= ERROR_WEIGHT * errorRate;
+            consecutiveFailures = 0;
+            cooldownEnd = 0;
+        }
+
+        private synchronized void onFailure() {
+            errorRate += ERROR_WEIGHT * (1 - errorRate);
+            consecutiveFailures++;
+            var cooldown = Math.min(MIN_COOLDOWN << Math.min(consecutiveFailures - 1, 16), MAX_COOLDOWN);
+            cooldownEnd = Clock.nowMilliseconds() + cooldown;
+        }
+
+        private synchronized boolean isCoolingDown(long now) {
+            return now < cooldownEnd;
+        }
+
+        // Hosts that were never used have no latency, so they are tried first
+        private synchronized double score() {
+            var load = 1 + (double) (active + waiters.size()) / maxConcurrency;
+            return latency * (1 + ERROR_PENALTY * errorRate) * load;
+        }
+    }
+}
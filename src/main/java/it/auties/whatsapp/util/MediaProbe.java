@@ -0,0 +1,610 @@
+package it.auties.whatsapp.util;
+
+import it.auties.whatsapp.model.media.MediaDimensions;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Optional;
+import java.util.OptionalLong;
+
+/**
+ * A parser for the headers of the most common media containers.
+ * The dimensions and the duration of a media are read directly from its bytes, without decoding it or spawning external processes:
+ * MP4/MOV, OGG (Opus and Vorbis), MP3, JPEG, PNG and WebP are supported.
+ * Only the headers are kept in memory: the rest of the media is skipped, so large medias can be probed from a stream.
+ */
+public final class MediaProbe {
+    private static final int MAX_MOVIE_BOX_SIZE = 64 * 1024 * 1024;
+    private static final int MAX_MP3_RESYNC = 64 * 1024;
+    private static final int DETECTION_LENGTH = 12;
+    private static final byte[] PNG_SIGNATURE = {(byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1A, '\n'};
+    private static final List<String> ISO_MEDIA_BOXES = List.of("ftyp", "moov", "mdat", "wide", "free", "skip", "pnot");
+    private static final int OPUS_SAMPLE_RATE = 48000;
+    private static final int[][] MP3_BITRATES = {
+            {0, 32, 64, 96, 128, 160, 192, 224, 256, 288, 320, 352, 384, 416, 448},
+            {0, 32, 48, 56, 64, 80, 96, 112, 128, 160, 192, 224, 256, 320, 384},
+            {0, 32, 40, 48, 56, 64, 80, 96, 112, 128, 160, 192, 224, 256, 320},
+            {0, 32, 48, 56, 64, 80, 96, 112, 128, 144, 160, 176, 192, 224, 256},
+            {0, 8, 16, 24, 32, 40, 48, 56, 64, 80, 96, 112, 128, 144, 160}
+    };
+    private static final int[][] MP3_SAMPLE_RATES = {
+            {11025, 12000, 8000},
+            null,
+            {22050, 24000, 16000},
+            {44100, 48000, 32000}
+    };
+
+    private MediaProbe() {
+        throw new UnsupportedOperationException("This is a utility class and cannot be instantiated");
+    }
+
+    /**
+     * Probes a media
+     *
+     * @param media the non-null media
+     * @return a non-null optional, empty if the container isn't supported or the media is malformed
+     */
+    public static Optional<Result> probe(byte[] media) {
+        return probe(new ByteArrayInputStream(media));
+    }
+
+    /**
+     * Probes a media from a stream
+     * The stream is read only as far as needed, and it's not closed
+     *
+     * @param media the non-null stream
+     * @return a non-null optional, empty if the container isn't supported or the media is malformed
+     */
+    public static Optional<Result> probe(InputStream media) {
+        try {
+            var input = new DataInputStream(new BufferedInputStream(media));
+            input.mark(DETECTION_LENGTH);
+            var header = input.readNBytes(DETECTION_LENGTH);
+            input.reset();
+            return detect(header).flatMap(container -> {
+                try {
+                    return switch (container) {
+                        case MP4 -> probeIsoMedia(input);
+                        case OGG -> probeOgg(input);
+                        case MP3 -> probeMp3(input);
+                        case JPEG -> probeJpeg(input);
+                        case PNG -> probePng(input);
+                        case WEBP -> probeWebp(input);
+                    };
+                } catch (IOException exception) {
+                    throw new UncheckedIOException(exception);
+                }
+            });
+        } catch (IOException | RuntimeException exception) {
+            return Optional.empty();
+        }
+    }
+
+    private static Optional<Container> detect(byte[] header) {
+        if (header.length < DETECTION_LENGTH) {
+            return Optional.empty();
+        }
+
+        if (ISO_MEDIA_BOXES.contains(ascii(header, 4, 4))) {
+            return Optional.of(Container.MP4);
+        }
+
+        if (ascii(header, 0, 4).equals("OggS")) {
+            return Optional.of(Container.OGG);
+        }
+
+        if (ascii(header, 0, 4).equals("RIFF") && ascii(header, 8, 4).equals("WEBP")) {
+            return Optional.of(Container.WEBP);
+        }
+
+        if (Arrays.equals(header, 0, PNG_SIGNATURE.length, PNG_SIGNATURE, 0, PNG_SIGNATURE.length)) {
+            return Optional.of(Container.PNG);
+        }
+
+        if ((header[0] & 0xFF) == 0xFF && (header[1] & 0xFF) == 0xD8 && (header[2] & 0xFF) == 0xFF) {
+            return Optional.of(Container.JPEG);
+        }
+
+        if (ascii(header, 0, 3).equals("ID3") || isMp3Sync(header[0], header[1])) {
+            return Optional.of(Container.MP3);
+        }
+
+        return Optional.empty();
+    }
+
+    // MP4 and MOV are both based on the ISO base media file format: the metadata is in the moov box, which can be before or after the media data
+    private static Optional<Result> probeIsoMedia(DataInputStream input) throws IOException {
+        while (true) {
+            var header = input.readNBytes(8);
+            if (header.length < 8) {
+                return Optional.empty();
+            }
+
+            var size = Integer.toUnsignedLong(ByteBuffer.wrap(header).getInt());
+            var type = ascii(header, 4, 4);
+            var headerLength = 8;
+            if (size == 1) {
+                size = input.readLong();
+                headerLength = 16;
+            }
+
+            if (type.equals("moov")) {
+                var payload = size == 0 ? input.readNBytes(MAX_MOVIE_BOX_SIZE) : readBox(input, size - headerLength);
+                return probeMovie(ByteBuffer.wrap(payload));
+            }
+
+            if (size == 0 || size < headerLength) {
+                return Optional.empty();
+            }
+
+            input.skipNBytes(size - headerLength);
+        }
+    }
+
+    private static byte[] readBox(DataInputStream input, long length) throws IOException {
+        Validate.isTrue(length >= 0 && length <= MAX_MOVIE_BOX_SIZE, "Invalid box length: %s", length);
+        var result = new byte[(int) length];
+        input.readFully(result);
+        return result;
+    }
+
+    private static Optional<Result> probeMovie(ByteBuffer moov) {
+        var timescale = 0L;
+        var duration = 0L;
+        var fragmentDuration = 0L;
+        var width = 0;
+        var height = 0;
+        for (var box : readBoxes(moov)) {
+            switch (box.type()) {
+                case "mvhd" -> {
+                    var payload = box.payload();
+                    var version = payload.get() & 0xFF;
+                    skip(payload, 3);
+                    skip(payload, version == 1 ? 16 : 8);
+                    timescale = Integer.toUnsignedLong(payload.getInt());
+                    duration = version == 1 ? payload.getLong() : Integer.toUnsignedLong(payload.getInt());
+                }
+                case "mvex" -> fragmentDuration = readFragmentDuration(box.payload());
+                case "trak" -> {
+                    var track = readTrack(box.payload());
+                    if (width == 0 && track.video()) {
+                        width = track.width();
+                        height = track.height();
+                    }
+                }
+            }
+        }
+
+        // Fragmented medias don't have a duration in the movie header, but they may have one in the movie extends header
+        var millis = toMillis(duration > 0 ? duration : fragmentDuration, timescale);
+        return Optional.of(new Result(Container.MP4, width, height, Math.max(millis, 0)));
+    }
+
+    private static long readFragmentDuration(ByteBuffer mvex) {
+        for (var box : readBoxes(mvex)) {
+            if (box.type().equals("mehd")) {
+                var payload = box.payload();
+                var version = payload.get() & 0xFF;
+                skip(payload, 3);
+                return version == 1 ? payload.getLong() : Integer.toUnsignedLong(payload.getInt());
+            }
+        }
+
+        return 0;
+    }
+
+    private static TrackInfo readTrack(ByteBuffer trak) {
+        var width = 0;
+        var height = 0;
+        var video = false;
+        for (var box : readBoxes(trak)) {
+            switch (box.type()) {
+                case "tkhd" -> {
+                    var payload = box.payload();
+                    var version = payload.get() & 0xFF;
+                    skip(payload, 3);
+                    skip(payload, version == 1 ? 32 : 20);
+                    skip(payload, 52);
+                    width = payload.getInt() >>> 16;
+                    height = payload.getInt() >>> 16;
+                }
+                case "mdia" -> video = isVideoMedia(box.payload());
+            }
+        }
+
+        return new TrackInfo(video, width, height);
+    }
+
+    private static boolean isVideoMedia(ByteBuffer mdia) {
+        for (var box : readBoxes(mdia)) {
+            if (box.type().equals("hdlr")) {
+                var payload = box.payload();
+                skip(payload, 8);
+                return readType(payload).equals("vide");
+            }
+        }
+
+        return false;
+    }
+
+    private static List<Box> readBoxes(ByteBuffer buffer) {
+        var results = new ArrayList<Box>();
+        while (buffer.remaining() >= 8) {
+            var start = buffer.position();
+            var size = Integer.toUnsignedLong(buffer.getInt());
+            var type = readType(buffer);
+            var headerLength = 8;
+            if (size == 1) {
+                size = buffer.getLong();
+                headerLength = 16;
+            } else if (size == 0) {
+                size = buffer.limit() - start;
+            }
+
+            if (size < headerLength || start + size > buffer.limit()) {
+                break;
+            }
+
+            results.add(new Box(type, buffer.slice(start + headerLength, (int) (size - headerLength))));
+            buffer.position((int) (start + size));
+        }
+
+        return results;
+    }
+
+    // The granule position of the last page is the number of samples in the stream
+    private static Optional<Result> probeOgg(DataInputStream input) throws IOException {
+        var serial = -1;
+        var sampleRate = 0L;
+        var preSkip = 0L;
+        var lastGranule = -1L;
+        while (true) {
+            var header = input.readNBytes(27);
+            if (header.length < 27 || !ascii(header, 0, 4).equals("OggS")) {
+                break;
+            }
+
+            var page = ByteBuffer.wrap(header).order(ByteOrder.LITTLE_ENDIAN);
+            var granule = page.getLong(6);
+            var pageSerial = page.getInt(14);
+            var segments = input.readNBytes(header[26] & 0xFF);
+            var bodyLength = 0;
+            for (var segment : segments) {
+                bodyLength += segment & 0xFF;
+            }
+
+            if (serial == -1) {
+                serial = pageSerial;
+                var body = input.readNBytes(bodyLength);
+                var identification = ByteBuffer.wrap(body).order(ByteOrder.LITTLE_ENDIAN);
+                if (body.length >= 19 && ascii(body, 0, 8).equals("OpusHead")) {
+                    sampleRate = OPUS_SAMPLE_RATE;
+                    preSkip = Short.toUnsignedLong(identification.getShort(10));
+                } else if (body.length >= 16 && body[0] == 1 && ascii(body, 1, 6).equals("vorbis")) {
+                    sampleRate = Integer.toUnsignedLong(identification.getInt(12));
+                } else {
+                    return Optional.empty();
+                }
+
+                continue;
+            }
+
+            if (pageSerial == serial && granule != -1) {
+                lastGranule = granule;
+            }
+
+            input.skipNBytes(bodyLength);
+        }
+
+        if (sampleRate == 0) {
+            return Optional.empty();
+        }
+
+        var duration = lastGranule == -1 ? 0 : toMillis(Math.max(lastGranule - preSkip, 0), sampleRate);
+        return Optional.of(new Result(Container.OGG, 0, 0, duration));
+    }
+
+    // The duration is read from the Xing or VBRI header if available, otherwise the frames are counted: only their headers are read
+    private static Optional<Result> probeMp3(DataInputStream input) throws IOException {
+        skipId3(input);
+        var samples = 0L;
+        var sampleRate = 0;
+        var first = true;
+        var header = new byte[4];
+        var resynced = 0;
+        var read = input.readNBytes(header, 0, 4);
+        while (read == 4) {
+            var frame = Mp3Frame.of(header);
+            if (frame == null) {
+                if (++resynced > MAX_MP3_RESYNC) {
+                    break;
+                }
+
+                System.arraycopy(header, 1, header, 0, 3);
+                var next = input.read();
+                if (next == -1) {
+                    break;
+                }
+
+                header[3] = (byte) next;
+                continue;
+            }
+
+            resynced = 0;
+            sampleRate = frame.sampleRate();
+            if (first) {
+                first = false;
+                var body = input.readNBytes(frame.length() - 4);
+                var frames = readVbrFrames(frame, body);
+                if (frames.isPresent()) {
+                    samples = frames.getAsLong() * frame.samples();
+                    break;
+                }
+            } else if (!skipFully(input, frame.length() - 4)) {
+                // Truncated last frame
+                samples += frame.samples();
+                break;
+            }
+
+            samples += frame.samples();
+            read = input.readNBytes(header, 0, 4);
+        }
+
+        if (sampleRate == 0) {
+            return Optional.empty();
+        }
+
+        return Optional.of(new Result(Container.MP3, 0, 0, toMillis(samples, sampleRate)));
+    }
+
+    private static boolean skipFully(InputStream input, long length) throws IOException {
+        try {
+            input.skipNBytes(length);
+            return true;
+        } catch (EOFException exception) {
+            return false;
+        }
+    }
+
+    private static void skipId3(DataInputStream input) throws IOException {
+        input.mark(10);
+        var header = input.readNBytes(10);
+        if (header.length < 10 || !ascii(header, 0, 3).equals("ID3")) {
+            input.reset();
+            return;
+        }
+
+        var size = (header[6] & 0x7F) << 21 | (header[7] & 0x7F) << 14 | (header[8] & 0x7F) << 7 | (header[9] & 0x7F);
+        var footer = (header[5] & 0x10) != 0 ? 10 : 0;
+        input.skipNBytes(size + footer);
+    }
+
+    private static OptionalLong readVbrFrames(Mp3Frame frame, byte[] body) {
+        var buffer = ByteBuffer.wrap(body);
+        var xingOffset = frame.sideInfoLength();
+        if (body.length >= xingOffset + 12) {
+            var tag = ascii(body, xingOffset, 4);
+            if (tag.equals("Xing") || tag.equals("Info")) {
+                var flags = buffer.getInt(xingOffset + 4);
+                if ((flags & 1) != 0) {
+                    return OptionalLong.of(Integer.toUnsignedLong(buffer.getInt(xingOffset + 8)));
+                }
+            }
+        }
+
+        // The VBRI header is always 32 bytes after the frame header
+        var vbriOffset = 32;
+        if (body.length >= vbriOffset + 18 && ascii(body, vbriOffset, 4).equals("VBRI")) {
+            return OptionalLong.of(Integer.toUnsignedLong(buffer.getInt(vbriOffset + 14)));
+        }
+
+        return OptionalLong.empty();
+    }
+
+    private static boolean isMp3Sync(byte first, byte second) {
+        return (first & 0xFF) == 0xFF && (second & 0xE0) == 0xE0;
+    }
+
+    private static Optional<Result> probeJpeg(DataInputStream input) throws IOException {
+        input.skipNBytes(2);
+        while (true) {
+            var marker = input.readUnsignedByte();
+            if (marker != 0xFF) {
+                continue;
+            }
+
+            while (marker == 0xFF) {
+                marker = input.readUnsignedByte();
+            }
+
+            if (marker == 0x01 || (marker >= 0xD0 && marker <= 0xD7)) {
+                continue;
+            }
+
+            if (marker == 0xD9 || marker == 0xDA) {
+                return Optional.empty();
+            }
+
+            var length = input.readUnsignedShort();
+            if (isStartOfFrame(marker)) {
+                input.skipNBytes(1);
+                var height = input.readUnsignedShort();
+                var width = input.readUnsignedShort();
+                return Optional.of(new Result(Container.JPEG, width, height, 0));
+            }
+
+            input.skipNBytes(length - 2);
+        }
+    }
+
+    private static boolean isStartOfFrame(int marker) {
+        return marker >= 0xC0 && marker <= 0xCF && marker != 0xC4 && marker != 0xC8 && marker != 0xCC;
+    }
+
+    private static Optional<Result> probePng(DataInputStream input) throws IOException {
+        input.skipNBytes(PNG_SIGNATURE.length + 4);
+        var chunk = readType(input);
+        if (!chunk.equals("IHDR")) {
+            return Optional.empty();
+        }
+
+        var width = input.readInt();
+        var height = input.readInt();
+        return Optional.of(new Result(Container.PNG, width, height, 0));
+    }
+
+    private static Optional<Result> probeWebp(DataInputStream input) throws IOException {
+        input.skipNBytes(12);
+        var chunk = readType(input);
+        input.skipNBytes(4);
+        return switch (chunk) {
+            case "VP8 " -> {
+                input.skipNBytes(6);
+                var width = Short.toUnsignedInt(Short.reverseBytes(input.readShort())) & 0x3FFF;
+                var height = Short.toUnsignedInt(Short.reverseBytes(input.readShort())) & 0x3FFF;
+                yield Optional.of(new Result(Container.WEBP, width, height, 0));
+            }
+            case "VP8L" -> {
+                input.skipNBytes(1);
+                var bits = Integer.reverseBytes(input.readInt());
+                var width = (bits & 0x3FFF) + 1;
+                var height = (bits >>> 14 & 0x3FFF) + 1;
+                yield Optional.of(new Result(Container.WEBP, width, height, 0));
+            }
+            case "VP8X" -> {
+                input.skipNBytes(4);
+                var width = readUnsignedInt24(input) + 1;
+                var height = readUnsignedInt24(input) + 1;
+                yield Optional.of(new Result(Container.WEBP, width, height, 0));
+            }
+            default -> Optional.empty();
+        };
+    }
+
+    private static int readUnsignedInt24(DataInputStream input) throws IOException {
+        return input.readUnsignedByte() | input.readUnsignedByte() << 8 | input.readUnsignedByte() << 16;
+    }
+
+    private static String readType(DataInputStream input) throws IOException {
+        var result = new byte[4];
+        input.readFully(result);
+        return new String(result, StandardCharsets.US_ASCII);
+    }
+
+    private static String readType(ByteBuffer buffer) {
+        var result = new byte[4];
+        buffer.get(result);
+        return new String(result, StandardCharsets.US_ASCII);
+    }
+
+    private static void skip(ByteBuffer buffer, int length) {
+        buffer.position(buffer.position() + length);
+    }
+
+    private static String ascii(byte[] data, int offset, int length) {
+        if (offset + length > data.length) {
+            return "";
+        }
+
+        return new String(data, offset, length, StandardCharsets.US_ASCII);
+    }
+
+    private static long toMillis(long duration, long timescale) {
+        if (timescale <= 0 || duration < 0) {
+            return -1;
+        }
+
+        return duration * 1000 / timescale;
+    }
+
+    /**
+     * The containers that can be probed
+     */
+    public enum Container {
+        MP4,
+        OGG,
+        MP3,
+        JPEG,
+        PNG,
+        WEBP
+    }
+
+    /**
+     * The result of a probe
+     *
+     * @param container      the container of the media
+     * @param width          the width of the media, or zero if it doesn't have a video track
+     * @param height         the height of the media, or zero if it doesn't have a video track
+     * @param durationMillis the duration of the media in milliseconds, or zero if it's not a video or audio
+     */
+    public record Result(Container container, int width, int height, long durationMillis) {
+        /**
+         * Returns the dimensions of the media
+         *
+         * @return a non-null optional
+         */
+        public Optional<MediaDimensions> dimensions() {
+            return width > 0 && height > 0 ? Optional.of(new MediaDimensions(width, height)) : Optional.empty();
+        }
+
+        /**
+         * Returns the duration of the media in seconds, rounding medias shorter than a second up to one second
+         *
+         * @return a non-null optional
+         */
+        public OptionalLong durationSeconds() {
+            return durationMillis > 0 ? OptionalLong.of(Math.max(durationMillis / 1000, 1)) : OptionalLong.empty();
+        }
+    }
+
+    private record Box(String type, ByteBuffer payload) {
+
+    }
+
+    private record TrackInfo(boolean video, int width, int height) {
+
+    }
+
+    private record Mp3Frame(int sampleRate, int samples, int length, int sideInfoLength) {
+        private static Mp3Frame of(byte[] header) {
+            if (!isMp3Sync(header[0], header[1])) {
+                return null;
+            }
+
+            var version = (header[1] >> 3) & 3;
+            var layer = (header[1] >> 1) & 3;
+            var bitrateIndex = (header[2] >> 4) & 0xF;
+            var sampleRateIndex = (header[2] >> 2) & 3;
+            if (version == 1 || layer == 0 || bitrateIndex == 0 || bitrateIndex == 15 || sampleRateIndex == 3) {
+                return null;
+            }
+
+            var mpeg1 = version == 3;
+            var padding = (header[2] >> 1) & 1;
+            var mono = ((header[3] >> 6) & 3) == 3;
+            var sampleRate = MP3_SAMPLE_RATES[version][sampleRateIndex];
+            var bitrate = MP3_BITRATES[getBitrateTable(mpeg1, layer)][bitrateIndex] * 1000;
+            var samples = switch (layer) {
+                case 3 -> 384;
+                case 2 -> 1152;
+                default -> mpeg1 ? 1152 : 576;
+            };
+            var length = layer == 3 ? (12 * bitrate / sampleRate + padding) * 4 : samples / 8 * bitrate / sampleRate + padding;
+            var sideInfoLength = mpeg1 ? (mono ? 17 : 32) : (mono ? 9 : 17);
+            return length > 4 ? new Mp3Frame(sampleRate, samples, length, sideInfoLength) : null;
+        }
+
+        private static int getBitrateTable(boolean mpeg1, int layer) {
+            if (mpeg1) {
+                return 3 - layer;
+            }
+
+            return layer == 3 ? 3 : 4;
+        }
+    }
+}
@@ -0,0 +1,200 @@
+package it.auties.whatsapp.util;
+
+import it.auties.whatsapp.model.media.AttachmentType;
+import it.auties.whatsapp.model.media.MediaFile;
+
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HexFormat;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * A registry of the medias that were already uploaded by a session.
+ * Uploads are identified by the sha256 of their plaintext and by their attachment type: sending the same media again, even to a different chat, reuses the blob that is already on Whatsapp's servers instead of encrypting and uploading it again.
+ * Concurrent uploads of the same media are coalesced, and uploads older than the validity window are discarded.
+ * As a media could be deleted from the servers before the end of the window, an upload that wasn't used for some time is checked again before being reused: if it's no longer available, the media is uploaded again.
+ */
+public final class MediaUploadRegistry {
+    private static final Duration DEFAULT_VALIDITY = Duration.ofDays(1);
+    private static final Duration REVALIDATION_INTERVAL = Duration.ofHours(1);
+    private static final int DEFAULT_MAX_ENTRIES = 1024;
+
+    private final long validity;
+    private final int maxEntries;
+    private final Map<UploadKey, UploadEntry> uploads;
+
+    private MediaUploadRegistry(Duration validity, int maxEntries) {
+        this.validity = validity.toMillis();
+        this.maxEntries = maxEntries;
+        this.uploads = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * Creates a registry that keeps uploads for one day
+     *
+     * @return a non-null registry
+     */
+    public static MediaUploadRegistry of() {
+        return of(DEFAULT_VALIDITY);
+    }
+
+    /**
+     * Creates a registry that keeps uploads for the provided window
+     *
+     * @param validity the non-null validity window, zero to disable the reuse of uploads
+     * @return a non-null registry
+     */
+    public static MediaUploadRegistry of(Duration validity) {
+        return of(validity, DEFAULT_MAX_ENTRIES);
+    }
+
+    /**
+     * Creates a registry that keeps uploads for the provided window
+     *
+     * @param validity   the non-null validity window, zero to disable the reuse of uploads
+     * @param maxEntries the maximum number of uploads to remember
+     * @return a non-null registry
+     */
+    public static MediaUploadRegistry of(Duration validity, int maxEntries) {
+        Objects.requireNonNull(validity, "Invalid validity");
+        Validate.isTrue(!validity.isNegative(), "Invalid validity: %s", validity);
+        Validate.isTrue(maxEntries > 0, "Invalid max entries: %s", maxEntries);
+        return new MediaUploadRegistry(validity, maxEntries);
+    }
+
+    /**
+     * Returns an upload of a media, reusing a previous one if it's still valid
+     *
+     * @param sha256    the non-null sha256 of the plaintext of the media
+     * @param type      the non-null attachment type of the media
+     * @param uploader  the non-null function that uploads the media if no valid upload is available
+     * @param validator the non-null function that checks whether a previous upload is still available on Whatsapp's servers
+     * @return a CompletableFuture
+     */
+    public CompletableFuture<MediaFile> upload(byte[] sha256, AttachmentType type, Supplier<CompletableFuture<MediaFile>> uploader, Function<MediaFile, CompletableFuture<Boolean>> validator) {
+        if (validity == 0) {
+            return uploader.get();
+        }
+
+        var key = new UploadKey(HexFormat.of().formatHex(sha256), type);
+        var now = Clock.nowMilliseconds();
+        var existing = uploads.get(key);
+        if (existing != null && !existing.isExpired(now, validity)) {
+            return reuse(key, existing, now, uploader, validator);
+        }
+
+        return register(key, existing, now, uploader);
+    }
+
+    private CompletableFuture<MediaFile> reuse(UploadKey key, UploadEntry entry, long now, Supplier<CompletableFuture<MediaFile>> uploader, Function<MediaFile, CompletableFuture<Boolean>> validator) {
+        // The upload is still in progress or was checked recently
+        if (!entry.upload().isDone() || now - entry.verifiedAt() < REVALIDATION_INTERVAL.toMillis()) {
+            return entry.upload();
+        }
+
+        var upload = entry.upload().join();
+        return validator.apply(upload)
+                .exceptionally(ignored -> false)
+                .thenComposeAsync(valid -> {
+                    if (!valid) {
+                        return register(key, entry, now, uploader);
+                    }
+
+                    uploads.replace(key, entry, entry.verified(Clock.nowMilliseconds()));
+                    return CompletableFuture.completedFuture(upload);
+                });
+    }
+
+    private CompletableFuture<MediaFile> register(UploadKey key, UploadEntry previous, long now, Supplier<CompletableFuture<MediaFile>> uploader) {
+        var future = new CompletableFuture<MediaFile>();
+        var entry = new UploadEntry(future, now, now);
+        var registered = previous == null ? uploads.putIfAbsent(key, entry) == null : uploads.replace(key, previous, entry);
+        if (!registered) {
+            // Another thread is already uploading the same media
+            var current = uploads.get(key);
+            return current != null ? current.upload() : uploader.get();
+        }
+
+        evict(now);
+        uploader.get().whenComplete((result, error) -> {
+            if (error != null) {
+                uploads.remove(key, entry);
+                future.completeExceptionally(error);
+            } else {
+                future.complete(result);
+            }
+        });
+        return future;
+    }
+
+    private void evict(long now) {
+        if (uploads.size() <= maxEntries) {
+            return;
+        }
+
+        uploads.entrySet().removeIf(entry -> entry.getValue().isExpired(now, validity));
+        var excess = uploads.size() - maxEntries;
+        if (excess <= 0) {
+            return;
+        }
+
+        uploads.entrySet()
+                .stream()
+                .sorted(Comparator.comparingLong(entry -> entry.getValue().uploadedAt()))
+                .limit(excess)
+                .toList()
+                .forEach(entry -> uploads.remove(entry.getKey(), entry.getValue()));
+    }
+
+    /**
+     * Forgets the upload of a media, so that it's uploaded again the next time it's sent
+     *
+     * @param sha256 the non-null sha256 of the plaintext of the media
+     * @param type   the non-null attachment type of the media
+     */
+    public void invalidate(byte[] sha256, AttachmentType type) {
+        uploads.remove(new UploadKey(HexFormat.of().formatHex(sha256), type));
+    }
+
+    /**
+     * Forgets the upload whose file has the provided sha256, as returned by Whatsapp's servers
+     * This is useful when the plaintext of the media is no longer available, as the sha256 of the file could be computed on a compressed payload
+     *
+     * @param fileSha256 the non-null sha256 of the uploaded file
+     */
+    public void invalidateUpload(byte[] fileSha256) {
+        uploads.entrySet().removeIf(entry -> {
+            var upload = entry.getValue().upload();
+            return upload.isDone()
+                    && !upload.isCompletedExceptionally()
+                    && Arrays.equals(upload.join().fileSha256(), fileSha256);
+        });
+    }
+
+    /**
+     * Forgets all the uploads
+     */
+    public void clear() {
+        uploads.clear();
+    }
+
+    private record UploadKey(String sha256, AttachmentType type) {
+
+    }
+
+    private record UploadEntry(CompletableFuture<MediaFile> upload, long uploadedAt, long verifiedAt) {
+        private boolean isExpired(long now, long validity) {
+            return now - uploadedAt >= validity;
+        }
+
+        private UploadEntry verified(long now) {
+            return new UploadEntry(upload, uploadedAt, now);
+        }
+    }
+}
@@ -4,6 +4,7 @@ import it.auties.whatsapp.crypto.AesCbc;
 import it.auties.whatsapp.crypto.Hmac;
 import it.auties.whatsapp.crypto.Sha256;
 import it.auties.whatsapp.exception.HmacValidationException;
+import it.auties.whatsapp.exception.MediaHostException;
 import it.auties.whatsapp.model.media.*;
 import it.auties.whatsapp.util.Specification.Whatsapp;
 import org.apache.pdfbox.pdmodel.PDDocument;
@@ -19,6 +20,8 @@ import java.awt.image.BufferedImage;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.UncheckedIOException;
 import java.net.HttpURLConnection;
 import java.net.URI;
@@ -31,46 +34,86 @@ import java.net.http.HttpRequest;
 import java.net.http.HttpResponse;
 import java.net.http.HttpResponse.BodyHandlers;
 import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.util.List;
 import java.util.*;
 import java.util.concurrent.CompletableFuture;
 import java.util.stream.IntStream;
+import java.util.zip.DeflaterInputStream;
 
-import static java.net.http.HttpRequest.BodyPublishers.ofByteArray;
 import static java.net.http.HttpResponse.BodyHandlers.ofString;
 
 public final class Medias {
     private static final HttpClient CLIENT = HttpClient.newBuilder()
-            .version(Version.HTTP_1_1)
+            .version(Version.HTTP_2)
             .followRedirects(Redirect.ALWAYS)
             .build();
     private static final int PROFILE_PIC_SIZE = 640;
-    private static final String DEFAULT_HOST = "mmg.whatsapp.net";
     private static final int THUMBNAIL_SIZE = 32;
+    private static final int AES_BLOCK_SIZE = 16;
+    private static final int DOWNLOAD_BUFFER_SIZE = 8192;
+    private static final int HTTP_RANGE_NOT_SATISFIABLE = 416;
+    private static final int HTTP_SERVER_ERROR = 500;
+    private static final String PARTIAL_DOWNLOAD_SUFFIX = ".part";
     private static final String USER_AGENT = "Mozilla/5.0 (Linux; Android 13) AppleWebKit/537.36 (KHTML, like Gecko) Chrome/114.0.5735.57 Mobile Safari/537.36";
+    private static volatile Boolean ffprobeAvailable;
 
     public static byte[] getProfilePic(byte[] file) {
         try {
-            try (var inputStream = new ByteArrayInputStream(file)) {
-                var inputImage = ImageIO.read(inputStream);
-                var scaledImage = inputImage.getScaledInstance(PROFILE_PIC_SIZE, PROFILE_PIC_SIZE, Image.SCALE_SMOOTH);
-                var outputImage = new BufferedImage(PROFILE_PIC_SIZE, PROFILE_PIC_SIZE, BufferedImage.TYPE_INT_RGB);
-                var graphics2D = outputImage.createGraphics();
-                graphics2D.drawImage(scaledImage, 0, 0, null);
-                graphics2D.dispose();
-                try (var outputStream = new ByteArrayOutputStream()) {
-                    ImageIO.write(outputImage, "jpg", outputStream);
-                    return outputStream.toByteArray();
-                }
+            var inputImage = readImage(file, PROFILE_PIC_SIZE, PROFILE_PIC_SIZE);
+            if (inputImage == null) {
+                return file;
+            }
+
+            var outputImage = scaleImage(inputImage, PROFILE_PIC_SIZE, PROFILE_PIC_SIZE, BufferedImage.TYPE_INT_RGB);
+            try (var outputStream = new ByteArrayOutputStream()) {
+                ImageIO.write(outputImage, "jpg", outputStream);
+                return outputStream.toByteArray();
             }
         } catch (Throwable exception) {
             return file;
         }
     }
 
+    // Large images are decoded with subsampling, so only about twice the pixels needed for the target size are read
+    private static BufferedImage readImage(byte[] file, int targetWidth, int targetHeight) throws IOException {
+        try (var input = ImageIO.createImageInputStream(new ByteArrayInputStream(file))) {
+            var readers = ImageIO.getImageReaders(input);
+            if (!readers.hasNext()) {
+                return null;
+            }
+
+            var reader = readers.next();
+            try {
+                reader.setInput(input, true, true);
+                var subsampling = Math.max(1, Math.min(reader.getWidth(0) / (targetWidth * 2), reader.getHeight(0) / (targetHeight * 2)));
+                var parameters = reader.getDefaultReadParam();
+                parameters.setSourceSubsampling(subsampling, subsampling, 0, 0);
+                return reader.read(0, parameters);
+            } finally {
+                reader.dispose();
+            }
+        }
+    }
+
+    private static BufferedImage scaleImage(BufferedImage image, int width, int height, int type) {
+        var result = new BufferedImage(width, height, type);
+        var graphics = result.createGraphics();
+        graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+        graphics.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
+        graphics.drawImage(image, 0, 0, width, height, null);
+        graphics.dispose();
+        return result;
+    }
+
     public static CompletableFuture<byte[]> downloadAsync(String imageUrl) {
         return downloadAsync(URI.create(imageUrl));
     }
@@ -82,6 +125,18 @@ public final class Medias {
                 .join();
     }
 
+    public static Optional<byte[]> download(URI imageUri, MediaCache cache) {
+        if (cache == null || imageUri == null) {
+            return download(imageUri);
+        }
+
+        return cache.read(imageUri).or(() -> {
+            var result = download(imageUri);
+            result.ifPresent(data -> cache.store(imageUri, data));
+            return result;
+        });
+    }
+
     public static CompletableFuture<byte[]> downloadAsync(URI imageUri) {
         return downloadAsync(imageUri, true);
     }
@@ -112,50 +167,117 @@ public final class Medias {
     }
 
     public static CompletableFuture<MediaFile> upload(byte[] file, AttachmentType type, MediaConnection mediaConnection) {
-        var auth = URLEncoder.encode(mediaConnection.auth(), StandardCharsets.UTF_8);
-        var uploadData = type.inflatable() ? BytesHelper.compress(file) : file;
-        var mediaFile = prepareMediaFile(type, uploadData);
-        var path = type.path().orElseThrow(() -> new UnsupportedOperationException(type + " cannot be uploaded"));
-        var token = Base64.getUrlEncoder()
-                .withoutPadding()
-                .encodeToString(Objects.requireNonNullElse(mediaFile.fileEncSha256(), mediaFile.fileSha256()));
-        var uri = URI.create("https://%s/%s/%s?auth=%s&token=%s".formatted(DEFAULT_HOST, path, token, auth, token));
-        var request = HttpRequest.newBuilder()
-                .POST(ofByteArray(Objects.requireNonNullElse(mediaFile.encryptedFile(), file)))
-                .uri(uri)
-                .header("Content-Type", "application/octet-stream")
-                .header("Accept", "application/json")
-                .header("Origin", Whatsapp.WEB_ORIGIN)
-                .build();
-        return CLIENT.sendAsync(request, ofString()).thenApplyAsync(response -> {
-            Validate.isTrue(response.statusCode() == 200, "Invalid status code: %s", response.statusCode());
-            var upload = Json.readValue(response.body(), MediaUpload.class);
-            return new MediaFile(
-                    mediaFile.encryptedFile(),
-                    mediaFile.fileSha256(),
-                    mediaFile.fileEncSha256(),
-                    mediaFile.mediaKey(),
-                    mediaFile.fileLength(),
-                    upload.directPath(),
-                    upload.url(),
-                    upload.handle(),
-                    mediaFile.timestamp()
+        return upload(() -> new ByteArrayInputStream(file), type, mediaConnection, true);
+    }
+
+    public static CompletableFuture<MediaFile> upload(Path file, AttachmentType type, MediaConnection mediaConnection) {
+        return upload(() -> Files.newInputStream(file), type, mediaConnection, false);
+    }
+
+    public static CompletableFuture<MediaFile> upload(InputStream file, AttachmentType type, MediaConnection mediaConnection) {
+        // The stream can only be read once, but it needs to be encrypted twice: see upload(MediaSource, AttachmentType, MediaConnection, boolean)
+        var spooled = createTempFile(null);
+        try (file) {
+            Files.copy(file, spooled, StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException exception) {
+            deleteQuietly(spooled);
+            return CompletableFuture.failedFuture(new UncheckedIOException("Cannot read media", exception));
+        }
+
+        return upload(spooled, type, mediaConnection)
+                .whenComplete((result, error) -> deleteQuietly(spooled));
+    }
+
+    // The url of the upload contains the sha256 of the encrypted media, so the media has to be encrypted before it's sent
+    // If the media is already in memory, the ciphertext of that pass is kept and sent, as it's about as large as the media
+    // Otherwise both passes are streamed: as the keys don't change, the second pass produces the same bytes without keeping them in memory
+    private static CompletableFuture<MediaFile> upload(MediaSource source, AttachmentType type, MediaConnection mediaConnection, boolean buffered) {
+        try {
+            var auth = URLEncoder.encode(mediaConnection.auth(), StandardCharsets.UTF_8);
+            var path = type.path().orElseThrow(() -> new UnsupportedOperationException(type + " cannot be uploaded"));
+            var keys = type.keyName()
+                    .map(MediaKeys::random)
+                    .orElse(null);
+            var ciphertext = buffered ? new ByteArrayOutputStream() : null;
+            var mediaFile = prepareMediaFile(source, type, keys, Objects.requireNonNullElseGet(ciphertext, OutputStream::nullOutputStream));
+            var body = ciphertext != null ? HttpRequest.BodyPublishers.ofByteArray(ciphertext.toByteArray()) : null;
+            var token = Base64.getUrlEncoder()
+                    .withoutPadding()
+                    .encodeToString(Objects.requireNonNullElse(mediaFile.fileEncSha256(), mediaFile.fileSha256()));
+            var hosts = mediaConnection.hosts() == null || mediaConnection.hosts().isEmpty() ? MediaHosts.instance().hosts() : mediaConnection.hosts();
+            var candidates = hosts.stream()
+                    .map(host -> URI.create("https://%s/%s/%s?auth=%s&token=%s".formatted(host, path, token, auth, token)))
+                    .toList();
+            return MediaHosts.instance().execute(candidates, uri -> {
+                var request = HttpRequest.newBuilder()
+                        .POST(Objects.requireNonNullElseGet(body, () -> createUploadBody(source, type, keys, mediaFile.encryptedLength())))
+                        .uri(uri)
+                        .header("Content-Type", "application/octet-stream")
+                        .header("Accept", "application/json")
+                        .header("Origin", Whatsapp.WEB_ORIGIN)
+                        .build();
+                return CLIENT.sendAsync(request, ofString())
+                        .thenApply(Medias::checkServerError);
+            }).thenApplyAsync(response -> {
+                Validate.isTrue(response.statusCode() == 200, "Invalid status code: %s", response.statusCode());
+                var upload = Json.readValue(response.body(), MediaUpload.class);
+                return new MediaFile(
+                        null,
+                        mediaFile.fileSha256(),
+                        mediaFile.fileEncSha256(),
+                        keys == null ? null : keys.mediaKey(),
+                        mediaFile.fileLength(),
+                        upload.directPath(),
+                        upload.url(),
+                        upload.handle(),
+                        keys == null ? null : mediaFile.timestamp()
+                );
+            });
+        } catch (Throwable throwable) {
+            return CompletableFuture.failedFuture(throwable);
+        }
+    }
+
+    private static PreparedMediaFile prepareMediaFile(MediaSource source, AttachmentType type, MediaKeys keys, OutputStream ciphertext) throws IOException {
+        try (var encryptedStream = openUploadStream(source, type, keys)) {
+            encryptedStream.transferTo(ciphertext);
+            return new PreparedMediaFile(
+                    encryptedStream.fileSha256(),
+                    encryptedStream.fileEncSha256(),
+                    encryptedStream.plainLength(),
+                    encryptedStream.encryptedLength(),
+                    Clock.nowSeconds()
             );
-        });
+        }
     }
 
-    private static MediaFile prepareMediaFile(AttachmentType type, byte[] uploadData) {
-        var fileSha256 = Sha256.calculate(uploadData);
-        if (type.keyName().isEmpty()) {
-            return new MediaFile(null, fileSha256, null, null, uploadData.length, null, null, null, null);
+    private static HttpRequest.BodyPublisher createUploadBody(MediaSource source, AttachmentType type, MediaKeys keys, long length) {
+        if (length == 0) {
+            return HttpRequest.BodyPublishers.noBody();
         }
 
-        var keys = MediaKeys.random(type.keyName().orElseThrow());
-        var encryptedMedia = AesCbc.encrypt(keys.iv(), uploadData, keys.cipherKey());
-        var hmac = calculateMac(encryptedMedia, keys);
-        var encrypted = BytesHelper.concat(encryptedMedia, hmac);
-        var fileEncSha256 = Sha256.calculate(encrypted);
-        return new MediaFile(encrypted, fileSha256, fileEncSha256, keys.mediaKey(), uploadData.length, null, null, null, Clock.nowSeconds());
+        var publisher = HttpRequest.BodyPublishers.ofInputStream(() -> {
+            try {
+                return openUploadStream(source, type, keys);
+            } catch (IOException exception) {
+                throw new UncheckedIOException("Cannot read media", exception);
+            }
+        });
+        return HttpRequest.BodyPublishers.fromPublisher(publisher, length);
+    }
+
+    private static MediaEncryptionInputStream openUploadStream(MediaSource source, AttachmentType type, MediaKeys keys) throws IOException {
+        var input = source.open();
+        var uploadData = type.inflatable() ? new DeflaterInputStream(input) : input;
+        return new MediaEncryptionInputStream(uploadData, keys);
+    }
+
+    private static void deleteQuietly(Path path) {
+        try {
+            Files.deleteIfExists(path);
+        } catch (IOException ignored) {
+
+        }
     }
 
     private static byte[] calculateMac(byte[] encryptedMedia, MediaKeys keys) {
@@ -166,22 +288,333 @@ public final class Medias {
 
     public static CompletableFuture<Optional<byte[]>> download(MutableAttachmentProvider<?> provider) {
         try {
-            var url = provider.mediaUrl()
-                    .or(() -> provider.mediaDirectPath().map(Medias::createMediaUrl))
-                    .orElseThrow(() -> new NoSuchElementException("Missing url and path from media"));
+            return MediaHosts.instance().execute(getMediaUrls(provider), uri -> {
+                var request = HttpRequest.newBuilder()
+                        .uri(uri)
+                        .GET()
+                        .build();
+                return CLIENT.sendAsync(request, HttpResponse.BodyHandlers.ofByteArray())
+                        .thenApplyAsync(response -> handleResponse(provider, checkServerError(response)));
+            });
+        } catch (Throwable error) {
+            return CompletableFuture.failedFuture(new RuntimeException("Cannot download media", error));
+        }
+    }
+
+    public static CompletableFuture<Optional<byte[]>> download(MutableAttachmentProvider<?> provider, MediaCache cache) {
+        if (cache == null) {
+            return download(provider);
+        }
+
+        var cached = cache.read(provider.mediaSha256().orElse(null), provider.mediaEncryptedSha256().orElse(null));
+        if (cached.isPresent()) {
+            return CompletableFuture.completedFuture(cached);
+        }
+
+        return download(provider).thenApplyAsync(result -> {
+            result.ifPresent(data -> cache.store(data, provider.mediaEncryptedSha256().orElse(null)));
+            return result;
+        });
+    }
+
+    // Only the request is retried on another host if it fails: once the body is returned, the caller owns the stream and must close it to release its host
+    public static CompletableFuture<Optional<InputStream>> downloadStream(MutableAttachmentProvider<?> provider) {
+        try {
+            return MediaHosts.instance().executeStream(getMediaUrls(provider), uri -> {
+                var request = HttpRequest.newBuilder()
+                        .uri(uri)
+                        .GET()
+                        .build();
+                return CLIENT.sendAsync(request, BodyHandlers.ofInputStream())
+                        .thenApplyAsync(response -> handleStreamResponse(provider, checkServerError(response)));
+            });
+        } catch (Throwable error) {
+            return CompletableFuture.failedFuture(new RuntimeException("Cannot download media", error));
+        }
+    }
+
+    private static Optional<InputStream> handleStreamResponse(MutableAttachmentProvider<?> provider, HttpResponse<InputStream> response) {
+        if (response.statusCode() == HttpURLConnection.HTTP_NOT_FOUND || response.statusCode() == HttpURLConnection.HTTP_GONE) {
+            closeQuietly(response.body());
+            return Optional.empty();
+        }
+
+        var expectedSha256 = provider.mediaEncryptedSha256().orElse(null);
+        return Optional.of(new MediaDecryptionInputStream(response.body(), expectedSha256, getMediaKeys(provider)));
+    }
+
+    public static CompletableFuture<Boolean> download(MutableAttachmentProvider<?> provider, OutputStream output) {
+        return download(provider, Channels.newChannel(output));
+    }
+
+    public static CompletableFuture<Boolean> download(MutableAttachmentProvider<?> provider, WritableByteChannel channel, MediaCache cache) {
+        if (cache == null) {
+            return download(provider, channel);
+        }
+
+        var cached = findCachedMedia(provider, cache);
+        if (cached.isPresent()) {
+            return CompletableFuture.supplyAsync(() -> transferCachedMedia(cached.get(), channel));
+        }
+
+        // The media is streamed in the cache first, then read back from disk
+        return downloadStream(provider).thenApplyAsync(result -> {
+            if (result.isEmpty()) {
+                return false;
+            }
+
+            try (var input = result.get()) {
+                var path = cache.store(input, provider.mediaEncryptedSha256().orElse(null));
+                return transferCachedMedia(path, channel);
+            } catch (IOException exception) {
+                throw new UncheckedIOException("Cannot download media", exception);
+            }
+        });
+    }
+
+    public static CompletableFuture<Boolean> download(MutableAttachmentProvider<?> provider, Path target, MediaCache cache) {
+        if (cache == null) {
+            return download(provider, target);
+        }
+
+        var cached = findCachedMedia(provider, cache);
+        if (cached.isPresent()) {
+            return CompletableFuture.supplyAsync(() -> copyCachedMedia(cached.get(), target));
+        }
+
+        return download(provider, target).thenApplyAsync(result -> {
+            if (!result) {
+                return false;
+            }
+
+            try (var input = Files.newInputStream(target)) {
+                cache.store(input, provider.mediaEncryptedSha256().orElse(null));
+                return true;
+            } catch (IOException exception) {
+                throw new UncheckedIOException("Cannot cache media", exception);
+            }
+        });
+    }
+
+    private static Optional<Path> findCachedMedia(MutableAttachmentProvider<?> provider, MediaCache cache) {
+        return cache.find(provider.mediaSha256().orElse(null), provider.mediaEncryptedSha256().orElse(null));
+    }
+
+    private static boolean transferCachedMedia(Path cached, WritableByteChannel channel) {
+        try (var input = Files.newInputStream(cached)) {
+            transferTo(input, channel);
+            return true;
+        } catch (IOException exception) {
+            throw new UncheckedIOException("Cannot read cached media", exception);
+        }
+    }
+
+    private static boolean copyCachedMedia(Path cached, Path target) {
+        try {
+            Files.copy(cached, target, StandardCopyOption.REPLACE_EXISTING);
+            return true;
+        } catch (IOException exception) {
+            throw new UncheckedIOException("Cannot read cached media", exception);
+        }
+    }
+
+    public static CompletableFuture<Boolean> download(MutableAttachmentProvider<?> provider, WritableByteChannel channel) {
+        return downloadStream(provider).thenApplyAsync(result -> {
+            if (result.isEmpty()) {
+                return false;
+            }
+
+            try (var input = result.get()) {
+                transferTo(input, channel);
+                return true;
+            } catch (IOException exception) {
+                throw new UncheckedIOException("Cannot download media", exception);
+            }
+        });
+    }
+
+    // The media is downloaded to a sidecar file next to the target, whose name carries the expected sha256 of the encrypted media, and moved to the target once it's verified
+    // If the sidecar already contains part of the same media, only the missing bytes are requested using a range request: the target itself is never read or deleted
+    // If the hmac or sha256 of the media are invalid, the sidecar is deleted
+    // If a host fails, the download is resumed from another one
+    public static CompletableFuture<Boolean> download(MutableAttachmentProvider<?> provider, Path target) {
+        try {
+            var partial = getPartialDownload(provider, target);
+            return MediaHosts.instance().execute(getMediaUrls(provider), uri -> download(provider, target, partial, uri));
+        } catch (Throwable error) {
+            return CompletableFuture.failedFuture(new RuntimeException("Cannot download media", error));
+        }
+    }
+
+    // Without the sha256 of the encrypted media there's no way to tell whether a sidecar belongs to it, so the download always starts from scratch
+    private static Path getPartialDownload(MutableAttachmentProvider<?> provider, Path target) {
+        var name = provider.mediaEncryptedSha256()
+                .map(sha256 -> "%s.%s%s".formatted(target.getFileName(), HexFormat.of().formatHex(sha256), PARTIAL_DOWNLOAD_SUFFIX))
+                .orElseGet(() -> target.getFileName() + PARTIAL_DOWNLOAD_SUFFIX);
+        return target.resolveSibling(name);
+    }
+
+    private static CompletableFuture<Boolean> download(MutableAttachmentProvider<?> provider, Path target, Path partial, URI uri) {
+        try {
+            var existing = provider.mediaEncryptedSha256().isPresent() && Files.exists(partial) ? Files.size(partial) : 0L;
+            return download(provider, target, partial, uri, existing - existing % AES_BLOCK_SIZE);
+        } catch (IOException exception) {
+            return CompletableFuture.failedFuture(new UncheckedIOException("Cannot download media", exception));
+        }
+    }
+
+    private static CompletableFuture<Boolean> download(MutableAttachmentProvider<?> provider, Path target, Path partial, URI uri, long offset) {
+        var request = HttpRequest.newBuilder()
+                .uri(uri)
+                .GET();
+        if (offset > 0) {
+            request.header("Range", "bytes=%s-".formatted(offset));
+        }
+
+        return CLIENT.sendAsync(request.build(), BodyHandlers.ofInputStream()).thenComposeAsync(response -> {
+            var statusCode = checkServerError(response).statusCode();
+            if (statusCode == HttpURLConnection.HTTP_NOT_FOUND || statusCode == HttpURLConnection.HTTP_GONE) {
+                closeQuietly(response.body());
+                return CompletableFuture.completedFuture(false);
+            }
+
+            if (statusCode == HTTP_RANGE_NOT_SATISFIABLE && offset > 0) {
+                closeQuietly(response.body());
+                return download(provider, target, partial, uri, 0);
+            }
+
+            if (statusCode != HttpURLConnection.HTTP_OK && statusCode != HttpURLConnection.HTTP_PARTIAL) {
+                closeQuietly(response.body());
+                return CompletableFuture.failedFuture(new IllegalArgumentException("Erroneous status code: " + statusCode));
+            }
+
+            // The server may ignore the range header, in that case the whole media is sent again
+            var resumeOffset = statusCode == HttpURLConnection.HTTP_PARTIAL ? offset : 0;
+            writeMedia(provider, partial, response.body(), resumeOffset);
+            moveMedia(partial, target);
+            return CompletableFuture.completedFuture(true);
+        });
+    }
+
+    private static void writeMedia(MutableAttachmentProvider<?> provider, Path partial, InputStream body, long offset) {
+        try (var channel = FileChannel.open(partial, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+             var input = openResumedStream(provider, body, channel, offset)) {
+            channel.truncate(offset);
+            channel.position(offset);
+            transferTo(input, channel);
+        } catch (SecurityException exception) {
+            deleteQuietly(partial);
+            throw exception;
+        } catch (IOException exception) {
+            throw new UncheckedIOException("Cannot download media", exception);
+        }
+    }
+
+    private static void moveMedia(Path partial, Path target) {
+        try {
+            try {
+                Files.move(partial, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException exception) {
+                Files.move(partial, target, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } catch (IOException exception) {
+            throw new UncheckedIOException("Cannot move downloaded media", exception);
+        }
+    }
+
+    private static MediaDecryptionInputStream openResumedStream(MutableAttachmentProvider<?> provider, InputStream body, FileChannel channel, long offset) throws IOException {
+        var expectedSha256 = provider.mediaEncryptedSha256().orElse(null);
+        var keys = getMediaKeys(provider);
+        if (offset == 0) {
+            return new MediaDecryptionInputStream(body, expectedSha256, keys);
+        }
+
+        var prefix = Channels.newInputStream(channel.position(0));
+        return MediaDecryptionInputStream.resume(body, expectedSha256, keys, prefix, offset);
+    }
+
+    private static void transferTo(InputStream input, WritableByteChannel channel) throws IOException {
+        var buffer = new byte[DOWNLOAD_BUFFER_SIZE];
+        var wrapper = ByteBuffer.wrap(buffer);
+        int read;
+        while ((read = input.read(buffer)) != -1) {
+            wrapper.clear().limit(read);
+            while (wrapper.hasRemaining()) {
+                channel.write(wrapper);
+            }
+        }
+    }
+
+    // The url of the media is tried first, then the direct path is resolved against every known host
+    private static List<URI> getMediaUrls(MutableAttachmentProvider<?> provider) {
+        var results = new ArrayList<URI>();
+        provider.mediaUrl()
+                .map(URI::create)
+                .ifPresent(results::add);
+        provider.mediaDirectPath()
+                .ifPresent(directPath -> MediaHosts.instance()
+                        .hosts()
+                        .forEach(host -> results.add(URI.create(createMediaUrl(host, directPath)))));
+        if (results.isEmpty()) {
+            throw new NoSuchElementException("Missing url and path from media");
+        }
+
+        return results;
+    }
+
+    private static <T> HttpResponse<T> checkServerError(HttpResponse<T> response) {
+        if (response.statusCode() < HTTP_SERVER_ERROR) {
+            return response;
+        }
+
+        if (response.body() instanceof InputStream inputStream) {
+            closeQuietly(inputStream);
+        }
+
+        throw new MediaHostException(response.uri().getHost(), response.statusCode());
+    }
+
+    private static MediaKeys getMediaKeys(MutableAttachmentProvider<?> provider) {
+        return provider.attachmentType()
+                .keyName()
+                .map(keyName -> MediaKeys.of(provider.mediaKey().orElseThrow(() -> new NoSuchElementException("Missing media key")), keyName))
+                .orElse(null);
+    }
+
+    private static void closeQuietly(InputStream inputStream) {
+        try {
+            inputStream.close();
+        } catch (IOException ignored) {
+
+        }
+    }
+
+    /**
+     * Checks whether an uploaded media is still available on Whatsapp's servers
+     *
+     * @param upload the non-null upload
+     * @return a CompletableFuture
+     */
+    public static CompletableFuture<Boolean> isAvailable(MediaFile upload) {
+        try {
+            var url = Objects.requireNonNullElseGet(upload.url(), () -> createMediaUrl(upload.directPath()));
             var request = HttpRequest.newBuilder()
                     .uri(URI.create(url))
-                    .GET()
+                    .method("HEAD", HttpRequest.BodyPublishers.noBody())
                     .build();
-            return CLIENT.sendAsync(request, HttpResponse.BodyHandlers.ofByteArray())
-                    .thenApplyAsync(response -> handleResponse(provider, response));
-        } catch (Throwable error) {
-            return CompletableFuture.failedFuture(new RuntimeException("Cannot download media", error));
+            return CLIENT.sendAsync(request, BodyHandlers.discarding())
+                    .thenApply(response -> response.statusCode() == HttpURLConnection.HTTP_OK);
+        } catch (Throwable throwable) {
+            return CompletableFuture.failedFuture(throwable);
         }
     }
 
     public static String createMediaUrl(String directPath) {
-        return "https://%s%s".formatted(DEFAULT_HOST, directPath);
+        return createMediaUrl(MediaHosts.instance().bestHost(), directPath);
+    }
+
+    private static String createMediaUrl(String host, String directPath) {
+        return "https://%s%s".formatted(host, directPath);
     }
 
     private static Optional<byte[]> handleResponse(MutableAttachmentProvider<?> provider, HttpResponse<byte[]> response) {
@@ -276,6 +709,26 @@ public final class Medias {
     }
 
     public static int getDuration(byte[] file) {
+        var result = MediaProbe.probe(file);
+        if (result.isEmpty()) {
+            return probeDuration(file);
+        }
+
+        // Images don't have a duration, and ffprobe can only do better than the probe for movies whose headers don't declare one
+        var duration = result.get().durationSeconds();
+        if (duration.isPresent()) {
+            return (int) duration.getAsLong();
+        }
+
+        return result.get().container() == MediaProbe.Container.MP4 ? probeDuration(file) : 0;
+    }
+
+    // Fallback for containers that are not supported by MediaProbe
+    private static int probeDuration(byte[] file) {
+        if (!isFfprobeAvailable()) {
+            return 0;
+        }
+
         var input = createTempFile(file);
         try {
             var process = Runtime.getRuntime()
@@ -297,12 +750,23 @@ public final class Medias {
     }
 
     public static MediaDimensions getDimensions(byte[] file, boolean video) {
+        return MediaProbe.probe(file)
+                .flatMap(MediaProbe.Result::dimensions)
+                .orElseGet(() -> probeDimensions(file, video));
+    }
+
+    // Fallback for containers that are not supported by MediaProbe
+    private static MediaDimensions probeDimensions(byte[] file, boolean video) {
         try {
             if (!video) {
                 var originalImage = ImageIO.read(new ByteArrayInputStream(file));
                 return new MediaDimensions(originalImage.getWidth(), originalImage.getHeight());
             }
 
+            if (!isFfprobeAvailable()) {
+                return MediaDimensions.defaultDimensions();
+            }
+
             var input = createTempFile(file);
             try {
                 var process = Runtime.getRuntime()
@@ -324,6 +788,29 @@ public final class Medias {
         }
     }
 
+    private static boolean isFfprobeAvailable() {
+        var result = ffprobeAvailable;
+        if (result != null) {
+            return result;
+        }
+
+        try {
+            var process = new ProcessBuilder("ffprobe", "-version")
+                    .redirectErrorStream(true)
+                    .redirectOutput(ProcessBuilder.Redirect.DISCARD)
+                    .start();
+            result = process.waitFor() == 0;
+        } catch (IOException exception) {
+            result = false;
+        } catch (InterruptedException exception) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+
+        ffprobeAvailable = result;
+        return result;
+    }
+
     private static Path createTempFile(byte[] data) {
         try {
             var file = Files.createTempFile(UUID.randomUUID().toString(), "");
@@ -352,19 +839,12 @@ public final class Medias {
 
     private static Optional<byte[]> getImageThumbnail(byte[] file, Format format) {
         try {
-            var image = ImageIO.read(new ByteArrayInputStream(file));
+            var image = readImage(file, THUMBNAIL_SIZE, THUMBNAIL_SIZE);
             if (image == null) {
                 return Optional.empty();
             }
             var type = image.getType() == 0 ? BufferedImage.TYPE_INT_ARGB : image.getType();
-            var resizedImage = new BufferedImage(THUMBNAIL_SIZE, THUMBNAIL_SIZE, type);
-            var graphics = resizedImage.createGraphics();
-            graphics.drawImage(image, 0, 0, THUMBNAIL_SIZE, THUMBNAIL_SIZE, null);
-            graphics.dispose();
-            graphics.setComposite(AlphaComposite.Src);
-            graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
-            graphics.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
-            graphics.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+            var resizedImage = scaleImage(image, THUMBNAIL_SIZE, THUMBNAIL_SIZE, type);
             var outputStream = new ByteArrayOutputStream();
             ImageIO.write(resizedImage, format.name().toLowerCase(), outputStream);
             return Optional.of(outputStream.toByteArray());
@@ -448,6 +928,15 @@ public final class Medias {
 
     }
 
+    private record PreparedMediaFile(byte[] fileSha256, byte[] fileEncSha256, long fileLength, long encryptedLength, long timestamp) {
+
+    }
+
+    @FunctionalInterface
+    private interface MediaSource {
+        InputStream open() throws IOException;
+    }
+
     public static Optional<byte[]> getAudioWaveForm(byte[] audioData) {
         try {
             var rawData = toFloatArray(audioData);
@@ -0,0 +1,398 @@
+package it.auties.whatsapp.util;
+
+import it.auties.whatsapp.model.info.ChatMessageInfo;
+import it.auties.whatsapp.model.info.ChatMessageInfoSpec;
+import it.auties.whatsapp.model.jid.Jid;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.Optional;
+
+/**
+ * An append-only archive, stored on disk, for the messages that were evicted from memory by a {@link MessageRetention} policy.
+ * Each record contains the jid of the chat, the id of the message and its protobuf encoding.
+ * Records are looked up by id through a hash table that is stored on disk next to the archive, so the memory used by an archive doesn't grow with the number of messages it contains.
+ * If the last record was only partially written, for example because the process crashed, it's discarded when the archive is opened, and the records that are missing from the index are indexed again.
+ * An archive locks its directory until it's closed, so only one archive can be open on the same directory at a time: whoever opens an archive is responsible for closing it.
+ */
+public final class MessageArchive implements Closeable {
+    private static final String ARCHIVE_FILE_NAME = "messages.archive";
+    private static final String INDEX_FILE_NAME = "messages.index";
+    private static final String INDEX_TEMP_FILE_NAME = "messages.index.tmp";
+    private static final int LENGTH_SIZE = Integer.BYTES;
+    private static final int KEY_LENGTH_SIZE = Short.BYTES;
+    private static final int INDEX_HEADER_SIZE = 3 * Long.BYTES;
+    private static final int SLOT_SIZE = 2 * Long.BYTES;
+    private static final int INITIAL_CAPACITY = 1024;
+    private static final double MAX_LOAD = 0.5;
+    private static final int REHASH_BATCH = 512;
+
+    private final Path directory;
+    private final FileChannel archive;
+    private FileChannel index;
+    private long capacity;
+    private long count;
+    private long indexed;
+
+    private MessageArchive(Path directory, FileChannel archive) {
+        this.directory = directory;
+        this.archive = archive;
+    }
+
+    /**
+     * Opens the archive stored in a directory
+     *
+     * @param directory the non-null directory where the archive should be stored
+     * @return a non-null archive
+     * @throws IllegalStateException if an archive is already open on the same directory
+     */
+    public static MessageArchive of(Path directory) {
+        FileChannel channel = null;
+        try {
+            var normalized = Files.createDirectories(directory.toAbsolutePath().normalize());
+            channel = FileChannel.open(normalized.resolve(ARCHIVE_FILE_NAME), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            Validate.isTrue(tryLock(channel), "Message archive %s is already open", IllegalStateException.class, normalized);
+            var result = new MessageArchive(normalized, channel);
+            result.openIndex();
+            result.recover();
+            return result;
+        } catch (IOException exception) {
+            closeQuietly(channel);
+            throw new UncheckedIOException("Cannot open message archive", exception);
+        } catch (RuntimeException exception) {
+            closeQuietly(channel);
+            throw exception;
+        }
+    }
+
+    private static boolean tryLock(FileChannel channel) throws IOException {
+        try {
+            return channel.tryLock() != null;
+        } catch (OverlappingFileLockException exception) {
+            return false;
+        }
+    }
+
+    // The index is trusted only if its header is consistent with its size and with the archive, otherwise it's built again
+    private void openIndex() throws IOException {
+        this.index = FileChannel.open(directory.resolve(INDEX_FILE_NAME), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        if (index.size() >= INDEX_HEADER_SIZE) {
+            var header = read(index, 0, INDEX_HEADER_SIZE);
+            var headerCapacity = header.getLong();
+            var headerCount = header.getLong();
+            var headerIndexed = header.getLong();
+            var valid = headerCapacity >= INITIAL_CAPACITY
+                    && Long.bitCount(headerCapacity) == 1
+                    && index.size() == INDEX_HEADER_SIZE + headerCapacity * SLOT_SIZE
+                    && headerCount >= 0
+                    && headerCount <= headerCapacity * MAX_LOAD
+                    && headerIndexed <= archive.size();
+            if (valid) {
+                this.capacity = headerCapacity;
+                this.count = headerCount;
+                this.indexed = headerIndexed;
+                return;
+            }
+        }
+
+        resetIndex(index, INITIAL_CAPACITY);
+        this.capacity = INITIAL_CAPACITY;
+        this.count = 0;
+        this.indexed = 0;
+        writeHeader();
+    }
+
+    private static void resetIndex(FileChannel channel, long capacity) throws IOException {
+        channel.truncate(0);
+        write(channel, INDEX_HEADER_SIZE + capacity * SLOT_SIZE - 1, ByteBuffer.allocate(1));
+    }
+
+    private void recover() throws IOException {
+        var size = archive.size();
+        var position = indexed;
+        while (position + LENGTH_SIZE <= size) {
+            var length = readInt(position);
+            if (length <= 0 || position + LENGTH_SIZE + length > size) {
+                break;
+            }
+
+            var record = read(archive, position + LENGTH_SIZE, length);
+            put(readKey(record), position);
+            position += LENGTH_SIZE + length;
+        }
+
+        if (position != size) {
+            archive.truncate(position);
+        }
+
+        this.indexed = position;
+        writeHeader();
+    }
+
+    /**
+     * Returns the directory of this archive
+     *
+     * @return a non-null path
+     */
+    public Path directory() {
+        return directory;
+    }
+
+    /**
+     * Returns the number of messages in this archive
+     *
+     * @return an int
+     */
+    public synchronized int size() {
+        return (int) count;
+    }
+
+    /**
+     * Appends a message to this archive
+     * If a message with the same id was already archived for the same chat, the new one replaces it in lookups
+     *
+     * @param chatJid the non-null jid of the chat that contains the message
+     * @param info    the non-null message
+     */
+    public synchronized void append(Jid chatJid, ChatMessageInfo info) {
+        var chat = chatJid.toString().getBytes(StandardCharsets.UTF_8);
+        var id = info.id().getBytes(StandardCharsets.UTF_8);
+        var payload = ChatMessageInfoSpec.encode(info);
+        var length = KEY_LENGTH_SIZE + chat.length + KEY_LENGTH_SIZE + id.length + payload.length;
+        var buffer = ByteBuffer.allocate(LENGTH_SIZE + length)
+                .putInt(length)
+                .putShort((short) chat.length)
+                .put(chat)
+                .putShort((short) id.length)
+                .put(id)
+                .put(payload)
+                .flip();
+        try {
+            var position = archive.size();
+            write(archive, position, buffer);
+            put(createKey(chatJid, info.id()), position);
+            this.indexed = position + LENGTH_SIZE + length;
+            writeHeader();
+        } catch (IOException exception) {
+            throw new UncheckedIOException("Cannot append message to archive", exception);
+        }
+    }
+
+    /**
+     * Returns whether a message was archived
+     *
+     * @param chatJid the non-null jid of the chat that contains the message
+     * @param id      the non-null id of the message
+     * @return a boolean
+     */
+    public synchronized boolean contains(Jid chatJid, String id) {
+        try {
+            return lookup(createKey(chatJid, id)) != -1;
+        } catch (IOException exception) {
+            throw new UncheckedIOException("Cannot read message archive index", exception);
+        }
+    }
+
+    /**
+     * Reads an archived message
+     *
+     * @param chatJid the non-null jid of the chat that contains the message
+     * @param id      the non-null id of the message
+     * @return a non-null optional
+     */
+    public synchronized Optional<ChatMessageInfo> find(Jid chatJid, String id) {
+        try {
+            var position = lookup(createKey(chatJid, id));
+            if (position == -1) {
+                return Optional.empty();
+            }
+
+            var record = read(archive, position + LENGTH_SIZE, readInt(position));
+            skipKey(record);
+            skipKey(record);
+            var payload = new byte[record.remaining()];
+            record.get(payload);
+            return Optional.of(ChatMessageInfoSpec.decode(payload));
+        } catch (IOException exception) {
+            throw new UncheckedIOException("Cannot read message from archive", exception);
+        }
+    }
+
+    /**
+     * Closes this archive and releases the lock on its directory
+     */
+    @Override
+    public synchronized void close() {
+        closeQuietly(index);
+        closeQuietly(archive);
+    }
+
+    // Open addressing with linear probing: a slot contains the hash of the key and the position of the record plus one, so that an empty slot is all zeros
+    // Hashes can collide, so the key of the record is compared as well
+    private long lookup(String key) throws IOException {
+        var hash = hash(key);
+        var mask = capacity - 1;
+        for (var slot = hash & mask; ; slot = (slot + 1) & mask) {
+            var entry = readSlot(slot);
+            var position = entry.getLong(Long.BYTES) - 1;
+            if (position == -1) {
+                return -1;
+            }
+
+            if (entry.getLong(0) == hash && readKey(position).equals(key)) {
+                return position;
+            }
+        }
+    }
+
+    private void put(String key, long position) throws IOException {
+        if (count + 1 > capacity * MAX_LOAD) {
+            grow();
+        }
+
+        var hash = hash(key);
+        var mask = capacity - 1;
+        for (var slot = hash & mask; ; slot = (slot + 1) & mask) {
+            var entry = readSlot(slot);
+            var existing = entry.getLong(Long.BYTES) - 1;
+            if (existing == -1) {
+                writeSlot(index, slot, hash, position);
+                count++;
+                return;
+            }
+
+            if (entry.getLong(0) == hash && readKey(existing).equals(key)) {
+                writeSlot(index, slot, hash, position);
+                return;
+            }
+        }
+    }
+
+    // Keys in the current table are unique, so they are moved to the new one without being compared
+    private void grow() throws IOException {
+        var newCapacity = capacity * 2;
+        var newMask = newCapacity - 1;
+        var temp = directory.resolve(INDEX_TEMP_FILE_NAME);
+        try (var target = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            resetIndex(target, newCapacity);
+            for (var start = 0L; start < capacity; start += REHASH_BATCH) {
+                var slots = (int) Math.min(REHASH_BATCH, capacity - start);
+                var batch = read(index, INDEX_HEADER_SIZE + start * SLOT_SIZE, slots * SLOT_SIZE);
+                for (var i = 0; i < slots; i++) {
+                    var hash = batch.getLong();
+                    var position = batch.getLong() - 1;
+                    if (position == -1) {
+                        continue;
+                    }
+
+                    var slot = hash & newMask;
+                    while (read(target, INDEX_HEADER_SIZE + slot * SLOT_SIZE + Long.BYTES, Long.BYTES).getLong() != 0) {
+                        slot = (slot + 1) & newMask;
+                    }
+
+                    writeSlot(target, slot, hash, position);
+                }
+            }
+
+            write(target, 0, ByteBuffer.allocate(INDEX_HEADER_SIZE).putLong(newCapacity).putLong(count).putLong(indexed).flip());
+        }
+
+        index.close();
+        try {
+            Files.move(temp, directory.resolve(INDEX_FILE_NAME), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException exception) {
+            Files.move(temp, directory.resolve(INDEX_FILE_NAME), StandardCopyOption.REPLACE_EXISTING);
+        }
+
+        this.index = FileChannel.open(directory.resolve(INDEX_FILE_NAME), StandardOpenOption.READ, StandardOpenOption.WRITE);
+        this.capacity = newCapacity;
+    }
+
+    private ByteBuffer readSlot(long slot) throws IOException {
+        return read(index, INDEX_HEADER_SIZE + slot * SLOT_SIZE, SLOT_SIZE);
+    }
+
+    private static void writeSlot(FileChannel channel, long slot, long hash, long position) throws IOException {
+        write(channel, INDEX_HEADER_SIZE + slot * SLOT_SIZE, ByteBuffer.allocate(SLOT_SIZE).putLong(hash).putLong(position + 1).flip());
+    }
+
+    private void writeHeader() throws IOException {
+        write(index, 0, ByteBuffer.allocate(INDEX_HEADER_SIZE).putLong(capacity).putLong(count).putLong(indexed).flip());
+    }
+
+    private String readKey(long position) throws IOException {
+        return readKey(read(archive, position + LENGTH_SIZE, readInt(position)));
+    }
+
+    private int readInt(long position) throws IOException {
+        return read(archive, position, LENGTH_SIZE).getInt();
+    }
+
+    private static ByteBuffer read(FileChannel channel, long position, int length) throws IOException {
+        var buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("Unexpected end of file");
+            }
+        }
+
+        return buffer.flip();
+    }
+
+    private static void write(FileChannel channel, long position, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer, position + buffer.position());
+        }
+    }
+
+    private String readKey(ByteBuffer record) {
+        var chat = readString(record);
+        var id = readString(record);
+        return chat + "/" + id;
+    }
+
+    private String readString(ByteBuffer record) {
+        var length = Short.toUnsignedInt(record.getShort());
+        var result = new String(record.array(), record.position(), length, StandardCharsets.UTF_8);
+        record.position(record.position() + length);
+        return result;
+    }
+
+    private void skipKey(ByteBuffer record) {
+        var length = Short.toUnsignedInt(record.getShort());
+        record.position(record.position() + length);
+    }
+
+    private String createKey(Jid chatJid, String id) {
+        return chatJid + "/" + id;
+    }
+
+    // FNV-1a
+    private static long hash(String key) {
+        var result = 0xcbf29ce484222325L;
+        for (var i = 0; i < key.length(); i++) {
+            result ^= key.charAt(i);
+            result *= 0x100000001b3L;
+        }
+
+        return result;
+    }
+
+    private static void closeQuietly(FileChannel channel) {
+        if (channel == null) {
+            return;
+        }
+
+        try {
+            channel.close();
+        } catch (IOException ignored) {
+
+        }
+    }
+}
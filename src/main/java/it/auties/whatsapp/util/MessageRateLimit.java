@@ -0,0 +1,20 @@
+package it.auties.whatsapp.util;
+
+/**
+ * Token bucket limits for outgoing messages.
+ * Each message needs a token from the bucket of its chat and one from the bucket shared by all chats: buckets start full, hold at most {@code burst} tokens and are refilled at {@code messagesPerSecond}.
+ * The global rate is lowered automatically when messages fail to be sent, and it's restored gradually as they succeed.
+ *
+ * @param chatMessagesPerSecond   the rate at which messages can be sent in a single chat, zero for no limit
+ * @param chatBurst               the number of messages that can be sent in a single chat without waiting
+ * @param globalMessagesPerSecond the rate at which messages can be sent across all chats, zero for no limit
+ * @param globalBurst             the number of messages that can be sent across all chats without waiting
+ */
+public record MessageRateLimit(double chatMessagesPerSecond, int chatBurst, double globalMessagesPerSecond, int globalBurst) {
+    public MessageRateLimit {
+        Validate.isTrue(chatMessagesPerSecond >= 0, "Invalid chat messages per second: %s", chatMessagesPerSecond);
+        Validate.isTrue(chatBurst >= 1, "Invalid chat burst: %s", chatBurst);
+        Validate.isTrue(globalMessagesPerSecond >= 0, "Invalid global messages per second: %s", globalMessagesPerSecond);
+        Validate.isTrue(globalBurst >= 1, "Invalid global burst: %s", globalBurst);
+    }
+}
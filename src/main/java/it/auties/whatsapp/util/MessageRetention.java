@@ -0,0 +1,54 @@
+package it.auties.whatsapp.util;
+
+import java.time.Duration;
+import java.util.Optional;
+
+/**
+ * A policy that bounds the messages kept in memory by a store.
+ * When a chat exceeds the maximum number of messages, or when its messages become older than the maximum age, its oldest messages are evicted.
+ * When the estimated size of all the messages exceeds the maximum number of bytes, the oldest messages across all chats are evicted.
+ * Evicted messages are moved to the archive, if one is configured, where they can still be found by id: otherwise, they are discarded.
+ *
+ * @param maxMessagesPerChat the maximum number of messages per chat, zero for no limit
+ * @param maxAge             the maximum age of a message, null for no limit
+ * @param maxBytes           the maximum estimated size, in bytes, of all the messages, zero for no limit
+ * @param archive            the archive where evicted messages are moved, null to discard them
+ */
+public record MessageRetention(int maxMessagesPerChat, Duration maxAge, long maxBytes, MessageArchive archive) {
+    public MessageRetention {
+        Validate.isTrue(maxMessagesPerChat >= 0, "Invalid max messages per chat: %s", maxMessagesPerChat);
+        Validate.isTrue(maxAge == null || maxAge.isPositive(), "Invalid max age: %s", maxAge);
+        Validate.isTrue(maxBytes >= 0, "Invalid max bytes: %s", maxBytes);
+    }
+
+    /**
+     * Creates a policy that discards evicted messages
+     *
+     * @param maxMessagesPerChat the maximum number of messages per chat, zero for no limit
+     * @param maxAge             the maximum age of a message, null for no limit
+     * @param maxBytes           the maximum estimated size, in bytes, of all the messages, zero for no limit
+     * @return a non-null policy
+     */
+    public static MessageRetention of(int maxMessagesPerChat, Duration maxAge, long maxBytes) {
+        return new MessageRetention(maxMessagesPerChat, maxAge, maxBytes, null);
+    }
+
+    /**
+     * Returns a copy of this policy that moves evicted messages to an archive
+     *
+     * @param archive the archive, null to discard evicted messages
+     * @return a non-null policy
+     */
+    public MessageRetention withArchive(MessageArchive archive) {
+        return new MessageRetention(maxMessagesPerChat, maxAge, maxBytes, archive);
+    }
+
+    /**
+     * Returns the archive where evicted messages are moved
+     *
+     * @return an optional
+     */
+    public Optional<MessageArchive> findArchive() {
+        return Optional.ofNullable(archive);
+    }
+}
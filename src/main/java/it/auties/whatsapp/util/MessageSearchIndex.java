@@ -0,0 +1,568 @@
+package it.auties.whatsapp.util;
+
+import it.auties.whatsapp.model.info.ChatMessageInfo;
+import it.auties.whatsapp.model.jid.Jid;
+import it.auties.whatsapp.model.message.model.Message;
+import it.auties.whatsapp.model.message.standard.DocumentMessage;
+import it.auties.whatsapp.model.message.standard.ImageMessage;
+import it.auties.whatsapp.model.message.standard.TextMessage;
+import it.auties.whatsapp.model.message.standard.VideoOrGifMessage;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.text.Normalizer;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * An inverted index over the text of messages: the text of text messages, the captions of images, videos and documents and the names of documents.
+ * Text is split into terms that are case and accent insensitive, and every term points to the messages that contain it, so a search only visits the messages that match.
+ * A message matches a query if it contains all of its terms: matches are ranked using BM25, and ties are broken by recency.
+ * If the index is backed by a file, it's loaded when it's created and it can be saved using {@link #save()}.
+ * Removed messages leave a gap in the ids of the index, which is compacted once gaps are more than half of the ids.
+ */
+public final class MessageSearchIndex {
+    private static final int VERSION = 1;
+    private static final double K1 = 1.2;
+    private static final double B = 0.75;
+    private static final int MAX_TERM_LENGTH = 64;
+    private static final int MIN_COMPACTION_SIZE = 1024;
+    private static final Pattern DIACRITICS = Pattern.compile("\\p{M}+");
+
+    private final Path file;
+    private final ReentrantReadWriteLock lock;
+    private final Object saveLock;
+    private final Map<DocumentKey, Integer> ids;
+    private final List<Document> documents;
+    private final Map<String, Postings> postings;
+    private long totalLength;
+    private int size;
+    private long modifications;
+    private volatile long savedModifications;
+    private volatile long savedAt;
+
+    private MessageSearchIndex(Path file) {
+        this.file = file;
+        this.lock = new ReentrantReadWriteLock();
+        this.saveLock = new Object();
+        this.ids = new HashMap<>();
+        this.documents = new ArrayList<>();
+        this.postings = new HashMap<>();
+    }
+
+    /**
+     * Creates an index that is kept only in memory
+     *
+     * @return a non-null index
+     */
+    public static MessageSearchIndex inMemory() {
+        return new MessageSearchIndex(null);
+    }
+
+    /**
+     * Creates an index backed by a file
+     * If the file exists, the index is loaded from it
+     *
+     * @param file the non-null file
+     * @return a non-null index
+     */
+    public static MessageSearchIndex of(Path file) {
+        var result = new MessageSearchIndex(file.toAbsolutePath().normalize());
+        if (Files.exists(result.file)) {
+            result.load();
+        }
+
+        return result;
+    }
+
+    /**
+     * Returns the file that backs this index
+     *
+     * @return an optional, empty if this index is kept only in memory
+     */
+    public Optional<Path> file() {
+        return Optional.ofNullable(file);
+    }
+
+    /**
+     * Returns the number of messages in this index
+     *
+     * @return an int
+     */
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return size;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Adds a message to this index
+     * Messages without text are ignored, and messages that are already indexed are not indexed again
+     *
+     * @param info the non-null message
+     */
+    public void add(ChatMessageInfo info) {
+        var text = extractText(info.message().content());
+        if (text.isEmpty()) {
+            return;
+        }
+
+        var frequencies = new HashMap<String, Integer>();
+        var length = tokenize(text, term -> frequencies.merge(term, 1, Integer::sum));
+        if (frequencies.isEmpty()) {
+            return;
+        }
+
+        lock.writeLock().lock();
+        try {
+            addDocument(new DocumentKey(info.chatJid().toString(), info.id()), info.timestampSeconds(), length, frequencies);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private void addDocument(DocumentKey key, long timestampSeconds, int length, Map<String, Integer> frequencies) {
+        if (ids.containsKey(key)) {
+            return;
+        }
+
+        var id = documents.size();
+        var terms = frequencies.keySet().toArray(String[]::new);
+        documents.add(new Document(key, timestampSeconds, length, terms));
+        ids.put(key, id);
+        for (var term : terms) {
+            postings.computeIfAbsent(term, ignored -> new Postings()).add(id, frequencies.get(term));
+        }
+
+        totalLength += length;
+        size++;
+        modifications++;
+    }
+
+    /**
+     * Removes a message from this index
+     *
+     * @param chatJid the non-null jid of the chat that contains the message
+     * @param id      the non-null id of the message
+     */
+    public void remove(Jid chatJid, String id) {
+        lock.writeLock().lock();
+        try {
+            removeDocument(new DocumentKey(chatJid.toString(), id));
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Removes all the messages of a chat from this index
+     *
+     * @param chatJid the non-null jid of the chat
+     */
+    public void removeChat(Jid chatJid) {
+        var chat = chatJid.toString();
+        lock.writeLock().lock();
+        try {
+            ids.keySet()
+                    .stream()
+                    .filter(key -> key.chatJid().equals(chat))
+                    .toList()
+                    .forEach(this::removeDocument);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private void removeDocument(DocumentKey key) {
+        var id = ids.remove(key);
+        if (id == null) {
+            return;
+        }
+
+        var document = documents.set(id, null);
+        for (var term : document.terms()) {
+            var termPostings = postings.get(term);
+            if (termPostings != null && termPostings.remove(id) && termPostings.size() == 0) {
+                postings.remove(term);
+            }
+        }
+
+        totalLength -= document.length();
+        size--;
+        modifications++;
+        if (documents.size() >= MIN_COMPACTION_SIZE && size < documents.size() / 2) {
+            compact();
+        }
+    }
+
+    // Ids are reassigned in the same order, so the lists of postings stay sorted
+    private void compact() {
+        var newIds = new int[documents.size()];
+        var compacted = new ArrayList<Document>(size);
+        for (var id = 0; id < documents.size(); id++) {
+            var document = documents.get(id);
+            if (document != null) {
+                newIds[id] = compacted.size();
+                ids.put(document.key(), compacted.size());
+                compacted.add(document);
+            }
+        }
+
+        documents.clear();
+        documents.addAll(compacted);
+        for (var termPostings : postings.values()) {
+            termPostings.remap(newIds);
+        }
+    }
+
+    /**
+     * Searches the messages that contain all the terms of a query
+     *
+     * @param query the non-null query
+     * @param limit the maximum number of results
+     * @return a non-null list of results, from the most to the least relevant
+     */
+    public List<Result> search(String query, int limit) {
+        Validate.isTrue(limit > 0, "Invalid limit: %s", limit);
+        var terms = new LinkedHashSet<String>();
+        tokenize(query, terms::add);
+        if (terms.isEmpty()) {
+            return List.of();
+        }
+
+        lock.readLock().lock();
+        try {
+            var queryPostings = new ArrayList<Postings>(terms.size());
+            for (var term : terms) {
+                var termPostings = postings.get(term);
+                if (termPostings == null) {
+                    return List.of();
+                }
+
+                queryPostings.add(termPostings);
+            }
+
+            // The rarest term has the shortest list of candidates, the other terms are looked up with a binary search
+            queryPostings.sort(Comparator.comparingInt(Postings::size));
+            var averageLength = (double) totalLength / size;
+            var results = new PriorityQueue<Result>(limit + 1, Result.RANKING);
+            var rarest = queryPostings.getFirst();
+            for (var index = 0; index < rarest.size(); index++) {
+                var id = rarest.documentAt(index);
+                var document = documents.get(id);
+                var score = score(document, rarest.frequencyAt(index), rarest.size(), averageLength);
+                for (var other = 1; other < queryPostings.size() && score > 0; other++) {
+                    var frequency = queryPostings.get(other).frequencyOf(id);
+                    score = frequency == 0 ? 0 : score + score(document, frequency, queryPostings.get(other).size(), averageLength);
+                }
+
+                if (score <= 0) {
+                    continue;
+                }
+
+                results.add(new Result(Jid.of(document.key().chatJid()), document.key().id(), document.timestampSeconds(), score));
+                if (results.size() > limit) {
+                    results.poll();
+                }
+            }
+
+            var sorted = new ArrayList<>(results);
+            sorted.sort(Result.RANKING.reversed());
+            return Collections.unmodifiableList(sorted);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private double score(Document document, int frequency, int documentFrequency, double averageLength) {
+        var idf = Math.log(1 + (size - documentFrequency + 0.5) / (documentFrequency + 0.5));
+        var normalization = K1 * (1 - B + B * document.length() / averageLength);
+        return idf * frequency * (K1 + 1) / (frequency + normalization);
+    }
+
+    /**
+     * Saves this index to its file, if it was modified since it was last saved or loaded
+     * The index is first written to a temporary file, which then replaces the previous one
+     */
+    public void save() {
+        save(Duration.ZERO);
+    }
+
+    /**
+     * Saves this index to its file, if it was modified since it was last saved or loaded and it wasn't saved in the provided interval
+     * A snapshot of the index is taken while holding the read lock, so searches and updates are blocked only while it's copied, not while it's written
+     *
+     * @param interval the non-null minimum interval between two saves
+     */
+    public void save(Duration interval) {
+        if (file == null) {
+            return;
+        }
+
+        synchronized (saveLock) {
+            var snapshot = createSnapshot(interval);
+            if (snapshot == null) {
+                return;
+            }
+
+            try {
+                var temp = file.resolveSibling(file.getFileName() + ".tmp");
+                Files.createDirectories(file.toAbsolutePath().getParent());
+                try (var output = new DataOutputStream(new BufferedOutputStream(new GZIPOutputStream(Files.newOutputStream(temp))))) {
+                    output.writeInt(VERSION);
+                    output.writeInt(snapshot.documents().size());
+                    for (var document : snapshot.documents()) {
+                        writeDocument(output, document);
+                    }
+                }
+
+                Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING);
+                savedModifications = snapshot.modifications();
+                savedAt = Clock.nowMilliseconds();
+            } catch (IOException exception) {
+                throw new UncheckedIOException("Cannot save search index", exception);
+            }
+        }
+    }
+
+    private Snapshot createSnapshot(Duration interval) {
+        lock.readLock().lock();
+        try {
+            if (modifications == savedModifications || Clock.nowMilliseconds() - savedAt < interval.toMillis()) {
+                return null;
+            }
+
+            var results = new ArrayList<SavedDocument>(size);
+            for (var id = 0; id < documents.size(); id++) {
+                var document = documents.get(id);
+                if (document == null) {
+                    continue;
+                }
+
+                var frequencies = new int[document.terms().length];
+                for (var term = 0; term < frequencies.length; term++) {
+                    frequencies[term] = postings.get(document.terms()[term]).frequencyOf(id);
+                }
+
+                results.add(new SavedDocument(document, frequencies));
+            }
+
+            return new Snapshot(results, modifications);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private void writeDocument(DataOutputStream output, SavedDocument saved) throws IOException {
+        var document = saved.document();
+        output.writeUTF(document.key().chatJid());
+        output.writeUTF(document.key().id());
+        output.writeLong(document.timestampSeconds());
+        output.writeInt(document.length());
+        output.writeInt(document.terms().length);
+        for (var term = 0; term < document.terms().length; term++) {
+            output.writeUTF(document.terms()[term]);
+            output.writeInt(saved.frequencies()[term]);
+        }
+    }
+
+    private void load() {
+        try (var input = new DataInputStream(new BufferedInputStream(new GZIPInputStream(Files.newInputStream(file))))) {
+            var version = input.readInt();
+            if (version != VERSION) {
+                return;
+            }
+
+            var count = input.readInt();
+            for (var index = 0; index < count; index++) {
+                var key = new DocumentKey(input.readUTF(), input.readUTF());
+                var timestampSeconds = input.readLong();
+                var length = input.readInt();
+                var termsCount = input.readInt();
+                var frequencies = HashMap.<String, Integer>newHashMap(termsCount);
+                for (var term = 0; term < termsCount; term++) {
+                    frequencies.put(input.readUTF(), input.readInt());
+                }
+
+                addDocument(key, timestampSeconds, length, frequencies);
+            }
+
+            savedModifications = modifications;
+        } catch (IOException exception) {
+            // The index can be rebuilt from the messages, so a corrupted file is discarded
+            ids.clear();
+            documents.clear();
+            postings.clear();
+            totalLength = 0;
+            size = 0;
+            modifications++;
+        }
+    }
+
+    /**
+     * Returns a predicate that tests whether a message contains all the terms of a query, like {@link #search(String, int)} does, without building an index
+     * This is useful when the messages are searched only once, as every message is tokenized at every test
+     *
+     * @param query the non-null query
+     * @return a non-null predicate
+     */
+    public static Predicate<ChatMessageInfo> matcher(String query) {
+        var terms = new HashSet<String>();
+        tokenize(query, terms::add);
+        if (terms.isEmpty()) {
+            return ignored -> false;
+        }
+
+        return info -> {
+            var text = extractText(info.message().content());
+            if (text.isEmpty()) {
+                return false;
+            }
+
+            var missing = new HashSet<>(terms);
+            tokenize(text, missing::remove);
+            return missing.isEmpty();
+        };
+    }
+
+    private static int tokenize(String text, Consumer<String> consumer) {
+        var normalized = DIACRITICS.matcher(Normalizer.normalize(text, Normalizer.Form.NFD))
+                .replaceAll("")
+                .toLowerCase(Locale.ROOT);
+        var count = 0;
+        var start = -1;
+        for (var index = 0; index <= normalized.length(); index++) {
+            var letterOrDigit = index < normalized.length() && Character.isLetterOrDigit(normalized.charAt(index));
+            if (letterOrDigit && start == -1) {
+                start = index;
+            } else if (!letterOrDigit && start != -1) {
+                if (index - start <= MAX_TERM_LENGTH) {
+                    consumer.accept(normalized.substring(start, index));
+                    count++;
+                }
+
+                start = -1;
+            }
+        }
+
+        return count;
+    }
+
+    private static String extractText(Message message) {
+        return switch (message) {
+            case TextMessage textMessage -> join(Optional.ofNullable(textMessage.text()), textMessage.title());
+            case ImageMessage imageMessage -> join(imageMessage.caption());
+            case VideoOrGifMessage videoMessage -> join(videoMessage.caption());
+            case DocumentMessage documentMessage -> join(documentMessage.fileName(), documentMessage.title(), documentMessage.caption());
+            case null, default -> "";
+        };
+    }
+
+    @SafeVarargs
+    private static String join(Optional<String>... values) {
+        var result = new StringJoiner(" ");
+        for (var value : values) {
+            value.ifPresent(result::add);
+        }
+
+        return result.toString();
+    }
+
+    /**
+     * A message that matches a query
+     *
+     * @param chatJid          the jid of the chat that contains the message
+     * @param id               the id of the message
+     * @param timestampSeconds the timestamp of the message
+     * @param score            the relevance of the message, higher is more relevant
+     */
+    public record Result(Jid chatJid, String id, long timestampSeconds, double score) {
+        private static final Comparator<Result> RANKING = Comparator.comparingDouble(Result::score)
+                .thenComparingLong(Result::timestampSeconds);
+    }
+
+    private record DocumentKey(String chatJid, String id) {
+
+    }
+
+    private record Document(DocumentKey key, long timestampSeconds, int length, String[] terms) {
+
+    }
+
+    private record SavedDocument(Document document, int[] frequencies) {
+
+    }
+
+    private record Snapshot(List<SavedDocument> documents, long modifications) {
+
+    }
+
+    // Document ids are assigned in increasing order, so each list is sorted and can be searched with a binary search
+    private static final class Postings {
+        private int[] documents;
+        private int[] frequencies;
+        private int size;
+
+        private Postings() {
+            this.documents = new int[4];
+            this.frequencies = new int[4];
+        }
+
+        private void add(int document, int frequency) {
+            if (size == documents.length) {
+                documents = Arrays.copyOf(documents, size * 2);
+                frequencies = Arrays.copyOf(frequencies, size * 2);
+            }
+
+            documents[size] = document;
+            frequencies[size] = frequency;
+            size++;
+        }
+
+        private boolean remove(int document) {
+            var index = Arrays.binarySearch(documents, 0, size, document);
+            if (index < 0) {
+                return false;
+            }
+
+            System.arraycopy(documents, index + 1, documents, index, size - index - 1);
+            System.arraycopy(frequencies, index + 1, frequencies, index, size - index - 1);
+            size--;
+            return true;
+        }
+
+        private void remap(int[] newIds) {
+            for (var index = 0; index < size; index++) {
+                documents[index] = newIds[documents[index]];
+            }
+        }
+
+        private int frequencyOf(int document) {
+            var index = Arrays.binarySearch(documents, 0, size, document);
+            return index < 0 ? 0 : frequencies[index];
+        }
+
+        private int documentAt(int index) {
+            return documents[index];
+        }
+
+        private int frequencyAt(int index) {
+            return frequencies[index];
+        }
+
+        private int size() {
+            return size;
+        }
+    }
+}
@@ -39,7 +39,7 @@ public class MessagesSet<E> extends AbstractQueue<E> implements Deque<E> {
     }
 
     @Override
-    public boolean add(E e) {
+    public synchronized boolean add(E e) {
         var hash = Objects.hashCode(e);
         if (hashes.contains(hash)) {
             return false;
@@ -65,7 +65,7 @@ public class MessagesSet<E> extends AbstractQueue<E> implements Deque<E> {
     }
 
     @Override
-    public void addFirst(E message) {
+    public synchronized void addFirst(E message) {
         var hash = Objects.hashCode(message);
         if (hashes.contains(hash)) {
             return;
@@ -89,7 +89,7 @@ public class MessagesSet<E> extends AbstractQueue<E> implements Deque<E> {
     }
 
     @Override
-    public boolean remove(Object o) {
+    public synchronized boolean remove(Object o) {
         var hash = Objects.hashCode(o);
         if (!hashes.contains(hash)) {
             return false;
@@ -109,7 +109,7 @@ public class MessagesSet<E> extends AbstractQueue<E> implements Deque<E> {
     }
 
     @Override
-    public boolean removeAll(Collection<?> collection) {
+    public synchronized boolean removeAll(Collection<?> collection) {
         var hashCodes = collection.stream()
                 .map(Objects::hashCode)
                 .collect(Collectors.toUnmodifiableSet());
@@ -138,7 +138,7 @@ public class MessagesSet<E> extends AbstractQueue<E> implements Deque<E> {
     }
 
     @Override
-    public E remove() {
+    public synchronized E remove() {
         var headItem = head.get();
         if (headItem == null) {
             return null;
@@ -175,7 +175,7 @@ public class MessagesSet<E> extends AbstractQueue<E> implements Deque<E> {
     }
 
     @Override
-    public E removeFirst() {
+    public synchronized E removeFirst() {
         var node = head.getAndSet(head.get().next);
         if (node == tail.get()) {
             tail.compareAndSet(node, node.prev);
@@ -295,7 +295,7 @@ public class MessagesSet<E> extends AbstractQueue<E> implements Deque<E> {
     }
 
     @Override
-    public boolean removeFirstOccurrence(Object o) {
+    public synchronized boolean removeFirstOccurrence(Object o) {
         var node = head.get();
         while (node != null) {
             if (node.item.equals(o)) {
@@ -308,7 +308,7 @@ public class MessagesSet<E> extends AbstractQueue<E> implements Deque<E> {
     }
 
     @Override
-    public boolean removeIf(Predicate<? super E> filter) {
+    public synchronized boolean removeIf(Predicate<? super E> filter) {
         var node = tail.get();
         while (node != null) {
             if (filter.test(node.item)) {
@@ -321,8 +321,34 @@ public class MessagesSet<E> extends AbstractQueue<E> implements Deque<E> {
         return false;
     }
 
+    /**
+     * Removes the elements at the head of this set as long as they match a predicate
+     *
+     * @param filter the non-null predicate
+     * @return a non-null list containing the removed elements, from the oldest to the newest
+     */
+    public synchronized List<E> removeFirstWhile(Predicate<? super E> filter) {
+        var removed = new ArrayList<E>();
+        var node = head.get();
+        while (node != null && filter.test(node.item)) {
+            var next = node.next;
+            if (next == null) {
+                tail.compareAndSet(node, null);
+            } else {
+                next.prev = null;
+            }
+
+            head.set(next);
+            hashes.remove(Objects.hashCode(node.item));
+            removed.add(node.item);
+            node = next;
+        }
+
+        return removed;
+    }
+
     @Override
-    public boolean removeLastOccurrence(Object o) {
+    public synchronized boolean removeLastOccurrence(Object o) {
         var node = tail.get();
         while (node != null) {
             if (node.item.equals(o)) {
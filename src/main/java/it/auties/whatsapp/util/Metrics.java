@@ -0,0 +1,132 @@
+package it.auties.whatsapp.util;
+
+/**
+ * A sink for the metrics of a session: frames, nodes, requests, locks, decryption failures, sender key evictions, listeners, serialization and shutdowns.
+ * Every method has an empty default implementation, so an implementation only needs to override the metrics it's interested in.
+ * Callers check {@link #enabled()} before measuring anything, so a disabled sink adds no allocations to the socket pipeline.
+ * Methods are called from the socket, listeners and serializer threads, so implementations must be thread safe and shouldn't block.
+ */
+public interface Metrics {
+    /**
+     * Returns a sink that discards every metric
+     *
+     * @return a non-null sink
+     */
+    static Metrics noop() {
+        return NoopMetrics.INSTANCE;
+    }
+
+    /**
+     * Returns a sink that records every metric as a JDK Flight Recorder event
+     *
+     * @return a non-null sink
+     */
+    static Metrics jfr() {
+        return JfrMetrics.INSTANCE;
+    }
+
+    /**
+     * Returns whether metrics should be measured at all
+     * This method is called on every frame, so it must be cheap
+     *
+     * @return a boolean
+     */
+    default boolean enabled() {
+        return true;
+    }
+
+    /**
+     * Called when a frame was received and decoded
+     *
+     * @param size        the size of the encrypted frame in bytes
+     * @param decryptTime the time it took to decrypt the frame in nanoseconds
+     * @param decodeTime  the time it took to decode the frame into a node in nanoseconds
+     */
+    default void onFrame(int size, long decryptTime, long decodeTime) {
+
+    }
+
+    /**
+     * Called when a node was received or sent
+     *
+     * @param description the non-null description of the node
+     * @param inbound     whether the node was received
+     */
+    default void onNode(String description, boolean inbound) {
+
+    }
+
+    /**
+     * Called when a request that expects a response completed
+     *
+     * @param description the non-null description of the node that was sent
+     * @param time        the time between the request and its response in nanoseconds
+     * @param timedOut    whether no response was received in time
+     */
+    default void onRequest(String description, long time, boolean timedOut) {
+
+    }
+
+    /**
+     * Called when a lock that guards the encryption or decryption of messages was released
+     *
+     * @param name     the non-null name of the critical section that held the lock
+     * @param waitTime the time spent waiting to acquire the lock in nanoseconds
+     * @param holdTime the time the lock was held in nanoseconds
+     */
+    default void onLock(String name, long waitTime, long holdTime) {
+
+    }
+
+    /**
+     * Called when a signal message couldn't be decrypted
+     *
+     * @param type      the non-null type of the encrypted message
+     * @param throwable the non-null error
+     */
+    default void onDecryptFailure(String type, Throwable throwable) {
+
+    }
+
+    /**
+     * Called when sender keys were evicted because a group exceeded the limits on skipped message keys or on sender key states
+     *
+     * @param messageKeys the number of skipped sender message keys that were evicted
+     * @param states      the number of sender key states that were evicted
+     */
+    default void onSenderKeyEviction(int messageKeys, int states) {
+
+    }
+
+    /**
+     * Called when a listener was invoked
+     *
+     * @param listener  the non-null type of the listener
+     * @param queueTime the time between the event and the invocation of the listener in nanoseconds
+     * @param runTime   the time it took the listener to run in nanoseconds
+     */
+    default void onListener(Class<?> listener, long queueTime, long runTime) {
+
+    }
+
+    /**
+     * Called when a controller was serialized
+     *
+     * @param type the non-null type of the controller
+     * @param time the time it took to serialize the controller in nanoseconds
+     */
+    default void onFlush(String type, long time) {
+
+    }
+
+    /**
+     * Called when a session was shut down gracefully
+     *
+     * @param reason  the non-null reason of the shutdown
+     * @param time    the time it took to drain, flush and serialize the session in nanoseconds
+     * @param dropped the number of outgoing messages that weren't sent before the shutdown timeout
+     */
+    default void onShutdown(String reason, long time, int dropped) {
+
+    }
+}
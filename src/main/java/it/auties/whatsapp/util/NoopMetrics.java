@@ -0,0 +1,14 @@
+package it.auties.whatsapp.util;
+
+final class NoopMetrics implements Metrics {
+    static final NoopMetrics INSTANCE = new NoopMetrics();
+
+    private NoopMetrics() {
+
+    }
+
+    @Override
+    public boolean enabled() {
+        return false;
+    }
+}
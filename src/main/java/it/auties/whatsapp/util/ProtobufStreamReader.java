@@ -0,0 +1,136 @@
+package it.auties.whatsapp.util;
+
+import java.io.*;
+
+/**
+ * A reader that walks the top level fields of a protobuf message from a stream, one at a time.
+ * This allows to decode repeated fields, like the conversations of a history sync, without keeping the whole message in memory.
+ */
+public final class ProtobufStreamReader implements Closeable {
+    private static final int WIRE_TYPE_VAR_INT = 0;
+    private static final int WIRE_TYPE_FIXED_64 = 1;
+    private static final int WIRE_TYPE_LENGTH_DELIMITED = 2;
+    private static final int WIRE_TYPE_FIXED_32 = 5;
+
+    private final InputStream input;
+    private final int maxFieldLength;
+    private int index;
+    private int wireType;
+
+    public ProtobufStreamReader(InputStream input, int maxFieldLength) {
+        this.input = input instanceof BufferedInputStream ? input : new BufferedInputStream(input);
+        this.maxFieldLength = maxFieldLength;
+    }
+
+    /**
+     * Moves to the next field
+     *
+     * @return false if the end of the stream was reached
+     * @throws IOException if the stream cannot be read
+     */
+    public boolean next() throws IOException {
+        var first = input.read();
+        if (first == -1) {
+            return false;
+        }
+
+        var tag = readVarInt(first);
+        this.index = (int) (tag >>> 3);
+        this.wireType = (int) (tag & 7);
+        return true;
+    }
+
+    /**
+     * Returns the index of the current field
+     *
+     * @return an int
+     */
+    public int index() {
+        return index;
+    }
+
+    /**
+     * Reads the current field as a var int
+     *
+     * @return a long
+     * @throws IOException if the stream cannot be read
+     */
+    public long readVarInt() throws IOException {
+        Validate.isTrue(wireType == WIRE_TYPE_VAR_INT, "Field %s is not a var int", index);
+        return readVarInt(readByte());
+    }
+
+    /**
+     * Reads the current field as a length delimited value
+     *
+     * @return a non-null array of bytes
+     * @throws IOException if the stream cannot be read
+     */
+    public byte[] readBytes() throws IOException {
+        Validate.isTrue(wireType == WIRE_TYPE_LENGTH_DELIMITED, "Field %s is not length delimited", index);
+        var length = readLength();
+        var result = input.readNBytes(length);
+        if (result.length != length) {
+            throw new EOFException("Truncated field %s: expected %s bytes, got %s".formatted(index, length, result.length));
+        }
+
+        return result;
+    }
+
+    /**
+     * Skips the current field without reading it
+     *
+     * @throws IOException if the stream cannot be read
+     */
+    public void skip() throws IOException {
+        switch (wireType) {
+            case WIRE_TYPE_VAR_INT -> readVarInt(readByte());
+            case WIRE_TYPE_FIXED_64 -> skipBytes(8);
+            case WIRE_TYPE_LENGTH_DELIMITED -> skipBytes(readVarInt(readByte()));
+            case WIRE_TYPE_FIXED_32 -> skipBytes(4);
+            default -> throw new IOException("Unsupported wire type %s for field %s".formatted(wireType, index));
+        }
+    }
+
+    private int readLength() throws IOException {
+        var length = readVarInt(readByte());
+        if (length < 0 || length > maxFieldLength) {
+            throw new IOException("Field %s is too large: %s bytes".formatted(index, length));
+        }
+
+        return (int) length;
+    }
+
+    private void skipBytes(long length) throws IOException {
+        input.skipNBytes(length);
+    }
+
+    private int readByte() throws IOException {
+        var result = input.read();
+        if (result == -1) {
+            throw new EOFException("Truncated field %s".formatted(index));
+        }
+
+        return result;
+    }
+
+    private long readVarInt(int first) throws IOException {
+        var result = (long) (first & 0x7F);
+        var current = first;
+        for (var shift = 7; (current & 0x80) != 0; shift += 7) {
+            if (shift >= 64) {
+                throw new IOException("Malformed var int");
+            }
+
+            current = readByte();
+            result |= (long) (current & 0x7F) << shift;
+        }
+
+        return result;
+    }
+
+    @Override
+    public void close() throws IOException {
+        input.close();
+    }
+}
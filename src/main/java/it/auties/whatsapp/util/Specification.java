@@ -6,6 +6,7 @@ import it.auties.whatsapp.model.signal.auth.Version;
 
 import java.net.URI;
 import java.nio.charset.StandardCharsets;
+import java.time.Duration;
 import java.util.Base64;
 import java.util.HexFormat;
 
@@ -58,6 +59,10 @@ public class Specification {
         public static final int KEY_TYPE = 5;
         public static final byte[] KEY_BUNDLE_TYPE = new byte[]{5};
         public static final int MAX_MESSAGES = 2000;
+        public static final int MAX_SKIPPED_MESSAGE_KEYS = 2000;
+        public static final int MAX_SENDER_MESSAGE_KEYS = 2000;
+        public static final int MAX_SENDER_KEY_STATES = 5;
+        public static final Duration CONSUMED_PRE_KEY_GRACE_PERIOD = Duration.ofDays(1);
         public static final String SKMSG = "skmsg";
         public static final String PKMSG = "pkmsg";
         public static final String MSG = "msg";
@@ -22,6 +22,7 @@ open module it.auties.cobalt {
     requires io.netty.buffer;
     requires io.netty.common;
     requires java.compiler;
+    requires jdk.jfr;
     requires com.fasterxml.jackson.datatype.jdk8;
 
     exports it.auties.whatsapp.api;
@@ -0,0 +1,87 @@
+package it.auties.whatsapp.benchmark;
+
+import it.auties.whatsapp.model.jid.Jid;
+import it.auties.whatsapp.model.jid.JidServer;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.concurrent.TimeUnit;
+
+// Run with mvn -Pbenchmark test-compile, then execute this class using the test classpath
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class JidBenchmark {
+    private static final String[] JIDS = {
+            "393495089819@s.whatsapp.net",
+            "393495089819:12@s.whatsapp.net",
+            "393495089819_1:3@s.whatsapp.net",
+            "120363025246125486@g.us",
+            "status@broadcast",
+            "84721924927537@lid",
+            "120363144038483540@newsletter"
+    };
+
+    private String[] uniqueJids;
+    private Jid[] parsedJids;
+    private int index;
+
+    @Setup
+    public void setup() {
+        this.uniqueJids = new String[4096];
+        for (var i = 0; i < uniqueJids.length; i++) {
+            uniqueJids[i] = "39%010d:%d@s.whatsapp.net".formatted(i, i % 32 + 1);
+        }
+
+        this.parsedJids = new Jid[JIDS.length];
+        for (var i = 0; i < JIDS.length; i++) {
+            parsedJids[i] = Jid.of(JIDS[i]);
+        }
+    }
+
+    @Benchmark
+    public void parseHot(Blackhole blackhole) {
+        for (var jid : JIDS) {
+            blackhole.consume(Jid.of(jid));
+        }
+    }
+
+    @Benchmark
+    public Jid parseCold() {
+        return Jid.of(uniqueJids[index++ & (uniqueJids.length - 1)]);
+    }
+
+    @Benchmark
+    public void parseWithServer(Blackhole blackhole) {
+        for (var jid : JIDS) {
+            blackhole.consume(Jid.of(jid, JidServer.of(jid)));
+        }
+    }
+
+    @Benchmark
+    public void serialize(Blackhole blackhole) {
+        for (var jid : parsedJids) {
+            blackhole.consume(jid.toString());
+        }
+    }
+
+    @Benchmark
+    public void hash(Blackhole blackhole) {
+        for (var jid : parsedJids) {
+            blackhole.consume(jid.hashCode());
+        }
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        var options = new OptionsBuilder()
+                .include(JidBenchmark.class.getSimpleName())
+                .build();
+        new Runner(options).run();
+    }
+}
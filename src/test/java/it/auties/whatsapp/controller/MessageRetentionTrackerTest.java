@@ -0,0 +1,118 @@
+package it.auties.whatsapp.controller;
+
+import it.auties.whatsapp.model.chat.Chat;
+import it.auties.whatsapp.model.chat.ChatBuilder;
+import it.auties.whatsapp.model.info.ChatMessageInfo;
+import it.auties.whatsapp.model.info.ChatMessageInfoBuilder;
+import it.auties.whatsapp.model.info.ChatMessageInfoSpec;
+import it.auties.whatsapp.model.jid.Jid;
+import it.auties.whatsapp.model.message.model.ChatMessageKeyBuilder;
+import it.auties.whatsapp.model.message.model.MessageContainer;
+import it.auties.whatsapp.model.message.model.MessageStatus;
+import it.auties.whatsapp.model.sync.HistorySyncMessage;
+import it.auties.whatsapp.util.Clock;
+import it.auties.whatsapp.util.MessageArchive;
+import it.auties.whatsapp.util.MessageRetention;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+// Evicts messages according to a retention policy and moves them to an archive
+public class MessageRetentionTrackerTest {
+    private static final Jid FIRST_CHAT = Jid.of("393200000001@s.whatsapp.net");
+    private static final Jid SECOND_CHAT = Jid.of("393200000002@s.whatsapp.net");
+    private static final long TIMESTAMP = 1_700_000_000L;
+
+    @TempDir
+    private Path directory;
+
+    @Test
+    public void testMaxMessagesPerChat() {
+        try (var archive = MessageArchive.of(directory)) {
+            var tracker = new MessageRetentionTracker(MessageRetention.of(3, null, 0).withArchive(archive));
+            var chat = chat(FIRST_CHAT);
+            for (var index = 0; index < 5; index++) {
+                add(tracker, chat, message(FIRST_CHAT, index, TIMESTAMP + index), Map.of(FIRST_CHAT, chat));
+            }
+
+            assertEquals(List.of("ID2", "ID3", "ID4"), ids(chat));
+            assertEquals(2, archive.size());
+            assertTrue(archive.contains(FIRST_CHAT, "ID0"));
+            assertTrue(archive.contains(FIRST_CHAT, "ID1"));
+        }
+    }
+
+    @Test
+    public void testMaxAge() {
+        var tracker = new MessageRetentionTracker(MessageRetention.of(0, Duration.ofHours(1), 0));
+        var chat = chat(FIRST_CHAT);
+        var now = Clock.nowSeconds();
+        add(tracker, chat, message(FIRST_CHAT, 0, now - Duration.ofHours(2).toSeconds()), Map.of(FIRST_CHAT, chat));
+        add(tracker, chat, message(FIRST_CHAT, 1, now), Map.of(FIRST_CHAT, chat));
+        assertEquals(List.of("ID1"), ids(chat));
+    }
+
+    @Test
+    public void testMaxBytesEvictsOldestAcrossChats() {
+        var size = ChatMessageInfoSpec.encode(message(FIRST_CHAT, 0, TIMESTAMP)).length;
+        try (var archive = MessageArchive.of(directory)) {
+            var tracker = new MessageRetentionTracker(MessageRetention.of(0, null, size * 4L).withArchive(archive));
+            var first = chat(FIRST_CHAT);
+            var second = chat(SECOND_CHAT);
+            var chats = Map.of(FIRST_CHAT, first, SECOND_CHAT, second);
+            for (var index = 0; index < 6; index++) {
+                var chat = index % 2 == 0 ? first : second;
+                add(tracker, chat, message(chat.jid(), index, TIMESTAMP + index), chats);
+            }
+
+            // The fifth message exceeds the limit, so the two oldest ones are evicted to get below the low watermark
+            assertEquals(List.of("ID2", "ID4"), ids(first));
+            assertEquals(List.of("ID3", "ID5"), ids(second));
+            assertEquals(2, archive.size());
+            assertTrue(archive.contains(FIRST_CHAT, "ID0"));
+            assertTrue(archive.contains(SECOND_CHAT, "ID1"));
+        }
+    }
+
+    private static void add(MessageRetentionTracker tracker, Chat chat, ChatMessageInfo info, Map<Jid, Chat> chats) {
+        chat.addNewMessage(info);
+        tracker.onMessage(chat, info, jid -> Optional.ofNullable(chats.get(jid)));
+    }
+
+    private static Chat chat(Jid jid) {
+        return new ChatBuilder()
+                .jid(jid)
+                .build();
+    }
+
+    private static ChatMessageInfo message(Jid chatJid, int index, long timestampSeconds) {
+        var key = new ChatMessageKeyBuilder()
+                .id("ID" + index)
+                .chatJid(chatJid)
+                .senderJid(chatJid)
+                .fromMe(false)
+                .build();
+        return new ChatMessageInfoBuilder()
+                .key(key)
+                .senderJid(chatJid)
+                .status(MessageStatus.DELIVERED)
+                .message(MessageContainer.of("Message " + index))
+                .timestampSeconds(timestampSeconds)
+                .build();
+    }
+
+    private static List<String> ids(Chat chat) {
+        return chat.messages()
+                .stream()
+                .map(HistorySyncMessage::messageInfo)
+                .map(ChatMessageInfo::id)
+                .toList();
+    }
+}
@@ -0,0 +1,170 @@
+package it.auties.whatsapp.crypto;
+
+import it.auties.whatsapp.api.ClientType;
+import it.auties.whatsapp.controller.DefaultControllerSerializer;
+import it.auties.whatsapp.controller.Keys;
+import it.auties.whatsapp.model.signal.keypair.SignalPreKeyPair;
+import it.auties.whatsapp.model.signal.keypair.SignalSignedKeyPair;
+import it.auties.whatsapp.model.signal.message.SignalMessage;
+import it.auties.whatsapp.model.signal.message.SignalPreKeyMessage;
+import it.auties.whatsapp.model.signal.session.SessionAddress;
+import it.auties.whatsapp.util.Specification.Signal;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.IntStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+// Runs a signal session between two local key stores, without connecting to Whatsapp
+public class SessionCipherTest {
+    private static final SessionAddress ALICE = new SessionAddress("alice", 0);
+    private static final SessionAddress BOB = new SessionAddress("bob", 0);
+
+    @TempDir
+    private Path directory;
+    private Keys alice;
+    private Keys bob;
+
+    @BeforeEach
+    public void setup() {
+        var serializer = new DefaultControllerSerializer(directory);
+        this.alice = Keys.builder()
+                .clientType(ClientType.WEB)
+                .serializer(serializer)
+                .build();
+        this.bob = Keys.builder()
+                .clientType(ClientType.WEB)
+                .serializer(serializer)
+                .build();
+        var preKey = SignalPreKeyPair.random(1);
+        alice.addPreKey(preKey);
+        new SessionBuilder(ALICE, bob).createOutgoing(
+                alice.registrationId(),
+                alice.identityKeyPair().encodedPublicKey(),
+                alice.signedKeyPair(),
+                new SignalSignedKeyPair(preKey.id(), preKey.toGenericKeyPair(), null)
+        );
+    }
+
+    @Test
+    public void testInOrder() {
+        var messages = encrypt(bob, ALICE, 10);
+        for (var index = 0; index < messages.size(); index++) {
+            assertEquals(text(index), decrypt(alice, BOB, messages.get(index)));
+        }
+    }
+
+    @Test
+    public void testOutOfOrder() {
+        var messages = encrypt(bob, ALICE, 50);
+        assertEquals(text(0), decrypt(alice, BOB, messages.getFirst()));
+        var order = new ArrayList<>(IntStream.range(1, messages.size()).boxed().toList());
+        Collections.shuffle(order, new Random(0));
+        for (var index : order) {
+            assertEquals(text(index), decrypt(alice, BOB, messages.get(index)));
+        }
+    }
+
+    @Test
+    public void testReplay() {
+        var messages = encrypt(bob, ALICE, 2);
+        assertEquals(text(0), decrypt(alice, BOB, messages.get(0)));
+        assertEquals(text(1), decrypt(alice, BOB, messages.get(1)));
+        assertThrows(RuntimeException.class, () -> decrypt(alice, BOB, messages.get(1)));
+    }
+
+    @Test
+    public void testLargeGap() {
+        var messages = encrypt(bob, ALICE, Signal.MAX_MESSAGES);
+        assertEquals(text(0), decrypt(alice, BOB, messages.getFirst()));
+        assertEquals(text(messages.size() - 1), decrypt(alice, BOB, messages.getLast()));
+        assertEquals(Signal.MAX_MESSAGES - 2, countMessageKeys(alice, BOB));
+        assertEquals(text(1), decrypt(alice, BOB, messages.get(1)));
+        assertEquals(text(messages.size() / 2), decrypt(alice, BOB, messages.get(messages.size() / 2)));
+    }
+
+    @Test
+    public void testGapOverflow() {
+        var messages = encrypt(bob, ALICE, Signal.MAX_MESSAGES + 2);
+        assertEquals(text(0), decrypt(alice, BOB, messages.getFirst()));
+        assertThrows(RuntimeException.class, () -> decrypt(alice, BOB, messages.getLast()));
+    }
+
+    @Test
+    public void testSkippedKeysBudget() {
+        var oldMessages = encrypt(bob, ALICE, Signal.MAX_SKIPPED_MESSAGE_KEYS + 1);
+        assertEquals(text(0), decrypt(alice, BOB, oldMessages.getFirst()));
+        assertEquals(text(oldMessages.size() - 1), decrypt(alice, BOB, oldMessages.getLast()));
+        assertEquals(Signal.MAX_SKIPPED_MESSAGE_KEYS - 1, countMessageKeys(alice, BOB));
+
+        var reply = encrypt(alice, BOB, 1);
+        assertEquals(text(0), decrypt(bob, ALICE, reply.getFirst()));
+
+        var newMessages = encrypt(bob, ALICE, 11);
+        assertEquals(text(10), decrypt(alice, BOB, newMessages.getLast()));
+        assertEquals(Signal.MAX_SKIPPED_MESSAGE_KEYS - 1, countMessageKeys(alice, BOB));
+        assertThrows(RuntimeException.class, () -> decrypt(alice, BOB, oldMessages.get(1)));
+        assertEquals(text(100), decrypt(alice, BOB, oldMessages.get(100)));
+        assertEquals(text(0), decrypt(alice, BOB, newMessages.getFirst()));
+    }
+
+    @Test
+    public void testReplyAtSkippedKeysBudget() {
+        var messages = encrypt(bob, ALICE, Signal.MAX_SKIPPED_MESSAGE_KEYS + 3);
+        assertEquals(text(0), decrypt(alice, BOB, messages.getFirst()));
+        assertEquals(text(messages.size() / 2), decrypt(alice, BOB, messages.get(messages.size() / 2)));
+        assertEquals(text(messages.size() - 1), decrypt(alice, BOB, messages.getLast()));
+        assertEquals(Signal.MAX_SKIPPED_MESSAGE_KEYS, countMessageKeys(alice, BOB));
+
+        var replies = encrypt(alice, BOB, 2);
+        assertEquals(text(0), decrypt(bob, ALICE, replies.get(0)));
+        assertEquals(text(1), decrypt(bob, ALICE, replies.get(1)));
+        assertEquals(Signal.MAX_SKIPPED_MESSAGE_KEYS, countMessageKeys(alice, BOB));
+        assertEquals(text(1), decrypt(alice, BOB, messages.get(1)));
+    }
+
+    private List<byte[]> encrypt(Keys sender, SessionAddress recipient, int count) {
+        var cipher = new SessionCipher(recipient, sender);
+        return IntStream.range(0, count)
+                .mapToObj(index -> cipher.encrypt(text(index).getBytes(StandardCharsets.UTF_8)))
+                .map(result -> encodeType(result.type(), result.message()))
+                .toList();
+    }
+
+    private byte[] encodeType(String type, byte[] message) {
+        var result = new byte[message.length + 1];
+        result[0] = (byte) (Signal.PKMSG.equals(type) ? 1 : 0);
+        System.arraycopy(message, 0, result, 1, message.length);
+        return result;
+    }
+
+    private String decrypt(Keys recipient, SessionAddress sender, byte[] encoded) {
+        var cipher = new SessionCipher(sender, recipient);
+        var message = new byte[encoded.length - 1];
+        System.arraycopy(encoded, 1, message, 0, message.length);
+        var result = encoded[0] == 1 ? cipher.decrypt(SignalPreKeyMessage.ofSerialized(message)) : cipher.decrypt(SignalMessage.ofSerialized(message));
+        return new String(result, StandardCharsets.UTF_8);
+    }
+
+    private int countMessageKeys(Keys keys, SessionAddress address) {
+        return keys.findSessionByAddress(address)
+                .orElseThrow()
+                .states()
+                .stream()
+                .flatMap(state -> state.chains().stream())
+                .mapToInt(chain -> chain.messageKeys().size())
+                .sum();
+    }
+
+    private String text(int index) {
+        return "message " + index;
+    }
+}
@@ -0,0 +1,363 @@
+package it.auties.whatsapp.mock;
+
+import it.auties.whatsapp.binary.BinaryDecoder;
+import it.auties.whatsapp.binary.BinaryEncoder;
+import it.auties.whatsapp.crypto.AesGcm;
+import it.auties.whatsapp.model.chat.ChatBuilder;
+import it.auties.whatsapp.model.contact.ContactStatus;
+import it.auties.whatsapp.model.info.ChatMessageInfoBuilder;
+import it.auties.whatsapp.model.jid.Jid;
+import it.auties.whatsapp.model.jid.JidServer;
+import it.auties.whatsapp.model.message.model.ChatMessageKey;
+import it.auties.whatsapp.model.message.model.ChatMessageKeyBuilder;
+import it.auties.whatsapp.model.message.model.MessageContainer;
+import it.auties.whatsapp.model.message.model.MessageStatus;
+import it.auties.whatsapp.model.message.server.ProtocolMessage;
+import it.auties.whatsapp.model.message.server.ProtocolMessageBuilder;
+import it.auties.whatsapp.model.node.Node;
+import it.auties.whatsapp.model.sync.HistorySync;
+import it.auties.whatsapp.model.sync.HistorySyncBuilder;
+import it.auties.whatsapp.model.sync.HistorySyncNotificationBuilder;
+import it.auties.whatsapp.model.sync.HistorySyncSpec;
+import it.auties.whatsapp.util.BytesHelper;
+import it.auties.whatsapp.util.Clock;
+import it.auties.whatsapp.util.Specification;
+
+import java.io.*;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeoutException;
+
+// A connection from a client to the mock server: the HTTP CONNECT request of the proxy is answered first, then the noise handshake is run and the nodes that the client sends are dispatched by description
+// Every message sent to the client registers a future that is completed when the client acknowledges it, which is how a scenario knows that it was processed
+final class MockConnection implements Runnable {
+    private static final byte[] TUNNEL_END = "\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] TUNNEL_RESPONSE = "HTTP/1.1 200 Connection established\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+
+    private final MockServer server;
+    private final Socket socket;
+    private final Map<String, CompletableFuture<Void>> pendingAcks;
+    private DataInputStream input;
+    private OutputStream output;
+    private byte[] readKey;
+    private byte[] writeKey;
+    private long readCounter;
+    private long writeCounter;
+    private Jid client;
+
+    MockConnection(MockServer server, Socket socket) {
+        this.server = server;
+        this.socket = socket;
+        this.pendingAcks = new ConcurrentHashMap<>();
+    }
+
+    @Override
+    public void run() {
+        try {
+            this.input = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            this.output = socket.getOutputStream();
+            openTunnel();
+            login();
+            server.onConnected(this);
+            while (!socket.isClosed()) {
+                var plainText = AesGcm.decrypt(readCounter++, readFrame(), readKey);
+                var decoder = new BinaryDecoder();
+                onNode(decoder.decode(plainText));
+            }
+        } catch (EOFException | SocketException ignored) {
+
+        } catch (Throwable throwable) {
+            server.onError(throwable);
+        } finally {
+            server.onDisconnected(this);
+            pendingAcks.values().forEach(future -> future.completeExceptionally(new EOFException("The client disconnected")));
+            close();
+        }
+    }
+
+    private void openTunnel() throws IOException {
+        var matched = 0;
+        while (matched < TUNNEL_END.length) {
+            var read = input.read();
+            if (read == -1) {
+                throw new EOFException("The client closed the tunnel");
+            }
+
+            matched = read == TUNNEL_END[matched] ? matched + 1 : (read == TUNNEL_END[0] ? 1 : 0);
+        }
+
+        output.write(TUNNEL_RESPONSE);
+        output.flush();
+    }
+
+    private void login() throws IOException, TimeoutException {
+        var prologue = input.readNBytes(Specification.Whatsapp.MOBILE_PROLOGUE.length);
+        if (!Arrays.equals(prologue, Specification.Whatsapp.MOBILE_PROLOGUE)) {
+            throw new IllegalArgumentException("Unexpected prologue: %s".formatted(HexFormat.of().formatHex(prologue)));
+        }
+
+        var handshake = new MockHandshake(prologue);
+        writeFrame(handshake.onClientHello(readFrame()));
+        var payload = handshake.onClientFinish(readFrame());
+        this.client = Jid.of(Objects.requireNonNull(payload.username(), "Missing username"));
+        this.readKey = handshake.readKey();
+        this.writeKey = handshake.writeKey();
+        server.awaitHandshake(client);
+        send(Node.of("success", Map.of("t", Clock.nowSeconds())));
+    }
+
+    // SocketRequest writes the upper bits of the length as an int instead of a byte, so every frame of the client is preceded by an empty one, which is skipped
+    private byte[] readFrame() throws IOException {
+        while (true) {
+            var length = (input.readUnsignedByte() << 16) | input.readUnsignedShort();
+            if (length != 0) {
+                return input.readNBytes(length);
+            }
+        }
+    }
+
+    private synchronized void writeFrame(byte[] frame) throws IOException {
+        output.write(frame.length >> 16);
+        output.write(frame.length >> 8);
+        output.write(frame.length);
+        output.write(frame);
+        output.flush();
+    }
+
+    synchronized void send(Node node) {
+        try {
+            var encoder = new BinaryEncoder();
+            writeFrame(AesGcm.encrypt(writeCounter++, encoder.encode(node), writeKey));
+        } catch (IOException exception) {
+            throw new UncheckedIOException("Cannot send node to client", exception);
+        }
+    }
+
+    private void onNode(Node node) {
+        switch (node.description()) {
+            case "iq" -> onIq(node);
+            case "message" -> onMessage(node);
+            case "ack" -> onAck(node);
+            default -> {}
+        }
+    }
+
+    private void onIq(Node node) {
+        var type = node.attributes().getString("type");
+        if (!Objects.equals(type, "get") && !Objects.equals(type, "set")) {
+            return;
+        }
+
+        var body = switch (node.attributes().getString("xmlns")) {
+            case "encrypt" -> onEncrypt(node);
+            case "usync" -> onUsync(node);
+            case "w:m" -> List.of(Node.of("media_conn", Map.of("auth", "mock", "ttl", 3600, "max_buckets", 12), Node.of("host", Map.of("hostname", "127.0.0.1"))));
+            case "w" -> List.of(Node.of("props"));
+            case "blocklist" -> List.of(Node.of("list"));
+            case "privacy" -> List.of(Node.of("privacy"));
+            case "w:sync:app:state" -> List.of(Node.of("sync", node.findNode("sync").map(Node::children).orElseGet(LinkedList::new)));
+            case "w:g2" -> onGroup(node);
+            case null, default -> List.<Node>of();
+        };
+        var attributes = Map.<String, Object>of("id", node.id(), "type", "result", "from", JidServer.WHATSAPP.toJid());
+        send(Node.of("iq", attributes, body));
+    }
+
+    private List<Node> onEncrypt(Node node) {
+        if (node.hasNode("registration")) {
+            server.onPreKeys(client, node);
+            return List.of();
+        }
+
+        var request = node.findNode("key");
+        if (request.isPresent()) {
+            var users = request.get()
+                    .findNodes("user")
+                    .stream()
+                    .map(user -> user.attributes().getJid("jid").orElseThrow())
+                    .map(jid -> server.findContact(jid).map(contact -> contact.takeBundle().toNode(jid)))
+                    .flatMap(Optional::stream)
+                    .toList();
+            return List.of(Node.of("list", users));
+        }
+
+        return List.of(Node.of("count", Map.of("value", server.preKeys(client))));
+    }
+
+    // Every user has a single device, the primary one, which is the one that a client never sends to when the user is itself
+    private List<Node> onUsync(Node node) {
+        var usync = node.findNode("usync").orElseThrow(() -> new NoSuchElementException("Missing usync"));
+        var devices = usync.findNode("query")
+                .map(query -> query.hasNode("devices"))
+                .orElse(false);
+        var users = usync.findNode("list")
+                .map(list -> list.findNodes("user"))
+                .orElse(List.of())
+                .stream()
+                .map(user -> user.attributes().getJid("jid"))
+                .flatMap(Optional::stream)
+                .map(jid -> devices ? Node.of("user", Map.of("jid", jid), Node.of("devices", Node.of("device-list", Node.of("device", Map.of("id", 0))))) : Node.of("user", Map.of("jid", jid)))
+                .toList();
+        return List.of(Node.of("usync", Node.of("list", users)));
+    }
+
+    private List<Node> onGroup(Node node) {
+        return node.attributes()
+                .getJid("to")
+                .flatMap(server::findGroup)
+                .map(group -> List.of(group.toNode(client)))
+                .orElse(List.of());
+    }
+
+    // Messages addressed to known contacts are decrypted into their inbox, then acknowledged and marked as delivered like the real server does
+    private void onMessage(Node node) {
+        var id = node.id();
+        var to = node.attributes()
+                .getJid("to")
+                .orElseThrow(() -> new NoSuchElementException("Missing recipient"));
+        var participants = node.findNode("participants")
+                .map(entry -> entry.findNodes("to"))
+                .orElse(List.of());
+        for (var participant : participants) {
+            var recipient = participant.attributes().getJid("jid").flatMap(server::findContact);
+            var enc = participant.findNode("enc");
+            if (recipient.isPresent() && enc.isPresent()) {
+                recipient.get().decrypt(client, enc.get());
+            }
+        }
+
+        send(Node.of("ack", Map.of("class", "message", "id", id, "from", to, "t", Clock.nowSeconds())));
+        if (server.findContact(to).isPresent()) {
+            send(Node.of("receipt", Map.of("id", id, "from", to, "t", Clock.nowSeconds())));
+        }
+    }
+
+    private void onAck(Node node) {
+        if (!Objects.equals(node.attributes().getString("class"), "message")) {
+            return;
+        }
+
+        var pending = pendingAcks.remove(node.id());
+        if (pending != null) {
+            pending.complete(null);
+        }
+    }
+
+    CompletableFuture<Void> sendMessage(MockContact from, MessageContainer message, boolean offline) {
+        var enc = from.encrypt(client, message);
+        var attributes = new HashMap<String, Object>();
+        attributes.put("from", from.jid());
+        if (offline) {
+            attributes.put("offline", "1");
+        }
+
+        return sendMessage(attributes, List.of(enc));
+    }
+
+    CompletableFuture<Void> sendGroupMessage(Jid group, MockContact from, MessageContainer message) {
+        var enc = from.encrypt(group, client, message);
+        var attributes = new HashMap<String, Object>();
+        attributes.put("from", group);
+        attributes.put("participant", from.jid());
+        return sendMessage(attributes, enc);
+    }
+
+    private CompletableFuture<Void> sendMessage(Map<String, Object> attributes, List<Node> enc) {
+        var id = ChatMessageKey.randomId();
+        var future = new CompletableFuture<Void>();
+        pendingAcks.put(id, future);
+        attributes.put("id", id);
+        attributes.put("type", "text");
+        attributes.put("t", Clock.nowSeconds());
+        send(Node.of("message", attributes, enc));
+        return future;
+    }
+
+    CompletableFuture<Void> sendPresence(MockContact contact, ContactStatus status) {
+        if (status == ContactStatus.AVAILABLE || status == ContactStatus.UNAVAILABLE) {
+            send(Node.of("presence", Map.of("from", contact.jid(), "type", status.toString())));
+        } else {
+            send(Node.of("chatstate", Map.of("from", contact.jid()), Node.of(status.toString())));
+        }
+
+        return CompletableFuture.completedFuture(null);
+    }
+
+    // The history is sent inline, so the client doesn't need to download it from a media host
+    CompletableFuture<Void> sendHistorySync(List<MockContact> contacts, int messagesPerChat) {
+        var chats = contacts.stream()
+                .map(contact -> {
+                    var chat = new ChatBuilder()
+                            .jid(contact.jid())
+                            .build();
+                    for (var index = 0; index < messagesPerChat; index++) {
+                        var key = new ChatMessageKeyBuilder()
+                                .id(ChatMessageKey.randomId())
+                                .chatJid(contact.jid())
+                                .senderJid(contact.jid())
+                                .fromMe(false)
+                                .build();
+                        var info = new ChatMessageInfoBuilder()
+                                .key(key)
+                                .senderJid(contact.jid())
+                                .status(MessageStatus.DELIVERED)
+                                .message(MessageContainer.of("history message " + index))
+                                .timestampSeconds(Clock.nowSeconds() - messagesPerChat + index)
+                                .build();
+                        chat.addNewMessage(info);
+                    }
+
+                    return chat;
+                })
+                .toList();
+        var history = new HistorySyncBuilder()
+                .syncType(HistorySync.Type.INITIAL_BOOTSTRAP)
+                .conversations(chats)
+                .progress(100)
+                .build();
+        var notification = new HistorySyncNotificationBuilder()
+                .syncType(HistorySync.Type.INITIAL_BOOTSTRAP)
+                .initialHistBootstrapInlinePayload(BytesHelper.compress(HistorySyncSpec.encode(history)))
+                .progress(100)
+                .build();
+        var protocolMessage = new ProtocolMessageBuilder()
+                .protocolType(ProtocolMessage.Type.HISTORY_SYNC_NOTIFICATION)
+                .historySyncNotification(notification)
+                .build();
+        return sendMessage(server.companion(client), MessageContainer.of(protocolMessage), false);
+    }
+
+    CompletableFuture<Void> sendOfflinePreview(int count) {
+        send(Node.of("ib", Node.of("offline_preview", Map.of("count", count, "message", count))));
+        return CompletableFuture.completedFuture(null);
+    }
+
+    CompletableFuture<Void> sendOfflineEnd(int count) {
+        send(Node.of("ib", Node.of("offline", Map.of("count", count))));
+        return CompletableFuture.completedFuture(null);
+    }
+
+    void sendPreKeysCount(int count) {
+        var attributes = Map.<String, Object>of("id", ChatMessageKey.randomId(), "from", JidServer.WHATSAPP.toJid(), "type", "encrypt", "t", Clock.nowSeconds());
+        send(Node.of("notification", attributes, Node.of("count", Map.of("value", count))));
+    }
+
+    CompletableFuture<Duration> play(MockScenario scenario) {
+        var start = System.nanoTime();
+        return scenario.play(this)
+                .thenApply(ignored -> Duration.ofNanos(System.nanoTime() - start));
+    }
+
+    void close() {
+        try {
+            socket.close();
+        } catch (IOException ignored) {
+
+        }
+    }
+}
@@ -0,0 +1,106 @@
+package it.auties.whatsapp.mock;
+
+import it.auties.whatsapp.controller.Keys;
+import it.auties.whatsapp.crypto.GroupBuilder;
+import it.auties.whatsapp.crypto.GroupCipher;
+import it.auties.whatsapp.crypto.SessionBuilder;
+import it.auties.whatsapp.crypto.SessionCipher;
+import it.auties.whatsapp.model.jid.Jid;
+import it.auties.whatsapp.model.message.model.MessageContainer;
+import it.auties.whatsapp.model.message.server.SenderKeyDistributionMessage;
+import it.auties.whatsapp.model.node.Node;
+import it.auties.whatsapp.model.signal.keypair.SignalPreKeyPair;
+import it.auties.whatsapp.model.signal.keypair.SignalSignedKeyPair;
+import it.auties.whatsapp.model.signal.message.SignalMessage;
+import it.auties.whatsapp.model.signal.message.SignalPreKeyMessage;
+import it.auties.whatsapp.model.signal.sender.SenderKeyName;
+import it.auties.whatsapp.util.BytesHelper;
+import it.auties.whatsapp.util.KeyHelper;
+
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static it.auties.whatsapp.util.Specification.Signal.PKMSG;
+
+// A user of the mock server with its own signal keys: messages that it sends are encrypted exactly like the ones of a real device, and messages that the client sends to it are decrypted and kept in its inbox
+// A session with a client is created from the bundle that the client uploaded, so every new session consumes one of its pre keys
+public final class MockContact {
+    private final MockServer server;
+    private final Jid jid;
+    private final Keys keys;
+    private final Map<Jid, Set<Jid>> senderKeyRecipients;
+    private final BlockingQueue<MessageContainer> inbox;
+    private int lastPreKeyId;
+
+    MockContact(MockServer server, Jid jid, Keys keys) {
+        this.server = server;
+        this.jid = jid;
+        this.keys = keys;
+        this.senderKeyRecipients = new HashMap<>();
+        this.inbox = new LinkedBlockingQueue<>();
+    }
+
+    public Jid jid() {
+        return jid;
+    }
+
+    // Returns the next message that the client sent to this contact, or an empty optional if none arrives before the timeout
+    public Optional<MessageContainer> awaitMessage(Duration timeout) throws InterruptedException {
+        return Optional.ofNullable(inbox.poll(timeout.toMillis(), TimeUnit.MILLISECONDS));
+    }
+
+    synchronized MockServer.Bundle takeBundle() {
+        var preKey = SignalPreKeyPair.random(++lastPreKeyId);
+        keys.addPreKey(preKey);
+        var signedPreKey = new SignalSignedKeyPair(preKey.id(), preKey.toGenericKeyPair(), null);
+        return new MockServer.Bundle(keys.registrationId(), keys.identityKeyPair().publicKey(), keys.signedKeyPair(), signedPreKey);
+    }
+
+    synchronized Node encrypt(Jid recipient, MessageContainer message) {
+        var address = recipient.toSignalAddress();
+        if (!keys.hasSession(address)) {
+            var bundle = server.takeBundle(recipient)
+                    .orElseThrow(() -> new NoSuchElementException("Cannot create a session with %s: no bundle was uploaded".formatted(recipient)));
+            var builder = new SessionBuilder(address, keys);
+            builder.createOutgoing(bundle.registrationId(), KeyHelper.withHeader(bundle.identity()), bundle.signedKey(), bundle.preKey());
+        }
+
+        var cipher = new SessionCipher(address, keys);
+        var result = cipher.encrypt(BytesHelper.messageToBytes(message));
+        return Node.of("enc", Map.of("v", "2", "type", result.type()), result.message());
+    }
+
+    // The sender key of a group is distributed to a recipient through a pairwise message the first time this contact writes to it in that group
+    synchronized List<Node> encrypt(Jid group, Jid recipient, MessageContainer message) {
+        var result = new ArrayList<Node>();
+        var name = new SenderKeyName(group.toString(), jid.toSignalAddress());
+        var distribution = new GroupBuilder(keys).createOutgoing(name);
+        var recipients = senderKeyRecipients.computeIfAbsent(group, ignored -> new HashSet<>());
+        if (recipients.add(recipient)) {
+            var distributionMessage = new SenderKeyDistributionMessage(group.toString(), distribution);
+            result.add(encrypt(recipient, MessageContainer.of(distributionMessage)));
+        }
+
+        var cipher = new GroupCipher(name, keys);
+        var groupMessage = cipher.encrypt(BytesHelper.messageToBytes(message));
+        result.add(Node.of("enc", Map.of("v", "2", "type", groupMessage.type()), groupMessage.message()));
+        return result;
+    }
+
+    synchronized void decrypt(Jid sender, Node enc) {
+        var type = enc.attributes().getRequiredString("type");
+        var encoded = enc.contentAsBytes()
+                .orElseThrow(() -> new NoSuchElementException("Missing encoded message"));
+        var cipher = new SessionCipher(sender.toSignalAddress(), keys);
+        var decoded = PKMSG.equals(type) ? cipher.decrypt(SignalPreKeyMessage.ofSerialized(encoded)) : cipher.decrypt(SignalMessage.ofSerialized(encoded));
+        inbox.add(BytesHelper.bytesToMessage(decoded));
+    }
+
+    @Override
+    public String toString() {
+        return "MockContact[jid=%s]".formatted(jid);
+    }
+}
@@ -0,0 +1,100 @@
+package it.auties.whatsapp.mock;
+
+import it.auties.curve25519.Curve25519;
+import it.auties.whatsapp.crypto.AesGcm;
+import it.auties.whatsapp.crypto.Hkdf;
+import it.auties.whatsapp.crypto.Sha256;
+import it.auties.whatsapp.model.signal.auth.*;
+import it.auties.whatsapp.model.signal.keypair.SignalKeyPair;
+import it.auties.whatsapp.util.BytesHelper;
+import it.auties.whatsapp.util.Specification;
+
+import java.util.Arrays;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+
+// The responder side of the Noise XX handshake that SocketHandshake and AuthHandler run as the initiator
+// Every step mirrors the one of the client in reverse, so a mistake on either side fails the login instead of going unnoticed
+final class MockHandshake {
+    private static final byte[] CERTIFICATE = "mock".getBytes();
+
+    private final SignalKeyPair ephemeralKeyPair;
+    private final SignalKeyPair staticKeyPair;
+    private byte[] hash;
+    private byte[] salt;
+    private byte[] cryptoKey;
+    private long counter;
+    private byte[] clientEphemeral;
+
+    MockHandshake(byte[] prologue) {
+        this.ephemeralKeyPair = SignalKeyPair.random();
+        this.staticKeyPair = SignalKeyPair.random();
+        this.hash = Specification.Whatsapp.NOISE_PROTOCOL;
+        this.salt = Specification.Whatsapp.NOISE_PROTOCOL;
+        this.cryptoKey = Specification.Whatsapp.NOISE_PROTOCOL;
+        updateHash(prologue);
+    }
+
+    byte[] onClientHello(byte[] message) {
+        var clientHello = HandshakeMessageSpec.decode(message).clientHello();
+        Objects.requireNonNull(clientHello, "Expected a client hello");
+        this.clientEphemeral = clientHello.ephemeral();
+        updateHash(clientEphemeral);
+        updateHash(ephemeralKeyPair.publicKey());
+        mixIntoKey(Curve25519.sharedKey(clientEphemeral, ephemeralKeyPair.privateKey()));
+        var staticText = encrypt(staticKeyPair.publicKey());
+        mixIntoKey(Curve25519.sharedKey(clientEphemeral, staticKeyPair.privateKey()));
+        var payload = encrypt(CERTIFICATE);
+        var serverHello = new ServerHello(ephemeralKeyPair.publicKey(), staticText, payload);
+        return HandshakeMessageSpec.encode(new HandshakeMessage(null, serverHello, null));
+    }
+
+    ClientPayload onClientFinish(byte[] message) {
+        var clientFinish = HandshakeMessageSpec.decode(message).clientFinish();
+        Objects.requireNonNull(clientFinish, "Expected a client finish");
+        var clientStatic = decrypt(clientFinish._static());
+        mixIntoKey(Curve25519.sharedKey(clientStatic, ephemeralKeyPair.privateKey()));
+        var payload = decrypt(clientFinish.payload());
+        return ClientPayloadSpec.decode(payload);
+    }
+
+    // The keys are the ones of the client swapped: what the client writes is read by the server and vice versa
+    byte[] readKey() {
+        return Arrays.copyOfRange(expand(), 0, 32);
+    }
+
+    byte[] writeKey() {
+        return Arrays.copyOfRange(expand(), 32, 64);
+    }
+
+    private byte[] expand() {
+        if (clientEphemeral == null) {
+            throw new NoSuchElementException("The handshake isn't complete");
+        }
+
+        return Hkdf.extractAndExpand(new byte[0], salt, null, 64);
+    }
+
+    private byte[] encrypt(byte[] plain) {
+        var cyphered = AesGcm.encrypt(counter++, plain, cryptoKey, hash);
+        updateHash(cyphered);
+        return cyphered;
+    }
+
+    private byte[] decrypt(byte[] cyphered) {
+        var plain = AesGcm.decrypt(counter++, cyphered, cryptoKey, hash);
+        updateHash(cyphered);
+        return plain;
+    }
+
+    private void updateHash(byte[] data) {
+        this.hash = Sha256.calculate(BytesHelper.concat(hash, data));
+    }
+
+    private void mixIntoKey(byte[] bytes) {
+        var expanded = Hkdf.extractAndExpand(bytes, salt, null, 64);
+        this.salt = Arrays.copyOfRange(expanded, 0, 32);
+        this.cryptoKey = Arrays.copyOfRange(expanded, 32, 64);
+        this.counter = 0;
+    }
+}
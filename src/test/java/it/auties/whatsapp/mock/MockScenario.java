@@ -0,0 +1,128 @@
+package it.auties.whatsapp.mock;
+
+import it.auties.whatsapp.model.contact.ContactStatus;
+import it.auties.whatsapp.model.jid.Jid;
+import it.auties.whatsapp.model.message.model.MessageContainer;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+// A script of inbound traffic for a MockServer: steps are sent to the client in order, and playing the scenario completes when the client acknowledged every message
+// Messages are sent without waiting for the acknowledgement of the previous one, so the client can be flooded like after a reconnection
+public final class MockScenario {
+    private final List<Step> steps;
+
+    private MockScenario(List<Step> steps) {
+        this.steps = steps;
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    CompletableFuture<Void> play(MockConnection connection) {
+        var pending = new ArrayList<CompletableFuture<Void>>();
+        var future = CompletableFuture.<Void>completedFuture(null);
+        for (var step : steps) {
+            future = future.thenCompose(ignored -> {
+                var result = step.play(connection);
+                pending.add(result);
+                return step.blocking() ? result : CompletableFuture.completedFuture(null);
+            });
+        }
+
+        return future.thenCompose(ignored -> CompletableFuture.allOf(pending.toArray(CompletableFuture[]::new)));
+    }
+
+    private interface Step {
+        CompletableFuture<Void> play(MockConnection connection);
+
+        default boolean blocking() {
+            return false;
+        }
+    }
+
+    public static final class Builder {
+        private final List<Step> steps;
+
+        private Builder() {
+            this.steps = new ArrayList<>();
+        }
+
+        public Builder message(MockContact from, String text) {
+            steps.add(connection -> connection.sendMessage(from, MessageContainer.of(text), false));
+            return this;
+        }
+
+        public Builder messages(MockContact from, int count) {
+            for (var index = 0; index < count; index++) {
+                message(from, "message " + index);
+            }
+
+            return this;
+        }
+
+        public Builder groupMessage(Jid group, MockContact from, String text) {
+            steps.add(connection -> connection.sendGroupMessage(group, from, MessageContainer.of(text)));
+            return this;
+        }
+
+        public Builder presence(MockContact contact, ContactStatus status) {
+            steps.add(connection -> connection.sendPresence(contact, status));
+            return this;
+        }
+
+        // Each contact sends the given number of updates, alternating between composing and available
+        public Builder presenceStorm(List<MockContact> contacts, int updates) {
+            for (var index = 0; index < updates; index++) {
+                var status = index % 2 == 0 ? ContactStatus.COMPOSING : ContactStatus.AVAILABLE;
+                for (var contact : contacts) {
+                    presence(contact, status);
+                }
+            }
+
+            return this;
+        }
+
+        // Sends an initial bootstrap history sync with a chat for each contact
+        public Builder historySync(List<MockContact> contacts, int messagesPerChat) {
+            steps.add(connection -> connection.sendHistorySync(contacts, messagesPerChat));
+            return this;
+        }
+
+        // Sends count messages as if they were queued while the client was offline, between an offline preview and the end of the offline messages
+        public Builder offline(MockContact from, int count) {
+            steps.add(connection -> connection.sendOfflinePreview(count));
+            for (var index = 0; index < count; index++) {
+                var text = "offline message " + index;
+                steps.add(connection -> connection.sendMessage(from, MessageContainer.of(text), true));
+            }
+
+            steps.add(connection -> connection.sendOfflineEnd(count));
+            return this;
+        }
+
+        public Builder pause(Duration duration) {
+            steps.add(new Step() {
+                @Override
+                public CompletableFuture<Void> play(MockConnection connection) {
+                    var executor = CompletableFuture.delayedExecutor(duration.toMillis(), TimeUnit.MILLISECONDS);
+                    return CompletableFuture.runAsync(() -> {}, executor);
+                }
+
+                @Override
+                public boolean blocking() {
+                    return true;
+                }
+            });
+            return this;
+        }
+
+        public MockScenario build() {
+            return new MockScenario(List.copyOf(steps));
+        }
+    }
+}
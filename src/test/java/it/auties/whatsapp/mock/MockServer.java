@@ -0,0 +1,297 @@
+package it.auties.whatsapp.mock;
+
+import it.auties.whatsapp.api.ClientType;
+import it.auties.whatsapp.api.ErrorHandler;
+import it.auties.whatsapp.api.Whatsapp;
+import it.auties.whatsapp.controller.DefaultControllerSerializer;
+import it.auties.whatsapp.controller.Keys;
+import it.auties.whatsapp.controller.Store;
+import it.auties.whatsapp.model.jid.Jid;
+import it.auties.whatsapp.model.jid.JidServer;
+import it.auties.whatsapp.model.mobile.PhoneNumber;
+import it.auties.whatsapp.model.node.Node;
+import it.auties.whatsapp.model.signal.keypair.SignalSignedKeyPair;
+import it.auties.whatsapp.util.BytesHelper;
+import it.auties.whatsapp.util.Clock;
+import it.auties.whatsapp.util.Specification;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.SocketException;
+import java.net.URI;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.locks.LockSupport;
+
+// An in-process Whatsapp server that mobile clients reach through an HTTP CONNECT tunnel on the loopback interface, so no network access is needed
+// It speaks the same noise handshake and binary protocol as the real server, and implements just enough of the signal, usync, receipt, media connection and app state queries to log in, receive and send messages
+// Inbound traffic is scripted with a MockScenario and played on the connection of the client
+public final class MockServer implements AutoCloseable {
+    private static final int REQUIRED_PRE_KEYS = 5;
+    private static final Duration HANDSHAKE_TIMEOUT = Duration.ofSeconds(10);
+
+    private final Path directory;
+    private final ServerSocket socket;
+    private final ExecutorService executor;
+    private final Map<Jid, Whatsapp> clients;
+    private final Map<Jid, MockContact> contacts;
+    private final Map<Jid, Group> groups;
+    private final Map<Jid, Deque<Bundle>> bundles;
+    private final Queue<Throwable> errors;
+    private volatile MockConnection connection;
+    private volatile CompletableFuture<MockConnection> connected;
+
+    public MockServer(Path directory) {
+        try {
+            this.directory = directory;
+            this.socket = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+            this.executor = Executors.newCachedThreadPool();
+            this.clients = new ConcurrentHashMap<>();
+            this.contacts = new ConcurrentHashMap<>();
+            this.groups = new ConcurrentHashMap<>();
+            this.bundles = new ConcurrentHashMap<>();
+            this.errors = new ConcurrentLinkedQueue<>();
+            this.connected = new CompletableFuture<>();
+            executor.execute(this::acceptConnections);
+        } catch (IOException exception) {
+            throw new UncheckedIOException("Cannot start mock server", exception);
+        }
+    }
+
+    private void acceptConnections() {
+        while (!socket.isClosed()) {
+            try {
+                var client = socket.accept();
+                executor.execute(new MockConnection(this, client));
+            } catch (SocketException ignored) {
+                return;
+            } catch (IOException exception) {
+                onError(exception);
+            }
+        }
+    }
+
+    // The proxy that a client must use to connect to this server instead of Whatsapp
+    public URI proxy() {
+        return URI.create("http://127.0.0.1:%s".formatted(socket.getLocalPort()));
+    }
+
+    // Creates a registered mobile client for the given phone number that connects to this server
+    // Errors reported by the client are collected in errors() instead of being printed
+    public Whatsapp newClient(long phoneNumber, Path directory) {
+        var uuid = UUID.randomUUID();
+        var serializer = new DefaultControllerSerializer(directory);
+        var store = Store.builder()
+                .uuid(uuid)
+                .phoneNumber(PhoneNumber.of(phoneNumber))
+                .clientType(ClientType.MOBILE)
+                .serializer(serializer)
+                .proxy(proxy())
+                .version(Specification.Whatsapp.DEFAULT_MOBILE_IOS_VERSION)
+                .build();
+        store.setJid(Jid.of(phoneNumber));
+        var keys = Keys.builder()
+                .uuid(uuid)
+                .phoneNumber(PhoneNumber.of(phoneNumber))
+                .clientType(ClientType.MOBILE)
+                .serializer(serializer)
+                .build()
+                .setRegistered(true);
+        var client = Whatsapp.customBuilder()
+                .store(store)
+                .keys(keys)
+                .errorHandler((type, location, throwable) -> {
+                    errors.add(throwable);
+                    return ErrorHandler.Result.DISCARD;
+                })
+                .build();
+        clients.put(Jid.of(phoneNumber), client);
+        return client;
+    }
+
+    // The client switches to the connected state only after its client finish was written, so a node sent before that would be read as a handshake message
+    // Clients that weren't created by newClient can't be observed, so they aren't waited for
+    void awaitHandshake(Jid jid) throws TimeoutException {
+        var client = clients.get(jid.withoutDevice());
+        if (client == null) {
+            return;
+        }
+
+        var deadline = System.nanoTime() + HANDSHAKE_TIMEOUT.toNanos();
+        while (!client.isConnected()) {
+            if (System.nanoTime() - deadline > 0) {
+                throw new TimeoutException("The client didn't complete the handshake");
+            }
+
+            LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(1));
+        }
+    }
+
+    // Returns the contact registered with the given phone number, creating it if necessary
+    public MockContact contact(long phoneNumber) {
+        return contacts.computeIfAbsent(Jid.of(phoneNumber), this::newContact);
+    }
+
+    private MockContact newContact(Jid jid) {
+        var keys = Keys.builder()
+                .uuid(UUID.randomUUID())
+                .clientType(ClientType.MOBILE)
+                .serializer(new DefaultControllerSerializer(directory.resolve(jid.user())))
+                .build();
+        return new MockContact(this, jid, keys);
+    }
+
+    // Creates a group whose participants are the client and the given contacts
+    public Jid group(String subject, MockContact... participants) {
+        var jid = Jid.of(String.valueOf(Clock.nowMilliseconds() + groups.size()), JidServer.GROUP);
+        groups.put(jid, new Group(jid, subject, List.of(participants)));
+        return jid;
+    }
+
+    // Plays the scenario on the connection of the client, which must be logged in, and returns how long it took for the client to acknowledge all of its messages
+    public CompletableFuture<Duration> play(MockScenario scenario) {
+        return connected.thenComposeAsync(connection -> connection.play(scenario), executor);
+    }
+
+    // The errors reported by the clients created by newClient and by the connections of this server
+    public Collection<Throwable> errors() {
+        return Collections.unmodifiableCollection(errors);
+    }
+
+    // The number of pre keys that the client uploaded and that weren't consumed yet
+    public int preKeys(Jid client) {
+        var available = bundles.get(client.withoutDevice());
+        if (available == null) {
+            return 0;
+        }
+
+        synchronized (available) {
+            return available.size();
+        }
+    }
+
+    MockContact companion(Jid client) {
+        return contacts.computeIfAbsent(Jid.ofDevice(client.user(), 1), this::newContact);
+    }
+
+    Optional<MockContact> findContact(Jid jid) {
+        return Optional.ofNullable(contacts.get(jid.withoutDevice()));
+    }
+
+    Optional<Group> findGroup(Jid jid) {
+        return Optional.ofNullable(groups.get(jid));
+    }
+
+    void onPreKeys(Jid client, Node upload) {
+        var registrationId = upload.findNode("registration")
+                .flatMap(Node::contentAsBytes)
+                .map(bytes -> BytesHelper.bytesToInt(bytes, 4))
+                .orElseThrow(() -> new NoSuchElementException("Missing registration id"));
+        var identity = upload.findNode("identity")
+                .flatMap(Node::contentAsBytes)
+                .orElseThrow(() -> new NoSuchElementException("Missing identity"));
+        var signedKey = upload.findNode("skey")
+                .flatMap(SignalSignedKeyPair::of)
+                .orElseThrow(() -> new NoSuchElementException("Missing signed key"));
+        var preKeys = upload.findNode("list")
+                .orElseThrow(() -> new NoSuchElementException("Missing pre keys"))
+                .findNodes("key")
+                .stream()
+                .map(SignalSignedKeyPair::of)
+                .flatMap(Optional::stream)
+                .map(preKey -> new Bundle(registrationId, identity, signedKey, preKey))
+                .toList();
+        var available = bundles.computeIfAbsent(client.withoutDevice(), ignored -> new ArrayDeque<>());
+        synchronized (available) {
+            available.addAll(preKeys);
+        }
+    }
+
+    // Like the real server, the last pre key is never consumed and the client is asked for new ones when it's running low
+    Optional<Bundle> takeBundle(Jid client) {
+        var available = bundles.get(client.withoutDevice());
+        if (available == null) {
+            return Optional.empty();
+        }
+
+        Bundle result;
+        int remaining;
+        synchronized (available) {
+            result = available.size() > 1 ? available.poll() : available.peek();
+            remaining = available.size();
+        }
+
+        if (remaining < REQUIRED_PRE_KEYS && connection != null) {
+            connection.sendPreKeysCount(remaining);
+        }
+
+        return Optional.ofNullable(result);
+    }
+
+    void onConnected(MockConnection connection) {
+        this.connection = connection;
+        if (!connected.complete(connection)) {
+            this.connected = CompletableFuture.completedFuture(connection);
+        }
+    }
+
+    void onDisconnected(MockConnection connection) {
+        if (this.connection != connection) {
+            return;
+        }
+
+        this.connection = null;
+        this.connected = new CompletableFuture<>();
+    }
+
+    void onError(Throwable throwable) {
+        errors.add(throwable);
+    }
+
+    Executor executor() {
+        return executor;
+    }
+
+    @Override
+    public void close() {
+        try {
+            socket.close();
+            var current = connection;
+            if (current != null) {
+                current.close();
+            }
+        } catch (IOException exception) {
+            throw new UncheckedIOException("Cannot close mock server", exception);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    record Group(Jid jid, String subject, List<MockContact> participants) {
+        Node toNode(Jid client) {
+            var participants = new ArrayList<Node>();
+            participants.add(Node.of("participant", Map.of("jid", client.withoutDevice(), "type", "superadmin")));
+            for (var participant : this.participants) {
+                participants.add(Node.of("participant", Map.of("jid", participant.jid())));
+            }
+
+            var attributes = Map.<String, Object>of("id", jid.user(), "subject", subject, "creation", Clock.nowSeconds(), "creator", client.withoutDevice());
+            return Node.of("group", attributes, participants);
+        }
+    }
+
+    record Bundle(int registrationId, byte[] identity, SignalSignedKeyPair signedKey, SignalSignedKeyPair preKey) {
+        Node toNode(Jid jid) {
+            return Node.of("user", Map.of("jid", jid),
+                    Node.of("registration", BytesHelper.intToBytes(registrationId, 4)),
+                    Node.of("type", Specification.Signal.KEY_BUNDLE_TYPE),
+                    Node.of("identity", identity),
+                    signedKey.toNode(),
+                    Node.of("key", Node.of("id", preKey.encodedId()), Node.of("value", preKey.publicKey())));
+        }
+    }
+}
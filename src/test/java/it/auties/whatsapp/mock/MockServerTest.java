@@ -0,0 +1,306 @@
+package it.auties.whatsapp.mock;
+
+import it.auties.whatsapp.api.ClientType;
+import it.auties.whatsapp.api.Whatsapp;
+import it.auties.whatsapp.controller.Keys;
+import it.auties.whatsapp.controller.Store;
+import it.auties.whatsapp.model.chat.Chat;
+import it.auties.whatsapp.model.contact.ContactStatus;
+import it.auties.whatsapp.model.info.ChatMessageInfo;
+import it.auties.whatsapp.model.jid.Jid;
+import it.auties.whatsapp.model.message.standard.TextMessage;
+import it.auties.whatsapp.util.Metrics;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.TestReporter;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+// Drives a mobile client end to end against the loopback mock server, without network access
+public class MockServerTest {
+    private static final long CLIENT_NUMBER = 393495089819L;
+    private static final Duration TIMEOUT = Duration.ofSeconds(30);
+
+    @TempDir
+    private Path directory;
+    private MockServer server;
+    private Whatsapp client;
+
+    @BeforeEach
+    public void setup() {
+        this.server = new MockServer(directory.resolve("server"));
+        this.client = server.newClient(CLIENT_NUMBER, directory.resolve("client"));
+    }
+
+    @AfterEach
+    public void tearDown() {
+        client.disconnect().join();
+        server.close();
+    }
+
+    private void connect() throws Exception {
+        var loggedIn = new CompletableFuture<Void>();
+        client.addLoggedInListener(() -> loggedIn.complete(null));
+        client.connect().get(TIMEOUT.toSeconds(), TimeUnit.SECONDS);
+        loggedIn.get(TIMEOUT.toSeconds(), TimeUnit.SECONDS);
+    }
+
+    private Duration play(MockScenario scenario) throws Exception {
+        return server.play(scenario).get(TIMEOUT.toSeconds(), TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void testLogin() throws Exception {
+        connect();
+        assertTrue(client.isConnected());
+        assertTrue(server.preKeys(Jid.of(CLIENT_NUMBER)) > 0, "The client didn't upload its pre keys");
+        assertTrue(server.errors().isEmpty(), () -> "Unexpected errors: " + server.errors());
+    }
+
+    @Test
+    public void testInboundMessage() throws Exception {
+        var alice = server.contact(393200000001L);
+        var received = new CompletableFuture<String>();
+        client.addNewChatMessageListener(info -> {
+            if (info.message().content() instanceof TextMessage text) {
+                received.complete(text.text());
+            }
+        });
+        connect();
+        play(MockScenario.builder()
+                .message(alice, "Hello")
+                .build());
+        assertEquals("Hello", received.get(TIMEOUT.toSeconds(), TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testGroupMessage() throws Exception {
+        var alice = server.contact(393200000001L);
+        var bob = server.contact(393200000002L);
+        var group = server.group("Mock group", alice, bob);
+        var received = new CompletableFuture<ChatMessageInfo>();
+        client.addNewChatMessageListener(info -> {
+            if (info instanceof ChatMessageInfo chatInfo && chatInfo.message().content() instanceof TextMessage) {
+                received.complete(chatInfo);
+            }
+        });
+        connect();
+        play(MockScenario.builder()
+                .groupMessage(group, bob, "Hello group")
+                .build());
+        var info = received.get(TIMEOUT.toSeconds(), TimeUnit.SECONDS);
+        assertEquals(group, info.chatJid());
+        assertEquals(bob.jid(), info.senderJid());
+    }
+
+    @Test
+    public void testPresenceStorm() throws Exception {
+        var contacts = List.of(server.contact(393200000001L), server.contact(393200000002L), server.contact(393200000003L));
+        var updates = 20;
+        var latch = new CountDownLatch(contacts.size() * updates);
+        client.addContactPresenceListener((chat, jid, status) -> latch.countDown());
+        connect();
+        var scenario = MockScenario.builder();
+        contacts.forEach(contact -> scenario.message(contact, "Hi"));
+        play(scenario.presenceStorm(contacts, updates).build());
+        assertTrue(latch.await(TIMEOUT.toSeconds(), TimeUnit.SECONDS), "Missing presence updates: " + latch.getCount());
+        assertEquals(ContactStatus.AVAILABLE, client.store().findContactByJid(contacts.getFirst().jid()).orElseThrow().lastKnownPresence());
+    }
+
+    @Test
+    public void testCoalescedPresence() throws Exception {
+        var contacts = List.of(server.contact(393200000001L), server.contact(393200000002L), server.contact(393200000003L));
+        var updates = 20;
+        var delivered = new AtomicInteger();
+        var latest = new ConcurrentHashMap<Jid, ContactStatus>();
+        var settled = new CountDownLatch(1);
+        client.store().setPresenceUpdatesInterval(Duration.ofSeconds(1));
+        client.addContactPresenceListener((chat, jid, status) -> {
+            delivered.incrementAndGet();
+            latest.put(jid, status);
+            if (latest.size() == contacts.size() && latest.values().stream().allMatch(ContactStatus.AVAILABLE::equals)) {
+                settled.countDown();
+            }
+        });
+        connect();
+        var scenario = MockScenario.builder();
+        contacts.forEach(contact -> scenario.message(contact, "Hi"));
+        play(scenario.presenceStorm(contacts, updates).build());
+        assertTrue(settled.await(TIMEOUT.toSeconds(), TimeUnit.SECONDS), "Missing latest presence: " + latest);
+        assertTrue(delivered.get() < contacts.size() * updates, "Presence updates weren't coalesced: " + delivered.get());
+    }
+
+    @Test
+    public void testCoalescedPresenceWithoutListeners() throws Exception {
+        var alice = server.contact(393200000001L);
+        var interval = Duration.ofMillis(100);
+        var received = new CompletableFuture<String>();
+        client.store().setPresenceUpdatesInterval(interval);
+        client.addNewChatMessageListener(info -> {
+            if (info.message().content() instanceof TextMessage text && text.text().equals("Bye")) {
+                received.complete(text.text());
+            }
+        });
+        connect();
+        play(MockScenario.builder()
+                .message(alice, "Hi")
+                .presenceStorm(List.of(alice), 10)
+                .message(alice, "Bye")
+                .build());
+        received.get(TIMEOUT.toSeconds(), TimeUnit.SECONDS);
+        assertEquals(ContactStatus.AVAILABLE, client.store().findContactByJid(alice.jid()).orElseThrow().lastKnownPresence());
+        var delivered = new CountDownLatch(1);
+        client.addContactPresenceListener((chat, jid, status) -> delivered.countDown());
+        assertFalse(delivered.await(interval.multipliedBy(5).toMillis(), TimeUnit.MILLISECONDS), "Presence updates were queued without listeners");
+    }
+
+    @Test
+    public void testHistorySync() throws Exception {
+        var contacts = List.of(server.contact(393200000001L), server.contact(393200000002L));
+        var synced = new CompletableFuture<Void>();
+        client.addChatsListener(chats -> {
+            var complete = contacts.stream()
+                    .allMatch(contact -> chats.stream().map(Chat::jid).anyMatch(contact.jid()::equals));
+            if (complete) {
+                synced.complete(null);
+            }
+        });
+        connect();
+        play(MockScenario.builder()
+                .historySync(contacts, 10)
+                .build());
+        synced.get(TIMEOUT.toSeconds(), TimeUnit.SECONDS);
+        for (var contact : contacts) {
+            var chat = client.store().findChatByJid(contact.jid()).orElseThrow();
+            assertEquals(10, chat.messages().size());
+        }
+    }
+
+    @Test
+    public void testOfflineMessages() throws Exception {
+        var alice = server.contact(393200000001L);
+        var count = 250;
+        var received = new AtomicInteger();
+        var delivered = new CountDownLatch(count);
+        var finished = new CompletableFuture<Void>();
+        // Batches of offline messages are forwarded to onNewMessage by default, so a single listener sees every message once
+        client.addNewChatMessageListener(info -> {
+            received.incrementAndGet();
+            delivered.countDown();
+        });
+        client.addOfflineMessagesProgressListener((processed, total, last) -> {
+            if (last) {
+                finished.complete(null);
+            }
+        });
+        connect();
+        play(MockScenario.builder()
+                .offline(alice, count)
+                .build());
+        finished.get(TIMEOUT.toSeconds(), TimeUnit.SECONDS);
+        assertTrue(delivered.await(TIMEOUT.toSeconds(), TimeUnit.SECONDS), "Not all offline messages were delivered");
+        assertEquals(count, received.get());
+    }
+
+    @Test
+    public void testOutboundMessage() throws Exception {
+        var alice = server.contact(393200000001L);
+        connect();
+        client.sendMessage(alice.jid(), "Hi").get(TIMEOUT.toSeconds(), TimeUnit.SECONDS);
+        var message = alice.awaitMessage(TIMEOUT).orElseThrow();
+        assertEquals("Hi", ((TextMessage) message.content()).text());
+    }
+
+    @Test
+    public void testMetrics() throws Exception {
+        var alice = server.contact(393200000001L);
+        var frames = new AtomicInteger();
+        var inbound = new AtomicInteger();
+        var outbound = new AtomicInteger();
+        var requests = new AtomicInteger();
+        client.store().setMetrics(new Metrics() {
+            @Override
+            public void onFrame(int size, long decryptTime, long decodeTime) {
+                frames.incrementAndGet();
+            }
+
+            @Override
+            public void onNode(String description, boolean received) {
+                (received ? inbound : outbound).incrementAndGet();
+            }
+
+            @Override
+            public void onRequest(String description, long time, boolean timedOut) {
+                requests.incrementAndGet();
+            }
+        });
+        connect();
+        client.sendMessage(alice.jid(), "Hi").get(TIMEOUT.toSeconds(), TimeUnit.SECONDS);
+        assertTrue(alice.awaitMessage(TIMEOUT).isPresent());
+        assertTrue(frames.get() > 0, "No frames were recorded");
+        assertTrue(inbound.get() > 0, "No inbound nodes were recorded");
+        assertTrue(outbound.get() > 0, "No outbound nodes were recorded");
+        assertTrue(requests.get() > 0, "No requests were recorded");
+    }
+
+    @Test
+    public void testGracefulShutdown() throws Exception {
+        var alice = server.contact(393200000001L);
+        var count = 10;
+        connect();
+        var sent = new ArrayList<CompletableFuture<?>>();
+        for (var index = 0; index < count; index++) {
+            sent.add(client.sendMessage(alice.jid(), "Message " + index));
+        }
+
+        client.disconnect().get(TIMEOUT.toSeconds(), TimeUnit.SECONDS);
+        for (var future : sent) {
+            assertTrue(future.isDone() && !future.isCompletedExceptionally(), "A queued message wasn't sent before shutting down");
+        }
+
+        for (var index = 0; index < count; index++) {
+            assertTrue(alice.awaitMessage(TIMEOUT).isPresent(), "Missing message " + index);
+        }
+
+        var store = client.store();
+        var keys = client.keys();
+        var restoredStore = Store.builder()
+                .uuid(store.uuid())
+                .clientType(ClientType.MOBILE)
+                .serializer(store.serializer())
+                .build();
+        var restoredKeys = Keys.builder()
+                .uuid(keys.uuid())
+                .clientType(ClientType.MOBILE)
+                .serializer(keys.serializer())
+                .build();
+        assertSame(store, restoredStore);
+        assertSame(keys, restoredKeys);
+    }
+
+    @Test
+    public void testThroughput(TestReporter reporter) throws Exception {
+        var alice = server.contact(393200000001L);
+        var count = 500;
+        connect();
+        var duration = play(MockScenario.builder()
+                .messages(alice, count)
+                .build());
+        reporter.publishEntry("messages", String.valueOf(count));
+        reporter.publishEntry("duration", duration.toMillis() + "ms");
+        reporter.publishEntry("throughput", "%.0f messages/s".formatted(count * 1000.0 / Math.max(1, duration.toMillis())));
+        assertTrue(server.errors().isEmpty(), () -> "Unexpected errors: " + server.errors());
+    }
+}
@@ -0,0 +1,117 @@
+package it.auties.whatsapp.model.response;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+// Parses w:mex responses to STATUS queries for many users, shaped like the ones returned by Whatsapp
+public class ContactStatusResponseTest {
+    private static final String FIRST_USER = "393200000001";
+    private static final String SECOND_USER = "393200000002";
+    private static final String THIRD_USER = "393200000003";
+
+    @Test
+    public void testEntriesMatchedByJid() {
+        var json = """
+                {
+                  "data": {
+                    "xwa2_users_updates_since": [
+                      {
+                        "jid": "393200000002@s.whatsapp.net",
+                        "updates": [
+                          {
+                            "__typename": "XWA2TextStatusUpdate",
+                            "text": "Second"
+                          }
+                        ]
+                      },
+                      {
+                        "jid": "393200000001@s.whatsapp.net",
+                        "updates": [
+                          {
+                            "__typename": "XWA2TextStatusUpdate",
+                            "text": "First"
+                          }
+                        ]
+                      },
+                      {
+                        "jid": "393200000003@s.whatsapp.net",
+                        "updates": []
+                      }
+                    ]
+                  },
+                  "extensions": {
+                    "is_final": true
+                  }
+                }
+                """;
+        var result = ContactStatusResponse.ofJsonMap(json, List.of(FIRST_USER, SECOND_USER, THIRD_USER));
+        assertEquals(3, result.size());
+        assertEquals(Optional.of("First"), result.get(FIRST_USER).flatMap(ContactStatusResponse::status));
+        assertEquals(Optional.of("Second"), result.get(SECOND_USER).flatMap(ContactStatusResponse::status));
+        assertEquals(Optional.empty(), result.get(THIRD_USER));
+    }
+
+    @Test
+    public void testEntriesMatchedByPosition() {
+        var json = """
+                {
+                  "data": {
+                    "xwa2_users_updates_since": [
+                      {
+                        "updates": [
+                          {
+                            "__typename": "XWA2TextStatusUpdate",
+                            "text": "First"
+                          }
+                        ]
+                      },
+                      {
+                        "updates": [
+                          {
+                            "__typename": "XWA2TextStatusUpdate",
+                            "text": "Second"
+                          }
+                        ]
+                      }
+                    ]
+                  }
+                }
+                """;
+        var result = ContactStatusResponse.ofJsonMap(json, List.of(FIRST_USER, SECOND_USER));
+        assertEquals(Optional.of("First"), result.get(FIRST_USER).flatMap(ContactStatusResponse::status));
+        assertEquals(Optional.of("Second"), result.get(SECOND_USER).flatMap(ContactStatusResponse::status));
+    }
+
+    @Test
+    public void testMissingEntriesAreNotMatchedByPosition() {
+        var json = """
+                {
+                  "data": {
+                    "xwa2_users_updates_since": [
+                      {
+                        "updates": [
+                          {
+                            "__typename": "XWA2TextStatusUpdate",
+                            "text": "Unknown"
+                          }
+                        ]
+                      }
+                    ]
+                  }
+                }
+                """;
+        var result = ContactStatusResponse.ofJsonMap(json, List.of(FIRST_USER, SECOND_USER));
+        assertTrue(result.isEmpty());
+    }
+
+    @Test
+    public void testMalformedResponse() {
+        assertEquals(Map.of(), ContactStatusResponse.ofJsonMap("{\"errors\": [{\"message\": \"Invalid query\"}]}", List.of(FIRST_USER)));
+    }
+}
@@ -0,0 +1,124 @@
+package it.auties.whatsapp.util;
+
+import it.auties.whatsapp.crypto.Sha256;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.HexFormat;
+import java.util.Optional;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+// Stores medias in a cache on disk and reads them back by their plaintext sha256, their encrypted sha256 or their uri
+public class MediaCacheTest {
+    private static final long MAX_SIZE = 1024 * 1024;
+
+    @TempDir
+    private Path directory;
+
+    @Test
+    public void testStoreIsContentAddressed() {
+        var cache = MediaCache.of(directory, MAX_SIZE);
+        var data = media(1, 128);
+        var path = cache.store(data, null);
+        assertEquals(HexFormat.of().formatHex(Sha256.calculate(data)), path.getFileName().toString());
+        assertEquals(path, cache.store(new ByteArrayInputStream(data), null));
+        assertEquals(1, files().length);
+    }
+
+    @Test
+    public void testReadByHash() {
+        var cache = MediaCache.of(directory, MAX_SIZE);
+        var data = media(1, 128);
+        var encryptedSha256 = Sha256.calculate(media(2, 144));
+        cache.store(data, encryptedSha256);
+        assertArrayEquals(data, cache.read(Sha256.calculate(data), null).orElseThrow());
+        assertArrayEquals(data, cache.read(null, encryptedSha256).orElseThrow());
+        assertArrayEquals(data, cache.read(Sha256.calculate(media(3, 128)), encryptedSha256).orElseThrow());
+        assertEquals(Optional.empty(), cache.read(Sha256.calculate(media(3, 128)), null));
+        assertEquals(Optional.empty(), cache.read(null, null));
+    }
+
+    @Test
+    public void testDownloadHitsCache() {
+        var cache = MediaCache.of(directory, MAX_SIZE);
+        var data = media(1, 128);
+        // Nothing listens on this port, so the media can only be read from the cache
+        var uri = URI.create("http://127.0.0.1:9/thumbnail.jpg");
+        cache.store(uri, data);
+        assertArrayEquals(data, cache.read(uri).orElseThrow());
+        assertArrayEquals(data, Medias.download(uri, cache).orElseThrow());
+    }
+
+    @Test
+    public void testInvalidAliasIsDiscarded() throws IOException {
+        var cache = MediaCache.of(directory, MAX_SIZE);
+        var encryptedSha256 = Sha256.calculate(media(1, 128));
+        var alias = directory.toAbsolutePath().normalize().resolve("enc-" + HexFormat.of().formatHex(encryptedSha256));
+        Files.writeString(alias, "../outside", StandardCharsets.US_ASCII);
+        assertEquals(Optional.empty(), cache.read(null, encryptedSha256));
+        assertFalse(Files.exists(alias));
+    }
+
+    @Test
+    public void testDanglingAliasIsDiscarded() throws IOException {
+        var cache = MediaCache.of(directory, MAX_SIZE);
+        var data = media(1, 128);
+        var encryptedSha256 = Sha256.calculate(media(2, 144));
+        Files.delete(cache.store(data, encryptedSha256));
+        assertEquals(Optional.empty(), cache.read(null, encryptedSha256));
+        assertEquals(0, files().length);
+    }
+
+    @Test
+    public void testLeastRecentlyUsedIsEvicted() throws IOException {
+        var cache = MediaCache.of(directory, 250);
+        var first = media(1, 100);
+        var firstEncryptedSha256 = Sha256.calculate(media(2, 100));
+        var firstPath = cache.store(first, firstEncryptedSha256);
+        var firstAlias = directory.toAbsolutePath().normalize().resolve("enc-" + HexFormat.of().formatHex(firstEncryptedSha256));
+        Files.setLastModifiedTime(firstPath, FileTime.fromMillis(1000));
+        Files.setLastModifiedTime(firstAlias, FileTime.fromMillis(2000));
+        var second = media(3, 100);
+        var secondPath = cache.store(second, null);
+        assertFalse(Files.exists(firstPath));
+        assertFalse(Files.exists(firstAlias), "The alias of an evicted media should be removed");
+        assertTrue(Files.exists(secondPath));
+        assertEquals(Optional.empty(), cache.read(Sha256.calculate(first), firstEncryptedSha256));
+        assertArrayEquals(second, cache.read(Sha256.calculate(second), null).orElseThrow());
+    }
+
+    @Test
+    public void testClear() {
+        var cache = MediaCache.of(directory, MAX_SIZE);
+        var data = media(1, 128);
+        cache.store(data, Sha256.calculate(media(2, 128)));
+        cache.clear();
+        assertEquals(Optional.empty(), cache.read(Sha256.calculate(data), null));
+        assertEquals(0, files().length);
+    }
+
+    private Path[] files() {
+        try (var files = Files.list(directory.toAbsolutePath().normalize())) {
+            return files.toArray(Path[]::new);
+        } catch (IOException exception) {
+            throw new AssertionError(exception);
+        }
+    }
+
+    private static byte[] media(int seed, int length) {
+        var result = new byte[length];
+        for (var index = 0; index < length; index++) {
+            result[index] = (byte) (seed * 31 + index);
+        }
+
+        return result;
+    }
+}
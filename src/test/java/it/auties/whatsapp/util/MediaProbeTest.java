@@ -0,0 +1,382 @@
+package it.auties.whatsapp.util;
+
+import it.auties.whatsapp.model.media.MediaDimensions;
+import it.auties.whatsapp.util.MediaProbe.Container;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Optional;
+import java.util.OptionalLong;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+// Probes medias whose headers are built in memory, so every field that is read has a known value
+public class MediaProbeTest {
+    private static final byte[] PNG_SIGNATURE = {(byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1A, '\n'};
+    private static final byte[] MP3_HEADER = {(byte) 0xFF, (byte) 0xFB, (byte) 0x90, 0x00};
+    private static final int MP3_FRAME_LENGTH = 417;
+    private static final int MP3_FRAME_SAMPLES = 1152;
+    private static final int OPUS_PRE_SKIP = 312;
+
+    @Test
+    public void testMp4() {
+        var media = concat(ftyp(), movie(mvhd(1000, 5000), videoTrack(640, 360)), box("mdat", new byte[1024]));
+        var result = MediaProbe.probe(media).orElseThrow();
+        assertEquals(Container.MP4, result.container());
+        assertEquals(Optional.of(new MediaDimensions(640, 360)), result.dimensions());
+        assertEquals(5000, result.durationMillis());
+        assertEquals(OptionalLong.of(5), result.durationSeconds());
+    }
+
+    @Test
+    public void testMp4SubSecond() {
+        var media = concat(ftyp(), movie(mvhd(1000, 400), track(0, 0, "soun")));
+        var result = MediaProbe.probe(media).orElseThrow();
+        assertEquals(400, result.durationMillis());
+        assertEquals(OptionalLong.of(1), result.durationSeconds());
+    }
+
+    @Test
+    public void testMp4MovieAfterMediaData() {
+        var media = concat(ftyp(), box("mdat", new byte[64 * 1024]), movie(mvhd(600, 1800), videoTrack(1280, 720)));
+        var result = MediaProbe.probe(new ByteArrayInputStream(media)).orElseThrow();
+        assertEquals(Optional.of(new MediaDimensions(1280, 720)), result.dimensions());
+        assertEquals(3000, result.durationMillis());
+    }
+
+    @Test
+    public void testMp4Fragmented() {
+        var media = concat(ftyp(), movie(mvhd(1000, 0), box("mvex", mehd(7500)), videoTrack(320, 240)));
+        var result = MediaProbe.probe(media).orElseThrow();
+        assertEquals(7500, result.durationMillis());
+    }
+
+    @Test
+    public void testMp4AudioOnly() {
+        var media = concat(ftyp(), movie(mvhd(44100, 441000), track(0, 0, "soun")));
+        var result = MediaProbe.probe(media).orElseThrow();
+        assertEquals(Optional.empty(), result.dimensions());
+        assertEquals(10_000, result.durationMillis());
+    }
+
+    @Test
+    public void testMp4Truncated() {
+        var media = concat(ftyp(), movie(mvhd(1000, 5000), videoTrack(640, 360)));
+        assertEquals(Optional.empty(), MediaProbe.probe(Arrays.copyOf(media, media.length - 20)));
+    }
+
+    @Test
+    public void testMp4Malformed() {
+        var invalidSize = concat(ftyp(), ByteBuffer.allocate(8).putInt(4).put(ascii("free")).array());
+        assertEquals(Optional.empty(), MediaProbe.probe(invalidSize));
+        var oversizedMovie = concat(ftyp(), ByteBuffer.allocate(8).putInt(Integer.MAX_VALUE).put(ascii("moov")).array());
+        assertEquals(Optional.empty(), MediaProbe.probe(oversizedMovie));
+    }
+
+    @Test
+    public void testMp4MalformedTrack() {
+        // A child box that overflows its parent is ignored, as well as the ones after it
+        var brokenTrack = ByteBuffer.allocate(16).putInt(64).put(ascii("tkhd")).array();
+        var media = concat(ftyp(), movie(mvhd(1000, 2000), box("trak", brokenTrack)));
+        var result = MediaProbe.probe(media).orElseThrow();
+        assertEquals(Optional.empty(), result.dimensions());
+        assertEquals(2000, result.durationMillis());
+    }
+
+    @Test
+    public void testOpus() {
+        var media = concat(
+                oggPage(0, 1, opusHead()),
+                oggPage(0, 1, ascii("OpusTags")),
+                oggPage(48000 + OPUS_PRE_SKIP, 1, new byte[200]),
+                oggPage(-1, 2, new byte[100]),
+                oggPage(96000 + OPUS_PRE_SKIP, 1, new byte[200])
+        );
+        var result = MediaProbe.probe(media).orElseThrow();
+        assertEquals(Container.OGG, result.container());
+        assertEquals(Optional.empty(), result.dimensions());
+        assertEquals(2000, result.durationMillis());
+    }
+
+    @Test
+    public void testVorbis() {
+        var identification = ByteBuffer.allocate(30)
+                .order(ByteOrder.LITTLE_ENDIAN)
+                .put((byte) 1)
+                .put(ascii("vorbis"))
+                .putInt(0)
+                .put((byte) 2)
+                .putInt(44100)
+                .array();
+        var media = concat(oggPage(0, 7, identification), oggPage(44100 * 3, 7, new byte[50]));
+        assertEquals(3000, MediaProbe.probe(media).orElseThrow().durationMillis());
+    }
+
+    @Test
+    public void testOggTruncated() {
+        var media = concat(oggPage(0, 1, opusHead()), oggPage(48000 + OPUS_PRE_SKIP, 1, new byte[200]));
+        assertEquals(Optional.empty(), MediaProbe.probe(Arrays.copyOf(media, 40)));
+        assertEquals(Optional.empty(), MediaProbe.probe(Arrays.copyOf(media, media.length - 100)));
+    }
+
+    @Test
+    public void testOggMalformed() {
+        var media = concat(oggPage(0, 1, ascii("NotACodecHeader")), oggPage(48000, 1, new byte[10]));
+        assertEquals(Optional.empty(), MediaProbe.probe(media));
+    }
+
+    @Test
+    public void testMp3() {
+        var frames = new byte[10][];
+        Arrays.fill(frames, mp3Frame());
+        var result = MediaProbe.probe(concat(frames)).orElseThrow();
+        assertEquals(Container.MP3, result.container());
+        assertEquals(10L * MP3_FRAME_SAMPLES * 1000 / 44100, result.durationMillis());
+    }
+
+    @Test
+    public void testMp3WithId3AndXing() {
+        var id3 = concat(ascii("ID3"), new byte[]{3, 0, 0, 0, 0, 0, 0, 20}, new byte[20]);
+        var xing = mp3Frame();
+        var tag = ByteBuffer.wrap(xing, 4 + 32, 12);
+        tag.put(ascii("Xing")).putInt(1).putInt(1000);
+        var result = MediaProbe.probe(concat(id3, xing, mp3Frame())).orElseThrow();
+        assertEquals(1000L * MP3_FRAME_SAMPLES * 1000 / 44100, result.durationMillis());
+    }
+
+    @Test
+    public void testMp3Resync() {
+        var result = MediaProbe.probe(concat(mp3Frame(), new byte[]{0x12, 0x34, 0x56}, mp3Frame())).orElseThrow();
+        assertEquals(2L * MP3_FRAME_SAMPLES * 1000 / 44100, result.durationMillis());
+    }
+
+    @Test
+    public void testMp3Truncated() {
+        var media = concat(mp3Frame(), mp3Frame(), mp3Frame());
+        var result = MediaProbe.probe(Arrays.copyOf(media, media.length - 100)).orElseThrow();
+        assertEquals(3L * MP3_FRAME_SAMPLES * 1000 / 44100, result.durationMillis());
+    }
+
+    @Test
+    public void testJpeg() {
+        var media = concat(
+                new byte[]{(byte) 0xFF, (byte) 0xD8},
+                jpegSegment(0xE0, new byte[14]),
+                jpegSegment(0xC0, ByteBuffer.allocate(15).put((byte) 8).putShort((short) 480).putShort((short) 640).array())
+        );
+        var result = MediaProbe.probe(media).orElseThrow();
+        assertEquals(Container.JPEG, result.container());
+        assertEquals(Optional.of(new MediaDimensions(640, 480)), result.dimensions());
+        assertEquals(OptionalLong.empty(), result.durationSeconds());
+    }
+
+    @Test
+    public void testJpegWithoutFrame() {
+        var media = concat(new byte[]{(byte) 0xFF, (byte) 0xD8}, jpegSegment(0xE0, new byte[14]), new byte[]{(byte) 0xFF, (byte) 0xD9});
+        assertEquals(Optional.empty(), MediaProbe.probe(media));
+    }
+
+    @Test
+    public void testJpegTruncated() {
+        var media = concat(new byte[]{(byte) 0xFF, (byte) 0xD8}, jpegSegment(0xE0, new byte[14]));
+        assertEquals(Optional.empty(), MediaProbe.probe(Arrays.copyOf(media, 12)));
+    }
+
+    @Test
+    public void testPng() {
+        var header = ByteBuffer.allocate(21)
+                .putInt(13)
+                .put(ascii("IHDR"))
+                .putInt(800)
+                .putInt(600)
+                .array();
+        var result = MediaProbe.probe(concat(PNG_SIGNATURE, header)).orElseThrow();
+        assertEquals(Container.PNG, result.container());
+        assertEquals(Optional.of(new MediaDimensions(800, 600)), result.dimensions());
+    }
+
+    @Test
+    public void testPngMalformed() {
+        var header = ByteBuffer.allocate(21)
+                .putInt(13)
+                .put(ascii("IDAT"))
+                .array();
+        assertEquals(Optional.empty(), MediaProbe.probe(concat(PNG_SIGNATURE, header)));
+    }
+
+    @Test
+    public void testWebpLossless() {
+        var bits = ByteBuffer.allocate(5)
+                .order(ByteOrder.LITTLE_ENDIAN)
+                .put((byte) 0x2F)
+                .putInt((512 - 1) | (256 - 1) << 14)
+                .array();
+        var result = MediaProbe.probe(webp("VP8L", bits)).orElseThrow();
+        assertEquals(Container.WEBP, result.container());
+        assertEquals(Optional.of(new MediaDimensions(512, 256)), result.dimensions());
+    }
+
+    @Test
+    public void testWebpExtended() {
+        var extended = ByteBuffer.allocate(10)
+                .order(ByteOrder.LITTLE_ENDIAN)
+                .putInt(0)
+                .put(int24(1920 - 1))
+                .put(int24(1080 - 1))
+                .array();
+        var result = MediaProbe.probe(webp("VP8X", extended)).orElseThrow();
+        assertEquals(Optional.of(new MediaDimensions(1920, 1080)), result.dimensions());
+    }
+
+    @Test
+    public void testWebpTruncated() {
+        var media = webp("VP8X", new byte[10]);
+        assertEquals(Optional.empty(), MediaProbe.probe(Arrays.copyOf(media, 22)));
+    }
+
+    @Test
+    public void testUnknown() {
+        assertEquals(Optional.empty(), MediaProbe.probe(new byte[0]));
+        assertEquals(Optional.empty(), MediaProbe.probe(ascii("GIF89a")));
+        assertEquals(Optional.empty(), MediaProbe.probe(ascii("this is not a media, just some text")));
+    }
+
+    @Test
+    public void testStreamNotClosed() {
+        var closed = new boolean[1];
+        var media = new ByteArrayInputStream(concat(PNG_SIGNATURE, ByteBuffer.allocate(21).putInt(13).put(ascii("IHDR")).putInt(1).putInt(1).array())) {
+            @Override
+            public void close() {
+                closed[0] = true;
+            }
+        };
+        assertTrue(MediaProbe.probe(media).isPresent());
+        assertFalse(closed[0]);
+    }
+
+    private byte[] ftyp() {
+        return box("ftyp", concat(ascii("isom"), new byte[4], ascii("isommp41")));
+    }
+
+    private byte[] movie(byte[]... children) {
+        return box("moov", concat(children));
+    }
+
+    private byte[] mvhd(int timescale, int duration) {
+        var payload = ByteBuffer.allocate(100)
+                .putInt(0)
+                .putInt(0)
+                .putInt(0)
+                .putInt(timescale)
+                .putInt(duration)
+                .array();
+        return box("mvhd", payload);
+    }
+
+    private byte[] mehd(int duration) {
+        return box("mehd", ByteBuffer.allocate(8).putInt(0).putInt(duration).array());
+    }
+
+    private byte[] videoTrack(int width, int height) {
+        return track(width, height, "vide");
+    }
+
+    private byte[] track(int width, int height, String handler) {
+        var tkhd = ByteBuffer.allocate(84)
+                .position(76)
+                .putInt(width << 16)
+                .putInt(height << 16)
+                .array();
+        var hdlr = ByteBuffer.allocate(25)
+                .position(8)
+                .put(ascii(handler))
+                .array();
+        return box("trak", concat(box("tkhd", tkhd), box("mdia", box("hdlr", hdlr))));
+    }
+
+    private byte[] box(String type, byte[] payload) {
+        return ByteBuffer.allocate(8 + payload.length)
+                .putInt(8 + payload.length)
+                .put(ascii(type))
+                .put(payload)
+                .array();
+    }
+
+    private byte[] opusHead() {
+        return ByteBuffer.allocate(19)
+                .order(ByteOrder.LITTLE_ENDIAN)
+                .put(ascii("OpusHead"))
+                .put((byte) 1)
+                .put((byte) 2)
+                .putShort((short) OPUS_PRE_SKIP)
+                .putInt(48000)
+                .array();
+    }
+
+    private byte[] oggPage(long granule, int serial, byte[] body) {
+        assertTrue(body.length < 255, "Test pages have a single segment");
+        return ByteBuffer.allocate(28 + body.length)
+                .order(ByteOrder.LITTLE_ENDIAN)
+                .put(ascii("OggS"))
+                .put((byte) 0)
+                .put((byte) 0)
+                .putLong(granule)
+                .putInt(serial)
+                .putInt(0)
+                .putInt(0)
+                .put((byte) 1)
+                .put((byte) body.length)
+                .put(body)
+                .array();
+    }
+
+    // MPEG 1 layer III, 128 kbps, 44100 Hz, stereo, no padding
+    private byte[] mp3Frame() {
+        var result = new byte[MP3_FRAME_LENGTH];
+        System.arraycopy(MP3_HEADER, 0, result, 0, MP3_HEADER.length);
+        return result;
+    }
+
+    private byte[] jpegSegment(int marker, byte[] payload) {
+        return ByteBuffer.allocate(4 + payload.length)
+                .put((byte) 0xFF)
+                .put((byte) marker)
+                .putShort((short) (payload.length + 2))
+                .put(payload)
+                .array();
+    }
+
+    private byte[] webp(String chunk, byte[] payload) {
+        return ByteBuffer.allocate(20 + payload.length)
+                .order(ByteOrder.LITTLE_ENDIAN)
+                .put(ascii("RIFF"))
+                .putInt(12 + payload.length)
+                .put(ascii("WEBP"))
+                .put(ascii(chunk))
+                .putInt(payload.length)
+                .put(payload)
+                .array();
+    }
+
+    private byte[] int24(int value) {
+        return new byte[]{(byte) value, (byte) (value >>> 8), (byte) (value >>> 16)};
+    }
+
+    private byte[] ascii(String value) {
+        return value.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    private byte[] concat(byte[]... parts) {
+        var result = new ByteArrayOutputStream();
+        for (var part : parts) {
+            result.writeBytes(part);
+        }
+
+        return result.toByteArray();
+    }
+}
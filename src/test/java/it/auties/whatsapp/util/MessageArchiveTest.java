@@ -0,0 +1,136 @@
+package it.auties.whatsapp.util;
+
+import it.auties.whatsapp.model.info.ChatMessageInfo;
+import it.auties.whatsapp.model.info.ChatMessageInfoBuilder;
+import it.auties.whatsapp.model.jid.Jid;
+import it.auties.whatsapp.model.message.model.ChatMessageKeyBuilder;
+import it.auties.whatsapp.model.message.model.MessageContainer;
+import it.auties.whatsapp.model.message.model.MessageStatus;
+import it.auties.whatsapp.model.message.standard.TextMessage;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Optional;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+// Writes messages to an archive and reads them back through its on-disk hash index
+public class MessageArchiveTest {
+    private static final Jid FIRST_CHAT = Jid.of("393200000001@s.whatsapp.net");
+    private static final Jid SECOND_CHAT = Jid.of("393200000002@s.whatsapp.net");
+
+    @TempDir
+    private Path directory;
+
+    @Test
+    public void testAppendAndFind() {
+        try (var archive = MessageArchive.of(directory)) {
+            archive.append(FIRST_CHAT, message(FIRST_CHAT, "A", "First"));
+            archive.append(SECOND_CHAT, message(SECOND_CHAT, "A", "Second"));
+            assertEquals(2, archive.size());
+            assertTrue(archive.contains(FIRST_CHAT, "A"));
+            assertFalse(archive.contains(FIRST_CHAT, "B"));
+            assertEquals(Optional.of("First"), archive.find(FIRST_CHAT, "A").map(MessageArchiveTest::text));
+            assertEquals(Optional.of("Second"), archive.find(SECOND_CHAT, "A").map(MessageArchiveTest::text));
+            assertEquals(Optional.empty(), archive.find(SECOND_CHAT, "B"));
+        }
+    }
+
+    @Test
+    public void testAppendReplacesId() {
+        try (var archive = MessageArchive.of(directory)) {
+            archive.append(FIRST_CHAT, message(FIRST_CHAT, "A", "Old"));
+            archive.append(FIRST_CHAT, message(FIRST_CHAT, "A", "New"));
+            assertEquals(1, archive.size());
+            assertEquals(Optional.of("New"), archive.find(FIRST_CHAT, "A").map(MessageArchiveTest::text));
+        }
+    }
+
+    @Test
+    public void testIndexGrowsAndSurvivesReopen() {
+        var messages = 2000;
+        try (var archive = MessageArchive.of(directory)) {
+            for (var index = 0; index < messages; index++) {
+                archive.append(FIRST_CHAT, message(FIRST_CHAT, "ID" + index, "Message " + index));
+            }
+
+            assertEquals(messages, archive.size());
+            assertEquals(Optional.of("Message 0"), archive.find(FIRST_CHAT, "ID0").map(MessageArchiveTest::text));
+        }
+
+        try (var archive = MessageArchive.of(directory)) {
+            assertEquals(messages, archive.size());
+            for (var index = 0; index < messages; index++) {
+                assertEquals(Optional.of("Message " + index), archive.find(FIRST_CHAT, "ID" + index).map(MessageArchiveTest::text));
+            }
+        }
+    }
+
+    @Test
+    public void testPartialRecordIsDiscarded() throws IOException {
+        try (var archive = MessageArchive.of(directory)) {
+            archive.append(FIRST_CHAT, message(FIRST_CHAT, "A", "First"));
+        }
+
+        var file = directory.toAbsolutePath().normalize().resolve("messages.archive");
+        var size = Files.size(file);
+        Files.write(file, new byte[]{0, 0, 1, 0, 42}, StandardOpenOption.APPEND);
+        try (var archive = MessageArchive.of(directory)) {
+            assertEquals(size, Files.size(file));
+            assertEquals(1, archive.size());
+            archive.append(FIRST_CHAT, message(FIRST_CHAT, "B", "Second"));
+            assertEquals(Optional.of("First"), archive.find(FIRST_CHAT, "A").map(MessageArchiveTest::text));
+            assertEquals(Optional.of("Second"), archive.find(FIRST_CHAT, "B").map(MessageArchiveTest::text));
+        }
+    }
+
+    @Test
+    public void testMissingIndexIsRebuilt() throws IOException {
+        try (var archive = MessageArchive.of(directory)) {
+            archive.append(FIRST_CHAT, message(FIRST_CHAT, "A", "First"));
+            archive.append(FIRST_CHAT, message(FIRST_CHAT, "B", "Second"));
+        }
+
+        Files.delete(directory.toAbsolutePath().normalize().resolve("messages.index"));
+        try (var archive = MessageArchive.of(directory)) {
+            assertEquals(2, archive.size());
+            assertEquals(Optional.of("Second"), archive.find(FIRST_CHAT, "B").map(MessageArchiveTest::text));
+        }
+    }
+
+    @Test
+    public void testDirectoryIsLocked() {
+        try (var ignored = MessageArchive.of(directory)) {
+            var exception = assertThrows(IllegalStateException.class, () -> MessageArchive.of(directory));
+            assertTrue(exception.getMessage().startsWith("Message archive"), exception.getMessage());
+        }
+
+        try (var archive = MessageArchive.of(directory)) {
+            assertEquals(0, archive.size());
+        }
+    }
+
+    private static ChatMessageInfo message(Jid chatJid, String id, String text) {
+        var key = new ChatMessageKeyBuilder()
+                .id(id)
+                .chatJid(chatJid)
+                .senderJid(chatJid)
+                .fromMe(false)
+                .build();
+        return new ChatMessageInfoBuilder()
+                .key(key)
+                .senderJid(chatJid)
+                .status(MessageStatus.DELIVERED)
+                .message(MessageContainer.of(text))
+                .timestampSeconds(Clock.nowSeconds())
+                .build();
+    }
+
+    private static String text(ChatMessageInfo info) {
+        return info.message().content() instanceof TextMessage textMessage ? textMessage.text() : null;
+    }
+}